@@ -0,0 +1,1155 @@
+package com.example.android.opengl;
+
+import java.util.Arrays;
+
+/**
+ * Smooths a triangle mesh with Loop subdivision, only where it is seen big
+ * enough to look faceted.
+ *
+ * The mesh is split in patches, its {@link Meshlets}. Every frame each
+ * patch gets a level from the projected length of its longest edge: one
+ * more level each time that length is over {@link #setEdgePixels} pixels,
+ * up to {@link #MAX_LEVEL}. A patch only changes level once the length is
+ * a factor of {@link #HYSTERESIS} past the threshold, so a slow drag does
+ * not flip the patches near one back and forth. A patch is subdivided on its own, together with
+ * two rings of faces around it, so the vertices of its border come out as
+ * in a subdivision of the whole mesh and two patches at the same level
+ * meet exactly. All the vertices are moved to their limit positions, which
+ * do not change with the level; where a patch meets a coarser one, the
+ * vertices of the finer side on their shared edge are moved onto the
+ * straight line of the coarser side, so there are no cracks.
+ *
+ * The patches to subdivide are done in parallel by a {@link WorkerPool} and
+ * kept for later frames, within {@link #MAX_CACHED_FACES}. When the levels
+ * do not change, {@link #update} does nothing; when some do, only those
+ * patches are subdivided and the rest are copied from the cache. The
+ * output is only rewritten from the first patch that changed; the patches
+ * before it that border a changed one are snapped again in place.
+ * {@link #getDirtyVertexRanges} and {@link #getDirtyIndexStart} tell what
+ * to upload again.
+ *
+ * The output is split in batches of at most 65536 vertices, for 16 bit
+ * indices. It is written holding the lock of this object, so another
+ * thread can copy it out holding the same lock while the next update
+ * subdivides.
+ */
+public class AdaptiveSubdivision {
+    public static final int MAX_LEVEL = 3;
+    public static final float DEFAULT_EDGE_PIXELS = 16;
+    // how far past a threshold, as a factor of the edge pixels, before a level changes
+    public static final float HYSTERESIS = 1.15f;
+    // subdivided faces kept in the cache, the patches of the current levels stay anyway
+    static final int MAX_CACHED_FACES = 1 << 20;
+    static final int MAX_BATCH_VERTICES = 0xFFFF + 1;
+    // rings of faces subdivided around a patch: the limit positions of its
+    // vertices need one, their normals the positions of one more
+    private static final int RINGS = 2;
+    // t of a vertex on a base edge, in steps of the finest level
+    private static final int STEPS = 1 << MAX_LEVEL;
+
+    private final Mesh mMesh;
+    private final WorkerPool mPool;
+    // faces in meshlet order, the faces of patch p are mPatchStart[p] .. mPatchStart[p + 1]
+    private final int[] mFaces;
+    private final int[] mPatchStart;
+    private final int[] mFacePatch;
+    private final int mPatchCount;
+    private final float[] mSpheres;
+    private final float[] mLongestEdge;
+    // base vertex to faces
+    private final int[] mVertexFaceStart;
+    private final int[] mVertexFaces;
+    // base edges and the patches on each side, -1 on a border
+    private final EdgeTable mBaseEdges;
+    private final int[] mEdgePatches;
+    // patches sharing an edge with each patch, those of p are mNeighbourStart[p] .. mNeighbourStart[p + 1]
+    private final int[] mNeighbourStart;
+    private final int[] mNeighbours;
+
+    // per thread stamps of the faces and vertices taken into a region
+    private final int[][] mFaceStamp;
+    private final int[][] mVertexStamp;
+    private final int[][] mLocalVertex;
+    private final int[] mStamp;
+
+    private float mEdgePixels = DEFAULT_EDGE_PIXELS;
+    private final int[] mLevels;
+    private final int[] mWanted;
+    private final Patch[][] mCache;
+    private int mCachedFaces;
+    private final int[] mToRefine;
+    private final int[] mEnds = new int[2];
+    private boolean mValid;
+
+    // the assembled mesh
+    private float[] mCoords = new float[0];
+    private float[] mNormals = new float[0];
+    private short[] mIndices = new short[0];
+    private int mVertexCount;
+    private int mIndexCount;
+    // first vertex and first index of every batch, and the ends after the last one
+    private int[] mBatchVertex = new int[2];
+    private int[] mBatchIndex = new int[2];
+    private int mBatchCount;
+    // where each patch went in the output and the subdivision of it written there
+    private final Patch[] mAssembled;
+    private final int[] mPatchVertex;
+    private final int[] mPatchIndex;
+    private final int[] mPatchBatch;
+    // output rewritten since the last clearDirty(): a tail, and patches before it snapped again
+    private int mDirtyVertex;
+    private int mDirtyIndex;
+    private final boolean[] mDirtyPatch;
+
+    private int mLastRefined;
+    private int mLastReused;
+    private long mLastRefineNanos;
+    private long mLastUpdateNanos;
+
+    public AdaptiveSubdivision(Mesh mesh, WorkerPool pool) {
+        mMesh = mesh;
+        mPool = pool;
+        Meshlets meshlets = Meshlets.build(mesh);
+        mFaces = meshlets.indices;
+        mPatchCount = meshlets.getCount();
+        mPatchStart = meshlets.faceStart;
+        mSpheres = meshlets.spheres;
+        int faceCount = mFaces.length / 3;
+        int vertexCount = mesh.getVertexCount();
+
+        mVertexFaceStart = new int[vertexCount + 1];
+        for (int index : mFaces) {
+            mVertexFaceStart[index + 1]++;
+        }
+        for (int v = 0; v < vertexCount; v++) {
+            mVertexFaceStart[v + 1] += mVertexFaceStart[v];
+        }
+        mVertexFaces = new int[mFaces.length];
+        int[] fill = new int[vertexCount];
+        for (int i = 0; i < mFaces.length; i++) {
+            int v = mFaces[i];
+            mVertexFaces[mVertexFaceStart[v] + fill[v]++] = i / 3;
+        }
+
+        mBaseEdges = new EdgeTable(mFaces.length);
+        mEdgePatches = new int[mFaces.length * 2];
+        Arrays.fill(mEdgePatches, -1);
+        mLongestEdge = new float[mPatchCount];
+        mFacePatch = new int[faceCount];
+        float[] coords = mesh.coords;
+        for (int p = 0; p < mPatchCount; p++) {
+            for (int f = mPatchStart[p]; f < mPatchStart[p + 1]; f++) {
+                mFacePatch[f] = p;
+                for (int k = 0; k < 3; k++) {
+                    int a = mFaces[f * 3 + k];
+                    int b = mFaces[f * 3 + (k + 1) % 3];
+                    int e = mBaseEdges.add(a, b);
+                    if (mEdgePatches[e * 2] < 0) {
+                        mEdgePatches[e * 2] = p;
+                    } else if (mEdgePatches[e * 2] != p) {
+                        mEdgePatches[e * 2 + 1] = p;
+                    }
+                    float dx = coords[a * 3] - coords[b * 3];
+                    float dy = coords[a * 3 + 1] - coords[b * 3 + 1];
+                    float dz = coords[a * 3 + 2] - coords[b * 3 + 2];
+                    mLongestEdge[p] = Math.max(mLongestEdge[p], (float) Math.sqrt(dx * dx + dy * dy + dz * dz));
+                }
+            }
+        }
+
+        // each pair of patches once per shared edge, duplicates are harmless
+        mNeighbourStart = new int[mPatchCount + 1];
+        for (int e = 0; e < mBaseEdges.size(); e++) {
+            if (mEdgePatches[e * 2 + 1] >= 0) {
+                mNeighbourStart[mEdgePatches[e * 2] + 1]++;
+                mNeighbourStart[mEdgePatches[e * 2 + 1] + 1]++;
+            }
+        }
+        for (int p = 0; p < mPatchCount; p++) {
+            mNeighbourStart[p + 1] += mNeighbourStart[p];
+        }
+        mNeighbours = new int[mNeighbourStart[mPatchCount]];
+        int[] next = new int[mPatchCount];
+        for (int e = 0; e < mBaseEdges.size(); e++) {
+            int a = mEdgePatches[e * 2], b = mEdgePatches[e * 2 + 1];
+            if (b >= 0) {
+                mNeighbours[mNeighbourStart[a] + next[a]++] = b;
+                mNeighbours[mNeighbourStart[b] + next[b]++] = a;
+            }
+        }
+
+        int threads = pool.getThreadCount();
+        mFaceStamp = new int[threads][faceCount];
+        mVertexStamp = new int[threads][vertexCount];
+        mLocalVertex = new int[threads][vertexCount];
+        mStamp = new int[threads];
+        mLevels = new int[mPatchCount];
+        mWanted = new int[mPatchCount];
+        mCache = new Patch[mPatchCount][MAX_LEVEL + 1];
+        mToRefine = new int[mPatchCount];
+        mAssembled = new Patch[mPatchCount];
+        mPatchVertex = new int[mPatchCount];
+        mPatchIndex = new int[mPatchCount];
+        mPatchBatch = new int[mPatchCount];
+        mDirtyPatch = new boolean[mPatchCount];
+    }
+
+    /**
+     * Sets the longest an edge may look on screen before its patch is
+     * subdivided once more.
+     */
+    public void setEdgePixels(float pixels) {
+        mEdgePixels = pixels;
+    }
+
+    /**
+     * Drops the cached patches, after the base mesh was edited.
+     */
+    public void invalidate() {
+        for (Patch[] levels : mCache) {
+            Arrays.fill(levels, null);
+        }
+        Arrays.fill(mAssembled, null);
+        mCachedFaces = 0;
+        mValid = false;
+    }
+
+    /**
+     * Drops the cached patches that depend on some moved vertices: those
+     * with one of the vertices within {@link #RINGS} rings of faces. Must
+     * not run during an update.
+     */
+    public void invalidate(int[] vertices, int count) {
+        int[] faceStamp = mFaceStamp[0];
+        int stamp = ++mStamp[0];
+        int[] faces = new int[64];
+        int faceCount = 0;
+        for (int i = 0; i < count; i++) {
+            int v = vertices[i];
+            for (int j = mVertexFaceStart[v]; j < mVertexFaceStart[v + 1]; j++) {
+                int f = mVertexFaces[j];
+                if (faceStamp[f] != stamp) {
+                    faceStamp[f] = stamp;
+                    faces = add(faces, faceCount++, f);
+                }
+            }
+        }
+        int ringStart = 0;
+        for (int ring = 0; ring < RINGS; ring++) {
+            int ringEnd = faceCount;
+            for (int i = ringStart; i < ringEnd; i++) {
+                for (int k = 0; k < 3; k++) {
+                    int v = mFaces[faces[i] * 3 + k];
+                    for (int j = mVertexFaceStart[v]; j < mVertexFaceStart[v + 1]; j++) {
+                        int f = mVertexFaces[j];
+                        if (faceStamp[f] != stamp) {
+                            faceStamp[f] = stamp;
+                            faces = add(faces, faceCount++, f);
+                        }
+                    }
+                }
+            }
+            ringStart = ringEnd;
+        }
+        for (int i = 0; i < faceCount; i++) {
+            Patch[] levels = mCache[mFacePatch[faces[i]]];
+            for (int level = 0; level <= MAX_LEVEL; level++) {
+                if (levels[level] != null) {
+                    mCachedFaces -= levels[level].faces.length / 3;
+                    levels[level] = null;
+                }
+            }
+        }
+        mValid = false;
+    }
+
+    /**
+     * Picks the level of every patch for a view and rebuilds the output if
+     * any changed.
+     *
+     * @param screenScale - Pixels per unit at distance 1.
+     * @return - True if the output changed.
+     */
+    public boolean update(float[] mvpMatrix, float screenScale) {
+        long start = System.nanoTime();
+        for (int p = 0; p < mPatchCount; p++) {
+            // the nearest point of the patch sphere, w of its clip coordinates
+            float x = mSpheres[p * 4], y = mSpheres[p * 4 + 1], z = mSpheres[p * 4 + 2];
+            float w = mvpMatrix[3] * x + mvpMatrix[7] * y + mvpMatrix[11] * z + mvpMatrix[15] - mSpheres[p * 4 + 3];
+            float pixels = mLongestEdge[p] * screenScale / Math.max(w, 1e-3f);
+            // the level stays while it is between those of both ends of the band
+            int coarse = levelFor(pixels, mEdgePixels * HYSTERESIS);
+            int fine = levelFor(pixels, mEdgePixels / HYSTERESIS);
+            mWanted[p] = Math.max(coarse, Math.min(mLevels[p], fine));
+        }
+        return apply(start);
+    }
+
+    private static int levelFor(float pixels, float threshold) {
+        int level = 0;
+        while (pixels > threshold && level < MAX_LEVEL) {
+            pixels *= 0.5f;
+            level++;
+        }
+        return level;
+    }
+
+    /**
+     * Subdivides all the patches to the same level, for checks against
+     * {@link #subdivideAll}.
+     */
+    boolean update(int level) {
+        Arrays.fill(mWanted, level);
+        return apply(System.nanoTime());
+    }
+
+    private boolean apply(long start) {
+        boolean changed = !mValid;
+        for (int p = 0; p < mPatchCount; p++) {
+            changed |= mWanted[p] != mLevels[p];
+        }
+        mLastRefined = 0;
+        mLastReused = 0;
+        mLastRefineNanos = 0;
+        if (!changed) {
+            mLastUpdateNanos = System.nanoTime() - start;
+            return false;
+        }
+        System.arraycopy(mWanted, 0, mLevels, 0, mPatchCount);
+
+        int count = 0;
+        for (int p = 0; p < mPatchCount; p++) {
+            if (mCache[p][mLevels[p]] == null) {
+                mToRefine[count++] = p;
+            }
+        }
+        mLastRefined = count;
+        mLastReused = mPatchCount - count;
+        long refineStart = System.nanoTime();
+        mPool.forEach(count, 1, new WorkerPool.Task() {
+            @Override
+            public void run(int begin, int end, int worker) {
+                for (int i = begin; i < end; i++) {
+                    int p = mToRefine[i];
+                    mCache[p][mLevels[p]] = refine(p, mLevels[p], worker);
+                }
+            }
+        });
+        mLastRefineNanos = System.nanoTime() - refineStart;
+        for (int i = 0; i < count; i++) {
+            int p = mToRefine[i];
+            mCachedFaces += mCache[p][mLevels[p]].faces.length / 3;
+        }
+        if (mCachedFaces > MAX_CACHED_FACES) {
+            // keep only what is drawn now
+            for (int p = 0; p < mPatchCount; p++) {
+                for (int level = 0; level <= MAX_LEVEL; level++) {
+                    if (level != mLevels[p] && mCache[p][level] != null) {
+                        mCachedFaces -= mCache[p][level].faces.length / 3;
+                        mCache[p][level] = null;
+                    }
+                }
+            }
+        }
+        synchronized (this) {
+            assemble();
+        }
+        mValid = true;
+        mLastUpdateNanos = System.nanoTime() - start;
+        return true;
+    }
+
+    // Subdivides a patch with its surrounding rings, on a worker thread
+    private Patch refine(int patch, int level, int worker) {
+        int[] faceStamp = mFaceStamp[worker];
+        int[] vertexStamp = mVertexStamp[worker];
+        int[] local = mLocalVertex[worker];
+        int stamp = ++mStamp[worker];
+
+        // the faces of the patch first, then the rings around them
+        int[] region = new int[64];
+        int regionFaces = 0;
+        for (int f = mPatchStart[patch]; f < mPatchStart[patch + 1]; f++) {
+            region = add(region, regionFaces++, f);
+            faceStamp[f] = stamp;
+        }
+        int ownFaces = regionFaces;
+        int ringStart = 0;
+        for (int ring = 0; ring < RINGS; ring++) {
+            int ringEnd = regionFaces;
+            for (int i = ringStart; i < ringEnd; i++) {
+                for (int k = 0; k < 3; k++) {
+                    int v = mFaces[region[i] * 3 + k];
+                    for (int j = mVertexFaceStart[v]; j < mVertexFaceStart[v + 1]; j++) {
+                        int f = mVertexFaces[j];
+                        if (faceStamp[f] != stamp) {
+                            faceStamp[f] = stamp;
+                            region = add(region, regionFaces++, f);
+                        }
+                    }
+                }
+            }
+            ringStart = ringEnd;
+        }
+
+        Level mesh = new Level(regionFaces * 3, regionFaces);
+        mesh.ownFaces = ownFaces;
+        float[] coords = mMesh.coords;
+        for (int i = 0; i < regionFaces; i++) {
+            for (int k = 0; k < 3; k++) {
+                int v = mFaces[region[i] * 3 + k];
+                if (vertexStamp[v] != stamp) {
+                    vertexStamp[v] = stamp;
+                    int id = mesh.vertexCount++;
+                    local[v] = id;
+                    System.arraycopy(coords, v * 3, mesh.coords, id * 3, 3);
+                    mesh.edgeA[id] = v;
+                    mesh.edgeB[id] = v;
+                }
+                mesh.faces[i * 3 + k] = local[v];
+            }
+        }
+        for (int l = 0; l < level; l++) {
+            mesh = mesh.subdivide().prune(RINGS);
+        }
+        return mesh.toPatch(mBaseEdges);
+    }
+
+    /**
+     * Subdivides the whole mesh at once, with its faces in the order of
+     * the output, as a reference.
+     */
+    Patch subdivideAll(int level) {
+        Level mesh = new Level(mMesh.getVertexCount(), mFaces.length / 3);
+        mesh.vertexCount = mMesh.getVertexCount();
+        mesh.ownFaces = mesh.faceCount;
+        System.arraycopy(mMesh.coords, 0, mesh.coords, 0, mesh.vertexCount * 3);
+        System.arraycopy(mFaces, 0, mesh.faces, 0, mFaces.length);
+        for (int v = 0; v < mesh.vertexCount; v++) {
+            mesh.edgeA[v] = v;
+            mesh.edgeB[v] = v;
+        }
+        for (int l = 0; l < level; l++) {
+            mesh = mesh.subdivide();
+        }
+        return mesh.toPatch(mBaseEdges);
+    }
+
+    private static int[] add(int[] array, int at, int value) {
+        if (at == array.length) {
+            int[] grown = new int[array.length * 2];
+            System.arraycopy(array, 0, grown, 0, at);
+            array = grown;
+        }
+        array[at] = value;
+        return array;
+    }
+
+    // Copies the patches of the current levels into the output, closing the
+    // cracks, from the first one that changed
+    private void assemble() {
+        int first = mPatchCount;
+        int vertices = 0;
+        int indices = 0;
+        for (int p = 0; p < mPatchCount; p++) {
+            Patch patch = mCache[p][mLevels[p]];
+            vertices += patch.coords.length / 3;
+            indices += patch.faces.length;
+            if (first == mPatchCount && patch != mAssembled[p]) {
+                first = p;
+            }
+        }
+        if (first == mPatchCount) {
+            return;
+        }
+        // the snapped borders of the neighbours before it change with the levels, not their place
+        for (int p = first; p < mPatchCount; p++) {
+            if (mCache[p][mLevels[p]] == mAssembled[p]) {
+                continue;
+            }
+            for (int j = mNeighbourStart[p]; j < mNeighbourStart[p + 1]; j++) {
+                int q = mNeighbours[j];
+                if (q < first) {
+                    Patch patch = mAssembled[q];
+                    System.arraycopy(patch.coords, 0, mCoords, mPatchVertex[q] * 3, patch.coords.length);
+                    snap(q, patch, mPatchVertex[q]);
+                    mDirtyPatch[q] = true;
+                }
+            }
+        }
+        int keptVertices = first == 0 ? 0 : mPatchVertex[first];
+        int keptIndices = first == 0 ? 0 : mPatchIndex[first];
+        if (mCoords.length < vertices * 3) {
+            float[] coords = new float[vertices * 3];
+            float[] normals = new float[vertices * 3];
+            System.arraycopy(mCoords, 0, coords, 0, keptVertices * 3);
+            System.arraycopy(mNormals, 0, normals, 0, keptVertices * 3);
+            mCoords = coords;
+            mNormals = normals;
+        }
+        if (mIndices.length < indices) {
+            short[] grown = new short[indices];
+            System.arraycopy(mIndices, 0, grown, 0, keptIndices);
+            mIndices = grown;
+        }
+        mVertexCount = keptVertices;
+        mIndexCount = keptIndices;
+        mBatchCount = first == 0 ? 0 : mPatchBatch[first] + 1;
+        int batchStart = first == 0 ? 0 : mBatchVertex[mPatchBatch[first]];
+        mDirtyVertex = Math.min(mDirtyVertex, keptVertices);
+        mDirtyIndex = Math.min(mDirtyIndex, keptIndices);
+        for (int p = first; p < mPatchCount; p++) {
+            Patch patch = mCache[p][mLevels[p]];
+            int count = patch.coords.length / 3;
+            if (mVertexCount + count - batchStart > MAX_BATCH_VERTICES || p == 0) {
+                startBatch();
+                batchStart = mVertexCount;
+            }
+            mAssembled[p] = patch;
+            mPatchVertex[p] = mVertexCount;
+            mPatchIndex[p] = mIndexCount;
+            mPatchBatch[p] = mBatchCount - 1;
+            System.arraycopy(patch.coords, 0, mCoords, mVertexCount * 3, count * 3);
+            System.arraycopy(patch.normals, 0, mNormals, mVertexCount * 3, count * 3);
+            snap(p, patch, mVertexCount);
+            int base = mVertexCount - batchStart;
+            for (int i = 0; i < patch.faces.length; i++) {
+                mIndices[mIndexCount++] = (short) (base + patch.faces[i]);
+            }
+            mVertexCount += count;
+        }
+        startBatch();
+        mBatchCount--;
+    }
+
+    private void startBatch() {
+        if (mBatchVertex.length < mBatchCount + 2) {
+            int[] vertex = new int[mBatchVertex.length * 2];
+            int[] index = new int[mBatchIndex.length * 2];
+            System.arraycopy(mBatchVertex, 0, vertex, 0, mBatchCount);
+            System.arraycopy(mBatchIndex, 0, index, 0, mBatchCount);
+            mBatchVertex = vertex;
+            mBatchIndex = index;
+        }
+        mBatchVertex[mBatchCount] = mVertexCount;
+        mBatchIndex[mBatchCount] = mIndexCount;
+        mBatchCount++;
+    }
+
+    // Moves the vertices on edges shared with a coarser patch onto its straight edges
+    private void snap(int p, Patch patch, int first) {
+        int level = mLevels[p];
+        for (int i = 0; i < patch.edge.length; i++) {
+            int e = patch.edge[i];
+            if (e < 0) {
+                continue;
+            }
+            int other = mEdgePatches[e * 2] == p ? mEdgePatches[e * 2 + 1] : mEdgePatches[e * 2];
+            int coarse = other < 0 ? level : Math.min(level, mLevels[other]);
+            int step = STEPS >> coarse;
+            int t = patch.t[i];
+            if (t % step == 0) {
+                continue;
+            }
+            int v0 = patch.find(key(e, t - t % step));
+            int v1 = patch.find(key(e, t - t % step + step));
+            float s = (float) (t % step) / step;
+            for (int k = 0; k < 3; k++) {
+                mCoords[(first + i) * 3 + k] = patch.coords[v0 * 3 + k]
+                        + (patch.coords[v1 * 3 + k] - patch.coords[v0 * 3 + k]) * s;
+            }
+        }
+    }
+
+    // The key of the place t on base edge e, ends included
+    private long key(int e, int t) {
+        if (t == 0 || t == STEPS) {
+            mBaseEdges.ends(e, mEnds);
+            return -1 - mEnds[t == 0 ? 0 : 1];
+        }
+        return (long) e * (STEPS + 1) + t;
+    }
+
+    /**
+     * Returns the level of a patch in the last update.
+     */
+    public int getLevel(int patch) {
+        return mLevels[patch];
+    }
+
+    public int getPatchCount() {
+        return mPatchCount;
+    }
+
+    public float[] getCoords() {
+        return mCoords;
+    }
+
+    public float[] getNormals() {
+        return mNormals;
+    }
+
+    /**
+     * Returns the indices, relative to the first vertex of their batch.
+     */
+    public short[] getIndices() {
+        return mIndices;
+    }
+
+    public int getVertexCount() {
+        return mVertexCount;
+    }
+
+    public int getTriangleCount() {
+        return mIndexCount / 3;
+    }
+
+    public int getBatchCount() {
+        return mBatchCount;
+    }
+
+    public int getBatchFirstVertex(int batch) {
+        return mBatchVertex[batch];
+    }
+
+    public int getBatchFirstIndex(int batch) {
+        return mBatchIndex[batch];
+    }
+
+    public int getBatchIndexCount(int batch) {
+        return mBatchIndex[batch + 1] - mBatchIndex[batch];
+    }
+
+    /**
+     * Writes the ranges of vertices written since the last
+     * {@link #clearDirty}, in order, as pairs of first and end vertex.
+     *
+     * @param ranges - Room for 2 * ({@link #getPatchCount} + 1) ints.
+     * @return - The number of ranges.
+     */
+    public int getDirtyVertexRanges(int[] ranges) {
+        int tail = Math.min(mDirtyVertex, mVertexCount);
+        int count = 0;
+        for (int p = 0; p < mPatchCount && mAssembled[p] != null && mPatchVertex[p] < tail; p++) {
+            if (!mDirtyPatch[p]) {
+                continue;
+            }
+            int start = mPatchVertex[p];
+            int end = Math.min(start + mAssembled[p].coords.length / 3, tail);
+            if (count > 0 && ranges[count * 2 - 1] == start) {
+                ranges[count * 2 - 1] = end;
+            } else {
+                ranges[count * 2] = start;
+                ranges[count * 2 + 1] = end;
+                count++;
+            }
+        }
+        if (tail < mVertexCount) {
+            if (count > 0 && ranges[count * 2 - 1] == tail) {
+                ranges[count * 2 - 1] = mVertexCount;
+            } else {
+                ranges[count * 2] = tail;
+                ranges[count * 2 + 1] = mVertexCount;
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Returns the first index written since the last {@link #clearDirty}.
+     */
+    public int getDirtyIndexStart() {
+        return Math.min(mDirtyIndex, mIndexCount);
+    }
+
+    /**
+     * Marks the output as copied out, so the next updates only report what
+     * they rewrite.
+     */
+    public void clearDirty() {
+        mDirtyVertex = Integer.MAX_VALUE;
+        mDirtyIndex = Integer.MAX_VALUE;
+        Arrays.fill(mDirtyPatch, false);
+    }
+
+    /**
+     * Returns the patches subdivided by the last update.
+     */
+    public int getLastRefinedCount() {
+        return mLastRefined;
+    }
+
+    /**
+     * Returns the patches the last update took from the cache.
+     */
+    public int getLastReusedCount() {
+        return mLastReused;
+    }
+
+    /**
+     * Returns the time spent subdividing in the last update, on all threads.
+     */
+    public float getLastRefineMicros() {
+        return mLastRefineNanos / 1e3f;
+    }
+
+    /**
+     * Returns the time of the last update, levels and assembly included.
+     */
+    public float getLastUpdateMicros() {
+        return mLastUpdateNanos / 1e3f;
+    }
+
+    public int getCachedFaceCount() {
+        return mCachedFaces;
+    }
+
+    /**
+     * A subdivided patch: limit positions and normals of its vertices, its
+     * faces, and where each vertex is on the base edges.
+     */
+    static final class Patch {
+        float[] coords;
+        float[] normals;
+        int[] faces;
+        // base edge of a vertex and its place on it, 0 .. STEPS from the lower
+        // base vertex; -1 inside a base face. A base vertex has edge -1 and
+        // t = -1 - its number.
+        int[] edge;
+        int[] t;
+        // edge * (STEPS + 1) + t, or -1 - base vertex, of the vertices on base
+        // edges, sorted, with their vertices
+        long[] keys;
+        int[] keyVertex;
+
+        /**
+         * Returns the vertex of a key, which must be there.
+         */
+        int find(long key) {
+            int low = 0;
+            int high = keys.length - 1;
+            while (low < high) {
+                int middle = (low + high) >>> 1;
+                if (keys[middle] < key) {
+                    low = middle + 1;
+                } else {
+                    high = middle;
+                }
+            }
+            return keyVertex[low];
+        }
+    }
+
+    /**
+     * A mesh of a subdivision level of a region: the faces of the patch
+     * first, their children stay first. Every vertex knows where it is on
+     * the base mesh: edgeA == edgeB for a base vertex, edgeA < edgeB and t
+     * for a vertex on the base edge between them, edgeA = -1 otherwise.
+     */
+    static final class Level {
+        float[] coords;
+        int[] faces;
+        int vertexCount;
+        int faceCount;
+        int ownFaces;
+        int[] edgeA;
+        int[] edgeB;
+        int[] t;
+
+        // adjacency, filled by analyze()
+        private int mEdgeCount;
+        private int[] mEdgeVertices;
+        private int[] mEdgeFaces;
+        private int[] mOpposite;
+        private int[] mFaceEdges;
+        private float[] mSum;
+        private int[] mValence;
+        private float[] mBorderSum;
+        private int[] mBorderEdges;
+
+        Level(int vertexCapacity, int faceCount) {
+            coords = new float[vertexCapacity * 3];
+            faces = new int[faceCount * 3];
+            this.faceCount = faceCount;
+            edgeA = new int[vertexCapacity];
+            edgeB = new int[vertexCapacity];
+            t = new int[vertexCapacity];
+        }
+
+        private void analyze() {
+            // the edges of each lower vertex, a few, so a scan finds them faster than a hash
+            int[] start = new int[vertexCount + 1];
+            for (int i = 0; i < faceCount * 3; i++) {
+                int a = faces[i];
+                int b = faces[i % 3 == 2 ? i - 2 : i + 1];
+                start[Math.min(a, b) + 1]++;
+            }
+            for (int v = 0; v < vertexCount; v++) {
+                start[v + 1] += start[v];
+            }
+            int[] fill = new int[vertexCount];
+            int[] higher = new int[faceCount * 3];
+            int[] listed = new int[faceCount * 3];
+            mEdgeCount = 0;
+            mEdgeVertices = new int[faceCount * 3 * 2];
+            mEdgeFaces = new int[faceCount * 3];
+            mOpposite = new int[faceCount * 3 * 2];
+            mFaceEdges = new int[faceCount * 3];
+            for (int f = 0; f < faceCount; f++) {
+                for (int k = 0; k < 3; k++) {
+                    int a = faces[f * 3 + k];
+                    int b = faces[f * 3 + (k + 1) % 3];
+                    int lo = Math.min(a, b);
+                    int hi = Math.max(a, b);
+                    int e = -1;
+                    for (int j = start[lo]; j < start[lo] + fill[lo]; j++) {
+                        if (higher[j] == hi) {
+                            e = listed[j];
+                            break;
+                        }
+                    }
+                    if (e < 0) {
+                        e = mEdgeCount++;
+                        higher[start[lo] + fill[lo]] = hi;
+                        listed[start[lo] + fill[lo]++] = e;
+                        mEdgeVertices[e * 2] = a;
+                        mEdgeVertices[e * 2 + 1] = b;
+                    }
+                    int n = mEdgeFaces[e]++;
+                    if (n < 2) {
+                        mOpposite[e * 2 + n] = faces[f * 3 + (k + 2) % 3];
+                    }
+                    mFaceEdges[f * 3 + k] = e;
+                }
+            }
+            mSum = new float[vertexCount * 3];
+            mValence = new int[vertexCount];
+            mBorderSum = new float[vertexCount * 3];
+            mBorderEdges = new int[vertexCount];
+            for (int e = 0; e < mEdgeCount; e++) {
+                int a = mEdgeVertices[e * 2];
+                int b = mEdgeVertices[e * 2 + 1];
+                boolean border = mEdgeFaces[e] != 2;
+                mValence[a]++;
+                mValence[b]++;
+                if (border) {
+                    mBorderEdges[a]++;
+                    mBorderEdges[b]++;
+                }
+                for (int k = 0; k < 3; k++) {
+                    mSum[a * 3 + k] += coords[b * 3 + k];
+                    mSum[b * 3 + k] += coords[a * 3 + k];
+                    if (border) {
+                        mBorderSum[a * 3 + k] += coords[b * 3 + k];
+                        mBorderSum[b * 3 + k] += coords[a * 3 + k];
+                    }
+                }
+            }
+        }
+
+        Level subdivide() {
+            analyze();
+            int edges = mEdgeCount;
+            Level next = new Level(vertexCount + edges, faceCount * 4);
+            next.vertexCount = vertexCount + edges;
+            next.ownFaces = ownFaces * 4;
+            float[] out = next.coords;
+            for (int v = 0; v < vertexCount; v++) {
+                int n = mValence[v];
+                if (mBorderEdges[v] == 0) {
+                    float beta = n == 3 ? 3.0f / 16 : 3.0f / (8 * n);
+                    for (int k = 0; k < 3; k++) {
+                        out[v * 3 + k] = (1 - n * beta) * coords[v * 3 + k] + beta * mSum[v * 3 + k];
+                    }
+                } else if (mBorderEdges[v] == 2) {
+                    for (int k = 0; k < 3; k++) {
+                        out[v * 3 + k] = 0.75f * coords[v * 3 + k] + 0.125f * mBorderSum[v * 3 + k];
+                    }
+                } else {
+                    // a corner stays
+                    System.arraycopy(coords, v * 3, out, v * 3, 3);
+                }
+            }
+            System.arraycopy(edgeA, 0, next.edgeA, 0, vertexCount);
+            System.arraycopy(edgeB, 0, next.edgeB, 0, vertexCount);
+            System.arraycopy(t, 0, next.t, 0, vertexCount);
+            for (int e = 0; e < edges; e++) {
+                int a = mEdgeVertices[e * 2];
+                int b = mEdgeVertices[e * 2 + 1];
+                int v = vertexCount + e;
+                if (mEdgeFaces[e] == 2) {
+                    int c = mOpposite[e * 2];
+                    int d = mOpposite[e * 2 + 1];
+                    for (int k = 0; k < 3; k++) {
+                        out[v * 3 + k] = 0.375f * (coords[a * 3 + k] + coords[b * 3 + k])
+                                + 0.125f * (coords[c * 3 + k] + coords[d * 3 + k]);
+                    }
+                } else {
+                    for (int k = 0; k < 3; k++) {
+                        out[v * 3 + k] = 0.5f * (coords[a * 3 + k] + coords[b * 3 + k]);
+                    }
+                }
+                tagMidpoint(a, b, next, v);
+            }
+            for (int f = 0; f < faceCount; f++) {
+                int a = faces[f * 3];
+                int b = faces[f * 3 + 1];
+                int c = faces[f * 3 + 2];
+                int ab = vertexCount + mFaceEdges[f * 3];
+                int bc = vertexCount + mFaceEdges[f * 3 + 1];
+                int ca = vertexCount + mFaceEdges[f * 3 + 2];
+                int[] children = {a, ab, ca, ab, b, bc, ca, bc, c, ab, bc, ca};
+                System.arraycopy(children, 0, next.faces, f * 12, 12);
+            }
+            return next;
+        }
+
+        /**
+         * Drops the faces more than some rings away from the own faces; each
+         * step only reads one ring, so the rest no longer matters.
+         */
+        Level prune(int rings) {
+            boolean[] near = new boolean[vertexCount];
+            boolean[] kept = new boolean[faceCount];
+            for (int i = 0; i < ownFaces * 3; i++) {
+                near[faces[i]] = true;
+            }
+            Arrays.fill(kept, 0, ownFaces, true);
+            for (int ring = 0; ring < rings; ring++) {
+                boolean[] reached = near.clone();
+                for (int f = ownFaces; f < faceCount; f++) {
+                    if (!kept[f] && (near[faces[f * 3]] || near[faces[f * 3 + 1]] || near[faces[f * 3 + 2]])) {
+                        kept[f] = true;
+                        reached[faces[f * 3]] = true;
+                        reached[faces[f * 3 + 1]] = true;
+                        reached[faces[f * 3 + 2]] = true;
+                    }
+                }
+                near = reached;
+            }
+            int keptFaces = 0;
+            for (int f = 0; f < faceCount; f++) {
+                if (kept[f]) {
+                    keptFaces++;
+                }
+            }
+            if (keptFaces == faceCount) {
+                return this;
+            }
+            int[] remap = new int[vertexCount];
+            Arrays.fill(remap, -1);
+            Level next = new Level(keptFaces * 3, keptFaces);
+            next.ownFaces = ownFaces;
+            int out = 0;
+            for (int f = 0; f < faceCount; f++) {
+                if (!kept[f]) {
+                    continue;
+                }
+                for (int k = 0; k < 3; k++) {
+                    int v = faces[f * 3 + k];
+                    if (remap[v] < 0) {
+                        int id = next.vertexCount++;
+                        remap[v] = id;
+                        System.arraycopy(coords, v * 3, next.coords, id * 3, 3);
+                        next.edgeA[id] = edgeA[v];
+                        next.edgeB[id] = edgeB[v];
+                        next.t[id] = t[v];
+                    }
+                    next.faces[out++] = remap[v];
+                }
+            }
+            return next;
+        }
+
+        // The midpoint of a and b is on a base edge if both are on it
+        private void tagMidpoint(int a, int b, Level next, int v) {
+            next.edgeA[v] = -1;
+            if (edgeA[a] < 0 || edgeA[b] < 0) {
+                return;
+            }
+            int lo, hi;
+            if (edgeA[a] != edgeB[a]) {
+                lo = edgeA[a];
+                hi = edgeB[a];
+            } else if (edgeA[b] != edgeB[b]) {
+                lo = edgeA[b];
+                hi = edgeB[b];
+            } else {
+                // two base vertices, the base edge between them
+                lo = Math.min(edgeA[a], edgeA[b]);
+                hi = Math.max(edgeA[a], edgeA[b]);
+            }
+            int ta = place(a, lo, hi);
+            int tb = place(b, lo, hi);
+            if (ta >= 0 && tb >= 0) {
+                next.edgeA[v] = lo;
+                next.edgeB[v] = hi;
+                next.t[v] = (ta + tb) / 2;
+            }
+        }
+
+        // Where a vertex is on the base edge lo-hi, in steps, or -1 if not on it
+        private int place(int v, int lo, int hi) {
+            if (edgeA[v] == edgeB[v]) {
+                return edgeA[v] == lo ? 0 : edgeA[v] == hi ? STEPS : -1;
+            }
+            return edgeA[v] == lo && edgeB[v] == hi ? t[v] : -1;
+        }
+
+        // Limit positions and normals of the vertices of the own faces
+        Patch toPatch(EdgeTable baseEdges) {
+            analyze();
+            float[] limit = new float[vertexCount * 3];
+            for (int v = 0; v < vertexCount; v++) {
+                int n = mValence[v];
+                if (mBorderEdges[v] == 0) {
+                    float beta = n == 3 ? 3.0f / 16 : 3.0f / (8 * n);
+                    float chi = 1 / (3 / (8 * beta) + n);
+                    for (int k = 0; k < 3; k++) {
+                        limit[v * 3 + k] = (1 - n * chi) * coords[v * 3 + k] + chi * mSum[v * 3 + k];
+                    }
+                } else if (mBorderEdges[v] == 2) {
+                    for (int k = 0; k < 3; k++) {
+                        limit[v * 3 + k] = 2.0f / 3 * coords[v * 3 + k] + 1.0f / 6 * mBorderSum[v * 3 + k];
+                    }
+                } else {
+                    System.arraycopy(coords, v * 3, limit, v * 3, 3);
+                }
+            }
+            // normals from all the faces of the region, so borders shade as inside
+            float[] normals = new float[vertexCount * 3];
+            for (int f = 0; f < faceCount; f++) {
+                Mesh.addFaceNormal(limit, faces[f * 3], faces[f * 3 + 1], faces[f * 3 + 2], normals);
+            }
+            Mesh.normalize(normals);
+
+            int[] remap = new int[vertexCount];
+            Arrays.fill(remap, -1);
+            int used = 0;
+            Patch patch = new Patch();
+            patch.faces = new int[ownFaces * 3];
+            for (int i = 0; i < ownFaces * 3; i++) {
+                int v = faces[i];
+                if (remap[v] < 0) {
+                    remap[v] = used++;
+                }
+                patch.faces[i] = remap[v];
+            }
+            patch.coords = new float[used * 3];
+            patch.normals = new float[used * 3];
+            patch.edge = new int[used];
+            patch.t = new int[used];
+            long[] keys = new long[used];
+            int[] keyVertex = new int[used];
+            int keyCount = 0;
+            for (int v = 0; v < vertexCount; v++) {
+                int id = remap[v];
+                if (id < 0) {
+                    continue;
+                }
+                System.arraycopy(limit, v * 3, patch.coords, id * 3, 3);
+                System.arraycopy(normals, v * 3, patch.normals, id * 3, 3);
+                patch.edge[id] = -1;
+                long key;
+                if (edgeA[v] < 0) {
+                    continue;
+                } else if (edgeA[v] == edgeB[v]) {
+                    key = -1 - edgeA[v];
+                } else {
+                    int e = baseEdges.find(edgeA[v], edgeB[v]);
+                    patch.edge[id] = e;
+                    patch.t[id] = t[v];
+                    key = (long) e * (STEPS + 1) + t[v];
+                }
+                // pocas claves: basta con insercion
+                int i = keyCount++;
+                while (i > 0 && keys[i - 1] > key) {
+                    keys[i] = keys[i - 1];
+                    keyVertex[i] = keyVertex[i - 1];
+                    i--;
+                }
+                keys[i] = key;
+                keyVertex[i] = id;
+            }
+            patch.keys = new long[keyCount];
+            patch.keyVertex = new int[keyCount];
+            System.arraycopy(keys, 0, patch.keys, 0, keyCount);
+            System.arraycopy(keyVertex, 0, patch.keyVertex, 0, keyCount);
+            return patch;
+        }
+    }
+
+    /**
+     * Open addressing table of undirected edges, numbered as added.
+     */
+    static final class EdgeTable {
+        private final long[] mKeys;
+        private final int[] mValues;
+        private final int mMask;
+        private int[] mEnds;
+        private int mSize;
+
+        EdgeTable(int maxEdges) {
+            // at most half full
+            int capacity = Integer.highestOneBit(Math.max(2, maxEdges) * 2 - 1) * 2;
+            mKeys = new long[capacity];
+            mValues = new int[capacity];
+            Arrays.fill(mValues, -1);
+            mMask = capacity - 1;
+            mEnds = new int[Math.max(2, maxEdges) * 2];
+        }
+
+        int size() {
+            return mSize;
+        }
+
+        /**
+         * Returns the number of the edge, a new one if it was not there.
+         */
+        int add(int a, int b) {
+            long key = key(a, b);
+            int slot = hash(key) & mMask;
+            while (mValues[slot] >= 0) {
+                if (mKeys[slot] == key) {
+                    return mValues[slot];
+                }
+                slot = (slot + 1) & mMask;
+            }
+            mKeys[slot] = key;
+            mValues[slot] = mSize;
+            mEnds[mSize * 2] = Math.min(a, b);
+            mEnds[mSize * 2 + 1] = Math.max(a, b);
+            return mSize++;
+        }
+
+        int find(int a, int b) {
+            long key = key(a, b);
+            int slot = hash(key) & mMask;
+            while (mValues[slot] >= 0) {
+                if (mKeys[slot] == key) {
+                    return mValues[slot];
+                }
+                slot = (slot + 1) & mMask;
+            }
+            return -1;
+        }
+
+        /**
+         * Writes the lower and the higher vertex of an edge.
+         */
+        void ends(int edge, int[] out) {
+            out[0] = mEnds[edge * 2];
+            out[1] = mEnds[edge * 2 + 1];
+        }
+
+        private static long key(int a, int b) {
+            return ((long) Math.min(a, b) << 32) | (Math.max(a, b) & 0xFFFFFFFFL);
+        }
+
+        private static int hash(long key) {
+            long h = key * 0x9E3779B97F4A7C15L;
+            return (int) (h ^ (h >>> 32));
+        }
+    }
+}
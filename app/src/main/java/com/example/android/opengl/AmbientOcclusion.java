@@ -0,0 +1,202 @@
+package com.example.android.opengl;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Bakes per vertex ambient occlusion by ray tracing against a {@link Bvh}.
+ *
+ * Every vertex casts cosine weighted rays over the hemisphere around its
+ * normal, and its value is the fraction of rays that escape within the
+ * maximum distance: 1 for an open vertex, 0 for a fully enclosed one. The
+ * vertices are split across a {@link WorkerPool}, and each vertex seeds its
+ * own random sequence, so the result does not depend on the thread count.
+ *
+ * The result is cached next to the mesh in a small file:
+ *
+ * <pre>
+ * int magic ("AOV1"), int vertexCount, int faceCount, int raysPerVertex
+ * byte occlusion[vertexCount] (0 .. 255)</pre>
+ */
+public class AmbientOcclusion {
+    static final int MAGIC = 0x31564F41;
+    static final int HEADER_SIZE = 16;
+    static final int DEFAULT_RAYS = 64;
+    // maximum ray length, relative to the bounding box diagonal
+    static final float DEFAULT_DISTANCE = 0.25f;
+
+    private static final int GRAIN = 16;
+
+    private final Mesh mMesh;
+    private final Bvh mBvh;
+    private final WorkerPool mPool;
+    private final float[] mNormals;
+
+    // per worker traversal state
+    private final int[][] mStacks;
+    private final RayHit[] mHits;
+
+    private int mRays;
+    private float mDistance;
+    private float mOffset;
+    private float[] mResult;
+    private long mBakeNanos;
+
+    private final WorkerPool.Task mBakeTask = new WorkerPool.Task() {
+        @Override
+        public void run(int begin, int end, int worker) {
+            for (int v = begin; v < end; v++) {
+                mResult[v] = bakeVertex(v, mStacks[worker], mHits[worker]);
+            }
+        }
+    };
+
+    public AmbientOcclusion(Mesh mesh, Bvh bvh, WorkerPool pool) {
+        mMesh = mesh;
+        mBvh = bvh;
+        mPool = pool;
+        mNormals = mesh.getNormals();
+        mStacks = new int[pool.getThreadCount()][Bvh.MAX_DEPTH];
+        mHits = new RayHit[pool.getThreadCount()];
+        for (int i = 0; i < mHits.length; i++) {
+            mHits[i] = new RayHit();
+        }
+    }
+
+    /**
+     * Computes the ambient access of every vertex.
+     *
+     * @param raysPerVertex - Rays cast from each vertex.
+     * @param distance - Maximum ray length relative to the bounding box diagonal.
+     * @return - One value in [0, 1] per vertex.
+     */
+    public float[] bake(int raysPerVertex, float distance) {
+        long start = System.nanoTime();
+        float[] min = new float[3];
+        float[] max = new float[3];
+        mMesh.getBounds(min, max);
+        float dx = max[0] - min[0], dy = max[1] - min[1], dz = max[2] - min[2];
+        float diagonal = (float) Math.sqrt(dx * dx + dy * dy + dz * dz);
+
+        mRays = raysPerVertex;
+        mDistance = distance * diagonal;
+        // move the origins off the surface so they do not hit their own faces
+        mOffset = 1e-4f * diagonal;
+        mResult = new float[mMesh.getVertexCount()];
+        mPool.forEach(mResult.length, GRAIN, mBakeTask);
+
+        float[] result = mResult;
+        mResult = null;
+        mBakeNanos = System.nanoTime() - start;
+        return result;
+    }
+
+    public float getBakeTimeMs() {
+        return mBakeNanos / 1e6f;
+    }
+
+    /**
+     * Returns the rays traced per second by the last {@link #bake}.
+     */
+    public float getRaysPerSecond() {
+        return mBakeNanos > 0 ? (float) mMesh.getVertexCount() * mRays * 1e9f / mBakeNanos : 0;
+    }
+
+    private float bakeVertex(int v, int[] stack, RayHit hit) {
+        int i = v * 3;
+        float nx = mNormals[i], ny = mNormals[i + 1], nz = mNormals[i + 2];
+        if (nx == 0 && ny == 0 && nz == 0) {
+            return 1.0f;
+        }
+        // tangent frame around the normal
+        float tx, ty, tz;
+        if (Math.abs(nx) < 0.9f) {
+            tx = 0; ty = nz; tz = -ny;
+        } else {
+            tx = -nz; ty = 0; tz = nx;
+        }
+        float length = (float) Math.sqrt(tx * tx + ty * ty + tz * tz);
+        tx /= length; ty /= length; tz /= length;
+        float bx = ny * tz - nz * ty, by = nz * tx - nx * tz, bz = nx * ty - ny * tx;
+
+        float ox = mMesh.coords[i] + nx * mOffset;
+        float oy = mMesh.coords[i + 1] + ny * mOffset;
+        float oz = mMesh.coords[i + 2] + nz * mOffset;
+
+        int seed = (v * 0x9E3779B9) | 1;
+        int open = 0;
+        for (int r = 0; r < mRays; r++) {
+            seed = xorshift(seed);
+            float u1 = (seed >>> 8) * (1.0f / (1 << 24));
+            seed = xorshift(seed);
+            float u2 = (seed >>> 8) * (1.0f / (1 << 24));
+            // cosine weighted direction
+            float radius = (float) Math.sqrt(u1);
+            double phi = 2 * Math.PI * u2;
+            float a = radius * (float) Math.cos(phi);
+            float b = radius * (float) Math.sin(phi);
+            float c = (float) Math.sqrt(Math.max(0, 1 - u1));
+            float dx = tx * a + bx * b + nx * c;
+            float dy = ty * a + by * b + ny * c;
+            float dz = tz * a + bz * b + nz * c;
+
+            hit.reset(mDistance);
+            if (!mBvh.intersect(ox, oy, oz, dx, dy, dz, hit, stack)) {
+                open++;
+            }
+        }
+        return (float) open / mRays;
+    }
+
+    private static int xorshift(int x) {
+        x ^= x << 13;
+        x ^= x >>> 17;
+        x ^= x << 5;
+        return x;
+    }
+
+    /**
+     * Stores baked values for a mesh.
+     */
+    public static void write(Mesh mesh, int raysPerVertex, float[] occlusion, OutputStream out)
+            throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + occlusion.length).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putInt(MAGIC);
+        buffer.putInt(mesh.getVertexCount());
+        buffer.putInt(mesh.getFaceCount());
+        buffer.putInt(raysPerVertex);
+        for (float value : occlusion) {
+            buffer.put((byte) Math.round(Math.max(0, Math.min(1, value)) * 255));
+        }
+        out.write(buffer.array());
+    }
+
+    /**
+     * Reads values stored by {@link #write}.
+     *
+     * @return - The values, or null if they were baked for a different mesh.
+     */
+    public static float[] read(Mesh mesh, InputStream inputStream) throws IOException {
+        DataInputStream in = new DataInputStream(inputStream);
+        byte[] header = new byte[HEADER_SIZE];
+        in.readFully(header);
+        ByteBuffer buffer = ByteBuffer.wrap(header).order(ByteOrder.LITTLE_ENDIAN);
+        if (buffer.getInt() != MAGIC) {
+            throw new IOException("Not an occlusion file");
+        }
+        if (buffer.getInt() != mesh.getVertexCount() || buffer.getInt() != mesh.getFaceCount()) {
+            return null;
+        }
+        byte[] values = new byte[mesh.getVertexCount()];
+        in.readFully(values);
+        float[] occlusion = new float[values.length];
+        for (int i = 0; i < values.length; i++) {
+            occlusion[i] = (values[i] & 0xFF) / 255.0f;
+        }
+        return occlusion;
+    }
+}
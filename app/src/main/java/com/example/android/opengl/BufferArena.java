@@ -0,0 +1,326 @@
+package com.example.android.opengl;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.ShortBuffer;
+
+/**
+ * Hands out slices of a few large direct buffers, so loading and unloading
+ * models does not leave direct memory waiting for the garbage collector.
+ *
+ * Direct memory is reserved in slabs of {@link #SLAB_SIZE} bytes. Each slab
+ * is a buddy heap: a request is rounded up to a power of two size class of
+ * at least {@link #MIN_SIZE} bytes, taken from the free list of its class or
+ * split from a bigger free block, and {@link #release} merges a block back
+ * with its free buddy. Slices are aligned to their size, in native order.
+ * Requests bigger than a slab get their own direct buffer.
+ *
+ * Free lists are stacks of block numbers; a block taken by a merge stays in
+ * its stack and is skipped when popped. All methods are synchronized, as
+ * meshes may load on other threads.
+ */
+public class BufferArena {
+    static final int MIN_SHIFT = 6;
+    static final int SLAB_SHIFT = 22;
+    public static final int MIN_SIZE = 1 << MIN_SHIFT;
+    public static final int SLAB_SIZE = 1 << SLAB_SHIFT;
+    private static final int CLASSES = SLAB_SHIFT - MIN_SHIFT + 1;
+    private static final int BLOCKS_PER_SLAB = SLAB_SIZE / MIN_SIZE;
+
+    private static BufferArena sDefault;
+
+    /**
+     * A slice of the arena, valid until released.
+     */
+    public static class Slice {
+        private final ByteBuffer mBuffer;
+        private final int mSlab;
+        private final int mBlock;
+        private final int mSizeClass;
+        private final int mRequested;
+        private boolean mReleased;
+
+        Slice(ByteBuffer buffer, int slab, int block, int sizeClass, int requested) {
+            mBuffer = buffer;
+            mSlab = slab;
+            mBlock = block;
+            mSizeClass = sizeClass;
+            mRequested = requested;
+        }
+
+        /**
+         * Returns the bytes of the slice, limited to the requested size.
+         */
+        public ByteBuffer getBytes() {
+            return mBuffer;
+        }
+
+        public FloatBuffer asFloatBuffer() {
+            return mBuffer.asFloatBuffer();
+        }
+
+        public ShortBuffer asShortBuffer() {
+            return mBuffer.asShortBuffer();
+        }
+
+        public int getSize() {
+            return mRequested;
+        }
+    }
+
+    private ByteBuffer[] mSlabs = new ByteBuffer[4];
+    // per slab and block: 1 + size class if a free block starts there, else 0
+    private byte[][] mFreeClass = new byte[4][];
+    private int mSlabCount;
+    // free blocks per size class, slab * BLOCKS_PER_SLAB + block
+    private final int[][] mFreeStacks = new int[CLASSES][];
+    private final int[] mFreeCounts = new int[CLASSES];
+
+    private long mLiveBytes;
+    private long mUsedBytes;
+    private long mLargeBytes;
+    private long mAllocations;
+    private long mAllocatedBytes;
+    private long mReleases;
+    private long mStatsStartNanos = System.nanoTime();
+
+    public BufferArena() {
+        for (int c = 0; c < CLASSES; c++) {
+            mFreeStacks[c] = new int[16];
+        }
+    }
+
+    /**
+     * Returns the arena shared by the figures.
+     */
+    public static synchronized BufferArena getDefault() {
+        if (sDefault == null) {
+            sDefault = new BufferArena();
+        }
+        return sDefault;
+    }
+
+    /**
+     * Takes a slice of the given size. A recycled slice keeps the bytes of
+     * its last user.
+     */
+    public synchronized Slice allocate(int bytes) {
+        mAllocations++;
+        mAllocatedBytes += bytes;
+        mLiveBytes += bytes;
+        if (bytes > SLAB_SIZE) {
+            mLargeBytes += bytes;
+            ByteBuffer buffer = ByteBuffer.allocateDirect(bytes).order(ByteOrder.nativeOrder());
+            return new Slice(buffer, -1, 0, -1, bytes);
+        }
+        int sizeClass = sizeClass(bytes);
+        int found = sizeClass;
+        int entry = -1;
+        while (found < CLASSES && (entry = pop(found)) < 0) {
+            found++;
+        }
+        if (entry < 0) {
+            entry = addSlab() * BLOCKS_PER_SLAB;
+            found = CLASSES - 1;
+        }
+        int slab = entry / BLOCKS_PER_SLAB;
+        int block = entry % BLOCKS_PER_SLAB;
+        // split, the upper halves stay free
+        while (found > sizeClass) {
+            found--;
+            int buddy = block + (1 << found);
+            push(found, slab, buddy);
+        }
+        mUsedBytes += MIN_SIZE << sizeClass;
+
+        ByteBuffer buffer = mSlabs[slab].duplicate();
+        buffer.position(block * MIN_SIZE);
+        buffer.limit(block * MIN_SIZE + bytes);
+        return new Slice(buffer.slice().order(ByteOrder.nativeOrder()), slab, block, sizeClass, bytes);
+    }
+
+    /**
+     * Returns a slice to the arena. It must not be used afterwards.
+     */
+    public synchronized void release(Slice slice) {
+        if (slice == null || slice.mReleased) {
+            return;
+        }
+        slice.mReleased = true;
+        mReleases++;
+        mLiveBytes -= slice.mRequested;
+        if (slice.mSlab < 0) {
+            // its own buffer, collected with the slice
+            mLargeBytes -= slice.mRequested;
+            return;
+        }
+        int sizeClass = slice.mSizeClass;
+        int block = slice.mBlock;
+        byte[] free = mFreeClass[slice.mSlab];
+        mUsedBytes -= MIN_SIZE << sizeClass;
+        // merge with the free buddies, their stack entries go stale
+        while (sizeClass < CLASSES - 1) {
+            int buddy = block ^ (1 << sizeClass);
+            if (free[buddy] != sizeClass + 1) {
+                break;
+            }
+            free[buddy] = 0;
+            block = Math.min(block, buddy);
+            sizeClass++;
+        }
+        push(sizeClass, slice.mSlab, block);
+    }
+
+    // Smallest class holding the bytes; class c has MIN_SIZE << c bytes
+    static int sizeClass(int bytes) {
+        int blocks = (Math.max(bytes, 1) + MIN_SIZE - 1) >>> MIN_SHIFT;
+        return 32 - Integer.numberOfLeadingZeros(blocks - 1);
+    }
+
+    private int addSlab() {
+        if (mSlabCount == mSlabs.length) {
+            ByteBuffer[] slabs = new ByteBuffer[mSlabCount * 2];
+            byte[][] free = new byte[mSlabCount * 2][];
+            System.arraycopy(mSlabs, 0, slabs, 0, mSlabCount);
+            System.arraycopy(mFreeClass, 0, free, 0, mSlabCount);
+            mSlabs = slabs;
+            mFreeClass = free;
+        }
+        mSlabs[mSlabCount] = ByteBuffer.allocateDirect(SLAB_SIZE).order(ByteOrder.nativeOrder());
+        mFreeClass[mSlabCount] = new byte[BLOCKS_PER_SLAB];
+        return mSlabCount++;
+    }
+
+    private void push(int sizeClass, int slab, int block) {
+        mFreeClass[slab][block] = (byte) (sizeClass + 1);
+        int[] stack = mFreeStacks[sizeClass];
+        int count = mFreeCounts[sizeClass];
+        if (count == stack.length) {
+            // drop the stale entries before growing
+            count = compact(sizeClass);
+            stack = mFreeStacks[sizeClass];
+            if (count * 2 > stack.length) {
+                int[] bigger = new int[stack.length * 2];
+                System.arraycopy(stack, 0, bigger, 0, count);
+                mFreeStacks[sizeClass] = stack = bigger;
+            }
+        }
+        stack[count] = slab * BLOCKS_PER_SLAB + block;
+        mFreeCounts[sizeClass] = count + 1;
+    }
+
+    // Takes a free block of a class, or -1
+    private int pop(int sizeClass) {
+        int[] stack = mFreeStacks[sizeClass];
+        while (mFreeCounts[sizeClass] > 0) {
+            int entry = stack[--mFreeCounts[sizeClass]];
+            byte[] free = mFreeClass[entry / BLOCKS_PER_SLAB];
+            int block = entry % BLOCKS_PER_SLAB;
+            if (free[block] == sizeClass + 1) {
+                free[block] = 0;
+                return entry;
+            }
+        }
+        return -1;
+    }
+
+    private int compact(int sizeClass) {
+        int[] stack = mFreeStacks[sizeClass];
+        int kept = 0;
+        for (int i = 0; i < mFreeCounts[sizeClass]; i++) {
+            int entry = stack[i];
+            if (mFreeClass[entry / BLOCKS_PER_SLAB][entry % BLOCKS_PER_SLAB] == sizeClass + 1) {
+                // a block pushed again while its stale entry was still here is kept once
+                boolean seen = false;
+                for (int j = 0; j < kept && !seen; j++) {
+                    seen = stack[j] == entry;
+                }
+                if (!seen) {
+                    stack[kept++] = entry;
+                }
+            }
+        }
+        mFreeCounts[sizeClass] = kept;
+        return kept;
+    }
+
+    /**
+     * Returns the bytes asked for by the slices in use.
+     */
+    public synchronized long getLiveBytes() {
+        return mLiveBytes;
+    }
+
+    /**
+     * Returns the direct bytes reserved: the slabs and the big slices.
+     */
+    public synchronized long getReservedBytes() {
+        return (long) mSlabCount * SLAB_SIZE + mLargeBytes;
+    }
+
+    /**
+     * Returns the slab bytes not in any slice.
+     */
+    public synchronized long getFreeBytes() {
+        return (long) mSlabCount * SLAB_SIZE - mUsedBytes;
+    }
+
+    /**
+     * Returns the bytes lost to rounding up to the size classes.
+     */
+    public synchronized long getFragmentedBytes() {
+        return mUsedBytes + mLargeBytes - mLiveBytes;
+    }
+
+    /**
+     * Returns the largest free block, the biggest request a slab can take
+     * without reserving a new one.
+     */
+    public synchronized int getLargestFreeBlock() {
+        for (int c = CLASSES - 1; c >= 0; c--) {
+            int[] stack = mFreeStacks[c];
+            for (int i = 0; i < mFreeCounts[c]; i++) {
+                int entry = stack[i];
+                if (mFreeClass[entry / BLOCKS_PER_SLAB][entry % BLOCKS_PER_SLAB] == c + 1) {
+                    return MIN_SIZE << c;
+                }
+            }
+        }
+        return 0;
+    }
+
+    public synchronized int getSlabCount() {
+        return mSlabCount;
+    }
+
+    public synchronized long getAllocationCount() {
+        return mAllocations;
+    }
+
+    public synchronized long getReleaseCount() {
+        return mReleases;
+    }
+
+    /**
+     * Returns the allocations per second since the last {@link #resetRates}.
+     */
+    public synchronized float getAllocationsPerSecond() {
+        return mAllocations / elapsedSeconds();
+    }
+
+    public synchronized float getAllocatedBytesPerSecond() {
+        return mAllocatedBytes / elapsedSeconds();
+    }
+
+    public synchronized void resetRates() {
+        mAllocations = 0;
+        mAllocatedBytes = 0;
+        mReleases = 0;
+        mStatsStartNanos = System.nanoTime();
+    }
+
+    private float elapsedSeconds() {
+        return Math.max(1e-6f, (System.nanoTime() - mStatsStartNanos) / 1e9f);
+    }
+}
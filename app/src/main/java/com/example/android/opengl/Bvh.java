@@ -0,0 +1,427 @@
+package com.example.android.opengl;
+
+/**
+ * Bounding volume hierarchy over the triangles of a mesh, used to answer
+ * ray queries (touch picking) without testing every face.
+ *
+ * The tree is built top-down with binned SAH splits and stored in flat
+ * primitive arrays: nodes are laid out depth first, so the left child of a
+ * node is always the next node and only the right child index is stored.
+ * Traversal uses a small fixed-size stack, the builder never creates a tree
+ * deeper than {@link #MAX_DEPTH}.
+ */
+public class Bvh {
+    static final int MAX_DEPTH = 64;
+    static final int MAX_LEAF_SIZE = 4;
+    static final int NUM_BINS = 12;
+
+    // Relative cost of visiting a node against intersecting a triangle.
+    private static final float TRAVERSAL_COST = 1.0f;
+
+    // 6 floats per node: min x, y, z and max x, y, z
+    private final float[] mBounds;
+    // 2 ints per node. Leaf: first triangle, triangle count (> 0).
+    // Inner: index of the right child, -(split axis + 1).
+    private final int[] mNodes;
+    private int mNodeCount;
+
+    // Triangles in leaf order: original face index and its 9 coordinates
+    private final int[] mTriFaces;
+    private final float[] mTriVerts;
+
+    private final long mBuildTimeNanos;
+
+    // Build scratch, only used inside the constructor
+    private float[] mCentroids;
+    private float[] mTriBounds;
+    private int[] mOrder;
+    private final int[] mBinCount = new int[NUM_BINS];
+    private final float[] mBinBounds = new float[NUM_BINS * 6];
+    private final float[] mRightArea = new float[NUM_BINS];
+    private final int[] mRightCount = new int[NUM_BINS];
+    private final float[] mSweepBox = new float[6];
+    private final float[] mCentroidMin = new float[3];
+    private final float[] mCentroidMax = new float[3];
+
+    // Stack used by the single threaded query helpers
+    private final int[] mStack = new int[MAX_DEPTH];
+
+    public Bvh(Mesh mesh) {
+        this(mesh.coords, mesh.indices);
+    }
+
+    /**
+     * Builds the hierarchy.
+     *
+     * @param coords - Vertex coordinates, 3 per vertex.
+     * @param indices - Vertex indices, 3 per triangle.
+     */
+    public Bvh(float[] coords, int[] indices) {
+        long start = System.nanoTime();
+        int numTris = indices.length / 3;
+
+        mCentroids = new float[numTris * 3];
+        mTriBounds = new float[numTris * 6];
+        mOrder = new int[numTris];
+        for (int f = 0; f < numTris; f++) {
+            mOrder[f] = f;
+            for (int k = 0; k < 3; k++) {
+                float a = coords[indices[f * 3] * 3 + k];
+                float b = coords[indices[f * 3 + 1] * 3 + k];
+                float c = coords[indices[f * 3 + 2] * 3 + k];
+                float min = Math.min(a, Math.min(b, c));
+                float max = Math.max(a, Math.max(b, c));
+                mTriBounds[f * 6 + k] = min;
+                mTriBounds[f * 6 + 3 + k] = max;
+                mCentroids[f * 3 + k] = (min + max) * 0.5f;
+            }
+        }
+
+        int maxNodes = Math.max(1, 2 * numTris - 1);
+        mBounds = new float[maxNodes * 6];
+        mNodes = new int[maxNodes * 2];
+        if (numTris > 0) {
+            build(0, numTris, 0);
+        }
+
+        // Store the triangles in leaf order so a leaf reads contiguous memory
+        mTriFaces = mOrder;
+        mTriVerts = new float[numTris * 9];
+        for (int i = 0; i < numTris; i++) {
+            int f = mOrder[i];
+            for (int j = 0; j < 3; j++) {
+                int v = indices[f * 3 + j] * 3;
+                mTriVerts[i * 9 + j * 3] = coords[v];
+                mTriVerts[i * 9 + j * 3 + 1] = coords[v + 1];
+                mTriVerts[i * 9 + j * 3 + 2] = coords[v + 2];
+            }
+        }
+        mCentroids = null;
+        mTriBounds = null;
+        mOrder = null;
+
+        mBuildTimeNanos = System.nanoTime() - start;
+    }
+
+    public int getNodeCount() {
+        return mNodeCount;
+    }
+
+    public int getTriangleCount() {
+        return mTriFaces.length;
+    }
+
+    public float getBuildTimeMs() {
+        return mBuildTimeNanos / 1e6f;
+    }
+
+    /**
+     * Updates the tree after the vertices moved, keeping its topology. Much
+     * cheaper than a new build, but queries slow down if the faces move far.
+     *
+     * @param coords - New vertex coordinates.
+     * @param indices - The indices the tree was built with.
+     */
+    public void refit(float[] coords, int[] indices) {
+        for (int i = 0; i < mTriFaces.length; i++) {
+            int f = mTriFaces[i];
+            for (int j = 0; j < 3; j++) {
+                int v = indices[f * 3 + j] * 3;
+                mTriVerts[i * 9 + j * 3] = coords[v];
+                mTriVerts[i * 9 + j * 3 + 1] = coords[v + 1];
+                mTriVerts[i * 9 + j * 3 + 2] = coords[v + 2];
+            }
+        }
+        // children always come after their parent
+        for (int node = mNodeCount - 1; node >= 0; node--) {
+            int b = node * 6;
+            int first = mNodes[node * 2];
+            int count = mNodes[node * 2 + 1];
+            if (count > 0) {
+                for (int k = 0; k < 3; k++) {
+                    mBounds[b + k] = Float.POSITIVE_INFINITY;
+                    mBounds[b + 3 + k] = Float.NEGATIVE_INFINITY;
+                }
+                for (int p = first * 9; p < (first + count) * 9; p += 3) {
+                    for (int k = 0; k < 3; k++) {
+                        mBounds[b + k] = Math.min(mBounds[b + k], mTriVerts[p + k]);
+                        mBounds[b + 3 + k] = Math.max(mBounds[b + 3 + k], mTriVerts[p + k]);
+                    }
+                }
+            } else {
+                int left = (node + 1) * 6;
+                int right = first * 6;
+                for (int k = 0; k < 3; k++) {
+                    mBounds[b + k] = Math.min(mBounds[left + k], mBounds[right + k]);
+                    mBounds[b + 3 + k] = Math.max(mBounds[left + 3 + k], mBounds[right + 3 + k]);
+                }
+            }
+        }
+    }
+
+    /**
+     * Copies the bounds of the whole tree into min and max.
+     */
+    public void getBounds(float[] min, float[] max) {
+        for (int k = 0; k < 3; k++) {
+            min[k] = mBounds[k];
+            max[k] = mBounds[3 + k];
+        }
+    }
+
+    /**
+     * Finds the closest triangle hit by a ray. Uses an internal stack, so it
+     * must only be called from one thread at a time.
+     */
+    public boolean intersect(float[] origin, float[] dir, RayHit hit) {
+        return intersect(origin[0], origin[1], origin[2], dir[0], dir[1], dir[2], hit, mStack);
+    }
+
+    /**
+     * Finds the closest triangle hit by the ray origin + t * dir with
+     * 0 < t < hit.t. On success the hit is updated and true is returned.
+     *
+     * @param stack - Traversal stack of at least {@link #MAX_DEPTH} entries,
+     * one per calling thread.
+     */
+    public boolean intersect(float ox, float oy, float oz, float dx, float dy, float dz,
+                             RayHit hit, int[] stack) {
+        if (mNodeCount == 0) {
+            return false;
+        }
+        float ix = 1.0f / dx;
+        float iy = 1.0f / dy;
+        float iz = 1.0f / dz;
+        boolean found = false;
+        int sp = 0;
+        int node = 0;
+
+        while (true) {
+            if (hitsBox(node, ox, oy, oz, ix, iy, iz, hit.t)) {
+                int info = mNodes[node * 2 + 1];
+                if (info < 0) {
+                    // visit the child closer to the ray origin first
+                    int axis = -info - 1;
+                    boolean negative = axis == 0 ? dx < 0 : axis == 1 ? dy < 0 : dz < 0;
+                    int right = mNodes[node * 2];
+                    if (negative) {
+                        stack[sp++] = node + 1;
+                        node = right;
+                    } else {
+                        stack[sp++] = right;
+                        node = node + 1;
+                    }
+                    continue;
+                }
+                int first = mNodes[node * 2];
+                for (int i = first; i < first + info; i++) {
+                    if (intersectTriangle(i, ox, oy, oz, dx, dy, dz, hit)) {
+                        found = true;
+                    }
+                }
+            }
+            if (sp == 0) {
+                break;
+            }
+            node = stack[--sp];
+        }
+        return found;
+    }
+
+    private boolean hitsBox(int node, float ox, float oy, float oz,
+                            float ix, float iy, float iz, float tMax) {
+        int b = node * 6;
+        float t1 = (mBounds[b] - ox) * ix;
+        float t2 = (mBounds[b + 3] - ox) * ix;
+        float tNear = Math.min(t1, t2);
+        float tFar = Math.max(t1, t2);
+        t1 = (mBounds[b + 1] - oy) * iy;
+        t2 = (mBounds[b + 4] - oy) * iy;
+        tNear = Math.max(tNear, Math.min(t1, t2));
+        tFar = Math.min(tFar, Math.max(t1, t2));
+        t1 = (mBounds[b + 2] - oz) * iz;
+        t2 = (mBounds[b + 5] - oz) * iz;
+        tNear = Math.max(tNear, Math.min(t1, t2));
+        tFar = Math.min(tFar, Math.max(t1, t2));
+        return tNear <= tFar && tFar > 0 && tNear < tMax;
+    }
+
+    // Moller-Trumbore, both faces of the triangle are hit
+    private boolean intersectTriangle(int tri, float ox, float oy, float oz,
+                                      float dx, float dy, float dz, RayHit hit) {
+        int p = tri * 9;
+        float v0x = mTriVerts[p], v0y = mTriVerts[p + 1], v0z = mTriVerts[p + 2];
+        float e1x = mTriVerts[p + 3] - v0x, e1y = mTriVerts[p + 4] - v0y, e1z = mTriVerts[p + 5] - v0z;
+        float e2x = mTriVerts[p + 6] - v0x, e2y = mTriVerts[p + 7] - v0y, e2z = mTriVerts[p + 8] - v0z;
+
+        float px = dy * e2z - dz * e2y;
+        float py = dz * e2x - dx * e2z;
+        float pz = dx * e2y - dy * e2x;
+        float det = e1x * px + e1y * py + e1z * pz;
+        if (det > -1e-12f && det < 1e-12f) {
+            return false;
+        }
+        float invDet = 1.0f / det;
+        float tx = ox - v0x, ty = oy - v0y, tz = oz - v0z;
+        float u = (tx * px + ty * py + tz * pz) * invDet;
+        if (u < 0 || u > 1) {
+            return false;
+        }
+        float qx = ty * e1z - tz * e1y;
+        float qy = tz * e1x - tx * e1z;
+        float qz = tx * e1y - ty * e1x;
+        float v = (dx * qx + dy * qy + dz * qz) * invDet;
+        if (v < 0 || u + v > 1) {
+            return false;
+        }
+        float t = (e2x * qx + e2y * qy + e2z * qz) * invDet;
+        if (t <= 0 || t >= hit.t) {
+            return false;
+        }
+        hit.face = mTriFaces[tri];
+        hit.u = u;
+        hit.v = v;
+        hit.t = t;
+        return true;
+    }
+
+    private int build(int first, int count, int depth) {
+        int node = mNodeCount++;
+        int b = node * 6;
+        // the centroid bounds are only needed until the children are built
+        float[] cmin = mCentroidMin;
+        float[] cmax = mCentroidMax;
+        for (int k = 0; k < 3; k++) {
+            mBounds[b + k] = cmin[k] = Float.POSITIVE_INFINITY;
+            mBounds[b + 3 + k] = cmax[k] = Float.NEGATIVE_INFINITY;
+        }
+        for (int i = first; i < first + count; i++) {
+            int f = mOrder[i];
+            for (int k = 0; k < 3; k++) {
+                mBounds[b + k] = Math.min(mBounds[b + k], mTriBounds[f * 6 + k]);
+                mBounds[b + 3 + k] = Math.max(mBounds[b + 3 + k], mTriBounds[f * 6 + 3 + k]);
+                cmin[k] = Math.min(cmin[k], mCentroids[f * 3 + k]);
+                cmax[k] = Math.max(cmax[k], mCentroids[f * 3 + k]);
+            }
+        }
+
+        if (count <= MAX_LEAF_SIZE || depth >= MAX_DEPTH - 1) {
+            makeLeaf(node, first, count);
+            return node;
+        }
+
+        // Evaluate the surface area heuristic on every bin boundary
+        float bestCost = Float.POSITIVE_INFINITY;
+        int bestAxis = -1;
+        int bestSplit = 0;
+        for (int axis = 0; axis < 3; axis++) {
+            float extent = cmax[axis] - cmin[axis];
+            if (extent <= 0) {
+                continue;
+            }
+            float scale = NUM_BINS * 0.99999f / extent;
+            for (int i = 0; i < NUM_BINS; i++) {
+                mBinCount[i] = 0;
+                resetBox(mBinBounds, i * 6);
+            }
+            for (int i = first; i < first + count; i++) {
+                int f = mOrder[i];
+                int bin = binOf(mCentroids[f * 3 + axis], cmin[axis], scale);
+                mBinCount[bin]++;
+                growBox(mBinBounds, bin * 6, mTriBounds, f * 6);
+            }
+
+            float[] box = mSweepBox;
+            resetBox(box, 0);
+            int n = 0;
+            for (int i = NUM_BINS - 1; i > 0; i--) {
+                n += mBinCount[i];
+                growBox(box, 0, mBinBounds, i * 6);
+                mRightCount[i] = n;
+                mRightArea[i] = n > 0 ? halfArea(box, 0) : 0;
+            }
+            resetBox(box, 0);
+            n = 0;
+            for (int split = 1; split < NUM_BINS; split++) {
+                n += mBinCount[split - 1];
+                growBox(box, 0, mBinBounds, (split - 1) * 6);
+                if (n == 0 || mRightCount[split] == 0) {
+                    continue;
+                }
+                float cost = halfArea(box, 0) * n + mRightArea[split] * mRightCount[split];
+                if (cost < bestCost) {
+                    bestCost = cost;
+                    bestAxis = axis;
+                    bestSplit = split;
+                }
+            }
+        }
+
+        int mid;
+        int axis;
+        if (bestAxis >= 0) {
+            float area = halfArea(mBounds, b);
+            float leafCost = count * area;
+            if (TRAVERSAL_COST * area + bestCost >= leafCost && count <= MAX_LEAF_SIZE * 2) {
+                makeLeaf(node, first, count);
+                return node;
+            }
+            axis = bestAxis;
+            float scale = NUM_BINS * 0.99999f / (cmax[axis] - cmin[axis]);
+            int i = first;
+            int j = first + count - 1;
+            while (i <= j) {
+                int f = mOrder[i];
+                if (binOf(mCentroids[f * 3 + axis], cmin[axis], scale) < bestSplit) {
+                    i++;
+                } else {
+                    mOrder[i] = mOrder[j];
+                    mOrder[j--] = f;
+                }
+            }
+            mid = i;
+        } else {
+            // All centroids in the same spot, any split is as good as another
+            axis = 0;
+            mid = first + count / 2;
+        }
+        if (mid == first || mid == first + count) {
+            mid = first + count / 2;
+        }
+
+        build(first, mid - first, depth + 1);
+        int right = build(mid, first + count - mid, depth + 1);
+        mNodes[node * 2] = right;
+        mNodes[node * 2 + 1] = -(axis + 1);
+        return node;
+    }
+
+    private void makeLeaf(int node, int first, int count) {
+        mNodes[node * 2] = first;
+        mNodes[node * 2 + 1] = count;
+    }
+
+    private static int binOf(float c, float min, float scale) {
+        int bin = (int) ((c - min) * scale);
+        return bin < 0 ? 0 : bin >= NUM_BINS ? NUM_BINS - 1 : bin;
+    }
+
+    private static void resetBox(float[] box, int o) {
+        box[o] = box[o + 1] = box[o + 2] = Float.POSITIVE_INFINITY;
+        box[o + 3] = box[o + 4] = box[o + 5] = Float.NEGATIVE_INFINITY;
+    }
+
+    private static void growBox(float[] box, int o, float[] other, int p) {
+        for (int k = 0; k < 3; k++) {
+            box[o + k] = Math.min(box[o + k], other[p + k]);
+            box[o + 3 + k] = Math.max(box[o + 3 + k], other[p + 3 + k]);
+        }
+    }
+
+    private static float halfArea(float[] box, int o) {
+        float x = box[o + 3] - box[o];
+        float y = box[o + 4] - box[o + 1];
+        float z = box[o + 5] - box[o + 2];
+        return x * y + y * z + z * x;
+    }
+}
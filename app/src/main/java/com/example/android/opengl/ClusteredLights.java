@@ -0,0 +1,340 @@
+package com.example.android.opengl;
+
+import java.util.Arrays;
+
+/**
+ * Assigns point lights to clusters of the view frustum.
+ *
+ * The frustum is split in screen tiles and exponential depth slices, and
+ * every cluster keeps the lights whose sphere of influence touches its
+ * bounding box. The slices are filled in parallel on a {@link WorkerPool},
+ * and each one only tests its rows and tiles against the lights that touch it.
+ * A draw then asks for the lights of the clusters around its bounds with
+ * {@link #gather}, which packs at most {@link #MAX_LIGHTS_PER_DRAW} of them,
+ * nearest first, into the uniform arrays of the shader.
+ *
+ * Positions are in eye space (the camera looks down -z). A light with
+ * radius 0 has no limit and is in every cluster.
+ */
+public class ClusteredLights {
+    static final int TILES_X = 8;
+    static final int TILES_Y = 8;
+    static final int SLICES = 16;
+    static final int CLUSTERS = TILES_X * TILES_Y * SLICES;
+    static final int MAX_LIGHTS_PER_CLUSTER = 64;
+    // must match the size of the shader arrays
+    static final int MAX_LIGHTS_PER_DRAW = 16;
+
+    private static final int ROWS = TILES_Y * SLICES;
+
+    private final WorkerPool mPool;
+
+    // x, y, z, radius and r, g, b, unused per light
+    private final float[] mLightPos;
+    private final float[] mLightColor;
+    private int mLightCount;
+
+    // min x, y, z and max x, y, z per cluster
+    private final float[] mClusterBounds = new float[CLUSTERS * 6];
+    // planes of the last setFrustum, to find the clusters around a sphere
+    private float mLeft, mRight, mBottom, mTop, mNear;
+    private float mMinDepth, mLogDepthRange;
+    // bounds of each slice and of each row of tiles in a slice, to discard
+    // most lights at once
+    private final float[] mSliceBounds = new float[SLICES * 6];
+    private final float[] mRowBounds = new float[ROWS * 6];
+    // per worker lists of the lights touching a slice and a row
+    private final int[][] mSliceCandidates;
+    private final int[][] mRowCandidates;
+    private final int[] mClusterCounts = new int[CLUSTERS];
+    private final int[] mClusterLights = new int[CLUSTERS * MAX_LIGHTS_PER_CLUSTER];
+    private int mOverflow;
+
+    // lights already taken by the running gather
+    private final int[] mGatherTag;
+    private int mGatherGeneration;
+    private final float[] mGatherDistance = new float[MAX_LIGHTS_PER_DRAW];
+
+    private long mAssignNanos;
+
+    private final WorkerPool.Task mAssignTask = new WorkerPool.Task() {
+        @Override
+        public void run(int begin, int end, int worker) {
+            for (int slice = begin; slice < end; slice++) {
+                assignSlice(slice, mSliceCandidates[worker], mRowCandidates[worker]);
+            }
+        }
+    };
+
+    public ClusteredLights(int maxLights, WorkerPool pool) {
+        mPool = pool;
+        mLightPos = new float[maxLights * 4];
+        mLightColor = new float[maxLights * 4];
+        mGatherTag = new int[maxLights];
+        mSliceCandidates = new int[pool.getThreadCount()][maxLights];
+        mRowCandidates = new int[pool.getThreadCount()][maxLights];
+    }
+
+    /**
+     * Sets the clusters from the planes given to Matrix.frustumM.
+     *
+     * @param minDepth - Distance to the camera where the lit geometry starts,
+     * at least near. Slicing the whole frustum would waste most clusters on
+     * empty space.
+     * @param maxDepth - Distance where the lit geometry ends, at most far.
+     */
+    public void setFrustum(float left, float right, float bottom, float top, float near,
+                           float minDepth, float maxDepth) {
+        mLeft = left;
+        mRight = right;
+        mBottom = bottom;
+        mTop = top;
+        mNear = near;
+        mMinDepth = minDepth;
+        mLogDepthRange = (float) Math.log(maxDepth / minDepth);
+        for (int s = 0; s < SLICES; s++) {
+            // the slices grow with the distance, as the depth precision does
+            float z0 = minDepth * (float) Math.pow(maxDepth / minDepth, (float) s / SLICES);
+            float z1 = minDepth * (float) Math.pow(maxDepth / minDepth, (float) (s + 1) / SLICES);
+            for (int ty = 0; ty < TILES_Y; ty++) {
+                float y0 = bottom + (top - bottom) * ty / TILES_Y;
+                float y1 = bottom + (top - bottom) * (ty + 1) / TILES_Y;
+                for (int tx = 0; tx < TILES_X; tx++) {
+                    float x0 = left + (right - left) * tx / TILES_X;
+                    float x1 = left + (right - left) * (tx + 1) / TILES_X;
+                    int b = ((s * TILES_Y + ty) * TILES_X + tx) * 6;
+                    // the tile on the near plane scaled to both ends of the slice
+                    float n0 = z0 / near, n1 = z1 / near;
+                    mClusterBounds[b] = Math.min(x0 * n0, x0 * n1);
+                    mClusterBounds[b + 1] = Math.min(y0 * n0, y0 * n1);
+                    mClusterBounds[b + 2] = -z1;
+                    mClusterBounds[b + 3] = Math.max(x1 * n0, x1 * n1);
+                    mClusterBounds[b + 4] = Math.max(y1 * n0, y1 * n1);
+                    mClusterBounds[b + 5] = -z0;
+                }
+                int r = (s * TILES_Y + ty) * 6;
+                int first = (s * TILES_Y + ty) * TILES_X * 6;
+                int last = first + (TILES_X - 1) * 6;
+                for (int k = 0; k < 3; k++) {
+                    mRowBounds[r + k] = Math.min(mClusterBounds[first + k], mClusterBounds[last + k]);
+                    mRowBounds[r + 3 + k] = Math.max(mClusterBounds[first + 3 + k], mClusterBounds[last + 3 + k]);
+                }
+            }
+            int first = s * TILES_Y * 6;
+            int last = first + (TILES_Y - 1) * 6;
+            for (int k = 0; k < 3; k++) {
+                mSliceBounds[s * 6 + k] = Math.min(mRowBounds[first + k], mRowBounds[last + k]);
+                mSliceBounds[s * 6 + 3 + k] = Math.max(mRowBounds[first + 3 + k], mRowBounds[last + 3 + k]);
+            }
+        }
+    }
+
+    public void setLightCount(int count) {
+        if (count * 4 > mLightPos.length) {
+            throw new IllegalArgumentException("Too many lights: " + count);
+        }
+        mLightCount = count;
+    }
+
+    public int getLightCount() {
+        return mLightCount;
+    }
+
+    /**
+     * Moves a light, in eye space.
+     *
+     * @param radius - Distance where the light stops, 0 for no limit.
+     */
+    public void setLight(int light, float x, float y, float z, float radius, float r, float g, float b) {
+        int i = light * 4;
+        mLightPos[i] = x;
+        mLightPos[i + 1] = y;
+        mLightPos[i + 2] = z;
+        mLightPos[i + 3] = radius;
+        mLightColor[i] = r;
+        mLightColor[i + 1] = g;
+        mLightColor[i + 2] = b;
+    }
+
+    /**
+     * Fills the light lists of all the clusters. Call once per frame after
+     * moving the lights.
+     */
+    public void assign() {
+        long start = System.nanoTime();
+        mPool.forEach(SLICES, 1, mAssignTask);
+        int overflow = 0;
+        for (int c = 0; c < CLUSTERS; c++) {
+            if (mClusterCounts[c] > MAX_LIGHTS_PER_CLUSTER) {
+                overflow += mClusterCounts[c] - MAX_LIGHTS_PER_CLUSTER;
+                mClusterCounts[c] = MAX_LIGHTS_PER_CLUSTER;
+            }
+        }
+        mOverflow = overflow;
+        mAssignNanos = System.nanoTime() - start;
+    }
+
+    private void assignSlice(int slice, int[] sliceCandidates, int[] rowCandidates) {
+        int numSlice = 0;
+        for (int l = 0; l < mLightCount; l++) {
+            if (touches(l, mSliceBounds, slice * 6)) {
+                sliceCandidates[numSlice++] = l;
+            }
+        }
+        for (int row = slice * TILES_Y; row < (slice + 1) * TILES_Y; row++) {
+            int numRow = 0;
+            for (int j = 0; j < numSlice; j++) {
+                if (touches(sliceCandidates[j], mRowBounds, row * 6)) {
+                    rowCandidates[numRow++] = sliceCandidates[j];
+                }
+            }
+            for (int c = row * TILES_X; c < (row + 1) * TILES_X; c++) {
+                int base = c * MAX_LIGHTS_PER_CLUSTER;
+                int count = 0;
+                for (int j = 0; j < numRow; j++) {
+                    int l = rowCandidates[j];
+                    if (touches(l, mClusterBounds, c * 6)) {
+                        if (count < MAX_LIGHTS_PER_CLUSTER) {
+                            mClusterLights[base + count] = l;
+                        }
+                        count++;
+                    }
+                }
+                mClusterCounts[c] = count;
+            }
+        }
+    }
+
+    // Tests the sphere of a light against a box, min x, y, z and max x, y, z.
+    private boolean touches(int light, float[] bounds, int b) {
+        int i = light * 4;
+        float radius = mLightPos[i + 3];
+        if (radius <= 0) {
+            return true;
+        }
+        // squared distance from the light to the box
+        float d = 0;
+        for (int k = 0; k < 3; k++) {
+            float p = mLightPos[i + k];
+            float e = p < bounds[b + k] ? bounds[b + k] - p
+                    : p > bounds[b + 3 + k] ? p - bounds[b + 3 + k] : 0;
+            d += e * e;
+        }
+        return d <= radius * radius;
+    }
+
+    /**
+     * Collects the lights of the clusters touched by a sphere, the nearest
+     * first, and packs them for the shader. Only the tiles and slices the
+     * sphere projects to are visited.
+     *
+     * @param pos - Receives x, y, z, radius per light.
+     * @param color - Receives r, g, b, 1 per light.
+     * @return - Number of lights written, at most {@link #MAX_LIGHTS_PER_DRAW}.
+     */
+    public int gather(float x, float y, float z, float radius, float[] pos, float[] color) {
+        if (++mGatherGeneration == 0) {
+            Arrays.fill(mGatherTag, 0);
+            mGatherGeneration = 1;
+        }
+        // depth range of the sphere, in front of the near plane
+        float d0 = Math.max(-z - radius, mNear);
+        float d1 = -z + radius;
+        if (d1 < d0) {
+            return 0;
+        }
+        int s0 = slice(d0), s1 = slice(d1);
+        // x / d and y / d are monotonic in x, y and d, so the corners bound the projection
+        int tx0 = tile(Math.min((x - radius) * mNear / d0, (x - radius) * mNear / d1), mLeft, mRight, TILES_X);
+        int tx1 = tile(Math.max((x + radius) * mNear / d0, (x + radius) * mNear / d1), mLeft, mRight, TILES_X);
+        int ty0 = tile(Math.min((y - radius) * mNear / d0, (y - radius) * mNear / d1), mBottom, mTop, TILES_Y);
+        int ty1 = tile(Math.max((y + radius) * mNear / d0, (y + radius) * mNear / d1), mBottom, mTop, TILES_Y);
+        int count = 0;
+        for (int s = s0; s <= s1; s++) {
+            for (int ty = ty0; ty <= ty1; ty++) {
+                for (int tx = tx0; tx <= tx1; tx++) {
+                    int c = (s * TILES_Y + ty) * TILES_X + tx;
+                    int b = c * 6;
+                    if (x + radius < mClusterBounds[b] || x - radius > mClusterBounds[b + 3]
+                            || y + radius < mClusterBounds[b + 1] || y - radius > mClusterBounds[b + 4]
+                            || z + radius < mClusterBounds[b + 2] || z - radius > mClusterBounds[b + 5]) {
+                        continue;
+                    }
+                    int base = c * MAX_LIGHTS_PER_CLUSTER;
+                    for (int k = 0; k < mClusterCounts[c]; k++) {
+                        int l = mClusterLights[base + k];
+                        if (mGatherTag[l] == mGatherGeneration) {
+                            continue;
+                        }
+                        mGatherTag[l] = mGatherGeneration;
+                        count = insertNearest(l, x, y, z, pos, color, count);
+                    }
+                }
+            }
+        }
+        return count;
+    }
+
+    // Slice holding a distance to the camera, clamped to the sliced range
+    private int slice(float depth) {
+        int s = (int) Math.floor(SLICES * Math.log(depth / mMinDepth) / mLogDepthRange);
+        return Math.max(0, Math.min(SLICES - 1, s));
+    }
+
+    // Tile holding a coordinate on the near plane, clamped to the screen
+    private static int tile(float at, float min, float max, int tiles) {
+        int t = (int) Math.floor((at - min) / (max - min) * tiles);
+        return Math.max(0, Math.min(tiles - 1, t));
+    }
+
+    // Keeps the list sorted by distance, dropping the farthest when full.
+    private int insertNearest(int l, float x, float y, float z, float[] pos, float[] color, int count) {
+        int i = l * 4;
+        float dx = mLightPos[i] - x, dy = mLightPos[i + 1] - y, dz = mLightPos[i + 2] - z;
+        // unlimited lights go first
+        float distance = mLightPos[i + 3] > 0 ? dx * dx + dy * dy + dz * dz : -1;
+        int at = count;
+        while (at > 0 && mGatherDistance[at - 1] > distance) {
+            at--;
+        }
+        if (at >= MAX_LIGHTS_PER_DRAW) {
+            return count;
+        }
+        int last = Math.min(count, MAX_LIGHTS_PER_DRAW - 1);
+        for (int j = last; j > at; j--) {
+            mGatherDistance[j] = mGatherDistance[j - 1];
+            System.arraycopy(pos, (j - 1) * 4, pos, j * 4, 4);
+            System.arraycopy(color, (j - 1) * 4, color, j * 4, 4);
+        }
+        mGatherDistance[at] = distance;
+        System.arraycopy(mLightPos, i, pos, at * 4, 4);
+        System.arraycopy(mLightColor, i, color, at * 4, 3);
+        color[at * 4 + 3] = 1.0f;
+        return Math.min(count + 1, MAX_LIGHTS_PER_DRAW);
+    }
+
+    /**
+     * Returns the time spent by the last {@link #assign}, in microseconds.
+     */
+    public float getAssignMicros() {
+        return mAssignNanos / 1e3f;
+    }
+
+    /**
+     * Returns the mean number of lights in a cluster after the last {@link #assign}.
+     */
+    public float getAverageLightsPerCluster() {
+        long total = 0;
+        for (int c = 0; c < CLUSTERS; c++) {
+            total += mClusterCounts[c];
+        }
+        return (float) total / CLUSTERS;
+    }
+
+    /**
+     * Returns how many cluster entries did not fit in the last {@link #assign}.
+     */
+    public int getOverflow() {
+        return mOverflow;
+    }
+}
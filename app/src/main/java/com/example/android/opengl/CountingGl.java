@@ -0,0 +1,134 @@
+package com.example.android.opengl;
+
+import android.opengl.GLES20;
+
+/**
+ * Stand-in for GL that draws nothing and counts the calls it gets, see
+ * {@link Gl#setStandIn}.
+ *
+ * The counters grow until {@link #reset}, so a caller reads them around the
+ * frames it wants to measure. Calls come from the GL thread only.
+ */
+public class CountingGl {
+    private int mNextName = 1;
+
+    private int mCalls;
+    private int mDrawCalls;
+    private long mIndices;
+    private int mUniformCalls;
+    private long mUniformFloats;
+    private int mAttributeCalls;
+    private int mStateCalls;
+    private int mLookups;
+    private int mClears;
+
+    public void reset() {
+        mCalls = 0;
+        mDrawCalls = 0;
+        mIndices = 0;
+        mUniformCalls = 0;
+        mUniformFloats = 0;
+        mAttributeCalls = 0;
+        mStateCalls = 0;
+        mLookups = 0;
+        mClears = 0;
+    }
+
+    void state() {
+        mCalls++;
+        mStateCalls++;
+    }
+
+    void clear() {
+        mCalls++;
+        mClears++;
+    }
+
+    int create() {
+        mCalls++;
+        mStateCalls++;
+        return mNextName++;
+    }
+
+    int lookup() {
+        mCalls++;
+        mLookups++;
+        // any valid location
+        return 0;
+    }
+
+    // the limits a query returns are the minimums of ES 2.0
+    int integer(int pname) {
+        mCalls++;
+        mLookups++;
+        return pname == GLES20.GL_MAX_VERTEX_UNIFORM_VECTORS ? 128 : 0;
+    }
+
+    void attribute() {
+        mCalls++;
+        mAttributeCalls++;
+    }
+
+    void uniform(int floats) {
+        mCalls++;
+        mUniformCalls++;
+        mUniformFloats += floats;
+    }
+
+    void draw(int indices) {
+        mCalls++;
+        mDrawCalls++;
+        mIndices += indices;
+    }
+
+    /**
+     * Returns every GL call, of all kinds.
+     */
+    public int getCalls() {
+        return mCalls;
+    }
+
+    public int getDrawCalls() {
+        return mDrawCalls;
+    }
+
+    /**
+     * Returns the indices sent by the draw calls.
+     */
+    public long getIndices() {
+        return mIndices;
+    }
+
+    public int getUniformCalls() {
+        return mUniformCalls;
+    }
+
+    /**
+     * Returns the floats (or ints) sent to uniforms.
+     */
+    public long getUniformFloats() {
+        return mUniformFloats;
+    }
+
+    public int getAttributeCalls() {
+        return mAttributeCalls;
+    }
+
+    /**
+     * Returns the calls that change a state or create an object.
+     */
+    public int getStateCalls() {
+        return mStateCalls;
+    }
+
+    /**
+     * Returns the attribute and uniform location queries.
+     */
+    public int getLookups() {
+        return mLookups;
+    }
+
+    public int getClears() {
+        return mClears;
+    }
+}
@@ -0,0 +1,167 @@
+package com.example.android.opengl;
+
+import java.nio.ShortBuffer;
+
+/**
+ * Orders the triangles of a mesh back to front for alpha blending.
+ *
+ * The depth of a triangle is the clip space w of its centroid, which for a
+ * perspective projection is its distance along the view axis. Only the
+ * direction of the view axis in model space changes the order, so the sort
+ * is skipped while it moves less than a threshold angle.
+ */
+public class DepthSorter {
+    private static final float DEFAULT_THRESHOLD_DEGREES = 2.0f;
+    private static final int KEY_GRAIN = 8192;
+
+    private final int[] mIndices;
+    private final float[] mCoords;
+    private final int mFaceCount;
+    private final float[] mCentroids;
+    private final RadixSort mRadixSort;
+    private final WorkerPool mPool;
+
+    // face order, back to front after a sort, and the matching keys
+    private final int[] mOrder;
+    private final int[] mKeys;
+    private final short[] mScratch;
+
+    private float mThresholdCos;
+    private final float[] mSortedAxis = new float[3];
+    private boolean mSorted;
+
+    // w row of the matrix used by the key task
+    private float mAx, mAy, mAz, mAw;
+
+    private long mLastSortNanos;
+    private boolean mLastSkipped;
+
+    private final WorkerPool.Task mKeyTask = new WorkerPool.Task() {
+        @Override
+        public void run(int begin, int end, int worker) {
+            for (int i = begin; i < end; i++) {
+                int c = mOrder[i] * 3;
+                float w = mAx * mCentroids[c] + mAy * mCentroids[c + 1] + mAz * mCentroids[c + 2] + mAw;
+                mKeys[i] = sortableKey(-w);
+            }
+        }
+    };
+
+    public DepthSorter(Mesh mesh, WorkerPool pool) {
+        mIndices = mesh.indices;
+        mCoords = mesh.coords;
+        mFaceCount = mesh.getFaceCount();
+        mPool = pool;
+        mRadixSort = new RadixSort(pool);
+        mCentroids = new float[mFaceCount * 3];
+        for (int f = 0; f < mFaceCount; f++) {
+            updateCentroid(f);
+        }
+        mOrder = new int[mFaceCount];
+        for (int f = 0; f < mFaceCount; f++) {
+            mOrder[f] = f;
+        }
+        mKeys = new int[mFaceCount];
+        mScratch = new short[mFaceCount * 3];
+        setThreshold(DEFAULT_THRESHOLD_DEGREES);
+    }
+
+    /**
+     * Takes the new position of faces whose vertices moved. The next
+     * {@link #sort} always sorts.
+     */
+    public void updateFaces(int[] faces, int count) {
+        for (int i = 0; i < count; i++) {
+            updateCentroid(faces[i]);
+        }
+        mSorted = false;
+    }
+
+    private void updateCentroid(int f) {
+        for (int k = 0; k < 3; k++) {
+            mCentroids[f * 3 + k] = (mCoords[mIndices[f * 3] * 3 + k]
+                    + mCoords[mIndices[f * 3 + 1] * 3 + k]
+                    + mCoords[mIndices[f * 3 + 2] * 3 + k]) / 3.0f;
+        }
+    }
+
+    /**
+     * Sets how far the view axis may turn before the faces are sorted again.
+     */
+    public void setThreshold(float degrees) {
+        mThresholdCos = (float) Math.cos(Math.toRadians(degrees));
+    }
+
+    /**
+     * Sorts the faces for a new frame if the view changed enough.
+     *
+     * @param mvpMatrix - The Model View Projection matrix of the frame.
+     * @return - True if the order changed and the index buffer must be rewritten.
+     */
+    public boolean sort(float[] mvpMatrix) {
+        long start = System.nanoTime();
+        float ax = mvpMatrix[3], ay = mvpMatrix[7], az = mvpMatrix[11];
+        float length = (float) Math.sqrt(ax * ax + ay * ay + az * az);
+        if (length > 0) {
+            float cos = (ax * mSortedAxis[0] + ay * mSortedAxis[1] + az * mSortedAxis[2]) / length;
+            if (mSorted && cos >= mThresholdCos) {
+                mLastSkipped = true;
+                mLastSortNanos = System.nanoTime() - start;
+                return false;
+            }
+            mSortedAxis[0] = ax / length;
+            mSortedAxis[1] = ay / length;
+            mSortedAxis[2] = az / length;
+        }
+
+        mAx = ax;
+        mAy = ay;
+        mAz = az;
+        mAw = mvpMatrix[15];
+        mPool.forEach(mFaceCount, KEY_GRAIN, mKeyTask);
+        mRadixSort.sort(mKeys, mOrder, mFaceCount);
+
+        mSorted = true;
+        mLastSkipped = false;
+        mLastSortNanos = System.nanoTime() - start;
+        return true;
+    }
+
+    /**
+     * Writes the faces in sorted order as a triangle list.
+     *
+     * @param out - Buffer with room for all the indices, written from 0.
+     */
+    public void writeIndices(ShortBuffer out) {
+        for (int i = 0; i < mFaceCount; i++) {
+            int f = mOrder[i] * 3;
+            mScratch[i * 3] = (short) mIndices[f];
+            mScratch[i * 3 + 1] = (short) mIndices[f + 1];
+            mScratch[i * 3 + 2] = (short) mIndices[f + 2];
+        }
+        out.position(0);
+        out.put(mScratch);
+        out.position(0);
+    }
+
+    public int getFaceCount() {
+        return mFaceCount;
+    }
+
+    /**
+     * Returns the time spent by the last {@link #sort} call, in microseconds.
+     */
+    public float getLastSortMicros() {
+        return mLastSortNanos / 1e3f;
+    }
+
+    public boolean wasLastSortSkipped() {
+        return mLastSkipped;
+    }
+
+    // Maps a float to an int whose unsigned order is the float order.
+    static int sortableKey(float value) {
+        int bits = Float.floatToIntBits(value);
+        return bits ^ ((bits >> 31) | 0x80000000);
+    }
+}
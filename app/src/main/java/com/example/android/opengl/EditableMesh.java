@@ -0,0 +1,344 @@
+package com.example.android.opengl;
+
+import java.nio.FloatBuffer;
+import java.util.Arrays;
+
+/**
+ * Vertex edits on a {@link Mesh} that only update what they touch.
+ *
+ * Moving vertices marks their faces; {@link #commit} recomputes the normals
+ * of those faces and then of the vertices around them (the one ring of the
+ * moved vertices), using a vertex to face adjacency index. The changed
+ * vertices are merged into ranges, and {@link #writeDirty} copies only those
+ * ranges into the vertex and normal buffers. The work of an edit depends on
+ * the size of the edit, not of the mesh, and nothing is allocated.
+ *
+ * The mesh arrays are changed in place.
+ */
+public class EditableMesh {
+    // vertices closer than this in the buffer are sent as a single range
+    private static final int RANGE_GAP = 8;
+
+    private final Mesh mMesh;
+    private final float[] mCoords;
+    private final int[] mIndices;
+    private final float[] mNormals;
+    // not normalized, so bigger faces weigh more as in Mesh.computeVertexNormals
+    private final float[] mFaceNormals;
+
+    // vertex to face adjacency: faces of vertex v are
+    // mVertexFaces[mVertexFaceStart[v] .. mVertexFaceStart[v + 1]]
+    private final int[] mVertexFaceStart;
+    private final int[] mVertexFaces;
+
+    // moved vertices, their faces and the vertices of those faces in the
+    // running commit, tagged with mCommitStamp to add them once
+    private final int[] mMoved;
+    private int mMovedCount;
+    private final int[] mMovedTag;
+    private final int[] mDirtyFaces;
+    private int mDirtyFaceCount;
+    private final int[] mFaceTag;
+    private final int[] mRing;
+    private final int[] mRingTag;
+    private int mCommitStamp = 1;
+    // vertices whose position or normal changed since the last writeDirty
+    private final int[] mDirty;
+    private int mDirtyCount;
+    private final int[] mVertexTag;
+    private int mStamp = 1;
+
+    // first vertex and vertex count of each range to upload
+    private final int[] mRanges;
+    private int mRangeCount;
+
+    // breadth first search state of collectWithin
+    private final int[] mQueue;
+    private final int[] mSearchTag;
+    private int mSearchStamp;
+
+    private long mCommitNanos;
+
+    public EditableMesh(Mesh mesh) {
+        mMesh = mesh;
+        mCoords = mesh.coords;
+        mIndices = mesh.indices;
+        mNormals = mesh.getNormals();
+        int numVertex = mesh.getVertexCount();
+        int numFaces = mesh.getFaceCount();
+
+        mVertexFaceStart = new int[numVertex + 1];
+        for (int index : mIndices) {
+            mVertexFaceStart[index + 1]++;
+        }
+        for (int v = 0; v < numVertex; v++) {
+            mVertexFaceStart[v + 1] += mVertexFaceStart[v];
+        }
+        mVertexFaces = new int[mIndices.length];
+        int[] fill = new int[numVertex];
+        for (int i = 0; i < mIndices.length; i++) {
+            int v = mIndices[i];
+            mVertexFaces[mVertexFaceStart[v] + fill[v]++] = i / 3;
+        }
+
+        mFaceNormals = new float[numFaces * 3];
+        for (int f = 0; f < numFaces; f++) {
+            updateFaceNormal(f);
+        }
+
+        mMoved = new int[numVertex];
+        mMovedTag = new int[numVertex];
+        mDirtyFaces = new int[numFaces];
+        mFaceTag = new int[numFaces];
+        mRing = new int[numVertex];
+        mRingTag = new int[numVertex];
+        mDirty = new int[numVertex];
+        mVertexTag = new int[numVertex];
+        mRanges = new int[numVertex * 2];
+        mQueue = new int[numVertex];
+        mSearchTag = new int[numVertex];
+    }
+
+    public Mesh getMesh() {
+        return mMesh;
+    }
+
+    /**
+     * Moves a vertex. The normals are updated by the next {@link #commit}.
+     */
+    public void setPosition(int v, float x, float y, float z) {
+        mCoords[v * 3] = x;
+        mCoords[v * 3 + 1] = y;
+        mCoords[v * 3 + 2] = z;
+        if (mMovedTag[v] != mCommitStamp) {
+            mMovedTag[v] = mCommitStamp;
+            mMoved[mMovedCount++] = v;
+        }
+        markDirty(v);
+    }
+
+    private void markDirty(int v) {
+        if (mVertexTag[v] != mStamp) {
+            mVertexTag[v] = mStamp;
+            mDirty[mDirtyCount++] = v;
+        }
+    }
+
+    /**
+     * Moves a vertex by an offset.
+     */
+    public void translate(int v, float dx, float dy, float dz) {
+        setPosition(v, mCoords[v * 3] + dx, mCoords[v * 3 + 1] + dy, mCoords[v * 3 + 2] + dz);
+    }
+
+    /**
+     * Finds the vertices connected to a start vertex that are within a
+     * distance of a point, walking the surface from the start.
+     *
+     * @param out - Receives the vertices, needs room for all of them.
+     * @return - Number of vertices found.
+     */
+    public int collectWithin(int start, float x, float y, float z, float radius, int[] out) {
+        if (++mSearchStamp == 0) {
+            Arrays.fill(mSearchTag, 0);
+            mSearchStamp = 1;
+        }
+        float radius2 = radius * radius;
+        int head = 0;
+        int tail = 0;
+        mQueue[tail++] = start;
+        mSearchTag[start] = mSearchStamp;
+        int count = 0;
+        while (head < tail) {
+            int v = mQueue[head++];
+            float dx = mCoords[v * 3] - x, dy = mCoords[v * 3 + 1] - y, dz = mCoords[v * 3 + 2] - z;
+            if (dx * dx + dy * dy + dz * dz > radius2 && v != start) {
+                continue;
+            }
+            out[count++] = v;
+            for (int i = mVertexFaceStart[v]; i < mVertexFaceStart[v + 1]; i++) {
+                int f = mVertexFaces[i] * 3;
+                for (int k = 0; k < 3; k++) {
+                    int n = mIndices[f + k];
+                    if (mSearchTag[n] != mSearchStamp) {
+                        mSearchTag[n] = mSearchStamp;
+                        mQueue[tail++] = n;
+                    }
+                }
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Updates the normals around the vertices moved since the last commit
+     * and merges the changed vertices into upload ranges.
+     *
+     * @return - The number of ranges, see {@link #getRangeStart}.
+     */
+    public int commit() {
+        long start = System.nanoTime();
+        // faces of the moved vertices
+        mDirtyFaceCount = 0;
+        for (int i = 0; i < mMovedCount; i++) {
+            int v = mMoved[i];
+            for (int j = mVertexFaceStart[v]; j < mVertexFaceStart[v + 1]; j++) {
+                int f = mVertexFaces[j];
+                if (mFaceTag[f] != mCommitStamp) {
+                    mFaceTag[f] = mCommitStamp;
+                    mDirtyFaces[mDirtyFaceCount++] = f;
+                    updateFaceNormal(f);
+                }
+            }
+        }
+        // every vertex of those faces gets a new normal
+        int ringCount = 0;
+        for (int i = 0; i < mDirtyFaceCount; i++) {
+            int f = mDirtyFaces[i] * 3;
+            for (int k = 0; k < 3; k++) {
+                int v = mIndices[f + k];
+                if (mRingTag[v] != mCommitStamp) {
+                    mRingTag[v] = mCommitStamp;
+                    mRing[ringCount++] = v;
+                }
+            }
+        }
+        for (int i = 0; i < ringCount; i++) {
+            updateVertexNormal(mRing[i]);
+            markDirty(mRing[i]);
+        }
+        mMovedCount = 0;
+        if (++mCommitStamp == 0) {
+            Arrays.fill(mMovedTag, 0);
+            Arrays.fill(mFaceTag, 0);
+            Arrays.fill(mRingTag, 0);
+            mCommitStamp = 1;
+        }
+
+        // merge the changed vertices into ranges
+        Arrays.sort(mDirty, 0, mDirtyCount);
+        mRangeCount = 0;
+        for (int i = 0; i < mDirtyCount; i++) {
+            int v = mDirty[i];
+            if (mRangeCount > 0) {
+                int last = (mRangeCount - 1) * 2;
+                if (v <= mRanges[last] + mRanges[last + 1] + RANGE_GAP) {
+                    mRanges[last + 1] = v - mRanges[last] + 1;
+                    continue;
+                }
+            }
+            mRanges[mRangeCount * 2] = v;
+            mRanges[mRangeCount * 2 + 1] = 1;
+            mRangeCount++;
+        }
+        mCommitNanos = System.nanoTime() - start;
+        return mRangeCount;
+    }
+
+    /**
+     * Returns the faces changed by the last {@link #commit}.
+     */
+    public int getDirtyFaces(int[] out) {
+        System.arraycopy(mDirtyFaces, 0, out, 0, mDirtyFaceCount);
+        return mDirtyFaceCount;
+    }
+
+    public int getDirtyFaceCount() {
+        return mDirtyFaceCount;
+    }
+
+    public int getDirtyVertexCount() {
+        return mDirtyCount;
+    }
+
+    public int getRangeStart(int range) {
+        return mRanges[range * 2];
+    }
+
+    public int getRangeLength(int range) {
+        return mRanges[range * 2 + 1];
+    }
+
+    /**
+     * Copies the ranges of the last {@link #commit} into direct buffers laid
+     * out as the mesh arrays, then starts a new edit.
+     *
+     * @param coords - Vertex buffer, 3 floats per vertex, or null.
+     * @param normals - Normal buffer, 3 floats per vertex, or null.
+     * @return - The number of bytes written.
+     */
+    public int writeDirty(FloatBuffer coords, FloatBuffer normals) {
+        int floats = 0;
+        for (int r = 0; r < mRangeCount; r++) {
+            int first = mRanges[r * 2] * 3;
+            int length = mRanges[r * 2 + 1] * 3;
+            if (coords != null) {
+                coords.position(first);
+                coords.put(mCoords, first, length);
+                floats += length;
+            }
+            if (normals != null) {
+                normals.position(first);
+                normals.put(mNormals, first, length);
+                floats += length;
+            }
+        }
+        if (coords != null) {
+            coords.position(0);
+        }
+        if (normals != null) {
+            normals.position(0);
+        }
+        clear();
+        return floats * 4;
+    }
+
+    /**
+     * Forgets the changes of the last commit without writing them.
+     */
+    public void clear() {
+        mDirtyCount = 0;
+        mRangeCount = 0;
+        if (++mStamp == 0) {
+            Arrays.fill(mVertexTag, 0);
+            mStamp = 1;
+        }
+    }
+
+    /**
+     * Returns the time spent by the last {@link #commit}, in microseconds.
+     */
+    public float getCommitMicros() {
+        return mCommitNanos / 1e3f;
+    }
+
+    private void updateFaceNormal(int f) {
+        int pa = mIndices[f * 3] * 3;
+        int pb = mIndices[f * 3 + 1] * 3;
+        int pc = mIndices[f * 3 + 2] * 3;
+        // vectors ac and bc, as Mesh.addFaceNormal
+        float v1x = mCoords[pc] - mCoords[pa];
+        float v1y = mCoords[pc + 1] - mCoords[pa + 1];
+        float v1z = mCoords[pc + 2] - mCoords[pa + 2];
+        float v2x = mCoords[pc] - mCoords[pb];
+        float v2y = mCoords[pc + 1] - mCoords[pb + 1];
+        float v2z = mCoords[pc + 2] - mCoords[pb + 2];
+        mFaceNormals[f * 3] = v1y * v2z - v1z * v2y;
+        mFaceNormals[f * 3 + 1] = v1z * v2x - v1x * v2z;
+        mFaceNormals[f * 3 + 2] = v1x * v2y - v1y * v2x;
+    }
+
+    private void updateVertexNormal(int v) {
+        float nx = 0, ny = 0, nz = 0;
+        for (int i = mVertexFaceStart[v]; i < mVertexFaceStart[v + 1]; i++) {
+            int f = mVertexFaces[i] * 3;
+            nx += mFaceNormals[f];
+            ny += mFaceNormals[f + 1];
+            nz += mFaceNormals[f + 2];
+        }
+        mNormals[v * 3] = nx;
+        mNormals[v * 3 + 1] = ny;
+        mNormals[v * 3 + 2] = nz;
+        Mesh.normalize(mNormals, v, 1);
+    }
+}
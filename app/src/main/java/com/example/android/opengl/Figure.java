@@ -2,17 +2,23 @@ package com.example.android.opengl;
 
 import android.opengl.GLES20;
 import android.opengl.Matrix;
+import android.util.Log;
 
-import java.io.BufferedReader;
+import java.io.BufferedInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
 import java.nio.FloatBuffer;
 import java.nio.ShortBuffer;
+import java.util.HashMap;
+import java.util.Map;
 
 public class Figure {
+    private static final String TAG = "Figure";
+    private static final String MODEL = "assets/bunny";
+
+    // ambient occlusion baked at load time when the asset has none, by model
+    private static final Map<String, float[]> sBakedOcclusion = new HashMap<String, float[]>();
+
     /*private final String vertexShaderCode =
             // This matrix member variable provides a hook to manipulate
             // the coordinates of the objects that use this vertex shader
@@ -33,8 +39,7 @@ public class Figure {
 
     final String vertexShaderCode =
             "uniform mat4 uMVPMatrix;      \n"		// A constant representing the combined model/view/projection matrix.
-            + "uniform mat4 uMVMatrix;       \n"		// A constant representing the combined model/view matrix.
-            + "uniform vec3 uLightPos;       \n"	    // The position of the light in eye space.
+            + FigureLighting.SHADER_CODE
 
             + "attribute vec4 vPosition;     \n"		// Per-vertex position information we will pass in.
             + "attribute vec4 aColor;        \n"		// Per-vertex color information we will pass in.
@@ -44,21 +49,8 @@ public class Figure {
 
             + "void main()                    \n" 	// The entry point for our vertex shader.
             + "{                              \n"
-            // Transform the vertex into eye space.
-            + "   vec3 modelViewVertex = vec3(uMVMatrix * vPosition);              \n"
-            // Transform the normal's orientation into eye space.
-            + "   vec3 modelViewNormal = vec3(uMVMatrix * vec4(normalize(aNormal), 0.0));     \n"
-            // Will be used for attenuation.
-            + "   float distance = length(uLightPos - modelViewVertex);             \n"
-            // Get a lighting direction vector from the light to the vertex.
-            + "   vec3 lightVector = normalize(uLightPos - modelViewVertex);        \n"
-            // Calculate the dot product of the light vector and vertex normal. If the normal and light vector are
-            // pointing in the same direction then it will get max illumination.
-            + "   float diffuse = max(dot(modelViewNormal, lightVector), 0.1);       \n"
-            // Attenuate the light based on distance.
-            + "   diffuse = diffuse * (1.0 / (1.0 + (0.25 * distance * distance)));  \n"
             // Multiply the color by the illumination level. It will be interpolated across the triangle.
-            + "   vColor = aColor * diffuse;                                         \n"
+            + "   vColor = vec4(aColor.rgb * lightAt(vPosition, aNormal), aColor.a); \n"
             // gl_Position is a special variable used to store the final position.
             // Multiply the vertex by the matrix to get the final point in normalized screen coordinates.
             + "   gl_Position = uMVPMatrix * vPosition;                              \n"
@@ -77,13 +69,15 @@ public class Figure {
     private final FloatBuffer colorBuffer;
     private final FloatBuffer normalBuffer;
     private final ShortBuffer drawListBuffer;
+    // slices of the BufferArena behind the buffers, returned by release()
+    private final BufferArena mArena = BufferArena.getDefault();
+    private BufferArena.Slice mVertexSlice, mColorSlice, mNormalSlice, mDrawListSlice, mSortedSlice, mDetailSlice;
     private final int mProgram;
     private int mPositionHandle;
     private int mColorHandle;
     private int mNormalHandler;
-    private int mLightPosHandle;
     private int mMVPMatrixHandle;
-    private int mMVMatrixHandle;
+    private final FigureLighting mLighting;
 
     // number of coordinates per vertex in this array
     static final int COORDS_PER_VERTEX = 3;
@@ -103,158 +97,167 @@ public class Figure {
     // Colores RGB
     float[] color;
 
+    private Mesh mMesh;
+    private Picker mPicker;
+    // the vertices moved since the picker BVH was fitted
+    private boolean mPickerStale;
+
+    // Esculpido: solo se actualiza lo que toca cada edición
+    private EditableMesh mEditable;
+    private int[] mSculptVertices;
+    private int[] mSculptFaces;
+    private final float[] mSculptPoint = new float[3];
+    private float mLastEditMicros;
+    private int mLastEditBytes;
+
+    // GL_TRIANGLES, or GL_TRIANGLE_STRIP when it needs fewer indices
+    private int mDrawMode = GLES20.GL_TRIANGLES;
+    // faces in meshlet order, meshlet m uses mDrawIndices[mMeshletStart[m] .. mMeshletEnd[m]]
+    private short[] mDrawIndices;
+    private Meshlets mMeshlets;
+    private int[] mMeshletStart;
+    private int[] mMeshletEnd;
+    private int[] mVisibleRuns;
+    private boolean mClusterCulling = true;
+
+    private final float[] mInvMVPMatrix = new float[16];
+    // the eye projects to the point at infinity (0, 0, -1, 0) in clip space
+    private final float[] mEyeClip = {0, 0, -1, 0};
+    private final float[] mEye = new float[4];
+
+    // Transparencia: caras ordenadas de atrás hacia delante cada frame
+    private boolean mTransparent;
+    private DepthSorter mDepthSorter;
+    private ShortBuffer mSortedBuffer;
+
+    // Menos detalle: caras de un nivel de una malla progresiva de la figura, con sus mismos vértices
+    private ProgressiveMesh mDetailMesh;
+    private ShortBuffer mDetailBuffer;
+    // indices of the reduced level, 0 to draw the full mesh
+    private int mDetailIndexCount;
+
+    // Luces: cada grupo de LIGHT_BATCH meshlets se dibuja con las luces de sus clusters
+    private static final int LIGHT_BATCH = 8;
+    private ClusteredLights mLights;
+    private float[] mOcclusion;
+    // bounding sphere of every batch, and of the whole figure after them
+    private float[] mBatchSpheres;
+    private int mBoundBatch;
+
+    // Contorno de selección: aristas de silueta, buscadas cuando la vista cambia
+    private static final float[] OUTLINE_COLOR = {1.0f, 0.6f, 0.1f, 1.0f};
+    private static final float OUTLINE_WIDTH = 3.0f;
+    private final String outlineVertexShaderCode =
+            "uniform mat4 uMVPMatrix;" +
+                    "attribute vec4 vPosition;" +
+                    "void main() {" +
+                    "  gl_Position = uMVPMatrix * vPosition;" +
+                    "}";
+    private final String outlineFragmentShaderCode =
+            "precision mediump float;" +
+                    "uniform vec4 uColor;" +
+                    "void main() {" +
+                    "  gl_FragColor = uColor;" +
+                    "}";
+    private SilhouetteEdges mSilhouettes;
+    // index count of the detail level the edges were listed for, 0 for the full mesh
+    private int mSilhouetteDetail;
+    private BufferArena.Slice mOutlineSlice;
+    private int mOutlineCapacity;
+    private ShortBuffer mOutlineBuffer;
+    private int mOutlineProgram;
+    private long mOutlineFrames;
+    private long mCulledDraws;
+
     /**
      * Sets up the drawing object data for use in an OpenGL ES context.
      */
     public Figure() {
-        // parse file
-        InputStream inputStream = this.getClass().getClassLoader().getResourceAsStream("res/raw/bunny.off");
-        BufferedReader reader = new BufferedReader(new InputStreamReader(inputStream));
+        // decode the compressed model (MeshCodec), the OFF sources live in models/
+        InputStream inputStream = this.getClass().getClassLoader().getResourceAsStream(MODEL + ".mshz");
         try {
-            String line;
-            line = reader.readLine();
-            if (!line.trim().equals("OFF")) {
-                throw new IOException();
-            }
-            line = reader.readLine();
-            String token[] = line.split(" ");
-            int numVertex = Integer.parseInt(token[0].trim());
-            int numFaces = Integer.parseInt(token[1].trim());
-
-            coords = new float[numVertex*COORDS_PER_VERTEX];
-            int cordNum = 0;
-
-            // parse vertex
-            for (int i=0; i < numVertex; i++){
-                line = reader.readLine();
-                for (String cord : line.split(" ")){
-                    coords[cordNum++] = Float.parseFloat(cord.trim());
-                }
-            }
-
-            drawOrder = new short[numFaces*3];
-            int orderNum = 0;
-
-            // parse faces
-            for (int i=0; i < numFaces; i++){
-                line = reader.readLine();
-                String order[] = line.split(" ");
-                for (int j=1; j < 4; j++){ // descartamos el primer número que siempre va a ser 3 para triangulos
-                    drawOrder[orderNum++] = Short.parseShort(order[j].trim());
-                }
-            }
-
-            // Pintamos de blanco
+            long loadStart = System.nanoTime();
+            mMesh = MeshCodec.decode(new BufferedInputStream(inputStream));
+            inputStream.close();
+            Log.d(TAG, "decoded " + mMesh.getFaceCount() + " faces in "
+                    + (System.nanoTime() - loadStart) / 1e6f + " ms");
+            coords = mMesh.coords;
+            drawOrder = mMesh.toShortIndices();
+            int numVertex = mMesh.getVertexCount();
+
+            // Pintamos de blanco, oscurecido por la oclusión ambiental
+            float[] occlusion = loadOcclusion();
+            mOcclusion = occlusion;
             color = new float[numVertex*COLORS_PER_VERTEX];
-            for (int i=0; i < numVertex*COLORS_PER_VERTEX; i++) {
-                color[i] = 1.0f;
+            for (int i=0; i < numVertex; i++) {
+                for (int k = 0; k < 3; k++) {
+                    color[i * COLORS_PER_VERTEX + k] = occlusion[i];
+                }
+                color[i * COLORS_PER_VERTEX + 3] = 1.0f;
             }
 
         } catch (IOException e) {
-            e.printStackTrace();
-        }
-
-        float a[] = new float[3];
-        float b[] = new float[3];
-        float c[] = new float[3];
-        float v1[] = new float[3];
-        float v2[] = new float[3];
-        float normals[] = new float[drawOrder.length * 3];
-
-        // Calculate normal vectors
-        for (int i=0; i < drawOrder.length; i+=3){
-            // set cord for first point of the face
-            a[0] = coords[drawOrder[i] * COORDS_PER_VERTEX];
-            a[1] = coords[drawOrder[i] * COORDS_PER_VERTEX + 1];
-            a[2] = coords[drawOrder[i] * COORDS_PER_VERTEX + 2];
-            // set cord for second point of the face
-            b[0] = coords[drawOrder[i+1] * COORDS_PER_VERTEX];
-            b[1] = coords[drawOrder[i+1] * COORDS_PER_VERTEX + 1];
-            b[2] = coords[drawOrder[i+1] * COORDS_PER_VERTEX + 2];
-            // set cord for third point of the face
-            c[0] = coords[drawOrder[i+2] * COORDS_PER_VERTEX];
-            c[1] = coords[drawOrder[i+2] * COORDS_PER_VERTEX + 1];
-            c[2] = coords[drawOrder[i+2] * COORDS_PER_VERTEX + 2];
-
-            // calculate vector ac
-            v1[0] = c[0] - a[0];
-            v1[1] = c[1] - a[1];
-            v1[2] = c[2] - a[2];
-
-            // calculate vector bc
-            v2[0] = c[0] - b[0];
-            v2[1] = c[1] - b[1];
-            v2[2] = c[2] - b[2];
-
-            // Multiply both vectors to get the normal vector of the face
-            normals[i] = a[1] * b[2] - a[2] * b[1];
-            normals[i + 1] = (a[0] * b[2] - a[2] * b[0]) * -1;
-            normals[i + 2] = (a[0] * b[1] - a[1] * b[0]) * -1;
+            throw new RuntimeException("cannot load " + MODEL + ".mshz", e);
         }
 
-        /*for (int i=0; i<18; i++) {
-            Log.d("NORMALS", normals[i]+"");
-        }*/
-
-        // aqui guardamos una normal por vertice (3 coordenadas cada 1)
-        float[] vertexNormals = new float[coords.length /* / COORDS_PER_VERTEX * 3 */];
-
         // Calculate vertex normals by the average of contiguous face normals.
-        for (int i=0; i < coords.length; i += COORDS_PER_VERTEX) {
-            float[] vertexNormal = new float[3];
-            int sum = 0;
-            for (int j=0; j < drawOrder.length; j++) {
-                // buscamos las caras que contienen el vertice "i" y en caso afirmativo lo sumamos para hacer la media
-                if (drawOrder[j] == i/3) {
-                    int t = j % 3; // primera coordenada de la cara
-                    vertexNormal[0] += normals[j-t];
-                    vertexNormal[1] += normals[j-t+1];
-                    vertexNormal[2] += normals[j-t+2];
-                    sum++;
-                }
-            }
-            vertexNormals[i] = vertexNormal[0] / sum;
-            vertexNormals[i+1] = vertexNormal[1] / sum;
-            vertexNormals[i+2] = vertexNormal[2] / sum;
-        }
-
-        /*for (int i=0; i<3; i++) {
-            Log.d("VERTEX NORMALS", vertexNormals[i]+"");
-        }*/
+        float[] vertexNormals = mMesh.getNormals();
 
         // initialize vertex byte buffer for shape coordinates
-        ByteBuffer bb = ByteBuffer.allocateDirect(
-                // (# of coordinate values * 4 bytes per float)
-                coords.length * 4);
-        bb.order(ByteOrder.nativeOrder());
-        vertexBuffer = bb.asFloatBuffer();
+        // (# of coordinate values * 4 bytes per float)
+        mVertexSlice = mArena.allocate(coords.length * 4);
+        vertexBuffer = mVertexSlice.asFloatBuffer();
 
         vertexBuffer.put(coords);
         vertexBuffer.position(0);
 
 
         //Inicializar vertex byte buffer para color
-        ByteBuffer bbc = ByteBuffer.allocateDirect( color.length*4);
-        bbc.order(ByteOrder.nativeOrder());
-        colorBuffer = bbc.asFloatBuffer();
+        mColorSlice = mArena.allocate(color.length * 4);
+        colorBuffer = mColorSlice.asFloatBuffer();
         colorBuffer.put(color);
         colorBuffer.position(0);
 
+        // Group the faces in meshlets, so the ones facing away can be skipped
+        mMeshlets = Meshlets.build(mMesh);
+        int numMeshlets = mMeshlets.getCount();
+        mMeshletStart = new int[numMeshlets];
+        mMeshletEnd = new int[numMeshlets];
+        mVisibleRuns = new int[numMeshlets * 2];
+        mBatchSpheres = computeBatchSpheres(mMeshlets, LIGHT_BATCH);
+
+        // Use strips only if they actually save indices
+        long stripStart = System.nanoTime();
+        int[] strip = mMeshlets.toStrips(mMesh.getVertexCount(), mMeshletStart, mMeshletEnd);
+        float stripMs = (System.nanoTime() - stripStart) / 1e6f;
+        int[] drawIndices = strip;
+        if (strip.length < mMeshlets.indices.length) {
+            mDrawMode = GLES20.GL_TRIANGLE_STRIP;
+        } else {
+            drawIndices = mMeshlets.indices;
+            for (int m = 0; m < numMeshlets; m++) {
+                mMeshletStart[m] = mMeshlets.faceStart[m] * 3;
+                mMeshletEnd[m] = mMeshlets.faceStart[m + 1] * 3;
+            }
+        }
+        mDrawIndices = new short[drawIndices.length];
+        for (int i = 0; i < drawIndices.length; i++) {
+            mDrawIndices[i] = (short) drawIndices[i];
+        }
+        Log.d(TAG, numMeshlets + " meshlets, strip " + strip.length + " indices vs " + drawOrder.length
+                + ", saved " + (drawOrder.length - mDrawIndices.length) * 2 + " bytes, stripified in "
+                + stripMs + " ms");
+
         // initialize byte buffer for the draw list
-        ByteBuffer dlb = ByteBuffer.allocateDirect(
-                // (# of coordinate values * 2 bytes per short)
-                drawOrder.length * 2);
-        dlb.order(ByteOrder.nativeOrder());
-        drawListBuffer = dlb.asShortBuffer();
-        drawListBuffer.put(drawOrder);
+        // (# of coordinate values * 2 bytes per short)
+        mDrawListSlice = mArena.allocate(mDrawIndices.length * 2);
+        drawListBuffer = mDrawListSlice.asShortBuffer();
+        drawListBuffer.put(mDrawIndices);
         drawListBuffer.position(0);
 
         // initialize byte buffer for the normals list
-        ByteBuffer bbn = ByteBuffer.allocateDirect(
-                // (# of coordinate values * 2 bytes per short)
-                coords.length * 4);
-        bbn.order(ByteOrder.nativeOrder());
-        normalBuffer = bbn.asFloatBuffer();
+        mNormalSlice = mArena.allocate(coords.length * 4);
+        normalBuffer = mNormalSlice.asFloatBuffer();
         normalBuffer.put(vertexNormals);
         normalBuffer.position(0);
 
@@ -267,10 +270,331 @@ public class Figure {
                 GLES20.GL_FRAGMENT_SHADER,
                 fragmentShaderCode);
 
-        mProgram = GLES20.glCreateProgram();             // create empty OpenGL Program
-        GLES20.glAttachShader(mProgram, vertexShader);   // add the vertex shader to program
-        GLES20.glAttachShader(mProgram, fragmentShader); // add the fragment shader to program
-        GLES20.glLinkProgram(mProgram);                  // create OpenGL program executables
+        mProgram = Gl.glCreateProgram();             // create empty OpenGL Program
+        Gl.glAttachShader(mProgram, vertexShader);   // add the vertex shader to program
+        Gl.glAttachShader(mProgram, fragmentShader); // add the fragment shader to program
+        Gl.glLinkProgram(mProgram);                  // create OpenGL program executables
+        mLighting = new FigureLighting(mProgram);
+    }
+
+    /**
+     * Returns the ambient occlusion of the model, baked offline by
+     * MeshConverter -ao, or here the first time if the asset is missing.
+     */
+    private float[] loadOcclusion() throws IOException {
+        InputStream in = getClass().getClassLoader().getResourceAsStream(MODEL + ".ao");
+        if (in != null) {
+            try {
+                float[] occlusion = AmbientOcclusion.read(mMesh, new BufferedInputStream(in));
+                if (occlusion != null) {
+                    return occlusion;
+                }
+            } finally {
+                in.close();
+            }
+        }
+        synchronized (sBakedOcclusion) {
+            float[] occlusion = sBakedOcclusion.get(MODEL);
+            if (occlusion == null) {
+                Bvh bvh = new Bvh(mMesh);
+                mPicker = new Picker(bvh);
+                AmbientOcclusion baker = new AmbientOcclusion(mMesh, bvh, WorkerPool.getDefault());
+                occlusion = baker.bake(AmbientOcclusion.DEFAULT_RAYS, AmbientOcclusion.DEFAULT_DISTANCE);
+                sBakedOcclusion.put(MODEL, occlusion);
+                Log.d(TAG, "baked occlusion in " + baker.getBakeTimeMs() + " ms, "
+                        + (long) baker.getRaysPerSecond() + " rays/s");
+            }
+            return occlusion;
+        }
+    }
+
+    /**
+     * Returns the name of the model, the key of its baked data.
+     */
+    public String getModel() {
+        return MODEL;
+    }
+
+    /**
+     * Returns the impostors of the model, baked offline by ImpostorBaker,
+     * or here from the mesh and its occlusion if the asset is missing.
+     */
+    public ImpostorAtlas loadImpostors() throws IOException {
+        InputStream in = getClass().getClassLoader().getResourceAsStream(MODEL + ".imp");
+        if (in != null) {
+            try {
+                return ImpostorAtlas.read(new BufferedInputStream(in));
+            } finally {
+                in.close();
+            }
+        }
+        long start = System.nanoTime();
+        ImpostorAtlas atlas = ImpostorBaker.bake(mMesh, mOcclusion, ImpostorBaker.DEFAULT_VIEWS,
+                ImpostorBaker.DEFAULT_SPRITE_SIZE);
+        Log.d(TAG, "baked " + atlas.viewCount + " impostors in " + (System.nanoTime() - start) / 1e6f + " ms");
+        return atlas;
+    }
+
+    /**
+     * Draws about this fraction of the faces, 1 for the full mesh. The
+     * reduced levels come from a progressive mesh of the figure, built on
+     * first use, and share its vertex buffers. They are drawn in one call,
+     * without meshlet culling. Must run on the GL thread.
+     */
+    public void setDetail(float fraction) {
+        if (fraction >= 1) {
+            mDetailIndexCount = 0;
+            return;
+        }
+        if (mDetailMesh == null) {
+            long start = System.nanoTime();
+            mDetailMesh = ProgressiveMeshBuilder.build(mMesh, mMesh.getFaceCount() / 16);
+            mDetailSlice = mArena.allocate(mMesh.getFaceCount() * 3 * 2);
+            mDetailBuffer = mDetailSlice.asShortBuffer();
+            Log.d(TAG, "detail levels down to " + mDetailMesh.baseFaceCount + " faces in "
+                    + (System.nanoTime() - start) / 1e6f + " ms");
+        }
+        int level = mDetailMesh.getLevel(Math.round(mMesh.getFaceCount() * fraction));
+        mDetailIndexCount = mDetailMesh.writeSourceIndices(level, mDetailBuffer);
+    }
+
+    /**
+     * Returns the faces drawn by {@link #draw}.
+     */
+    public int getDrawnFaceCount() {
+        return mDetailIndexCount > 0 ? mDetailIndexCount / 3 : mMesh.getFaceCount();
+    }
+
+    public Mesh getMesh() {
+        return mMesh;
+    }
+
+    /**
+     * Returns the ambient occlusion of each vertex, the color it is drawn with.
+     */
+    public float[] getOcclusion() {
+        return mOcclusion;
+    }
+
+    public Meshlets getMeshlets() {
+        return mMeshlets;
+    }
+
+    /**
+     * Enables skipping the meshlets that face away from the camera.
+     */
+    public void setClusterCulling(boolean enabled) {
+        mClusterCulling = enabled;
+    }
+
+    /**
+     * Sets the alpha of the whole figure. Below 1 the faces are blended and
+     * drawn back to front, sorted again when the view turns.
+     */
+    public void setTransparency(float alpha) {
+        for (int i = COLORS_PER_VERTEX - 1; i < color.length; i += COLORS_PER_VERTEX) {
+            color[i] = alpha;
+            colorBuffer.put(i, alpha);
+        }
+        mTransparent = alpha < 1.0f;
+        if (mTransparent && mDepthSorter == null) {
+            mDepthSorter = new DepthSorter(mMesh, WorkerPool.getDefault());
+            mSortedSlice = mArena.allocate(mDepthSorter.getFaceCount() * 3 * 2);
+            mSortedBuffer = mSortedSlice.asShortBuffer();
+        }
+    }
+
+    /**
+     * Returns the buffers of the figure to the {@link BufferArena}. The
+     * figure cannot be drawn afterwards.
+     */
+    public void release() {
+        mArena.release(mVertexSlice);
+        mArena.release(mColorSlice);
+        mArena.release(mNormalSlice);
+        mArena.release(mDrawListSlice);
+        mArena.release(mSortedSlice);
+        mArena.release(mDetailSlice);
+        mArena.release(mOutlineSlice);
+        mVertexSlice = mColorSlice = mNormalSlice = mDrawListSlice = mSortedSlice = mDetailSlice = null;
+        mOutlineSlice = null;
+        mOutlineCapacity = 0;
+    }
+
+    /**
+     * Lights the figure with the lights assigned to the clusters around each
+     * group of meshlets, or with the default light if null.
+     */
+    public void setLights(ClusteredLights lights) {
+        mLights = lights;
+    }
+
+    // Merges the meshlet spheres of each batch, the last sphere holds them all.
+    private static float[] computeBatchSpheres(Meshlets meshlets, int batchSize) {
+        int numBatches = (meshlets.getCount() + batchSize - 1) / batchSize;
+        float[] spheres = new float[(numBatches + 1) * 4];
+        for (int b = 0; b <= numBatches; b++) {
+            int first = b < numBatches ? b * batchSize : 0;
+            int end = b < numBatches ? Math.min(meshlets.getCount(), first + batchSize) : meshlets.getCount();
+            float[] min = {Float.MAX_VALUE, Float.MAX_VALUE, Float.MAX_VALUE};
+            float[] max = {-Float.MAX_VALUE, -Float.MAX_VALUE, -Float.MAX_VALUE};
+            for (int m = first; m < end; m++) {
+                for (int k = 0; k < 3; k++) {
+                    min[k] = Math.min(min[k], meshlets.spheres[m * 4 + k] - meshlets.spheres[m * 4 + 3]);
+                    max[k] = Math.max(max[k], meshlets.spheres[m * 4 + k] + meshlets.spheres[m * 4 + 3]);
+                }
+            }
+            float radius = 0;
+            for (int k = 0; k < 3; k++) {
+                spheres[b * 4 + k] = (min[k] + max[k]) * 0.5f;
+            }
+            for (int m = first; m < end; m++) {
+                float dx = meshlets.spheres[m * 4] - spheres[b * 4];
+                float dy = meshlets.spheres[m * 4 + 1] - spheres[b * 4 + 1];
+                float dz = meshlets.spheres[m * 4 + 2] - spheres[b * 4 + 2];
+                radius = Math.max(radius, (float) Math.sqrt(dx * dx + dy * dy + dz * dz) + meshlets.spheres[m * 4 + 3]);
+            }
+            spheres[b * 4 + 3] = radius;
+        }
+        return spheres;
+    }
+
+    public boolean isTransparent() {
+        return mTransparent;
+    }
+
+    public DepthSorter getDepthSorter() {
+        return mDepthSorter;
+    }
+
+    // Draws the meshlets first .. end, split where the light batch changes.
+    private void drawMeshlets(int first, int end) {
+        int batchSize = mLights != null ? LIGHT_BATCH : mMeshlets.getCount();
+        while (first < end) {
+            int batch = first / batchSize;
+            int last = Math.min(end, (batch + 1) * batchSize);
+            bindLights(mLights != null ? batch : 0);
+            int start = mMeshletStart[first];
+            drawListBuffer.position(start);
+            Gl.glDrawElements(mDrawMode, mMeshletEnd[last - 1] - start, GLES20.GL_UNSIGNED_SHORT, drawListBuffer);
+            first = last;
+        }
+        drawListBuffer.position(0);
+    }
+
+    // Uploads the lights of a batch, unless they are already bound.
+    private void bindLights(int batch) {
+        if (batch == mBoundBatch) {
+            return;
+        }
+        mBoundBatch = batch;
+        mLighting.bind(mLights, mBatchSpheres, batch * 4);
+    }
+
+    /**
+     * Returns the picker for this figure. The BVH is built on first use.
+     */
+    public Picker getPicker() {
+        if (mPicker == null) {
+            mPicker = new Picker(new Bvh(mMesh));
+        } else if (mPickerStale) {
+            mPicker.getBvh().refit(mMesh.coords, mMesh.indices);
+        }
+        mPickerStale = false;
+        return mPicker;
+    }
+
+    /**
+     * Pushes the surface in or out around a picked point, with a smooth
+     * falloff. Only the touched vertices, their normals and the matching
+     * parts of the vertex and normal buffers are updated. Must run on the GL
+     * thread.
+     *
+     * @param hit - Picked point on this figure.
+     * @param radius - Size of the brush, in model units.
+     * @param amount - Displacement at the center along the normal.
+     * @return - Number of vertices moved.
+     */
+    public int sculpt(RayHit hit, float radius, float amount) {
+        if (!hit.isHit()) {
+            return 0;
+        }
+        long start = System.nanoTime();
+        if (mEditable == null) {
+            mEditable = new EditableMesh(mMesh);
+            mSculptVertices = new int[mMesh.getVertexCount()];
+            mSculptFaces = new int[mMesh.getFaceCount()];
+        }
+        // hit point from its barycentric coordinates, brush starts at the nearest corner
+        float[] coords = mMesh.coords;
+        float[] weights = {1 - hit.u - hit.v, hit.u, hit.v};
+        int nearest = mMesh.indices[hit.face * 3];
+        float best = -1;
+        mSculptPoint[0] = mSculptPoint[1] = mSculptPoint[2] = 0;
+        for (int j = 0; j < 3; j++) {
+            int v = mMesh.indices[hit.face * 3 + j];
+            for (int k = 0; k < 3; k++) {
+                mSculptPoint[k] += weights[j] * coords[v * 3 + k];
+            }
+            if (weights[j] > best) {
+                best = weights[j];
+                nearest = v;
+            }
+        }
+
+        float[] normals = mMesh.getNormals();
+        int count = mEditable.collectWithin(nearest, mSculptPoint[0], mSculptPoint[1], mSculptPoint[2],
+                radius, mSculptVertices);
+        for (int i = 0; i < count; i++) {
+            int v = mSculptVertices[i];
+            float dx = coords[v * 3] - mSculptPoint[0];
+            float dy = coords[v * 3 + 1] - mSculptPoint[1];
+            float dz = coords[v * 3 + 2] - mSculptPoint[2];
+            float falloff = Math.max(0, 1 - (dx * dx + dy * dy + dz * dz) / (radius * radius));
+            float d = amount * falloff * falloff;
+            mEditable.translate(v, normals[v * 3] * d, normals[v * 3 + 1] * d, normals[v * 3 + 2] * d);
+        }
+        mEditable.commit();
+        if (mDepthSorter != null || mSilhouettes != null) {
+            int faces = mEditable.getDirtyFaces(mSculptFaces);
+            if (mDepthSorter != null) {
+                mDepthSorter.updateFaces(mSculptFaces, faces);
+            }
+            if (mSilhouettes != null && mSilhouetteDetail == 0) {
+                mSilhouettes.refit(mSculptFaces, faces);
+            } else {
+                // the faces of a detail level are not those of the mesh, list them again
+                mSilhouettes = null;
+            }
+        }
+        mLastEditBytes = mEditable.writeDirty(vertexBuffer, normalBuffer);
+        // the meshlet cones and the BVH were built for the old surface
+        mClusterCulling = false;
+        mPickerStale = true;
+        mLastEditMicros = (System.nanoTime() - start) / 1e3f;
+        return count;
+    }
+
+    /**
+     * Returns the vertices moved by the last {@link #sculpt}, as many as it
+     * returned.
+     */
+    public int[] getLastSculptVertices() {
+        return mSculptVertices;
+    }
+
+    /**
+     * Returns the time spent by the last {@link #sculpt}, in microseconds.
+     */
+    public float getLastEditMicros() {
+        return mLastEditMicros;
+    }
+
+    /**
+     * Returns the bytes written to the buffers by the last {@link #sculpt}.
+     */
+    public int getLastEditBytes() {
+        return mLastEditBytes;
     }
 
     /**
@@ -278,58 +602,167 @@ public class Figure {
      *
      * @param mvpMatrix - The Model View Project matrix in which to draw
      * this shape.
+     * @param mvMatrix - The model-view matrix, to light the shape.
+     */
+    public void draw(float[] mvpMatrix, float[] mvMatrix) {
+        bind();
+        drawBound(mvpMatrix, mvMatrix);
+        unbind();
+    }
+
+    /**
+     * Sets the program and vertex arrays of the figure, so that several
+     * copies can be drawn with {@link #drawBound}. Ends with {@link #unbind}.
      */
-    public void draw(float[] mvpMatrix) {
+    public void bind() {
         // Add program to OpenGL environment
-        GLES20.glUseProgram(mProgram);
+        Gl.glUseProgram(mProgram);
 
         // get handle to vertex shader's vPosition member
-        mPositionHandle = GLES20.glGetAttribLocation(mProgram, "vPosition");
+        mPositionHandle = Gl.glGetAttribLocation(mProgram, "vPosition");
         // Enable a handle to the triangle vertices
-        GLES20.glEnableVertexAttribArray(mPositionHandle);
+        Gl.glEnableVertexAttribArray(mPositionHandle);
         // Prepare the triangle coordinate data
-        GLES20.glVertexAttribPointer(mPositionHandle, COORDS_PER_VERTEX, GLES20.GL_FLOAT, false, vertexStride, vertexBuffer);
+        Gl.glVertexAttribPointer(mPositionHandle, COORDS_PER_VERTEX, GLES20.GL_FLOAT, false, vertexStride, vertexBuffer);
 
         // Handler para pasar el color al shader
-        mColorHandle = GLES20.glGetAttribLocation(mProgram, "aColor");
-        GLES20.glEnableVertexAttribArray(mColorHandle);
-        GLES20.glVertexAttribPointer(mColorHandle, COLORS_PER_VERTEX, GLES20.GL_FLOAT, false, colorStride, colorBuffer);
+        mColorHandle = Gl.glGetAttribLocation(mProgram, "aColor");
+        Gl.glEnableVertexAttribArray(mColorHandle);
+        Gl.glVertexAttribPointer(mColorHandle, COLORS_PER_VERTEX, GLES20.GL_FLOAT, false, colorStride, colorBuffer);
 
         // Handler para pasar las normales al shader
-        mNormalHandler = GLES20.glGetAttribLocation(mProgram, "aNormal");
-        GLES20.glEnableVertexAttribArray(mNormalHandler);
-        GLES20.glVertexAttribPointer(mNormalHandler, 3, GLES20.GL_FLOAT, false, normalStride, normalBuffer);
-
-        mLightPosHandle = GLES20.glGetUniformLocation(mProgram, "uLightPos");
-        // Pass in the light position in eye space.
-        GLES20.glUniform3f(mLightPosHandle, 1.0f, 0.5f, 0.7f);
+        mNormalHandler = Gl.glGetAttribLocation(mProgram, "aNormal");
+        Gl.glEnableVertexAttribArray(mNormalHandler);
+        Gl.glVertexAttribPointer(mNormalHandler, 3, GLES20.GL_FLOAT, false, normalStride, normalBuffer);
 
         // get handle to shape's transformation matrix
-        mMVPMatrixHandle = GLES20.glGetUniformLocation(mProgram, "uMVPMatrix");
+        mMVPMatrixHandle = Gl.glGetUniformLocation(mProgram, "uMVPMatrix");
         MyGLRenderer.checkGlError("glGetUniformLocation");
+    }
 
+    /**
+     * Draws a copy of the figure with the state set by {@link #bind}.
+     *
+     * @param mvMatrix - Model-view matrix of the copy, to light it.
+     */
+    public void drawBound(float[] mvpMatrix, float[] mvMatrix) {
         // Apply the projection and view transformation
-        GLES20.glUniformMatrix4fv(mMVPMatrixHandle, 1, false, mvpMatrix, 0);
+        Gl.glUniformMatrix4fv(mMVPMatrixHandle, 1, false, mvpMatrix, 0);
+        // Light the copy where it is, its lights are gathered again
+        mLighting.begin(mvMatrix);
+        mBoundBatch = -1;
         MyGLRenderer.checkGlError("glUniformMatrix4fv");
 
-        // get handle to shape's transformation matrix
-        mMVMatrixHandle = GLES20.glGetUniformLocation(mProgram, "uMVMatrix");
-        MyGLRenderer.checkGlError("glGetUniformLocation");
+        if (mTransparent) {
+            // Back faces are visible through the front ones, so no culling
+            if (mDepthSorter.sort(mvpMatrix)) {
+                mDepthSorter.writeIndices(mSortedBuffer);
+            }
+            Gl.glEnable(GLES20.GL_BLEND);
+            Gl.glBlendFunc(GLES20.GL_SRC_ALPHA, GLES20.GL_ONE_MINUS_SRC_ALPHA);
+            Gl.glDepthMask(false);
+            bindLights(mBatchSpheres.length / 4 - 1);
+            Gl.glDrawElements(GLES20.GL_TRIANGLES, mDepthSorter.getFaceCount() * 3,
+                    GLES20.GL_UNSIGNED_SHORT, mSortedBuffer);
+            Gl.glDepthMask(true);
+            Gl.glDisable(GLES20.GL_BLEND);
+        } else if (mDetailIndexCount > 0) {
+            bindLights(mBatchSpheres.length / 4 - 1);
+            Gl.glDrawElements(GLES20.GL_TRIANGLES, mDetailIndexCount, GLES20.GL_UNSIGNED_SHORT, mDetailBuffer);
+        } else if (mClusterCulling && Matrix.invertM(mInvMVPMatrix, 0, mvpMatrix, 0)) {
+            // Camera position in model space
+            Matrix.multiplyMV(mEye, 0, mInvMVPMatrix, 0, mEyeClip, 0);
+            int runs = mMeshlets.cull(mEye[0] / mEye[3], mEye[1] / mEye[3], mEye[2] / mEye[3], mVisibleRuns);
+            if (++mCulledDraws % 120 == 0) {
+                Log.d(TAG, "meshlets: " + mMeshlets.getVisibleCount() + " of " + mMeshlets.getCount() + " drawn in "
+                        + runs + " runs, " + mMeshlets.getCulledRatio() * 100 + "% of the faces culled in "
+                        + mMeshlets.getCullingMicros() + " us");
+            }
 
-        // La matriz model * view es la misma que la matriz view, por que el objeto esta en el centro y no sufre ninguna transformacion
-        float[] mvMatrix = new float[16];
-        Matrix.setLookAtM(mvMatrix, 0, 0, 0, -4, 0f, 0f, 0f, 0f, 1.0f, 0.0f);
+            // Draw every run of visible meshlets with as few calls as the lights allow
+            for (int r = 0; r < runs; r++) {
+                drawMeshlets(mVisibleRuns[r * 2], mVisibleRuns[r * 2 + 1]);
+            }
+        } else {
+            // Draw the square
+            drawMeshlets(0, mMeshlets.getCount());
+        }
+    }
 
-        // Apply the projection and view transformation
-        GLES20.glUniformMatrix4fv(mMVMatrixHandle, 1, false, mvMatrix, 0);
-        MyGLRenderer.checkGlError("glUniformMatrix4fv");
+    /**
+     * Releases the vertex arrays set by {@link #bind}.
+     */
+    public void unbind() {
+        // Disable vertex array
+        Gl.glDisableVertexAttribArray(mPositionHandle);
+    }
 
-        // Draw the square
-        GLES20.glDrawElements(
-                GLES20.GL_TRIANGLES, drawOrder.length,
-                GLES20.GL_UNSIGNED_SHORT, drawListBuffer);
+    /**
+     * Draws the silhouette of the figure as lines over it, to show it is
+     * selected. The edges are those of the faces {@link #draw} draws, the
+     * full mesh or its detail level, listed again when the level changes;
+     * after that only a view that moved enough looks for them again. Call
+     * after {@link #draw} with the same matrix, with the faces pushed back
+     * by a polygon offset so the lines on their edges pass the depth test.
+     */
+    public void drawOutline(float[] mvpMatrix) {
+        if (mOutlineProgram == 0) {
+            int vertexShader = MyGLRenderer.loadShader(GLES20.GL_VERTEX_SHADER, outlineVertexShaderCode);
+            int fragmentShader = MyGLRenderer.loadShader(GLES20.GL_FRAGMENT_SHADER, outlineFragmentShaderCode);
+            mOutlineProgram = Gl.glCreateProgram();
+            Gl.glAttachShader(mOutlineProgram, vertexShader);
+            Gl.glAttachShader(mOutlineProgram, fragmentShader);
+            Gl.glLinkProgram(mOutlineProgram);
+        }
+        if (mSilhouettes == null || mSilhouetteDetail != mDetailIndexCount) {
+            listSilhouettes();
+        }
+        if (!Matrix.invertM(mInvMVPMatrix, 0, mvpMatrix, 0)) {
+            return;
+        }
+        Matrix.multiplyMV(mEye, 0, mInvMVPMatrix, 0, mEyeClip, 0);
+        if (mSilhouettes.extract(mEye[0] / mEye[3], mEye[1] / mEye[3], mEye[2] / mEye[3])) {
+            mSilhouettes.writeIndices(mOutlineBuffer);
+        }
 
-        // Disable vertex array
-        GLES20.glDisableVertexAttribArray(mPositionHandle);
+        Gl.glUseProgram(mOutlineProgram);
+        int positionHandle = Gl.glGetAttribLocation(mOutlineProgram, "vPosition");
+        Gl.glEnableVertexAttribArray(positionHandle);
+        Gl.glVertexAttribPointer(positionHandle, COORDS_PER_VERTEX, GLES20.GL_FLOAT, false, vertexStride,
+                vertexBuffer);
+        Gl.glUniformMatrix4fv(Gl.glGetUniformLocation(mOutlineProgram, "uMVPMatrix"), 1, false, mvpMatrix, 0);
+        Gl.glUniform4fv(Gl.glGetUniformLocation(mOutlineProgram, "uColor"), 1, OUTLINE_COLOR, 0);
+        Gl.glLineWidth(OUTLINE_WIDTH);
+        Gl.glDrawElements(GLES20.GL_LINES, mSilhouettes.getLineCount() * 2, GLES20.GL_UNSIGNED_SHORT,
+                mOutlineBuffer);
+        Gl.glDisableVertexAttribArray(positionHandle);
+
+        if (++mOutlineFrames % 120 == 0) {
+            Log.d(TAG, "outline: " + mSilhouettes.getLineCount() + " of " + mSilhouettes.getEdgeCount()
+                    + " edges in " + mSilhouettes.getLastExtractMicros() + " us, " + mSilhouettes.getReusedCount()
+                    + " frames reused, " + mSilhouettes.getExtractedCount() + " extracted");
+        }
+    }
+
+    // Lists the edges of the faces drawn now, a level shares the vertices of the mesh
+    private void listSilhouettes() {
+        Mesh mesh = mMesh;
+        if (mDetailIndexCount > 0) {
+            int[] indices = new int[mDetailIndexCount];
+            for (int i = 0; i < mDetailIndexCount; i++) {
+                indices[i] = mDetailBuffer.get(i) & 0xffff;
+            }
+            mesh = new Mesh(mMesh.coords, indices);
+        }
+        mSilhouettes = new SilhouetteEdges(mesh, WorkerPool.getDefault());
+        mSilhouetteDetail = mDetailIndexCount;
+        if (mSilhouettes.getEdgeCount() > mOutlineCapacity) {
+            mArena.release(mOutlineSlice);
+            mOutlineCapacity = mSilhouettes.getEdgeCount();
+            mOutlineSlice = mArena.allocate(mOutlineCapacity * 2 * 2);
+            mOutlineBuffer = mOutlineSlice.asShortBuffer();
+        }
+        Log.d(TAG, mSilhouettes.getEdgeCount() + " edges of " + mesh.getFaceCount() + " faces listed in "
+                + mSilhouettes.getBuildMs() + " ms");
     }
 }
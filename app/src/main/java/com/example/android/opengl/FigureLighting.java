@@ -0,0 +1,114 @@
+package com.example.android.opengl;
+
+import android.opengl.Matrix;
+
+/**
+ * The lighting of a {@link Figure}, shared by the classes that draw the
+ * same figure in other ways, so that switching between them does not
+ * change how it looks.
+ *
+ * {@link #SHADER_CODE} declares the light uniforms and a function
+ * lightAt(position, normal) that adds up the lights at a vertex of the
+ * model; the shader multiplies the color of the vertex by it. The lights
+ * are in the eye space of the camera, the one {@link ClusteredLights}
+ * slices, and every copy is lit through its own model-view matrix.
+ * {@link #bind} uploads the lights of the clusters around a sphere of the
+ * model, or the default light.
+ */
+public class FigureLighting {
+
+    static final String SHADER_CODE =
+            "uniform mat4 uMVMatrix;       \n"		// A constant representing the combined model/view matrix.
+            + "uniform vec4 uLightPos[" + ClusteredLights.MAX_LIGHTS_PER_DRAW + "];\n"	// Eye space position and range of each light, 0 for no limit.
+            + "uniform vec4 uLightColor[" + ClusteredLights.MAX_LIGHTS_PER_DRAW + "];\n"	// Color of each light.
+            + "uniform int uLightCount;      \n"		// Lights used by this draw.
+
+            + "vec3 lightAt(vec4 position, vec3 normal) \n"
+            + "{                              \n"
+            // Transform the vertex into eye space.
+            + "   vec3 modelViewVertex = vec3(uMVMatrix * position);               \n"
+            // Transform the normal's orientation into eye space.
+            + "   vec3 modelViewNormal = vec3(uMVMatrix * vec4(normalize(normal), 0.0));      \n"
+            + "   vec3 light = vec3(0.0);                                            \n"
+            // Only the lights of the clusters around this draw, the loop needs a constant bound.
+            + "   for (int i = 0; i < " + ClusteredLights.MAX_LIGHTS_PER_DRAW + "; i++) {\n"
+            + "      if (i >= uLightCount) break;                                    \n"
+            // Will be used for attenuation.
+            + "      float distance = length(uLightPos[i].xyz - modelViewVertex);    \n"
+            // Get a lighting direction vector from the light to the vertex.
+            + "      vec3 lightVector = normalize(uLightPos[i].xyz - modelViewVertex);\n"
+            // Calculate the dot product of the light vector and vertex normal. If the normal and light vector are
+            // pointing in the same direction then it will get max illumination.
+            + "      float diffuse = max(dot(modelViewNormal, lightVector), 0.1);    \n"
+            // Attenuate the light based on distance, and fade it out at its range.
+            + "      diffuse = diffuse * (1.0 / (1.0 + (0.25 * distance * distance)));\n"
+            + "      float range = uLightPos[i].w;                                   \n"
+            + "      if (range > 0.0) diffuse *= clamp(1.0 - distance * distance / (range * range), 0.0, 1.0);\n"
+            + "      light += uLightColor[i].rgb * diffuse;                          \n"
+            + "   }                                                                  \n"
+            + "   return light;                                                      \n"
+            + "}                                                                     \n";
+
+    // the single light used when no clustered lights are set
+    static final float[] DEFAULT_LIGHT_POS = {1.0f, 0.5f, 0.7f, 0.0f};
+    static final float[] DEFAULT_LIGHT_COLOR = {1.0f, 1.0f, 1.0f, 1.0f};
+
+    private final int mMVMatrixHandle;
+    private final int mLightPosHandle;
+    private final int mLightColorHandle;
+    private final int mLightCountHandle;
+    private final float[] mMVMatrix = new float[16];
+    private final float[] mSphereCenter = new float[4];
+    private final float[] mViewCenter = new float[4];
+    private final float[] mDrawLightPos = new float[ClusteredLights.MAX_LIGHTS_PER_DRAW * 4];
+    private final float[] mDrawLightColor = new float[ClusteredLights.MAX_LIGHTS_PER_DRAW * 4];
+
+    /**
+     * Finds the uniforms of a linked program whose vertex shader includes
+     * {@link #SHADER_CODE}.
+     */
+    public FigureLighting(int program) {
+        mMVMatrixHandle = Gl.glGetUniformLocation(program, "uMVMatrix");
+        mLightPosHandle = Gl.glGetUniformLocation(program, "uLightPos");
+        mLightColorHandle = Gl.glGetUniformLocation(program, "uLightColor");
+        mLightCountHandle = Gl.glGetUniformLocation(program, "uLightCount");
+    }
+
+    /**
+     * Uploads the model-view matrix of a copy. Call with the program in
+     * use, before {@link #bind}.
+     *
+     * @param mvMatrix - Takes the model to the eye space of the lights, copied.
+     */
+    public void begin(float[] mvMatrix) {
+        System.arraycopy(mvMatrix, 0, mMVMatrix, 0, 16);
+        Gl.glUniformMatrix4fv(mMVMatrixHandle, 1, false, mMVMatrix, 0);
+    }
+
+    /**
+     * Uploads the lights of the clusters touched by a sphere of the model.
+     *
+     * @param lights - Lights of the frame, null for the default light.
+     * @param spheres - Holds the center and radius of the sphere, in model space.
+     * @param at - Index of the center in spheres.
+     */
+    public void bind(ClusteredLights lights, float[] spheres, int at) {
+        if (lights == null) {
+            Gl.glUniform4fv(mLightPosHandle, 1, DEFAULT_LIGHT_POS, 0);
+            Gl.glUniform4fv(mLightColorHandle, 1, DEFAULT_LIGHT_COLOR, 0);
+            Gl.glUniform1i(mLightCountHandle, 1);
+            return;
+        }
+        // same eye space as the shader lighting
+        System.arraycopy(spheres, at, mSphereCenter, 0, 3);
+        mSphereCenter[3] = 1.0f;
+        Matrix.multiplyMV(mViewCenter, 0, mMVMatrix, 0, mSphereCenter, 0);
+        int count = lights.gather(mViewCenter[0], mViewCenter[1], mViewCenter[2], spheres[at + 3],
+                mDrawLightPos, mDrawLightColor);
+        if (count > 0) {
+            Gl.glUniform4fv(mLightPosHandle, count, mDrawLightPos, 0);
+            Gl.glUniform4fv(mLightColorHandle, count, mDrawLightColor, 0);
+        }
+        Gl.glUniform1i(mLightCountHandle, count);
+    }
+}
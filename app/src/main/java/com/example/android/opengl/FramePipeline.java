@@ -0,0 +1,222 @@
+package com.example.android.opengl;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Prepares the command list of frame N + 1 on its own thread while the GL
+ * thread draws frame N.
+ *
+ * Each {@link #acquire} on the GL thread takes the newest finished list and
+ * wakes the preparation thread, which fills the next list with the
+ * {@link Builder} and publishes it through a {@link TripleBuffer}. Lists are
+ * reused, so a frame allocates nothing. When a published list was built from
+ * newer input than the last drawn one, the {@link Listener} is told, so a
+ * view that only renders on demand can ask for one more frame.
+ */
+public class FramePipeline {
+    /**
+     * Fills the list of a frame. Runs on the preparation thread.
+     */
+    public interface Builder {
+        void build(RenderCommandList list, long frame);
+
+        /**
+         * Returns a number that changes every time the input of the frames
+         * changes, read before building.
+         */
+        long getInputVersion();
+    }
+
+    /**
+     * Told from the preparation thread when a list with new input is ready.
+     */
+    public interface Listener {
+        void onFrameReady();
+    }
+
+    private final Builder mBuilder;
+    private final TripleBuffer<RenderCommandList> mLists;
+    private final AtomicBoolean mRequested = new AtomicBoolean();
+    private volatile Listener mListener;
+    private Thread mThread;
+    private volatile boolean mRunning;
+    // set while the preparation thread may be building
+    private volatile boolean mBuilding;
+    private long mNextFrame;
+
+    // version of the last list taken by the GL thread, read by the preparation thread
+    private volatile long mAcquiredVersion = -1;
+    private long mLastPublishedVersion;
+
+    // measures of the last drawn frame, GL thread only
+    private long mExecuteStartNanos;
+    private long mLastExecuteStartNanos;
+    private long mLastExecuteEndNanos;
+    private long mLatencyNanos;
+    private long mBuildNanos;
+    private float mOverlap;
+    private long mLastFrame = -1;
+    private int mSkippedFrames;
+
+    public FramePipeline(Builder builder, RenderCommandList first, RenderCommandList second,
+                         RenderCommandList third) {
+        mBuilder = builder;
+        mLists = new TripleBuffer<RenderCommandList>(first, second, third);
+    }
+
+    public void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Builds the first list on the calling thread, so the first frame has
+     * something to draw, and starts the preparation thread.
+     */
+    public synchronized void start() {
+        if (mThread != null) {
+            return;
+        }
+        buildNext();
+        mRunning = true;
+        mThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                prepareLoop();
+            }
+        }, "FramePipeline");
+        mThread.setDaemon(true);
+        mThread.start();
+    }
+
+    /**
+     * Stops the preparation thread and waits for it to finish the list it
+     * is building, so the objects the builder reads can be replaced. The
+     * lists built so far are dropped; {@link #start} builds a new one
+     * before the next frame.
+     */
+    public synchronized void stop() {
+        mRunning = false;
+        Thread thread = mThread;
+        if (thread == null) {
+            return;
+        }
+        mThread = null;
+        LockSupport.unpark(thread);
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        mLists.discard();
+        mRequested.set(false);
+        mBuilding = false;
+    }
+
+    /**
+     * Takes the newest list and starts preparing the next one. GL thread
+     * only; call {@link #executed} when done drawing it.
+     */
+    public RenderCommandList acquire() {
+        mExecuteStartNanos = System.nanoTime();
+        RenderCommandList list = mLists.acquire();
+        mAcquiredVersion = list.getInputVersion();
+        if (mRequested.compareAndSet(false, true)) {
+            Thread thread = mThread;
+            if (thread != null) {
+                LockSupport.unpark(thread);
+            }
+        }
+        return list;
+    }
+
+    /**
+     * Records the measures of a drawn list. GL thread only.
+     */
+    public void executed(RenderCommandList list) {
+        long end = System.nanoTime();
+        if (list.getFrame() != mLastFrame) {
+            if (mLastFrame >= 0 && list.getFrame() > mLastFrame + 1) {
+                mSkippedFrames += (int) (list.getFrame() - mLastFrame - 1);
+            }
+            mLastFrame = list.getFrame();
+            long start = list.getBuildStartNanos();
+            long buildEnd = list.getBuildEndNanos();
+            mLatencyNanos = end - start;
+            mBuildNanos = buildEnd - start;
+            // part of the build that ran while the previous frame was drawn
+            long overlap = Math.min(buildEnd, mLastExecuteEndNanos) - Math.max(start, mLastExecuteStartNanos);
+            mOverlap = mBuildNanos > 0 ? Math.max(0, overlap) / (float) mBuildNanos : 0;
+        }
+        mLastExecuteStartNanos = mExecuteStartNanos;
+        mLastExecuteEndNanos = end;
+    }
+
+    private void prepareLoop() {
+        while (mRunning) {
+            mBuilding = true;
+            if (!mRequested.getAndSet(false)) {
+                mBuilding = false;
+                LockSupport.park(this);
+                continue;
+            }
+            buildNext();
+
+            // the frame being drawn is older than this one
+            Listener listener = mListener;
+            if (listener != null && mLastPublishedVersion != mAcquiredVersion) {
+                listener.onFrameReady();
+            }
+            mBuilding = false;
+        }
+    }
+
+    /**
+     * Waits until the requested list is published and the listener told,
+     * so a replay sees the same frames on every run. Not for the GL thread
+     * of an app, which never waits for the preparation.
+     */
+    public void waitIdle() {
+        while (mThread != null && (mRequested.get() || mBuilding)) {
+            Thread.yield();
+        }
+    }
+
+    private void buildNext() {
+        RenderCommandList list = mLists.getBack();
+        long version = mBuilder.getInputVersion();
+        list.reset(mNextFrame, version);
+        mBuilder.build(list, mNextFrame);
+        list.finish();
+        mNextFrame++;
+        mLastPublishedVersion = version;
+        mLists.publish();
+    }
+
+    /**
+     * Returns the time from the start of the build of the last drawn list
+     * to the end of its draw, in microseconds.
+     */
+    public float getLatencyMicros() {
+        return mLatencyNanos / 1e3f;
+    }
+
+    public float getBuildMicros() {
+        return mBuildNanos / 1e3f;
+    }
+
+    /**
+     * Returns the fraction of the build of the last drawn list that ran in
+     * parallel with the draw of the frame before.
+     */
+    public float getOverlap() {
+        return mOverlap;
+    }
+
+    /**
+     * Returns the lists built but replaced by newer ones before being drawn.
+     */
+    public int getSkippedFrames() {
+        return mSkippedFrames;
+    }
+}
@@ -0,0 +1,133 @@
+package com.example.android.opengl;
+
+import android.view.MotionEvent;
+
+/**
+ * Turns touch events into rotations of the renderer, picks and sculpt
+ * strokes.
+ *
+ * It holds what {@link MyGLSurfaceView#onTouchEvent} did before, without the
+ * view, so {@link TraceReplayer} can feed a recorded {@link InputTrace}
+ * through the same code.
+ */
+public class GestureInput {
+    /** Nothing to draw. */
+    public static final int NONE = 0;
+    /** The angles changed, the view must render. */
+    public static final int ROTATE = 1;
+    /** A tap, pick at {@link #getTapX}, {@link #getTapY} on the GL thread. */
+    public static final int PICK = 2;
+    /** A long tap, sculpt at {@link #getTapX}, {@link #getTapY} on the GL thread and render. */
+    public static final int SCULPT = 3;
+
+    private static final float TOUCH_SCALE_FACTOR = 180.0f / 320;
+    // A touch that goes up without moving further than this is a tap (pick)
+    private static final float TAP_SLOP = 10.0f;
+    // A tap held longer than this sculpts instead of picking
+    private static final long LONG_PRESS_MS = 500;
+
+    private final MyGLRenderer mRenderer;
+    private int rotate_threshold = 30;
+
+    private float mPreviousX;
+    private float mPreviousY;
+    private float mDownX;
+    private float mDownY;
+    private long mDownTime;
+    private boolean mTapCandidate;
+    private float mTapX;
+    private float mTapY;
+
+    public GestureInput(MyGLRenderer renderer) {
+        mRenderer = renderer;
+    }
+
+    /**
+     * Handles a touch event.
+     *
+     * @param action - A MotionEvent action, or {@link InputTrace#SCALE} while
+     * a scale gesture is in progress.
+     * @param time - Event time in milliseconds.
+     * @param width - Width of the view in pixels.
+     * @return - What the view must do: {@link #NONE}, {@link #ROTATE},
+     * {@link #PICK} or {@link #SCULPT}.
+     */
+    public int onTouch(int action, float x, float y, long time, int width) {
+        if (action == InputTrace.SCALE) {
+            mTapCandidate = false;
+            return NONE;
+        }
+        int result = NONE;
+
+        float x_pos = mRenderer.getXAngle() % 360;
+        if (x_pos < 0)
+            x_pos = 360 + x_pos;
+
+        switch (action) {
+            case MotionEvent.ACTION_DOWN:
+                mDownX = x;
+                mDownY = y;
+                mDownTime = time;
+                mTapCandidate = true;
+                break;
+
+            case MotionEvent.ACTION_UP:
+                if (mTapCandidate) {
+                    mTapX = x;
+                    mTapY = y;
+                    result = time - mDownTime > LONG_PRESS_MS ? SCULPT : PICK;
+                }
+                mTapCandidate = false;
+                break;
+
+            case MotionEvent.ACTION_MOVE:
+                if (Math.abs(x - mDownX) > TAP_SLOP || Math.abs(y - mDownY) > TAP_SLOP) {
+                    mTapCandidate = false;
+                }
+
+                float dx = x - mPreviousX;
+                float dy = y - mPreviousY;
+                //dx = dx * -1;
+                dy = dy * -1;
+
+                // Establecemos un threshold en funcion de la posicion del cubo en el eje x
+                // Si se supera, hacemos que gire en función de si estamos tocando el cubo en
+                // la parte izquierda o derecha de la pantalla
+                if (x_pos > rotate_threshold && x_pos < 360 - rotate_threshold) {
+                    if (x_pos < 180 - rotate_threshold) {
+                        if (x < width / 2)
+                            dy = dy * -1;
+                    } else if (x_pos < 180 + rotate_threshold) {
+                        dy = dy * -1;
+                    } else {
+                        if (x > width / 2)
+                            dy = dy * -1;
+                    }
+                }
+
+                //Establecemos el nuevo angulo de giro en el eje X y en el eje Y
+                mRenderer.setYAngle(
+                        mRenderer.getYAngle() +
+                                //((dx + dy) * TOUCH_SCALE_FACTOR));  // = 180.0f / 320
+                                ((dy) * TOUCH_SCALE_FACTOR));
+
+                mRenderer.setXAngle(
+                        mRenderer.getXAngle() +
+                                //((dx + dy) * TOUCH_SCALE_FACTOR));  // = 180.0f / 320
+                                ((dx) * TOUCH_SCALE_FACTOR));
+                result = ROTATE;
+        }
+
+        mPreviousX = x;
+        mPreviousY = y;
+        return result;
+    }
+
+    public float getTapX() {
+        return mTapX;
+    }
+
+    public float getTapY() {
+        return mTapY;
+    }
+}
@@ -0,0 +1,361 @@
+package com.example.android.opengl;
+
+import android.opengl.GLES20;
+
+import java.nio.Buffer;
+
+/**
+ * The GL calls of the renderer, sent to {@link GLES20} or, when one is set,
+ * to a {@link CountingGl} that only counts them.
+ *
+ * The stand-in lets the renderer run without a GL context, for instance to
+ * replay an input trace with {@link TraceReplayer}, and still tell how much
+ * work each frame sends to the driver.
+ */
+public final class Gl {
+    private static volatile CountingGl sStandIn;
+
+    private Gl() {
+    }
+
+    /**
+     * Sends the calls to a stand-in instead of GL, or to GL again if null.
+     * Set it before creating the renderer.
+     */
+    public static void setStandIn(CountingGl standIn) {
+        sStandIn = standIn;
+    }
+
+    public static CountingGl getStandIn() {
+        return sStandIn;
+    }
+
+    public static void glClearColor(float red, float green, float blue, float alpha) {
+        CountingGl gl = sStandIn;
+        if (gl != null) {
+            gl.state();
+        } else {
+            GLES20.glClearColor(red, green, blue, alpha);
+        }
+    }
+
+    public static void glClearDepthf(float depth) {
+        CountingGl gl = sStandIn;
+        if (gl != null) {
+            gl.state();
+        } else {
+            GLES20.glClearDepthf(depth);
+        }
+    }
+
+    public static void glClear(int mask) {
+        CountingGl gl = sStandIn;
+        if (gl != null) {
+            gl.clear();
+        } else {
+            GLES20.glClear(mask);
+        }
+    }
+
+    public static void glViewport(int x, int y, int width, int height) {
+        CountingGl gl = sStandIn;
+        if (gl != null) {
+            gl.state();
+        } else {
+            GLES20.glViewport(x, y, width, height);
+        }
+    }
+
+    public static void glEnable(int cap) {
+        CountingGl gl = sStandIn;
+        if (gl != null) {
+            gl.state();
+        } else {
+            GLES20.glEnable(cap);
+        }
+    }
+
+    public static void glDisable(int cap) {
+        CountingGl gl = sStandIn;
+        if (gl != null) {
+            gl.state();
+        } else {
+            GLES20.glDisable(cap);
+        }
+    }
+
+    public static void glBlendFunc(int sfactor, int dfactor) {
+        CountingGl gl = sStandIn;
+        if (gl != null) {
+            gl.state();
+        } else {
+            GLES20.glBlendFunc(sfactor, dfactor);
+        }
+    }
+
+    public static void glDepthMask(boolean flag) {
+        CountingGl gl = sStandIn;
+        if (gl != null) {
+            gl.state();
+        } else {
+            GLES20.glDepthMask(flag);
+        }
+    }
+
+    public static void glDepthFunc(int func) {
+        CountingGl gl = sStandIn;
+        if (gl != null) {
+            gl.state();
+        } else {
+            GLES20.glDepthFunc(func);
+        }
+    }
+
+    public static void glLineWidth(float width) {
+        CountingGl gl = sStandIn;
+        if (gl != null) {
+            gl.state();
+        } else {
+            GLES20.glLineWidth(width);
+        }
+    }
+
+    public static void glPolygonOffset(float factor, float units) {
+        CountingGl gl = sStandIn;
+        if (gl != null) {
+            gl.state();
+        } else {
+            GLES20.glPolygonOffset(factor, units);
+        }
+    }
+
+    public static void glFinish() {
+        CountingGl gl = sStandIn;
+        if (gl != null) {
+            gl.state();
+        } else {
+            GLES20.glFinish();
+        }
+    }
+
+    public static int glCreateShader(int type) {
+        CountingGl gl = sStandIn;
+        return gl != null ? gl.create() : GLES20.glCreateShader(type);
+    }
+
+    public static void glShaderSource(int shader, String string) {
+        CountingGl gl = sStandIn;
+        if (gl != null) {
+            gl.state();
+        } else {
+            GLES20.glShaderSource(shader, string);
+        }
+    }
+
+    public static void glCompileShader(int shader) {
+        CountingGl gl = sStandIn;
+        if (gl != null) {
+            gl.state();
+        } else {
+            GLES20.glCompileShader(shader);
+        }
+    }
+
+    public static int glCreateProgram() {
+        CountingGl gl = sStandIn;
+        return gl != null ? gl.create() : GLES20.glCreateProgram();
+    }
+
+    public static void glAttachShader(int program, int shader) {
+        CountingGl gl = sStandIn;
+        if (gl != null) {
+            gl.state();
+        } else {
+            GLES20.glAttachShader(program, shader);
+        }
+    }
+
+    public static void glLinkProgram(int program) {
+        CountingGl gl = sStandIn;
+        if (gl != null) {
+            gl.state();
+        } else {
+            GLES20.glLinkProgram(program);
+        }
+    }
+
+    public static void glUseProgram(int program) {
+        CountingGl gl = sStandIn;
+        if (gl != null) {
+            gl.state();
+        } else {
+            GLES20.glUseProgram(program);
+        }
+    }
+
+    public static int glGetAttribLocation(int program, String name) {
+        CountingGl gl = sStandIn;
+        return gl != null ? gl.lookup() : GLES20.glGetAttribLocation(program, name);
+    }
+
+    public static int glGetUniformLocation(int program, String name) {
+        CountingGl gl = sStandIn;
+        return gl != null ? gl.lookup() : GLES20.glGetUniformLocation(program, name);
+    }
+
+    public static void glEnableVertexAttribArray(int index) {
+        CountingGl gl = sStandIn;
+        if (gl != null) {
+            gl.state();
+        } else {
+            GLES20.glEnableVertexAttribArray(index);
+        }
+    }
+
+    public static void glDisableVertexAttribArray(int index) {
+        CountingGl gl = sStandIn;
+        if (gl != null) {
+            gl.state();
+        } else {
+            GLES20.glDisableVertexAttribArray(index);
+        }
+    }
+
+    public static void glVertexAttribPointer(int index, int size, int type, boolean normalized, int stride,
+                                             Buffer ptr) {
+        CountingGl gl = sStandIn;
+        if (gl != null) {
+            gl.attribute();
+        } else {
+            GLES20.glVertexAttribPointer(index, size, type, normalized, stride, ptr);
+        }
+    }
+
+    public static void glUniform1i(int location, int x) {
+        CountingGl gl = sStandIn;
+        if (gl != null) {
+            gl.uniform(1);
+        } else {
+            GLES20.glUniform1i(location, x);
+        }
+    }
+
+    public static void glUniform3fv(int location, int count, float[] v, int offset) {
+        CountingGl gl = sStandIn;
+        if (gl != null) {
+            gl.uniform(count * 3);
+        } else {
+            GLES20.glUniform3fv(location, count, v, offset);
+        }
+    }
+
+    public static void glUniform4fv(int location, int count, float[] v, int offset) {
+        CountingGl gl = sStandIn;
+        if (gl != null) {
+            gl.uniform(count * 4);
+        } else {
+            GLES20.glUniform4fv(location, count, v, offset);
+        }
+    }
+
+    public static void glUniformMatrix4fv(int location, int count, boolean transpose, float[] value, int offset) {
+        CountingGl gl = sStandIn;
+        if (gl != null) {
+            gl.uniform(count * 16);
+        } else {
+            GLES20.glUniformMatrix4fv(location, count, transpose, value, offset);
+        }
+    }
+
+    public static void glGenTextures(int n, int[] textures, int offset) {
+        CountingGl gl = sStandIn;
+        if (gl != null) {
+            for (int i = 0; i < n; i++) {
+                textures[offset + i] = gl.create();
+            }
+        } else {
+            GLES20.glGenTextures(n, textures, offset);
+        }
+    }
+
+    public static void glDeleteTextures(int n, int[] textures, int offset) {
+        CountingGl gl = sStandIn;
+        if (gl != null) {
+            gl.state();
+        } else {
+            GLES20.glDeleteTextures(n, textures, offset);
+        }
+    }
+
+    public static void glActiveTexture(int texture) {
+        CountingGl gl = sStandIn;
+        if (gl != null) {
+            gl.state();
+        } else {
+            GLES20.glActiveTexture(texture);
+        }
+    }
+
+    public static void glBindTexture(int target, int texture) {
+        CountingGl gl = sStandIn;
+        if (gl != null) {
+            gl.state();
+        } else {
+            GLES20.glBindTexture(target, texture);
+        }
+    }
+
+    public static void glTexParameteri(int target, int pname, int param) {
+        CountingGl gl = sStandIn;
+        if (gl != null) {
+            gl.state();
+        } else {
+            GLES20.glTexParameteri(target, pname, param);
+        }
+    }
+
+    public static void glTexImage2D(int target, int level, int internalformat, int width, int height, int border,
+                                    int format, int type, Buffer pixels) {
+        CountingGl gl = sStandIn;
+        if (gl != null) {
+            gl.state();
+        } else {
+            GLES20.glTexImage2D(target, level, internalformat, width, height, border, format, type, pixels);
+        }
+    }
+
+    /**
+     * Returns a GL string; the stand-in has no extensions.
+     */
+    public static String glGetString(int name) {
+        CountingGl gl = sStandIn;
+        if (gl != null) {
+            gl.lookup();
+            return "";
+        }
+        return GLES20.glGetString(name);
+    }
+
+    public static void glDrawElements(int mode, int count, int type, Buffer indices) {
+        CountingGl gl = sStandIn;
+        if (gl != null) {
+            gl.draw(count);
+        } else {
+            GLES20.glDrawElements(mode, count, type, indices);
+        }
+    }
+
+    public static void glGetIntegerv(int pname, int[] params, int offset) {
+        CountingGl gl = sStandIn;
+        if (gl != null) {
+            params[offset] = gl.integer(pname);
+        } else {
+            GLES20.glGetIntegerv(pname, params, offset);
+        }
+    }
+
+    public static int glGetError() {
+        CountingGl gl = sStandIn;
+        return gl != null ? GLES20.GL_NO_ERROR : GLES20.glGetError();
+    }
+}
@@ -0,0 +1,274 @@
+package com.example.android.opengl;
+
+/**
+ * Half-edge connectivity of a triangle mesh, in parallel int arrays.
+ *
+ * Half-edge h = 3 * f + k runs along face f from its corner k to corner
+ * k + 1. For every half-edge the arrays give the vertex it points to, the
+ * next half-edge of its face, its face and its twin on the neighbour face,
+ * or -1 on a boundary. Every vertex keeps one outgoing half-edge, the
+ * boundary one when there is one, so the faces around a vertex can be
+ * walked from it in one direction.
+ *
+ * Twins are matched with an open addressing hash of the directed edges, so
+ * the build is linear. A directed edge that appears twice means more than
+ * two faces on the edge or faces with opposite orientation; it is counted as
+ * non-manifold and left without twin.
+ */
+public class HalfEdgeMesh {
+    private final int mVertexCount;
+    private final int[] mVertex;
+    private final int[] mNext;
+    private final int[] mFace;
+    private final int[] mTwin;
+    private final int[] mVertexHalfEdge;
+
+    private int mNonManifoldEdges;
+    private int mNonManifoldVertices;
+    private int mBoundaryHalfEdges;
+    private final long mBuildTimeNanos;
+
+    public HalfEdgeMesh(Mesh mesh) {
+        this(mesh.getVertexCount(), mesh.indices);
+    }
+
+    /**
+     * Builds the connectivity.
+     *
+     * @param vertexCount - Number of vertices.
+     * @param indices - Vertex indices, 3 per triangle.
+     */
+    public HalfEdgeMesh(int vertexCount, int[] indices) {
+        long start = System.nanoTime();
+        int numHalfEdges = indices.length;
+        mVertexCount = vertexCount;
+        mVertex = new int[numHalfEdges];
+        mNext = new int[numHalfEdges];
+        mFace = new int[numHalfEdges];
+        mTwin = new int[numHalfEdges];
+        mVertexHalfEdge = new int[vertexCount];
+        for (int v = 0; v < vertexCount; v++) {
+            mVertexHalfEdge[v] = -1;
+        }
+
+        // table of directed edges, at most half full
+        int capacity = Integer.highestOneBit(Math.max(2, numHalfEdges) * 2 - 1) * 2;
+        long[] keys = new long[capacity];
+        int[] values = new int[capacity];
+        for (int i = 0; i < capacity; i++) {
+            values[i] = -1;
+        }
+        int mask = capacity - 1;
+
+        for (int h = 0; h < numHalfEdges; h++) {
+            int f = h / 3;
+            int from = indices[h];
+            mNext[h] = f * 3 + (h - f * 3 + 1) % 3;
+            mVertex[h] = indices[mNext[h]];
+            mFace[h] = f;
+            mTwin[h] = -1;
+            if (mVertexHalfEdge[from] < 0) {
+                mVertexHalfEdge[from] = h;
+            }
+
+            long key = edgeKey(from, mVertex[h]);
+            int slot = hash(key) & mask;
+            while (values[slot] >= 0 && keys[slot] != key) {
+                slot = (slot + 1) & mask;
+            }
+            if (values[slot] >= 0) {
+                // already there, this copy gets no twin
+                mNonManifoldEdges++;
+                mTwin[h] = -2;
+            } else {
+                keys[slot] = key;
+                values[slot] = h;
+            }
+        }
+
+        for (int h = 0; h < numHalfEdges; h++) {
+            if (mTwin[h] == -2) {
+                mTwin[h] = -1;
+            } else {
+                mTwin[h] = find(keys, values, mask, edgeKey(mVertex[h], indices[h]));
+            }
+            if (mTwin[h] < 0) {
+                mBoundaryHalfEdges++;
+                // start the walk around the vertex at its boundary
+                mVertexHalfEdge[indices[h]] = h;
+            }
+        }
+
+        // a vertex with faces not reached from its start half-edge has
+        // several fans: it is non-manifold
+        int[] faces = new int[vertexCount];
+        for (int index : indices) {
+            faces[index]++;
+        }
+        for (int v = 0; v < vertexCount; v++) {
+            if (mVertexHalfEdge[v] >= 0 && countFan(v) != faces[v]) {
+                mNonManifoldVertices++;
+            }
+        }
+        mBuildTimeNanos = System.nanoTime() - start;
+    }
+
+    private static int find(long[] keys, int[] values, int mask, long key) {
+        int slot = hash(key) & mask;
+        while (values[slot] >= 0) {
+            if (keys[slot] == key) {
+                return values[slot];
+            }
+            slot = (slot + 1) & mask;
+        }
+        return -1;
+    }
+
+    private static long edgeKey(int from, int to) {
+        return ((long) from << 32) | (to & 0xFFFFFFFFL);
+    }
+
+    private static int hash(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    private int countFan(int v) {
+        int start = mVertexHalfEdge[v];
+        int h = start;
+        int count = 0;
+        do {
+            count++;
+            h = rotate(h);
+        } while (h >= 0 && h != start && count <= mVertex.length);
+        return count;
+    }
+
+    public int getVertexCount() {
+        return mVertexCount;
+    }
+
+    public int getHalfEdgeCount() {
+        return mVertex.length;
+    }
+
+    /**
+     * Returns the vertex a half-edge points to.
+     */
+    public int vertex(int h) {
+        return mVertex[h];
+    }
+
+    /**
+     * Returns the vertex a half-edge starts from.
+     */
+    public int from(int h) {
+        return mVertex[prev(h)];
+    }
+
+    public int next(int h) {
+        return mNext[h];
+    }
+
+    public int prev(int h) {
+        return mNext[mNext[h]];
+    }
+
+    public int face(int h) {
+        return mFace[h];
+    }
+
+    /**
+     * Returns the opposite half-edge, or -1 on a boundary.
+     */
+    public int twin(int h) {
+        return mTwin[h];
+    }
+
+    /**
+     * Returns an outgoing half-edge of a vertex, the boundary one if the
+     * vertex is on a boundary, or -1 for an unused vertex.
+     */
+    public int halfEdge(int v) {
+        return mVertexHalfEdge[v];
+    }
+
+    /**
+     * Returns the next outgoing half-edge around the vertex h starts from,
+     * or -1 at a boundary.
+     */
+    public int rotate(int h) {
+        return mTwin[prev(h)];
+    }
+
+    public boolean isBoundary(int h) {
+        return mTwin[h] < 0;
+    }
+
+    public boolean isBoundaryVertex(int v) {
+        int h = mVertexHalfEdge[v];
+        return h >= 0 && mTwin[h] < 0;
+    }
+
+    /**
+     * Collects the neighbours of a vertex in order around it.
+     *
+     * @param out - Receives the vertices.
+     * @return - The number of neighbours.
+     */
+    public int oneRing(int v, int[] out) {
+        int start = mVertexHalfEdge[v];
+        if (start < 0) {
+            return 0;
+        }
+        int count = 0;
+        int h = start;
+        while (true) {
+            out[count++] = mVertex[h];
+            int r = rotate(h);
+            if (r < 0) {
+                // open fan, the last neighbour is across the last face
+                out[count++] = mVertex[mNext[h]];
+                return count;
+            }
+            if (r == start || count >= out.length - 1) {
+                return count;
+            }
+            h = r;
+        }
+    }
+
+    /**
+     * Returns the number of edges of a vertex.
+     */
+    public int valence(int v) {
+        int start = mVertexHalfEdge[v];
+        if (start < 0) {
+            return 0;
+        }
+        int count = countFan(v);
+        return mTwin[start] < 0 ? count + 1 : count;
+    }
+
+    /**
+     * Returns the directed edges found more than once.
+     */
+    public int getNonManifoldEdgeCount() {
+        return mNonManifoldEdges;
+    }
+
+    /**
+     * Returns the vertices whose faces do not form a single fan.
+     */
+    public int getNonManifoldVertexCount() {
+        return mNonManifoldVertices;
+    }
+
+    public int getBoundaryEdgeCount() {
+        return mBoundaryHalfEdges;
+    }
+
+    public float getBuildTimeMs() {
+        return mBuildTimeNanos / 1e6f;
+    }
+}
@@ -0,0 +1,154 @@
+package com.example.android.opengl;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Pictures of a model seen from a set of directions, baked offline by
+ * {@link ImpostorBaker} and drawn by {@link ImpostorFigure} instead of the
+ * model when it covers only a few pixels.
+ *
+ * Every view is a square sprite of the bounding sphere, seen along the view
+ * direction, with color and alpha, and the depth of each pixel behind the
+ * front of the sphere (0 at the front, 255 at the back and where empty).
+ * The sprites are laid out in rows of {@link #columns} in two atlases, RGBA
+ * and one byte deep, with row 0 at the bottom as GL textures have it. The
+ * file is little endian, the data after the header deflated:
+ *
+ * <pre>
+ * int magic ("IMP1"), int viewCount, int spriteSize, int columns
+ * float center[3], float radius
+ * per view: float direction[3], right[3], up[3]   (model space, unit)
+ * byte color[width * height * 4], byte depth[width * height]</pre>
+ */
+public class ImpostorAtlas {
+    static final int MAGIC = 0x31504D49;
+    private static final int HEADER_SIZE = 32;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    public final int viewCount;
+    public final int spriteSize;
+    public final int columns;
+    public final int width;
+    public final int height;
+    final float[] center;
+    final float radius;
+    // per view: direction to the viewer, then the right and up of its sprite
+    final float[] views;
+    final byte[] color;
+    final byte[] depth;
+
+    ImpostorAtlas(int viewCount, int spriteSize, int columns, float[] center, float radius, float[] views) {
+        this.viewCount = viewCount;
+        this.spriteSize = spriteSize;
+        this.columns = columns;
+        this.width = columns * spriteSize;
+        this.height = (viewCount + columns - 1) / columns * spriteSize;
+        this.center = center;
+        this.radius = radius;
+        this.views = views;
+        this.color = new byte[width * height * 4];
+        this.depth = new byte[width * height];
+    }
+
+    /**
+     * Returns the view whose direction is closest to this one.
+     *
+     * @param x, y, z - Direction from the model to the viewer, in model space.
+     */
+    public int nearestView(float x, float y, float z) {
+        int best = 0;
+        float bestDot = Float.NEGATIVE_INFINITY;
+        for (int v = 0; v < viewCount; v++) {
+            float dot = views[v * 9] * x + views[v * 9 + 1] * y + views[v * 9 + 2] * z;
+            if (dot > bestDot) {
+                bestDot = dot;
+                best = v;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Returns the left pixel column of the sprite of a view.
+     */
+    public int getSpriteX(int view) {
+        return view % columns * spriteSize;
+    }
+
+    /**
+     * Returns the bottom pixel row of the sprite of a view.
+     */
+    public int getSpriteY(int view) {
+        return view / columns * spriteSize;
+    }
+
+    public float getRadius() {
+        return radius;
+    }
+
+    /**
+     * Returns the memory taken by the atlas, what {@link ImpostorCache}
+     * counts against its budget.
+     */
+    public int getBytes() {
+        return color.length + depth.length + views.length * 4;
+    }
+
+    public void write(OutputStream out) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(MAGIC).putInt(viewCount).putInt(spriteSize).putInt(columns);
+        header.putFloat(center[0]).putFloat(center[1]).putFloat(center[2]).putFloat(radius);
+        out.write(header.array());
+
+        Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
+        DeflaterOutputStream deflated = new DeflaterOutputStream(out, deflater, BUFFER_SIZE);
+        ByteBuffer floats = ByteBuffer.allocate(views.length * 4).order(ByteOrder.LITTLE_ENDIAN);
+        floats.asFloatBuffer().put(views);
+        deflated.write(floats.array());
+        deflated.write(color);
+        deflated.write(depth);
+        deflated.finish();
+        deflater.end();
+    }
+
+    /**
+     * Reads an atlas.
+     *
+     * @param inputStream - Stream positioned at the header, it is not closed.
+     */
+    public static ImpostorAtlas read(InputStream inputStream) throws IOException {
+        DataInputStream in = new DataInputStream(inputStream);
+        byte[] bytes = new byte[HEADER_SIZE];
+        in.readFully(bytes);
+        ByteBuffer header = ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
+        if (header.getInt() != MAGIC) {
+            throw new IOException("Not an impostor atlas");
+        }
+        int viewCount = header.getInt();
+        int spriteSize = header.getInt();
+        int columns = header.getInt();
+        if (viewCount <= 0 || spriteSize <= 0 || columns <= 0 || (long) viewCount * spriteSize * spriteSize > 1 << 26) {
+            throw new IOException("Bad impostor atlas header");
+        }
+        float[] center = {header.getFloat(), header.getFloat(), header.getFloat()};
+        float radius = header.getFloat();
+
+        DataInputStream inflated = new DataInputStream(new InflaterInputStream(in));
+        byte[] floatBytes = new byte[viewCount * 9 * 4];
+        inflated.readFully(floatBytes);
+        float[] views = new float[viewCount * 9];
+        ByteBuffer.wrap(floatBytes).order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer().get(views);
+        ImpostorAtlas atlas = new ImpostorAtlas(viewCount, spriteSize, columns, center, radius, views);
+        inflated.readFully(atlas.color);
+        inflated.readFully(atlas.depth);
+        return atlas;
+    }
+}
@@ -0,0 +1,263 @@
+package com.example.android.opengl;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * Renders a model on the CPU into an {@link ImpostorAtlas}. It also runs on
+ * a desktop JVM, to bake the atlases offline:
+ *
+ * <pre>
+ * java -cp &lt;classes&gt; com.example.android.opengl.ImpostorBaker in.(off|ply|obj|msh|mshz) out.imp [views] [sprite_size]</pre>
+ *
+ * If in.ao is next to the input, the sprites are darkened by that ambient
+ * occlusion as the figure is.
+ *
+ * The views are spread evenly over the sphere (a Fibonacci lattice). Each
+ * one is an orthographic picture of the bounding sphere, rasterized with a
+ * depth buffer at twice the sprite size and averaged down, so the edges get
+ * partial alpha. The light comes from where the main light of the figure
+ * is, fixed to the camera, so a sprite looks like the figure seen from its
+ * direction.
+ */
+public class ImpostorBaker {
+    static final int DEFAULT_VIEWS = 32;
+    static final int DEFAULT_SPRITE_SIZE = 64;
+    private static final int COLUMNS = 8;
+    private static final int SUPERSAMPLE = 2;
+    // the main light of Figure, in eye space: right, up, towards the viewer
+    private static final float[] LIGHT = {1.0f, 0.5f, 0.7f};
+
+    private final Mesh mMesh;
+    private final float[] mNormals;
+    private final float[] mOcclusion;
+    private final int mSize;
+    // sample buffers of one view, SUPERSAMPLE times the sprite size
+    private final float[] mDepth;
+    private final float[] mShade;
+    // the vertices projected on the current view: x, y in samples, depth 0..1
+    private final float[] mProjected;
+
+    private ImpostorBaker(Mesh mesh, float[] occlusion, int spriteSize) {
+        mMesh = mesh;
+        mNormals = mesh.getNormals();
+        mOcclusion = occlusion;
+        mSize = spriteSize * SUPERSAMPLE;
+        mDepth = new float[mSize * mSize];
+        mShade = new float[mSize * mSize];
+        mProjected = new float[mesh.getVertexCount() * 3];
+    }
+
+    /**
+     * Bakes the atlas of a mesh.
+     *
+     * @param occlusion - Ambient occlusion per vertex, 1 unoccluded, or null.
+     */
+    public static ImpostorAtlas bake(Mesh mesh, float[] occlusion, int viewCount, int spriteSize) {
+        float[] min = new float[3];
+        float[] max = new float[3];
+        mesh.getBounds(min, max);
+        float[] center = new float[3];
+        for (int k = 0; k < 3; k++) {
+            center[k] = (min[k] + max[k]) * 0.5f;
+        }
+        float radius = 0;
+        for (int i = 0; i < mesh.coords.length; i += 3) {
+            float dx = mesh.coords[i] - center[0];
+            float dy = mesh.coords[i + 1] - center[1];
+            float dz = mesh.coords[i + 2] - center[2];
+            radius = Math.max(radius, dx * dx + dy * dy + dz * dz);
+        }
+        radius = Math.max((float) Math.sqrt(radius), 1e-6f);
+
+        ImpostorAtlas atlas = new ImpostorAtlas(viewCount, spriteSize, Math.min(COLUMNS, viewCount), center,
+                radius, directions(viewCount));
+        ImpostorBaker baker = new ImpostorBaker(mesh, occlusion, spriteSize);
+        for (int v = 0; v < viewCount; v++) {
+            baker.render(atlas, v);
+            baker.resolve(atlas, v);
+        }
+        return atlas;
+    }
+
+    // Fibonacci lattice: direction, right and up of every view
+    static float[] directions(int count) {
+        float[] views = new float[count * 9];
+        double golden = Math.PI * (3 - Math.sqrt(5));
+        for (int v = 0; v < count; v++) {
+            double y = 1 - 2 * (v + 0.5) / count;
+            double r = Math.sqrt(1 - y * y);
+            float dx = (float) (r * Math.cos(v * golden));
+            float dy = (float) y;
+            float dz = (float) (r * Math.sin(v * golden));
+            // right = world up x direction, or z up near the poles
+            float ux = 0, uy = 1, uz = 0;
+            if (Math.abs(dy) > 0.99f) {
+                uy = 0;
+                uz = 1;
+            }
+            float rx = uy * dz - uz * dy;
+            float ry = uz * dx - ux * dz;
+            float rz = ux * dy - uy * dx;
+            float length = (float) Math.sqrt(rx * rx + ry * ry + rz * rz);
+            rx /= length;
+            ry /= length;
+            rz /= length;
+            int at = v * 9;
+            views[at] = dx;
+            views[at + 1] = dy;
+            views[at + 2] = dz;
+            views[at + 3] = rx;
+            views[at + 4] = ry;
+            views[at + 5] = rz;
+            // up = direction x right
+            views[at + 6] = dy * rz - dz * ry;
+            views[at + 7] = dz * rx - dx * rz;
+            views[at + 8] = dx * ry - dy * rx;
+        }
+        return views;
+    }
+
+    // Rasterizes the mesh seen from a view into the sample buffers
+    private void render(ImpostorAtlas atlas, int view) {
+        float[] v = atlas.views;
+        int at = view * 9;
+        float scale = mSize * 0.5f / atlas.radius;
+        float[] coords = mMesh.coords;
+        for (int i = 0; i < coords.length; i += 3) {
+            float x = coords[i] - atlas.center[0];
+            float y = coords[i + 1] - atlas.center[1];
+            float z = coords[i + 2] - atlas.center[2];
+            mProjected[i] = (x * v[at + 3] + y * v[at + 4] + z * v[at + 5]) * scale + mSize * 0.5f;
+            mProjected[i + 1] = (x * v[at + 6] + y * v[at + 7] + z * v[at + 8]) * scale + mSize * 0.5f;
+            // 0 at the front of the sphere, 1 at its back
+            mProjected[i + 2] = 0.5f - (x * v[at] + y * v[at + 1] + z * v[at + 2]) / atlas.radius * 0.5f;
+        }
+        // the light of the view in model space
+        float lx = LIGHT[0] * v[at + 3] + LIGHT[1] * v[at + 6] + LIGHT[2] * v[at];
+        float ly = LIGHT[0] * v[at + 4] + LIGHT[1] * v[at + 7] + LIGHT[2] * v[at + 1];
+        float lz = LIGHT[0] * v[at + 5] + LIGHT[1] * v[at + 8] + LIGHT[2] * v[at + 2];
+        float length = (float) Math.sqrt(lx * lx + ly * ly + lz * lz);
+
+        Arrays.fill(mDepth, Float.POSITIVE_INFINITY);
+        int[] indices = mMesh.indices;
+        for (int f = 0; f < indices.length; f += 3) {
+            drawTriangle(indices[f], indices[f + 1], indices[f + 2], lx / length, ly / length, lz / length);
+        }
+    }
+
+    private void drawTriangle(int a, int b, int c, float lx, float ly, float lz) {
+        float[] p = mProjected;
+        float ax = p[a * 3], ay = p[a * 3 + 1];
+        float bx = p[b * 3], by = p[b * 3 + 1];
+        float cx = p[c * 3], cy = p[c * 3 + 1];
+        float area = (bx - ax) * (cy - ay) - (by - ay) * (cx - ax);
+        if (area == 0) {
+            return;
+        }
+        float sa = shade(a, lx, ly, lz);
+        float sb = shade(b, lx, ly, lz);
+        float sc = shade(c, lx, ly, lz);
+        int x0 = Math.max(0, (int) Math.floor(Math.min(ax, Math.min(bx, cx))));
+        int x1 = Math.min(mSize - 1, (int) Math.ceil(Math.max(ax, Math.max(bx, cx))));
+        int y0 = Math.max(0, (int) Math.floor(Math.min(ay, Math.min(by, cy))));
+        int y1 = Math.min(mSize - 1, (int) Math.ceil(Math.max(ay, Math.max(by, cy))));
+        // both windings: the pictures have no back face culling
+        for (int y = y0; y <= y1; y++) {
+            float py = y + 0.5f;
+            for (int x = x0; x <= x1; x++) {
+                float px = x + 0.5f;
+                float wa = ((bx - px) * (cy - py) - (by - py) * (cx - px)) / area;
+                float wb = ((cx - px) * (ay - py) - (cy - py) * (ax - px)) / area;
+                float wc = 1 - wa - wb;
+                if (wa < 0 || wb < 0 || wc < 0) {
+                    continue;
+                }
+                float depth = wa * p[a * 3 + 2] + wb * p[b * 3 + 2] + wc * p[c * 3 + 2];
+                int sample = y * mSize + x;
+                if (depth < mDepth[sample]) {
+                    mDepth[sample] = depth;
+                    mShade[sample] = wa * sa + wb * sb + wc * sc;
+                }
+            }
+        }
+    }
+
+    // Diffuse light with a floor, as the figure shader, times the occlusion
+    private float shade(int vertex, float lx, float ly, float lz) {
+        float diffuse = mNormals[vertex * 3] * lx + mNormals[vertex * 3 + 1] * ly + mNormals[vertex * 3 + 2] * lz;
+        float light = Math.max(diffuse, 0.1f);
+        return mOcclusion != null ? light * mOcclusion[vertex] : light;
+    }
+
+    // Averages the samples down into the sprite of the view
+    private void resolve(ImpostorAtlas atlas, int view) {
+        int size = atlas.spriteSize;
+        int left = atlas.getSpriteX(view);
+        int bottom = atlas.getSpriteY(view);
+        for (int y = 0; y < size; y++) {
+            for (int x = 0; x < size; x++) {
+                int covered = 0;
+                float shade = 0;
+                float depth = 1;
+                for (int sy = 0; sy < SUPERSAMPLE; sy++) {
+                    for (int sx = 0; sx < SUPERSAMPLE; sx++) {
+                        int sample = (y * SUPERSAMPLE + sy) * mSize + x * SUPERSAMPLE + sx;
+                        if (mDepth[sample] != Float.POSITIVE_INFINITY) {
+                            covered++;
+                            shade += mShade[sample];
+                            depth = Math.min(depth, mDepth[sample]);
+                        }
+                    }
+                }
+                int pixel = (bottom + y) * atlas.width + left + x;
+                int gray = covered > 0 ? Math.round(Math.min(1, shade / covered) * 255) : 0;
+                atlas.color[pixel * 4] = (byte) gray;
+                atlas.color[pixel * 4 + 1] = (byte) gray;
+                atlas.color[pixel * 4 + 2] = (byte) gray;
+                atlas.color[pixel * 4 + 3] = (byte) (covered * 255 / (SUPERSAMPLE * SUPERSAMPLE));
+                atlas.depth[pixel] = (byte) Math.round(Math.max(0, depth) * 255);
+            }
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.err.println("usage: ImpostorBaker in.(off|ply|obj|msh|mshz) out.imp [views] [sprite_size]");
+            System.exit(2);
+        }
+        int views = args.length > 2 ? Integer.parseInt(args[2]) : DEFAULT_VIEWS;
+        int size = args.length > 3 ? Integer.parseInt(args[3]) : DEFAULT_SPRITE_SIZE;
+        long start = System.currentTimeMillis();
+        File input = new File(args[0]);
+        Mesh mesh = MeshLoader.load(input);
+        float[] occlusion = null;
+        String name = input.getPath();
+        File aoFile = new File(name.substring(0, name.lastIndexOf('.')) + ".ao");
+        if (aoFile.isFile()) {
+            InputStream in = new BufferedInputStream(new FileInputStream(aoFile));
+            try {
+                occlusion = AmbientOcclusion.read(mesh, in);
+            } finally {
+                in.close();
+            }
+        }
+        ImpostorAtlas atlas = bake(mesh, occlusion, views, size);
+        OutputStream out = new BufferedOutputStream(new FileOutputStream(args[1]), 64 * 1024);
+        try {
+            atlas.write(out);
+        } finally {
+            out.close();
+        }
+        System.out.println(args[0] + ": " + views + " views of " + size + " px, " + atlas.width + "x"
+                + atlas.height + " atlas, " + (occlusion != null ? "with" : "without") + " occlusion, "
+                + new File(args[1]).length() + " bytes, " + (System.currentTimeMillis() - start) + " ms");
+    }
+}
@@ -0,0 +1,84 @@
+package com.example.android.opengl;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Keeps the {@link ImpostorAtlas} of the models drawn lately, within a
+ * memory budget. An atlas is loaded the first time its model asks for it;
+ * when the atlases go over the budget the least recently used ones are
+ * dropped, never the one just asked for.
+ */
+public class ImpostorCache {
+
+    /**
+     * Loads or bakes the atlas of a model.
+     */
+    public interface Loader {
+        ImpostorAtlas load(String model) throws IOException;
+    }
+
+    private final long mBudgetBytes;
+    private final Loader mLoader;
+    // in access order, the eldest first
+    private final LinkedHashMap<String, ImpostorAtlas> mAtlases =
+            new LinkedHashMap<String, ImpostorAtlas>(16, 0.75f, true);
+    private long mBytes;
+    private int mHits;
+    private int mMisses;
+    private int mEvictions;
+
+    public ImpostorCache(long budgetBytes, Loader loader) {
+        mBudgetBytes = budgetBytes;
+        mLoader = loader;
+    }
+
+    /**
+     * Returns the atlas of a model, loading it if it is not cached.
+     */
+    public synchronized ImpostorAtlas get(String model) throws IOException {
+        ImpostorAtlas atlas = mAtlases.get(model);
+        if (atlas != null) {
+            mHits++;
+            return atlas;
+        }
+        mMisses++;
+        atlas = mLoader.load(model);
+        mAtlases.put(model, atlas);
+        mBytes += atlas.getBytes();
+        Iterator<Map.Entry<String, ImpostorAtlas>> eldest = mAtlases.entrySet().iterator();
+        while (mBytes > mBudgetBytes && mAtlases.size() > 1) {
+            ImpostorAtlas evicted = eldest.next().getValue();
+            eldest.remove();
+            mBytes -= evicted.getBytes();
+            mEvictions++;
+        }
+        return atlas;
+    }
+
+    public synchronized long getBytes() {
+        return mBytes;
+    }
+
+    public long getBudgetBytes() {
+        return mBudgetBytes;
+    }
+
+    public synchronized int getCount() {
+        return mAtlases.size();
+    }
+
+    public synchronized int getHitCount() {
+        return mHits;
+    }
+
+    public synchronized int getMissCount() {
+        return mMisses;
+    }
+
+    public synchronized int getEvictionCount() {
+        return mEvictions;
+    }
+}
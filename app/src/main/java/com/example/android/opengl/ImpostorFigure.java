@@ -0,0 +1,260 @@
+package com.example.android.opengl;
+
+import android.opengl.GLES20;
+import android.util.Log;
+
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.ShortBuffer;
+
+/**
+ * Draws distant copies of a model as sprites of its {@link ImpostorAtlas},
+ * all of a frame in one draw call.
+ *
+ * Each copy is a quad through the center of the model, facing the baked
+ * view nearest to the camera direction. The quad is placed in model space
+ * with the right and up of that view and projected on the CPU with the
+ * matrix of the copy, so the sprite lands where the model would be. When
+ * the driver has GL_EXT_frag_depth the depth atlas moves every pixel back
+ * to the depth of the surface it shows; otherwise the whole sprite is at
+ * the depth of the center.
+ */
+public class ImpostorFigure {
+    private static final String TAG = "ImpostorFigure";
+    public static final int MAX_IMPOSTORS = RenderCommandList.MAX_COMMANDS;
+    // clip x, y, z, w, texture u, v, center depth and depth per radius (NDC)
+    private static final int FLOATS_PER_VERTEX = 8;
+
+    private static final String VERTEX_SHADER_CODE =
+            "attribute vec4 aPosition;\n"
+            + "attribute vec2 aTexCoord;\n"
+            + "attribute vec2 aDepth;\n"
+            + "varying vec2 vTexCoord;\n"
+            + "varying vec2 vDepth;\n"
+            + "void main() {\n"
+            + "   vTexCoord = aTexCoord;\n"
+            + "   vDepth = aDepth;\n"
+            + "   gl_Position = aPosition;\n"
+            + "}\n";
+
+    private static final String FRAGMENT_SHADER_CODE =
+            "#ifdef GL_FRAGMENT_PRECISION_HIGH\n"
+            + "precision highp float;\n"
+            + "#else\n"
+            + "precision mediump float;\n"
+            + "#endif\n"
+            + "uniform sampler2D uColor;\n"
+            + "uniform sampler2D uDepth;\n"
+            + "varying vec2 vTexCoord;\n"
+            + "varying vec2 vDepth;\n"
+            + "void main() {\n"
+            + "   vec4 color = texture2D(uColor, vTexCoord);\n"
+            + "   if (color.a < 0.5) discard;\n"
+            + "   gl_FragColor = vec4(color.rgb, 1.0);\n"
+            + "   DEPTH\n"
+            + "}\n";
+
+    private static final String FRAG_DEPTH =
+            "gl_FragDepthEXT = 0.5 + 0.5 * (vDepth.x + (texture2D(uDepth, vTexCoord).r * 2.0 - 1.0) * vDepth.y);";
+
+    private ImpostorAtlas mAtlas;
+    private final int[] mTextures = new int[2];
+    private final boolean mFragDepth;
+
+    private final int mProgram;
+    private final int mPositionHandle;
+    private final int mTexCoordHandle;
+    private final int mDepthHandle;
+    private final int mColorSamplerHandle;
+    private final int mDepthSamplerHandle;
+
+    private final BufferArena mArena = BufferArena.getDefault();
+    private BufferArena.Slice mVertexSlice, mIndexSlice;
+    private final FloatBuffer mVertexBuffer;
+    private final ShortBuffer mIndexBuffer;
+    private final float[] mVertices = new float[MAX_IMPOSTORS * 4 * FLOATS_PER_VERTEX];
+    private final float[] mClip = new float[4];
+    private int mCount;
+    private int mLastCount;
+
+    /**
+     * Creates the program and the buffers. Must run on the GL thread.
+     *
+     * @param model - Name of the model, for the log.
+     */
+    public ImpostorFigure(String model) {
+        String extensions = Gl.glGetString(GLES20.GL_EXTENSIONS);
+        mFragDepth = extensions != null && extensions.contains("GL_EXT_frag_depth");
+        String fragmentCode = mFragDepth
+                ? "#extension GL_EXT_frag_depth : require\n" + FRAGMENT_SHADER_CODE.replace("DEPTH", FRAG_DEPTH)
+                : FRAGMENT_SHADER_CODE.replace("DEPTH", "");
+
+        int vertexShader = MyGLRenderer.loadShader(GLES20.GL_VERTEX_SHADER, VERTEX_SHADER_CODE);
+        int fragmentShader = MyGLRenderer.loadShader(GLES20.GL_FRAGMENT_SHADER, fragmentCode);
+        mProgram = Gl.glCreateProgram();
+        Gl.glAttachShader(mProgram, vertexShader);
+        Gl.glAttachShader(mProgram, fragmentShader);
+        Gl.glLinkProgram(mProgram);
+        mPositionHandle = Gl.glGetAttribLocation(mProgram, "aPosition");
+        mTexCoordHandle = Gl.glGetAttribLocation(mProgram, "aTexCoord");
+        mDepthHandle = Gl.glGetAttribLocation(mProgram, "aDepth");
+        mColorSamplerHandle = Gl.glGetUniformLocation(mProgram, "uColor");
+        mDepthSamplerHandle = Gl.glGetUniformLocation(mProgram, "uDepth");
+
+        mVertexSlice = mArena.allocate(mVertices.length * 4);
+        mIndexSlice = mArena.allocate(MAX_IMPOSTORS * 6 * 2);
+        mVertexBuffer = mVertexSlice.asFloatBuffer();
+        mIndexBuffer = mIndexSlice.asShortBuffer();
+        for (int i = 0; i < MAX_IMPOSTORS; i++) {
+            int first = i * 4;
+            mIndexBuffer.put((short) first).put((short) (first + 1)).put((short) (first + 2));
+            mIndexBuffer.put((short) first).put((short) (first + 2)).put((short) (first + 3));
+        }
+        mIndexBuffer.position(0);
+        Gl.glGenTextures(2, mTextures, 0);
+        Log.d(TAG, "impostors of " + model + (mFragDepth ? " with" : " without") + " per pixel depth");
+    }
+
+    /**
+     * Starts the impostors of a frame. The atlas is loaded, or baked, by
+     * whoever prepares the frame; here it is only uploaded when it changes.
+     *
+     * @param atlas - Atlas of the frame, null to draw no impostors.
+     */
+    public void begin(ImpostorAtlas atlas) {
+        mCount = 0;
+        if (atlas == null) {
+            mAtlas = null;
+        } else if (atlas != mAtlas) {
+            upload(atlas);
+        }
+    }
+
+    private void upload(ImpostorAtlas atlas) {
+        mAtlas = atlas;
+        // once per atlas, a heap buffer is fine
+        Gl.glBindTexture(GLES20.GL_TEXTURE_2D, mTextures[0]);
+        setTextureParameters();
+        Gl.glTexImage2D(GLES20.GL_TEXTURE_2D, 0, GLES20.GL_RGBA, atlas.width, atlas.height, 0, GLES20.GL_RGBA,
+                GLES20.GL_UNSIGNED_BYTE, ByteBuffer.wrap(atlas.color));
+        Gl.glBindTexture(GLES20.GL_TEXTURE_2D, mTextures[1]);
+        setTextureParameters();
+        Gl.glTexImage2D(GLES20.GL_TEXTURE_2D, 0, GLES20.GL_LUMINANCE, atlas.width, atlas.height, 0,
+                GLES20.GL_LUMINANCE, GLES20.GL_UNSIGNED_BYTE, ByteBuffer.wrap(atlas.depth));
+    }
+
+    private static void setTextureParameters() {
+        Gl.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MIN_FILTER, GLES20.GL_LINEAR);
+        Gl.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MAG_FILTER, GLES20.GL_LINEAR);
+        Gl.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_S, GLES20.GL_CLAMP_TO_EDGE);
+        Gl.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_T, GLES20.GL_CLAMP_TO_EDGE);
+    }
+
+    /**
+     * Adds the impostor of a copy.
+     *
+     * @param mvpMatrix - The matrix the copy would be drawn with.
+     * @return - False if there is no atlas or the frame is full.
+     */
+    public boolean add(float[] mvpMatrix) {
+        ImpostorAtlas atlas = mAtlas;
+        if (atlas == null || mCount == MAX_IMPOSTORS) {
+            return false;
+        }
+        // w grows away from the camera: its gradient is the view axis in model space
+        float dx = -mvpMatrix[3];
+        float dy = -mvpMatrix[7];
+        float dz = -mvpMatrix[11];
+        int view = atlas.nearestView(dx, dy, dz);
+        float[] v = atlas.views;
+        int at = view * 9;
+        float r = atlas.radius;
+
+        // depth of the center and how far the back of the sphere is, in NDC
+        project(mvpMatrix, atlas.center[0], atlas.center[1], atlas.center[2]);
+        float centerDepth = mClip[2] / mClip[3];
+        project(mvpMatrix, atlas.center[0] - v[at] * r, atlas.center[1] - v[at + 1] * r,
+                atlas.center[2] - v[at + 2] * r);
+        float depthPerRadius = mClip[2] / mClip[3] - centerDepth;
+
+        int out = mCount * 4 * FLOATS_PER_VERTEX;
+        for (int corner = 0; corner < 4; corner++) {
+            // counterclockwise from the bottom left
+            float sx = corner == 1 || corner == 2 ? 1 : -1;
+            float sy = corner >= 2 ? 1 : -1;
+            project(mvpMatrix,
+                    atlas.center[0] + (v[at + 3] * sx + v[at + 6] * sy) * r,
+                    atlas.center[1] + (v[at + 4] * sx + v[at + 7] * sy) * r,
+                    atlas.center[2] + (v[at + 5] * sx + v[at + 8] * sy) * r);
+            System.arraycopy(mClip, 0, mVertices, out, 4);
+            mVertices[out + 4] = (atlas.getSpriteX(view) + (sx + 1) * 0.5f * atlas.spriteSize) / atlas.width;
+            mVertices[out + 5] = (atlas.getSpriteY(view) + (sy + 1) * 0.5f * atlas.spriteSize) / atlas.height;
+            mVertices[out + 6] = centerDepth;
+            mVertices[out + 7] = depthPerRadius;
+            out += FLOATS_PER_VERTEX;
+        }
+        mCount++;
+        return true;
+    }
+
+    private void project(float[] m, float x, float y, float z) {
+        for (int row = 0; row < 4; row++) {
+            mClip[row] = m[row] * x + m[4 + row] * y + m[8 + row] * z + m[12 + row];
+        }
+    }
+
+    /**
+     * Draws the impostors added since {@link #begin}.
+     */
+    public void end() {
+        mLastCount = mCount;
+        if (mCount == 0) {
+            return;
+        }
+        mVertexBuffer.position(0);
+        mVertexBuffer.put(mVertices, 0, mCount * 4 * FLOATS_PER_VERTEX);
+
+        Gl.glUseProgram(mProgram);
+        Gl.glActiveTexture(GLES20.GL_TEXTURE0);
+        Gl.glBindTexture(GLES20.GL_TEXTURE_2D, mTextures[0]);
+        Gl.glUniform1i(mColorSamplerHandle, 0);
+        Gl.glActiveTexture(GLES20.GL_TEXTURE1);
+        Gl.glBindTexture(GLES20.GL_TEXTURE_2D, mTextures[1]);
+        Gl.glUniform1i(mDepthSamplerHandle, 1);
+        Gl.glActiveTexture(GLES20.GL_TEXTURE0);
+
+        Gl.glEnableVertexAttribArray(mPositionHandle);
+        Gl.glEnableVertexAttribArray(mTexCoordHandle);
+        Gl.glEnableVertexAttribArray(mDepthHandle);
+        int stride = FLOATS_PER_VERTEX * 4;
+        mVertexBuffer.position(0);
+        Gl.glVertexAttribPointer(mPositionHandle, 4, GLES20.GL_FLOAT, false, stride, mVertexBuffer);
+        mVertexBuffer.position(4);
+        Gl.glVertexAttribPointer(mTexCoordHandle, 2, GLES20.GL_FLOAT, false, stride, mVertexBuffer);
+        mVertexBuffer.position(6);
+        Gl.glVertexAttribPointer(mDepthHandle, 2, GLES20.GL_FLOAT, false, stride, mVertexBuffer);
+        mVertexBuffer.position(0);
+        Gl.glDrawElements(GLES20.GL_TRIANGLES, mCount * 6, GLES20.GL_UNSIGNED_SHORT, mIndexBuffer);
+        Gl.glDisableVertexAttribArray(mPositionHandle);
+        Gl.glDisableVertexAttribArray(mTexCoordHandle);
+        Gl.glDisableVertexAttribArray(mDepthHandle);
+    }
+
+    /**
+     * Returns the impostors drawn in the last frame.
+     */
+    public int getLastCount() {
+        return mLastCount;
+    }
+
+    /**
+     * Returns the buffers to the {@link BufferArena} and deletes the
+     * textures. Must run on the GL thread.
+     */
+    public void release() {
+        Gl.glDeleteTextures(2, mTextures, 0);
+        mArena.release(mVertexSlice);
+        mArena.release(mIndexSlice);
+        mVertexSlice = mIndexSlice = null;
+    }
+}
@@ -0,0 +1,169 @@
+package com.example.android.opengl;
+
+import android.view.MotionEvent;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Touch events with their times, recorded by {@link MyGLSurfaceView} and
+ * replayed by {@link TraceReplayer}.
+ *
+ * File layout, little endian: magic, view width, view height, event count,
+ * then for every event its time in milliseconds from the first one, its
+ * action and its x and y.
+ */
+public class InputTrace {
+    static final int MAGIC = 0x31435254;
+    static final int HEADER_SIZE = 16;
+    static final int EVENT_SIZE = 16;
+
+    /** Action of the events seen while a scale gesture is in progress. */
+    public static final int SCALE = -1;
+
+    private final int mWidth;
+    private final int mHeight;
+    private long mStartTime = -1;
+    private int mCount;
+    private int[] mTimes = new int[256];
+    private int[] mActions = new int[256];
+    private float[] mPositions = new float[512];
+
+    public InputTrace(int width, int height) {
+        mWidth = width;
+        mHeight = height;
+    }
+
+    /**
+     * Appends an event. Times must not go back.
+     *
+     * @param time - Event time in milliseconds, any origin.
+     * @param action - MotionEvent action or {@link #SCALE}.
+     */
+    public synchronized void add(long time, int action, float x, float y) {
+        if (mStartTime < 0) {
+            mStartTime = time;
+        }
+        if (mCount == mTimes.length) {
+            mTimes = grow(mTimes);
+            mActions = grow(mActions);
+            float[] positions = new float[mPositions.length * 2];
+            System.arraycopy(mPositions, 0, positions, 0, mPositions.length);
+            mPositions = positions;
+        }
+        mTimes[mCount] = (int) (time - mStartTime);
+        mActions[mCount] = action;
+        mPositions[mCount * 2] = x;
+        mPositions[mCount * 2 + 1] = y;
+        mCount++;
+    }
+
+    private static int[] grow(int[] array) {
+        int[] bigger = new int[array.length * 2];
+        System.arraycopy(array, 0, bigger, 0, array.length);
+        return bigger;
+    }
+
+    public int getWidth() {
+        return mWidth;
+    }
+
+    public int getHeight() {
+        return mHeight;
+    }
+
+    public int getEventCount() {
+        return mCount;
+    }
+
+    /**
+     * Returns the time of an event in milliseconds from the first one.
+     */
+    public int getTime(int event) {
+        return mTimes[event];
+    }
+
+    public int getAction(int event) {
+        return mActions[event];
+    }
+
+    public float getX(int event) {
+        return mPositions[event * 2];
+    }
+
+    public float getY(int event) {
+        return mPositions[event * 2 + 1];
+    }
+
+    /**
+     * Returns the time from the first to the last event, in milliseconds.
+     */
+    public int getDuration() {
+        return mCount > 0 ? mTimes[mCount - 1] : 0;
+    }
+
+    /**
+     * Makes a trace that drags a finger in circles, then taps and holds a
+     * tap in the middle of the view, so a replay rotates, picks and sculpts.
+     *
+     * @param duration - Length of the drag in milliseconds.
+     * @param step - Milliseconds between move events, 16 on most screens.
+     */
+    public static InputTrace createDrag(int width, int height, int duration, int step) {
+        InputTrace trace = new InputTrace(width, height);
+        float cx = width * 0.5f, cy = height * 0.5f;
+        float radius = Math.min(width, height) * 0.25f;
+        trace.add(0, MotionEvent.ACTION_DOWN, cx + radius, cy);
+        int time = 0;
+        for (time = step; time <= duration; time += step) {
+            double angle = 4 * Math.PI * time / duration;
+            trace.add(time, MotionEvent.ACTION_MOVE, cx + radius * (float) Math.cos(angle),
+                    cy + radius * (float) Math.sin(angle));
+        }
+        trace.add(time, MotionEvent.ACTION_UP, cx + radius, cy);
+        // a tap and a long tap
+        trace.add(time + 200, MotionEvent.ACTION_DOWN, cx, cy);
+        trace.add(time + 300, MotionEvent.ACTION_UP, cx, cy);
+        trace.add(time + 500, MotionEvent.ACTION_DOWN, cx, cy);
+        trace.add(time + 1200, MotionEvent.ACTION_UP, cx, cy);
+        return trace;
+    }
+
+    public synchronized void write(OutputStream out) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + mCount * EVENT_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putInt(MAGIC);
+        buffer.putInt(mWidth);
+        buffer.putInt(mHeight);
+        buffer.putInt(mCount);
+        for (int i = 0; i < mCount; i++) {
+            buffer.putInt(mTimes[i]);
+            buffer.putInt(mActions[i]);
+            buffer.putFloat(mPositions[i * 2]);
+            buffer.putFloat(mPositions[i * 2 + 1]);
+        }
+        out.write(buffer.array());
+    }
+
+    public static InputTrace read(InputStream inputStream) throws IOException {
+        DataInputStream in = new DataInputStream(inputStream);
+        byte[] header = new byte[HEADER_SIZE];
+        in.readFully(header);
+        ByteBuffer buffer = ByteBuffer.wrap(header).order(ByteOrder.LITTLE_ENDIAN);
+        if (buffer.getInt() != MAGIC) {
+            throw new IOException("Not an input trace");
+        }
+        InputTrace trace = new InputTrace(buffer.getInt(), buffer.getInt());
+        int count = buffer.getInt();
+        byte[] events = new byte[count * EVENT_SIZE];
+        in.readFully(events);
+        buffer = ByteBuffer.wrap(events).order(ByteOrder.LITTLE_ENDIAN);
+        for (int i = 0; i < count; i++) {
+            trace.add(buffer.getInt(), buffer.getInt(), buffer.getFloat(), buffer.getFloat());
+        }
+        return trace;
+    }
+}
@@ -0,0 +1,290 @@
+package com.example.android.opengl;
+
+import android.opengl.GLES20;
+import android.util.Log;
+
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.ShortBuffer;
+
+/**
+ * Draws many copies of a {@link Mesh} with a few draw calls. ES 2.0 has no
+ * instancing, so the mesh is repeated in its buffers {@link #getBatchSize}
+ * times, each repetition tagged with an instance id attribute, and the
+ * vertex shader takes the transform of its copy from a uniform array. A
+ * draw call covers as many copies as the array holds.
+ *
+ * The transform of a copy is its model matrix without the last row, three
+ * rows of four floats ({@link #FLOATS_PER_INSTANCE}). The transforms of a
+ * frame are packed in one array and uploaded with one glUniform4fv per
+ * batch; the view projection matrix is shared by all the copies.
+ *
+ * The copies are lit as {@link Figure} lights them, by the same
+ * {@link FigureLighting} and ambient occlusion, each where it is: the
+ * shader lights the world position and normal of a vertex with the view
+ * matrix. The lights are gathered once for a sphere around all the copies,
+ * not for each copy and group of meshlets, so with more than
+ * {@link ClusteredLights#MAX_LIGHTS_PER_DRAW} lights around them a copy may
+ * miss some of those a Figure draws.
+ */
+public class InstancedFigure {
+    private static final String TAG = "InstancedFigure";
+    public static final int FLOATS_PER_INSTANCE = 12;
+    // uniform vectors left for the view projection and light matrices and the lights
+    private static final int RESERVED_VECTORS = 9 + 2 * ClusteredLights.MAX_LIGHTS_PER_DRAW;
+    // the instance id attribute is a byte
+    private static final int MAX_BATCH = 256;
+
+    private static final String VERTEX_SHADER_CODE =
+            "uniform mat4 uViewProjection;\n"
+            + "uniform vec4 uModels[BATCH * 3];\n"      // rows of the model matrices
+            + FigureLighting.SHADER_CODE
+            + "attribute vec4 vPosition;\n"
+            + "attribute vec3 aNormal;\n"
+            + "attribute float aOcclusion;\n"
+            + "attribute float aInstance;\n"
+            + "varying vec4 vColor;\n"
+            + "void main() {\n"
+            + "   int i = int(aInstance) * 3;\n"
+            + "   vec4 r0 = uModels[i];\n"
+            + "   vec4 r1 = uModels[i + 1];\n"
+            + "   vec4 r2 = uModels[i + 2];\n"
+            + "   vec4 world = vec4(dot(r0, vPosition), dot(r1, vPosition), dot(r2, vPosition), 1.0);\n"
+            + "   vec3 normal = vec3(dot(r0.xyz, aNormal), dot(r1.xyz, aNormal), dot(r2.xyz, aNormal));\n"
+            // uMVMatrix is the view matrix, the model matrix is already applied
+            + "   vColor = vec4(aOcclusion * lightAt(world, normal), 1.0);\n"
+            + "   gl_Position = uViewProjection * world;\n"
+            + "}\n";
+
+    private static final String FRAGMENT_SHADER_CODE =
+            "precision mediump float;" +
+                    "varying vec4 vColor;" +
+                    "void main() {" +
+                    "  gl_FragColor = vColor;" +
+                    "}";
+
+    private final BufferArena mArena = BufferArena.getDefault();
+    private BufferArena.Slice mVertexSlice, mNormalSlice, mOcclusionSlice, mInstanceSlice, mIndexSlice;
+    private final FloatBuffer mVertexBuffer;
+    private final FloatBuffer mNormalBuffer;
+    private final FloatBuffer mOcclusionBuffer;
+    private final ByteBuffer mInstanceBuffer;
+    private final ShortBuffer mIndexBuffer;
+    private final int mBatch;
+    private final int mFaceCount;
+
+    private final int mProgram;
+    private final int mPositionHandle;
+    private final int mNormalHandle;
+    private final int mOcclusionHandle;
+    private final int mInstanceHandle;
+    private final int mViewProjectionHandle;
+    private final int mModelsHandle;
+    private final FigureLighting mLighting;
+    private ClusteredLights mLights;
+    // bounding sphere of the mesh, and of the copies of a draw, where the lights are gathered
+    private final float[] mSphere = new float[4];
+    private final float[] mBounds = new float[4];
+
+    private int mLastDrawCalls;
+    private int mLastInstances;
+    private long mLastDrawNanos;
+
+    /**
+     * Builds the repeated buffers and the program. Must run on the GL
+     * thread, the batch size depends on the uniforms of the driver.
+     *
+     * @param occlusion - Ambient occlusion of each vertex, as {@link Figure#getOcclusion}.
+     * @throws IllegalArgumentException - If the mesh needs 32 bit indices.
+     */
+    public InstancedFigure(Mesh mesh, float[] occlusion) {
+        int vertexCount = mesh.getVertexCount();
+        if (MeshFile.needsIntIndices(vertexCount)) {
+            throw new IllegalArgumentException(vertexCount + " vertices need 32 bit indices");
+        }
+        int[] limit = new int[1];
+        Gl.glGetIntegerv(GLES20.GL_MAX_VERTEX_UNIFORM_VECTORS, limit, 0);
+        // every repetition must stay within 16 bit indices
+        mBatch = Math.max(1, Math.min(Math.min((limit[0] - RESERVED_VECTORS) / 3, MAX_BATCH),
+                (0xFFFF + 1) / Math.max(1, vertexCount)));
+        mFaceCount = mesh.getFaceCount();
+
+        float[] normals = mesh.getNormals();
+        mVertexSlice = mArena.allocate(mBatch * vertexCount * 12);
+        mNormalSlice = mArena.allocate(mBatch * vertexCount * 12);
+        mOcclusionSlice = mArena.allocate(mBatch * vertexCount * 4);
+        mInstanceSlice = mArena.allocate(mBatch * vertexCount);
+        mIndexSlice = mArena.allocate(mBatch * mFaceCount * 6);
+        mVertexBuffer = mVertexSlice.asFloatBuffer();
+        mNormalBuffer = mNormalSlice.asFloatBuffer();
+        mOcclusionBuffer = mOcclusionSlice.asFloatBuffer();
+        mInstanceBuffer = mInstanceSlice.getBytes();
+        mIndexBuffer = mIndexSlice.asShortBuffer();
+        for (int copy = 0; copy < mBatch; copy++) {
+            mVertexBuffer.put(mesh.coords);
+            mNormalBuffer.put(normals);
+            mOcclusionBuffer.put(occlusion);
+            for (int v = 0; v < vertexCount; v++) {
+                mInstanceBuffer.put((byte) copy);
+            }
+            int first = copy * vertexCount;
+            for (int i = 0; i < mesh.indices.length; i++) {
+                mIndexBuffer.put((short) (first + mesh.indices[i]));
+            }
+        }
+        mVertexBuffer.position(0);
+        mNormalBuffer.position(0);
+        mOcclusionBuffer.position(0);
+        mInstanceBuffer.position(0);
+        mIndexBuffer.position(0);
+        float[] min = new float[3];
+        float[] max = new float[3];
+        mesh.getBounds(min, max);
+        for (int k = 0; k < 3; k++) {
+            mSphere[k] = (min[k] + max[k]) * 0.5f;
+            mSphere[3] += (max[k] - min[k]) * (max[k] - min[k]) * 0.25f;
+        }
+        mSphere[3] = (float) Math.sqrt(mSphere[3]);
+
+        int vertexShader = MyGLRenderer.loadShader(GLES20.GL_VERTEX_SHADER,
+                VERTEX_SHADER_CODE.replace("BATCH", Integer.toString(mBatch)));
+        int fragmentShader = MyGLRenderer.loadShader(GLES20.GL_FRAGMENT_SHADER, FRAGMENT_SHADER_CODE);
+        mProgram = Gl.glCreateProgram();
+        Gl.glAttachShader(mProgram, vertexShader);
+        Gl.glAttachShader(mProgram, fragmentShader);
+        Gl.glLinkProgram(mProgram);
+        mPositionHandle = Gl.glGetAttribLocation(mProgram, "vPosition");
+        mNormalHandle = Gl.glGetAttribLocation(mProgram, "aNormal");
+        mOcclusionHandle = Gl.glGetAttribLocation(mProgram, "aOcclusion");
+        mInstanceHandle = Gl.glGetAttribLocation(mProgram, "aInstance");
+        mViewProjectionHandle = Gl.glGetUniformLocation(mProgram, "uViewProjection");
+        mModelsHandle = Gl.glGetUniformLocation(mProgram, "uModels");
+        mLighting = new FigureLighting(mProgram);
+        Log.d(TAG, mBatch + " copies per draw call, " + limit[0] + " vertex uniform vectors");
+    }
+
+    /**
+     * Returns the copies drawn by one draw call.
+     */
+    public int getBatchSize() {
+        return mBatch;
+    }
+
+    /**
+     * Lights the copies with the lights of the clusters around the figure,
+     * or with the default light if null.
+     */
+    public void setLights(ClusteredLights lights) {
+        mLights = lights;
+    }
+
+    /**
+     * Draws copies of the mesh.
+     *
+     * @param viewProjectionMatrix - Shared by all the copies.
+     * @param viewMatrix - Takes the copies to the eye space of the lights.
+     * @param transforms - {@link #FLOATS_PER_INSTANCE} floats per copy, the
+     * rows of its model matrix.
+     * @param count - Copies to draw.
+     */
+    public void draw(float[] viewProjectionMatrix, float[] viewMatrix, float[] transforms, int count) {
+        long start = System.nanoTime();
+        Gl.glUseProgram(mProgram);
+        Gl.glEnableVertexAttribArray(mPositionHandle);
+        Gl.glEnableVertexAttribArray(mNormalHandle);
+        Gl.glEnableVertexAttribArray(mOcclusionHandle);
+        Gl.glEnableVertexAttribArray(mInstanceHandle);
+        Gl.glVertexAttribPointer(mPositionHandle, 3, GLES20.GL_FLOAT, false, 12, mVertexBuffer);
+        Gl.glVertexAttribPointer(mNormalHandle, 3, GLES20.GL_FLOAT, false, 12, mNormalBuffer);
+        Gl.glVertexAttribPointer(mOcclusionHandle, 1, GLES20.GL_FLOAT, false, 4, mOcclusionBuffer);
+        Gl.glVertexAttribPointer(mInstanceHandle, 1, GLES20.GL_UNSIGNED_BYTE, false, 1, mInstanceBuffer);
+        Gl.glUniformMatrix4fv(mViewProjectionHandle, 1, false, viewProjectionMatrix, 0);
+        mLighting.begin(viewMatrix);
+        boundCopies(transforms, count);
+        mLighting.bind(mLights, mBounds, 0);
+
+        int calls = 0;
+        for (int first = 0; first < count; first += mBatch) {
+            int copies = Math.min(mBatch, count - first);
+            // the first copies of the buffers take the transforms of this batch
+            Gl.glUniform4fv(mModelsHandle, copies * 3, transforms, first * FLOATS_PER_INSTANCE);
+            Gl.glDrawElements(GLES20.GL_TRIANGLES, copies * mFaceCount * 3, GLES20.GL_UNSIGNED_SHORT,
+                    mIndexBuffer);
+            calls++;
+        }
+
+        Gl.glDisableVertexAttribArray(mPositionHandle);
+        Gl.glDisableVertexAttribArray(mNormalHandle);
+        Gl.glDisableVertexAttribArray(mOcclusionHandle);
+        Gl.glDisableVertexAttribArray(mInstanceHandle);
+        mLastDrawCalls = calls;
+        mLastInstances = count;
+        mLastDrawNanos = System.nanoTime() - start;
+    }
+
+    // Sets mBounds to a world sphere around the sphere of every copy
+    private void boundCopies(float[] transforms, int count) {
+        float minX = Float.MAX_VALUE, minY = Float.MAX_VALUE, minZ = Float.MAX_VALUE;
+        float maxX = -Float.MAX_VALUE, maxY = -Float.MAX_VALUE, maxZ = -Float.MAX_VALUE;
+        for (int i = 0; i < count; i++) {
+            int at = i * FLOATS_PER_INSTANCE;
+            float x = transforms[at] * mSphere[0] + transforms[at + 1] * mSphere[1]
+                    + transforms[at + 2] * mSphere[2] + transforms[at + 3];
+            float y = transforms[at + 4] * mSphere[0] + transforms[at + 5] * mSphere[1]
+                    + transforms[at + 6] * mSphere[2] + transforms[at + 7];
+            float z = transforms[at + 8] * mSphere[0] + transforms[at + 9] * mSphere[1]
+                    + transforms[at + 10] * mSphere[2] + transforms[at + 11];
+            minX = Math.min(minX, x);
+            minY = Math.min(minY, y);
+            minZ = Math.min(minZ, z);
+            maxX = Math.max(maxX, x);
+            maxY = Math.max(maxY, y);
+            maxZ = Math.max(maxZ, z);
+        }
+        float dx = maxX - minX, dy = maxY - minY, dz = maxZ - minZ;
+        mBounds[0] = (minX + maxX) * 0.5f;
+        mBounds[1] = (minY + maxY) * 0.5f;
+        mBounds[2] = (minZ + maxZ) * 0.5f;
+        // the copies are rotated, not scaled
+        mBounds[3] = (float) Math.sqrt(dx * dx + dy * dy + dz * dz) * 0.5f + mSphere[3];
+    }
+
+    public int getLastDrawCalls() {
+        return mLastDrawCalls;
+    }
+
+    public int getLastInstances() {
+        return mLastInstances;
+    }
+
+    /**
+     * Returns the CPU time of the last {@link #draw}.
+     */
+    public float getLastDrawMicros() {
+        return mLastDrawNanos / 1e3f;
+    }
+
+    /**
+     * Packs the rows of a column major model matrix into a transform.
+     */
+    public static void pack(float[] modelMatrix, float[] transforms, int instance) {
+        int at = instance * FLOATS_PER_INSTANCE;
+        for (int row = 0; row < 3; row++) {
+            for (int column = 0; column < 4; column++) {
+                transforms[at + row * 4 + column] = modelMatrix[column * 4 + row];
+            }
+        }
+    }
+
+    /**
+     * Returns the buffers to the {@link BufferArena}.
+     */
+    public void release() {
+        mArena.release(mVertexSlice);
+        mArena.release(mNormalSlice);
+        mArena.release(mOcclusionSlice);
+        mArena.release(mInstanceSlice);
+        mArena.release(mIndexSlice);
+        mVertexSlice = mNormalSlice = mOcclusionSlice = mInstanceSlice = mIndexSlice = null;
+    }
+}
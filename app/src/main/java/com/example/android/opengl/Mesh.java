@@ -0,0 +1,142 @@
+package com.example.android.opengl;
+
+/**
+ * Plain triangle mesh kept in primitive arrays.
+ *
+ * It does not touch OpenGL, so it can be used outside the GL thread and from
+ * the JVM tools (benchmarks, converters).
+ */
+public class Mesh {
+    // number of coordinates per vertex in this array
+    static final int COORDS_PER_VERTEX = 3;
+
+    // x, y, z of every vertex
+    final float[] coords;
+    // three vertex indices per triangle
+    final int[] indices;
+    // optional unit normal per vertex, null until computed or loaded
+    float[] normals;
+
+    public Mesh(float[] coords, int[] indices) {
+        this(coords, indices, null);
+    }
+
+    public Mesh(float[] coords, int[] indices, float[] normals) {
+        this.coords = coords;
+        this.indices = indices;
+        this.normals = normals;
+    }
+
+    /**
+     * Returns the vertex normals, computing them on first use.
+     */
+    public float[] getNormals() {
+        if (normals == null) {
+            normals = computeVertexNormals();
+        }
+        return normals;
+    }
+
+    public int getVertexCount() {
+        return coords.length / COORDS_PER_VERTEX;
+    }
+
+    public int getFaceCount() {
+        return indices.length / 3;
+    }
+
+    /**
+     * Returns the indices as 16 bit values, the only index type ES 2.0
+     * guarantees for glDrawElements.
+     */
+    public short[] toShortIndices() {
+        short[] order = new short[indices.length];
+        for (int i = 0; i < indices.length; i++) {
+            order[i] = (short) indices[i];
+        }
+        return order;
+    }
+
+    /**
+     * Computes the axis aligned bounding box of the vertices.
+     *
+     * @param min - Receives the minimum x, y, z.
+     * @param max - Receives the maximum x, y, z.
+     */
+    public void getBounds(float[] min, float[] max) {
+        min[0] = min[1] = min[2] = Float.POSITIVE_INFINITY;
+        max[0] = max[1] = max[2] = Float.NEGATIVE_INFINITY;
+        for (int i = 0; i < coords.length; i += COORDS_PER_VERTEX) {
+            for (int k = 0; k < 3; k++) {
+                float c = coords[i + k];
+                if (c < min[k]) min[k] = c;
+                if (c > max[k]) max[k] = c;
+            }
+        }
+    }
+
+    /**
+     * Calculates vertex normals by the average of contiguous face normals.
+     * Runs in O(V + F).
+     *
+     * @return - One unit normal per vertex (3 floats each).
+     */
+    public float[] computeVertexNormals() {
+        float[] normals = new float[coords.length];
+        for (int i = 0; i < indices.length; i += 3) {
+            addFaceNormal(coords, indices[i], indices[i + 1], indices[i + 2], normals);
+        }
+        normalize(normals);
+        return normals;
+    }
+
+    /**
+     * Adds the normal of the face (a, b, c) to the normals of its three
+     * vertices. The normal is not normalized, so bigger faces weigh more.
+     */
+    static void addFaceNormal(float[] coords, int a, int b, int c, float[] normals) {
+        int pa = a * COORDS_PER_VERTEX;
+        int pb = b * COORDS_PER_VERTEX;
+        int pc = c * COORDS_PER_VERTEX;
+        // vectors ac and bc
+        float v1x = coords[pc] - coords[pa];
+        float v1y = coords[pc + 1] - coords[pa + 1];
+        float v1z = coords[pc + 2] - coords[pa + 2];
+        float v2x = coords[pc] - coords[pb];
+        float v2y = coords[pc + 1] - coords[pb + 1];
+        float v2z = coords[pc + 2] - coords[pb + 2];
+        // Multiply both vectors to get the normal vector of the face
+        float nx = v1y * v2z - v1z * v2y;
+        float ny = v1z * v2x - v1x * v2z;
+        float nz = v1x * v2y - v1y * v2x;
+        normals[pa] += nx;
+        normals[pa + 1] += ny;
+        normals[pa + 2] += nz;
+        normals[pb] += nx;
+        normals[pb + 1] += ny;
+        normals[pb + 2] += nz;
+        normals[pc] += nx;
+        normals[pc + 1] += ny;
+        normals[pc + 2] += nz;
+    }
+
+    /**
+     * Scales every 3 float vector of the array to unit length. Zero vectors
+     * (unreferenced vertices) are left untouched.
+     */
+    static void normalize(float[] normals) {
+        normalize(normals, 0, normals.length / 3);
+    }
+
+    static void normalize(float[] normals, int first, int count) {
+        for (int i = first * 3; i < (first + count) * 3; i += 3) {
+            float length = (float) Math.sqrt(normals[i] * normals[i]
+                    + normals[i + 1] * normals[i + 1] + normals[i + 2] * normals[i + 2]);
+            if (length > 0) {
+                normals[i] /= length;
+                normals[i + 1] /= length;
+                normals[i + 2] /= length;
+            }
+        }
+    }
+}
@@ -0,0 +1,1094 @@
+package com.example.android.opengl;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.ShortBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Micro benchmarks of the CPU side mesh processing. It only uses classes that
+ * do not depend on Android, so it runs on a desktop JVM:
+ *
+ * <pre>
+ * java -cp &lt;classes&gt; com.example.android.opengl.MeshBenchmark [file.(off|ply|obj) ...]</pre>
+ *
+ * Without arguments the bundled bunny and arm models are used. A synthetic
+ * mesh of any size can be given instead of a file, as a {@link MeshGenerator}
+ * spec such as torus:1000000 or terrain:200000:7:16.
+ */
+public class MeshBenchmark {
+    private static final String[] DEFAULT_FILES = {
+            "models/bunny.off",
+            "models/arm.off"
+    };
+
+    private static final int WARMUP_ROUNDS = 5;
+    // orbit frames between two scans of the faces, which are slow on big meshes
+    private static final int NAIVE_STRIDE = 10;
+    private static final int BUILD_ROUNDS = 20;
+    private static final int QUERIES = 200000;
+
+    public static void main(String[] args) throws IOException {
+        checkCodecEdgeCases();
+        checkArena();
+        benchmarkLights(256);
+        benchmarkDrawKeys(1000);
+        benchmarkDrawKeys(10000);
+        String[] files = args.length > 0 ? args : DEFAULT_FILES;
+        for (String file : files) {
+            Mesh mesh = load(file);
+            System.out.println(file + ": " + mesh.getVertexCount() + " vertices, "
+                    + mesh.getFaceCount() + " faces");
+            benchmarkHalfEdges(mesh);
+            benchmarkBvh(mesh);
+            benchmarkStrips(mesh);
+            benchmarkMeshlets(mesh);
+            benchmarkCodec(file, mesh);
+            benchmarkDepthSort(mesh);
+            benchmarkOcclusion(mesh);
+            benchmarkEdits(mesh);
+            benchmarkOctree(mesh);
+            benchmarkArena(mesh);
+            benchmarkProgressive(file, mesh);
+            benchmarkCulling(mesh);
+            benchmarkLoaders(mesh);
+            benchmarkSubdivision(mesh);
+            benchmarkSilhouette(mesh);
+        }
+    }
+
+    static Mesh load(String file) throws IOException {
+        if (MeshGenerator.isSpec(file)) {
+            return MeshGenerator.fromSpec(file).build(WorkerPool.getDefault());
+        }
+        return MeshLoader.load(new File(file));
+    }
+
+    static void benchmarkHalfEdges(Mesh mesh) {
+        HalfEdgeMesh halfEdges = null;
+        for (int i = 0; i < WARMUP_ROUNDS; i++) {
+            halfEdges = new HalfEdgeMesh(mesh);
+        }
+        long start = System.nanoTime();
+        for (int i = 0; i < BUILD_ROUNDS; i++) {
+            halfEdges = new HalfEdgeMesh(mesh);
+        }
+        double buildMs = (System.nanoTime() - start) / 1e6 / BUILD_ROUNDS;
+
+        // walk every one ring, the query the half-edges make constant time
+        int[] ring = new int[64];
+        long neighbours = 0;
+        start = System.nanoTime();
+        for (int v = 0; v < mesh.getVertexCount(); v++) {
+            neighbours += halfEdges.oneRing(v, ring);
+        }
+        double ringMicros = (System.nanoTime() - start) / 1e3;
+        System.out.printf("  half-edges: build %.3f ms, %d boundary edges, %d non-manifold edges,"
+                        + " %d non-manifold vertices, mean valence %.2f in %.1f us%n",
+                buildMs, halfEdges.getBoundaryEdgeCount(), halfEdges.getNonManifoldEdgeCount(),
+                halfEdges.getNonManifoldVertexCount(), (double) neighbours / mesh.getVertexCount(), ringMicros);
+    }
+
+    static void benchmarkBvh(Mesh mesh) {
+        Bvh bvh = null;
+        for (int i = 0; i < WARMUP_ROUNDS; i++) {
+            bvh = new Bvh(mesh);
+        }
+        long start = System.nanoTime();
+        for (int i = 0; i < BUILD_ROUNDS; i++) {
+            bvh = new Bvh(mesh);
+        }
+        double buildMs = (System.nanoTime() - start) / 1e6 / BUILD_ROUNDS;
+
+        // Rays from a sphere around the model towards random points inside it
+        float[] min = new float[3];
+        float[] max = new float[3];
+        bvh.getBounds(min, max);
+        float[] rays = new float[QUERIES * 6];
+        Random random = new Random(42);
+        for (int i = 0; i < QUERIES; i++) {
+            for (int k = 0; k < 3; k++) {
+                float center = (min[k] + max[k]) * 0.5f;
+                float size = max[k] - min[k];
+                rays[i * 6 + k] = center + (random.nextFloat() - 0.5f) * size * 4;
+                rays[i * 6 + 3 + k] = min[k] + random.nextFloat() * size - rays[i * 6 + k];
+            }
+        }
+
+        RayHit hit = new RayHit();
+        int[] stack = new int[Bvh.MAX_DEPTH];
+        int hits = 0;
+        for (int round = 0; round < 2; round++) {
+            hits = 0;
+            start = System.nanoTime();
+            for (int i = 0; i < QUERIES; i++) {
+                int r = i * 6;
+                hit.reset(Float.POSITIVE_INFINITY);
+                if (bvh.intersect(rays[r], rays[r + 1], rays[r + 2],
+                        rays[r + 3], rays[r + 4], rays[r + 5], hit, stack)) {
+                    hits++;
+                }
+            }
+        }
+        double querySeconds = (System.nanoTime() - start) / 1e9;
+
+        System.out.printf("  bvh: %d nodes, build %.3f ms, %.0f queries/s (%d%% hit)%n",
+                bvh.getNodeCount(), buildMs, QUERIES / querySeconds, hits * 100 / QUERIES);
+    }
+
+    static void benchmarkMeshlets(Mesh mesh) {
+        Meshlets meshlets = Meshlets.build(mesh);
+        int[] runs = new int[meshlets.getCount() * 2];
+        float[] min = new float[3];
+        float[] max = new float[3];
+        mesh.getBounds(min, max);
+        float size = Math.max(max[0] - min[0], Math.max(max[1] - min[1], max[2] - min[2]));
+        float cx = (min[0] + max[0]) / 2, cy = (min[1] + max[1]) / 2, cz = (min[2] + max[2]) / 2;
+        StringBuilder line = new StringBuilder("  meshlets: " + meshlets.getCount() + " clusters");
+        // around the model at twice its size, then from above
+        for (int angle = 0; angle <= 360; angle += 90) {
+            double yaw = Math.toRadians(angle);
+            float distance = 2 * size;
+            float ex = angle < 360 ? cx + distance * (float) Math.sin(yaw) : cx;
+            float ey = angle < 360 ? cy : cy + distance;
+            float ez = angle < 360 ? cz + distance * (float) Math.cos(yaw) : cz;
+            int numRuns = 0;
+            double micros = 0;
+            for (int round = 0; round < WARMUP_ROUNDS + BUILD_ROUNDS; round++) {
+                numRuns = meshlets.cull(ex, ey, ez, runs);
+                if (round >= WARMUP_ROUNDS) {
+                    micros += meshlets.getCullingMicros();
+                }
+            }
+            line.append(String.format(", %s: %d drawn / %d culled in %d runs (%.1f%% faces) %.1f us",
+                    angle < 360 ? angle + " deg" : "top", meshlets.getVisibleCount(),
+                    meshlets.getCount() - meshlets.getVisibleCount(), numRuns, 100 * meshlets.getCulledRatio(),
+                    micros / BUILD_ROUNDS));
+        }
+        System.out.println(line);
+    }
+
+    static void benchmarkStrips(Mesh mesh) {
+        int[] strip = null;
+        for (int i = 0; i < WARMUP_ROUNDS; i++) {
+            strip = Stripifier.stripify(mesh.indices, mesh.getVertexCount());
+        }
+        long start = System.nanoTime();
+        for (int i = 0; i < BUILD_ROUNDS; i++) {
+            strip = Stripifier.stripify(mesh.indices, mesh.getVertexCount());
+        }
+        double stripMs = (System.nanoTime() - start) / 1e6 / BUILD_ROUNDS;
+
+        int listBytes = mesh.indices.length * 2;
+        int stripBytes = strip.length * 2;
+        System.out.printf("  strip: %d -> %d indices, %d bytes saved (%.1f%%), %.3f ms%n",
+                mesh.indices.length, strip.length, listBytes - stripBytes,
+                100.0 * (listBytes - stripBytes) / listBytes, stripMs);
+    }
+
+    static void benchmarkDepthSort(Mesh mesh) {
+        DepthSorter sorter = new DepthSorter(mesh, WorkerPool.getDefault());
+        sorter.setThreshold(0);
+        // Only the w row of the matrix matters: the camera turns around the y axis
+        float[] mvp = new float[16];
+        float[] centroids = new float[mesh.getFaceCount()];
+        int frames = 0;
+        double totalMicros = 0;
+        for (int frame = 0; frame < 360 + WARMUP_ROUNDS; frame++) {
+            double angle = Math.toRadians(frame);
+            mvp[3] = (float) Math.sin(angle);
+            mvp[11] = (float) Math.cos(angle);
+            mvp[15] = 4;
+            sorter.sort(mvp);
+            if (frame >= WARMUP_ROUNDS) {
+                totalMicros += sorter.getLastSortMicros();
+                frames++;
+            }
+        }
+
+        // The last order must go from the farthest face to the nearest
+        ShortBuffer sortedIndices = ShortBuffer.allocate(mesh.getFaceCount() * 3);
+        sorter.writeIndices(sortedIndices);
+        for (int f = 0; f < centroids.length; f++) {
+            float w = mvp[15];
+            for (int k = 0; k < 3; k++) {
+                int v = sortedIndices.get(f * 3 + k) & 0xFFFF;
+                w += (mvp[3] * mesh.coords[v * 3] + mvp[11] * mesh.coords[v * 3 + 2]) / 3;
+            }
+            centroids[f] = w;
+        }
+        for (int f = 1; f < centroids.length; f++) {
+            if (centroids[f] > centroids[f - 1] + 1e-5f) {
+                throw new IllegalStateException("depth order broken at face " + f);
+            }
+        }
+
+        sorter.setThreshold(2);
+        int sorted = 0;
+        for (int frame = 0; frame < 360; frame++) {
+            double angle = Math.toRadians(frame * 0.5);
+            mvp[3] = (float) Math.sin(angle);
+            mvp[11] = (float) Math.cos(angle);
+            if (sorter.sort(mvp)) {
+                sorted++;
+            }
+        }
+        System.out.printf("  depth sort: %.1f us/frame on %d threads, %d/360 frames sorted at 2 degrees%n",
+                totalMicros / frames, WorkerPool.getDefault().getThreadCount(), sorted);
+    }
+
+    static void benchmarkOcclusion(Mesh mesh) {
+        AmbientOcclusion baker = new AmbientOcclusion(mesh, new Bvh(mesh), WorkerPool.getDefault());
+        float[] occlusion = null;
+        for (int i = 0; i < WARMUP_ROUNDS; i++) {
+            occlusion = baker.bake(AmbientOcclusion.DEFAULT_RAYS, AmbientOcclusion.DEFAULT_DISTANCE);
+        }
+        double sum = 0;
+        for (float value : occlusion) {
+            sum += value;
+        }
+        System.out.printf("  occlusion: %d rays/vertex, bake %.2f ms, %.0f rays/s, mean access %.2f%n",
+                AmbientOcclusion.DEFAULT_RAYS, baker.getBakeTimeMs(), baker.getRaysPerSecond(),
+                sum / occlusion.length);
+    }
+
+    static void benchmarkLights(int count) {
+        // same frustum as MyGLRenderer on a 16:9 screen, lights around the figure
+        float ratio = 16 / 9.0f;
+        ClusteredLights lights = new ClusteredLights(count, WorkerPool.getDefault());
+        lights.setFrustum(-ratio / 20, ratio / 20, -1 / 20.0f, 1 / 20.0f, 1, 3, 5);
+        lights.setLightCount(count);
+        Random random = new Random(42);
+        float[] pos = new float[ClusteredLights.MAX_LIGHTS_PER_DRAW * 4];
+        float[] color = new float[ClusteredLights.MAX_LIGHTS_PER_DRAW * 4];
+        double totalMicros = 0;
+        int gathered = 0;
+        for (int round = 0; round < WARMUP_ROUNDS + BUILD_ROUNDS; round++) {
+            for (int i = 0; i < count; i++) {
+                lights.setLight(i, (random.nextFloat() - 0.5f) * 0.3f, (random.nextFloat() - 0.5f) * 0.2f,
+                        -4 + (random.nextFloat() - 0.5f) * 0.3f, 0.05f, 1, 1, 1);
+            }
+            lights.assign();
+            if (round >= WARMUP_ROUNDS) {
+                totalMicros += lights.getAssignMicros();
+                gathered += lights.gather(0, 0, -4, 0.02f, pos, color);
+            }
+        }
+        System.out.printf("lights: %d lights in %d clusters, assign %.1f us, %.2f lights/cluster,"
+                        + " %.1f lights per draw%n", count, ClusteredLights.CLUSTERS, totalMicros / BUILD_ROUNDS,
+                lights.getAverageLightsPerCluster(), (float) gathered / BUILD_ROUNDS);
+    }
+
+    static void benchmarkDrawKeys(int count) {
+        // the four shape types, each with its program and vertex layout
+        // (Figure: position, color and normal; Cube: position and color;
+        // Triangle and Square: position), 16 meshes per type and a tenth of
+        // the objects blended
+        int[] layouts = {0, 1, 2, 2};
+        Random random = new Random(11);
+        int[] programs = new int[count];
+        int[] buffers = new int[count];
+        boolean[] blended = new boolean[count];
+        for (int i = 0; i < count; i++) {
+            programs[i] = random.nextInt(4);
+            buffers[i] = programs[i] * 16 + random.nextInt(16);
+            blended[i] = random.nextInt(10) == 0;
+        }
+        RenderQueue queue = new RenderQueue(count, WorkerPool.getDefault());
+        RenderQueue.Executor executor = new RenderQueue.Executor() {
+            @Override
+            public void setProgram(int program) {
+            }
+
+            @Override
+            public void setLayout(int layout) {
+            }
+
+            @Override
+            public void setBuffer(int buffer) {
+            }
+
+            @Override
+            public void draw(int item) {
+            }
+        };
+        int unsorted = 0;
+        double sortMicros = 0;
+        for (int round = 0; round < WARMUP_ROUNDS + BUILD_ROUNDS; round++) {
+            queue.clear();
+            for (int i = 0; i < count; i++) {
+                int pass = blended[i] ? RenderQueue.PASS_TRANSPARENT : RenderQueue.PASS_OPAQUE;
+                queue.add(RenderQueue.key(pass, programs[i], layouts[programs[i]], buffers[i],
+                        1 + 24 * random.nextFloat()), i);
+            }
+            unsorted = queue.countSwitches();
+            queue.sort();
+            if (round >= WARMUP_ROUNDS) {
+                sortMicros += queue.getSortMicros();
+            }
+        }
+        queue.execute(executor);
+        System.out.printf("draw keys: %d objects, %d state switches in insertion order, %d sorted"
+                        + " (%d program, %d layout, %d buffer), sort %.1f us%n", count, unsorted,
+                queue.getStateSwitches(), queue.getProgramSwitches(), queue.getLayoutSwitches(),
+                queue.getBufferSwitches(), sortMicros / BUILD_ROUNDS);
+    }
+
+    static void benchmarkEdits(Mesh mesh) {
+        // edit a copy, the other benchmarks use the loaded mesh
+        Mesh copy = new Mesh(mesh.coords.clone(), mesh.indices);
+        EditableMesh editable = new EditableMesh(copy);
+        FloatBuffer coords = FloatBuffer.allocate(copy.coords.length);
+        FloatBuffer normals = FloatBuffer.allocate(copy.coords.length);
+        float[] min = new float[3];
+        float[] max = new float[3];
+        copy.getBounds(min, max);
+        float radius = (max[0] - min[0]) * 0.1f;
+
+        int[] brush = new int[copy.getVertexCount()];
+        Random random = new Random(42);
+        long nanos = 0;
+        long vertices = 0;
+        long bytes = 0;
+        int edits = 1000;
+        for (int i = 0; i < WARMUP_ROUNDS * 100 + edits; i++) {
+            int center = random.nextInt(copy.getVertexCount());
+            long start = System.nanoTime();
+            int count = editable.collectWithin(center, copy.coords[center * 3], copy.coords[center * 3 + 1],
+                    copy.coords[center * 3 + 2], radius, brush);
+            for (int j = 0; j < count; j++) {
+                editable.translate(brush[j], 0, radius * 0.01f, 0);
+            }
+            editable.commit();
+            int written = editable.writeDirty(coords, normals);
+            if (i >= WARMUP_ROUNDS * 100) {
+                nanos += System.nanoTime() - start;
+                vertices += count;
+                bytes += written;
+            }
+        }
+        System.out.printf("  edit: %.0f vertices/edit, %.1f us/edit, %.0f of %d bytes uploaded%n",
+                (double) vertices / edits, nanos / 1e3 / edits, (double) bytes / edits, copy.coords.length * 8);
+    }
+
+    static void benchmarkOctree(Mesh mesh) throws IOException {
+        File dir = File.createTempFile("octree", "");
+        if (!dir.delete() || !dir.mkdir()) {
+            throw new IOException("Cannot create " + dir);
+        }
+        try {
+            long start = System.nanoTime();
+            // small nodes, so the bundled models give a few levels
+            int nodes = new OctreeBuilder(mesh, Math.max(16, mesh.getFaceCount() / 32), dir).build();
+            double buildMs = (System.nanoTime() - start) / 1e6;
+            long totalBytes = 0;
+            for (int n = 0; n < nodes; n++) {
+                totalBytes += OctreeBuilder.nodeFile(dir, n).length();
+            }
+
+            float[] min = new float[3];
+            float[] max = new float[3];
+            mesh.getBounds(min, max);
+            float size = Math.max(max[0] - min[0], Math.max(max[1] - min[1], max[2] - min[2]));
+            // half of the tree fits, so zooming in pages nodes out
+            OctreeStreamer streamer = new OctreeStreamer(dir, totalBytes / 2);
+            streamer.start();
+            float[] mvp = new float[16];
+            int maxQueue = 0;
+            int maxFaces = 0;
+            long maxResident = 0;
+            for (int step = 0; step <= 40; step++) {
+                // from far away to close to the front of the model, looking down -z
+                float distance = size * (float) (8 * Math.pow(0.3 / 8, step / 40.0));
+                lookAt(mvp, (min[0] + max[0]) / 2, (min[1] + max[1]) / 2, max[2] + distance);
+                // a few frames per step, the loads of one arrive in the next
+                for (int frame = 0; frame < 4; frame++) {
+                    streamer.update(mvp, 1080 / 2f * 2);
+                    maxQueue = Math.max(maxQueue, streamer.getQueueDepth());
+                    streamer.waitForLoads();
+                }
+                maxFaces = Math.max(maxFaces, streamer.getVisibleFaces());
+                maxResident = Math.max(maxResident, streamer.getResidentBytes());
+            }
+            streamer.stop();
+            System.out.printf("  octree: %d nodes, %d KB in %.1f ms; zoom in: up to %d faces drawn of %d,"
+                            + " resident up to %d of %d KB budget, queue up to %d, %d fetches of %.1f us,"
+                            + " %d evictions%n", nodes, totalBytes / 1024, buildMs, maxFaces, mesh.getFaceCount(),
+                    maxResident / 1024, streamer.getBudgetBytes() / 1024, maxQueue, streamer.getFetchCount(),
+                    streamer.getAverageFetchMicros(), streamer.getEvictionCount());
+        } finally {
+            File[] files = dir.listFiles();
+            if (files != null) {
+                for (File file : files) {
+                    file.delete();
+                }
+            }
+            dir.delete();
+        }
+    }
+
+    static void benchmarkLoaders(Mesh mesh) throws IOException {
+        File off = File.createTempFile("mesh", ".off");
+        File ply = File.createTempFile("mesh", ".ply");
+        File obj = File.createTempFile("mesh", ".obj");
+        try {
+            writeOff(mesh, off);
+            writePly(mesh, ply);
+            writeObj(mesh, obj);
+
+            // PLY is the same mesh; OBJ renumbers the vertices, so its corners are compared
+            Mesh fromPly = MeshLoader.load(ply);
+            boolean ok = Arrays.equals(fromPly.coords, mesh.coords) && Arrays.equals(fromPly.indices, mesh.indices);
+            Mesh fromObj = MeshLoader.load(obj);
+            ok &= fromObj.indices.length == mesh.indices.length && fromObj.normals != null;
+            float[] normals = mesh.getNormals();
+            for (int i = 0; ok && i < mesh.indices.length; i++) {
+                for (int k = 0; k < 3; k++) {
+                    ok &= fromObj.coords[fromObj.indices[i] * 3 + k] == mesh.coords[mesh.indices[i] * 3 + k]
+                            && fromObj.normals[fromObj.indices[i] * 3 + k] == normals[mesh.indices[i] * 3 + k];
+                }
+            }
+
+            // throughput in MB of mesh data (positions + 32 bit indices) produced, as the codec
+            double meshMb = (mesh.coords.length + mesh.indices.length) * 4 / 1e6;
+            File[] files = {off, ply, obj};
+            String[] names = {"OFF", "PLY", "OBJ"};
+            double[] seconds = new double[files.length];
+            int rounds = 50;
+            for (int round = 0; round < WARMUP_ROUNDS * 4 + rounds; round++) {
+                for (int f = 0; f < files.length; f++) {
+                    long start = System.nanoTime();
+                    MeshLoader.load(files[f]);
+                    if (round >= WARMUP_ROUNDS * 4) {
+                        seconds[f] += (System.nanoTime() - start) / 1e9 / rounds;
+                    }
+                }
+            }
+            StringBuilder line = new StringBuilder("  loaders: round trip " + (ok ? "ok" : "FAILED"));
+            for (int f = 0; f < files.length; f++) {
+                line.append(String.format(", %s %d KB %.1f MB/s (%.1fx)", names[f], files[f].length() / 1024,
+                        meshMb / seconds[f], seconds[0] / seconds[f]));
+            }
+            System.out.println(line);
+        } finally {
+            off.delete();
+            ply.delete();
+            obj.delete();
+        }
+    }
+
+    private static void writeOff(Mesh mesh, File file) throws IOException {
+        PrintWriter out = new PrintWriter(new BufferedWriter(new FileWriter(file)));
+        try {
+            out.println("OFF");
+            out.println(mesh.getVertexCount() + " " + mesh.getFaceCount() + " 0");
+            for (int i = 0; i < mesh.coords.length; i += 3) {
+                out.println(mesh.coords[i] + " " + mesh.coords[i + 1] + " " + mesh.coords[i + 2]);
+            }
+            for (int i = 0; i < mesh.indices.length; i += 3) {
+                out.println("3 " + mesh.indices[i] + " " + mesh.indices[i + 1] + " " + mesh.indices[i + 2]);
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    // Binary little endian, as the scanning tools write it
+    private static void writePly(Mesh mesh, File file) throws IOException {
+        OutputStream out = new BufferedOutputStream(new FileOutputStream(file), 64 * 1024);
+        try {
+            String header = "ply\nformat binary_little_endian 1.0\ncomment MeshBenchmark\n"
+                    + "element vertex " + mesh.getVertexCount() + "\n"
+                    + "property float x\nproperty float y\nproperty float z\n"
+                    + "element face " + mesh.getFaceCount() + "\n"
+                    + "property list uchar int vertex_indices\nend_header\n";
+            out.write(header.getBytes("US-ASCII"));
+            ByteBuffer data = ByteBuffer.allocate(Math.max(mesh.coords.length * 4, mesh.getFaceCount() * 13))
+                    .order(ByteOrder.LITTLE_ENDIAN);
+            data.asFloatBuffer().put(mesh.coords);
+            out.write(data.array(), 0, mesh.coords.length * 4);
+            data.clear();
+            for (int i = 0; i < mesh.indices.length; i += 3) {
+                data.put((byte) 3).putInt(mesh.indices[i]).putInt(mesh.indices[i + 1]).putInt(mesh.indices[i + 2]);
+            }
+            out.write(data.array(), 0, data.position());
+        } finally {
+            out.close();
+        }
+    }
+
+    // Positions and normals with the same numbers, the reader merges them back
+    private static void writeObj(Mesh mesh, File file) throws IOException {
+        PrintWriter out = new PrintWriter(new BufferedWriter(new FileWriter(file)));
+        try {
+            float[] normals = mesh.getNormals();
+            for (int i = 0; i < mesh.coords.length; i += 3) {
+                out.println("v " + mesh.coords[i] + " " + mesh.coords[i + 1] + " " + mesh.coords[i + 2]);
+            }
+            for (int i = 0; i < normals.length; i += 3) {
+                out.println("vn " + normals[i] + " " + normals[i + 1] + " " + normals[i + 2]);
+            }
+            for (int i = 0; i < mesh.indices.length; i += 3) {
+                int a = mesh.indices[i] + 1, b = mesh.indices[i + 1] + 1, c = mesh.indices[i + 2] + 1;
+                out.println("f " + a + "//" + a + " " + b + "//" + b + " " + c + "//" + c);
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    // A 90 degree perspective from (x, y, z) looking down -z, column major
+    private static void lookAt(float[] mvp, float x, float y, float z) {
+        float near = 0.001f, far = 1000;
+        float a = -(far + near) / (far - near);
+        float b = -2 * far * near / (far - near);
+        Arrays.fill(mvp, 0);
+        mvp[0] = 1;
+        mvp[5] = 1;
+        mvp[10] = a;
+        mvp[11] = -1;
+        mvp[12] = -x;
+        mvp[13] = -y;
+        mvp[14] = a * -z + b;
+        mvp[15] = z;
+    }
+
+    static void benchmarkCulling(Mesh mesh) {
+        // walls of 5 x 3 copies going away from the camera, as in MyGLRenderer
+        int instances = 60;
+        float[] min = new float[3];
+        float[] max = new float[3];
+        mesh.getBounds(min, max);
+        float size = Math.max(max[0] - min[0], Math.max(max[1] - min[1], max[2] - min[2]));
+        ProgressiveMesh occluder = ProgressiveMeshBuilder.build(mesh, 64);
+        float[] view = new float[16];
+        lookAt(view, (min[0] + max[0]) / 2, (min[1] + max[1]) / 2, max[2] + 1.5f * size);
+        float[] matrices = new float[instances * 16];
+        for (int i = 0; i < instances; i++) {
+            int column = i % 5;
+            int row = i / 5 % 3;
+            float x = (column + 1) / 2 * (column % 2 == 1 ? -1 : 1) * size * 0.5f;
+            float y = (row + 1) / 2 * (row % 2 == 1 ? -1 : 1) * size * 0.35f;
+            float z = -(i / 15) * size * 12;
+            System.arraycopy(view, 0, matrices, i * 16, 16);
+            for (int k = 0; k < 4; k++) {
+                matrices[i * 16 + 12 + k] += view[k] * x + view[4 + k] * y + view[8 + k] * z;
+            }
+        }
+        float[] mvp = new float[16];
+        StringBuilder line = new StringBuilder("  culling: " + instances + " copies");
+        for (int width = 32; width <= 128; width *= 2) {
+            // square, as the projection
+            OcclusionCuller culler = new OcclusionCuller(width, width);
+            // the whole front wall, or the copies behind its middle column show through
+            culler.setMaxOccluders(15);
+            double renderMicros = 0, testMicros = 0;
+            for (int round = 0; round < WARMUP_ROUNDS + BUILD_ROUNDS; round++) {
+                culler.beginFrame();
+                for (int i = 0; i < instances; i++) {
+                    System.arraycopy(matrices, i * 16, mvp, 0, 16);
+                    culler.addOccluder(mvp, occluder.coords, occluder.indices, occluder.baseFaceCount, min, max);
+                }
+                culler.render();
+                for (int i = 0; i < instances; i++) {
+                    System.arraycopy(matrices, i * 16, mvp, 0, 16);
+                    culler.isOccluded(mvp, min, max);
+                }
+                if (round >= WARMUP_ROUNDS) {
+                    renderMicros += culler.getRenderMicros();
+                    testMicros += culler.getTestMicros();
+                }
+            }
+            line.append(String.format(", %dx%d: %d culled, %d triangles in %.1f us + tests %.1f us", width,
+                    width, culler.getCulledCount(), culler.getTriangleCount(), renderMicros / BUILD_ROUNDS,
+                    testMicros / BUILD_ROUNDS));
+        }
+        System.out.println(line);
+    }
+
+    static void benchmarkProgressive(String file, Mesh mesh) throws IOException {
+        long start = System.nanoTime();
+        ProgressiveMesh built = ProgressiveMeshBuilder.build(mesh, mesh.getFaceCount() / 16);
+        float buildMs = (System.nanoTime() - start) / 1e6f;
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        built.write(out);
+        byte[] data = out.toByteArray();
+        byte[] text = readFile(file);
+
+        // Refined to the top and back, the faces must be those of the source and of the base
+        ProgressiveMesh read = ProgressiveMesh.read(new ByteArrayInputStream(data));
+        FloatBuffer vertices = FloatBuffer.allocate(read.vertexCount * 3);
+        FloatBuffer normals = FloatBuffer.allocate(read.vertexCount * 3);
+        ShortBuffer indices = ShortBuffer.allocate(read.faceCount * 3);
+        read.writeBase(vertices, normals, indices);
+        long[] base = faceKeys(indices, read.baseFaceCount, built.sourceVertices);
+        for (int n = 0; n < read.splitCount; n++) {
+            read.split(n, vertices, normals, indices);
+        }
+        boolean ok = Arrays.equals(faceKeys(indices, read.faceCount, built.sourceVertices),
+                faceKeys(ShortBuffer.wrap(mesh.toShortIndices()), mesh.getFaceCount(), null));
+        for (int n = read.splitCount - 1; n >= 0; n--) {
+            read.collapse(n, indices);
+        }
+        ok &= Arrays.equals(faceKeys(indices, read.baseFaceCount, built.sourceVertices), base);
+
+        // first frame: header and base read; full resolution: the whole OFF parsed
+        int rounds = 200;
+        double baseMs = 0, splitsMs = 0, offMs = 0;
+        for (int round = 0; round < WARMUP_ROUNDS * 10 + rounds; round++) {
+            ByteArrayInputStream in = new ByteArrayInputStream(data);
+            long t0 = System.nanoTime();
+            ProgressiveMesh progressive = ProgressiveMesh.readBase(in);
+            progressive.writeBase(vertices, normals, indices);
+            long t1 = System.nanoTime();
+            progressive.readSplits(in, progressive.splitCount);
+            for (int n = 0; n < progressive.splitCount; n++) {
+                progressive.split(n, vertices, normals, indices);
+            }
+            long t2 = System.nanoTime();
+            OffReader.read(new ByteArrayInputStream(text)).getNormals();
+            long t3 = System.nanoTime();
+            if (round >= WARMUP_ROUNDS * 10) {
+                baseMs += (t1 - t0) / 1e6;
+                splitsMs += (t2 - t1) / 1e6;
+                offMs += (t3 - t2) / 1e6;
+            }
+        }
+        System.out.printf("  progressive: %d base faces + %d splits, %d bytes, build %.1f ms, round trip %s;"
+                        + " first frame %.3f ms, full detail %.3f ms, OFF load %.3f ms%n",
+                built.baseFaceCount, built.splitCount, data.length, buildMs, ok ? "ok" : "FAILED",
+                baseMs / rounds, (baseMs + splitsMs) / rounds, offMs / rounds);
+    }
+
+    // Sorted faces, in source vertex numbers and each rotated to start at its smallest vertex
+    private static long[] faceKeys(ShortBuffer indices, int faceCount, int[] sourceVertices) {
+        long[] keys = new long[faceCount];
+        int[] face = new int[3];
+        for (int f = 0; f < faceCount; f++) {
+            for (int k = 0; k < 3; k++) {
+                int v = indices.get(f * 3 + k) & 0xFFFF;
+                face[k] = sourceVertices != null ? sourceVertices[v] : v;
+            }
+            int first = face[0] <= face[1] && face[0] <= face[2] ? 0 : face[1] <= face[2] ? 1 : 2;
+            keys[f] = ((long) face[first] << 40) | ((long) face[(first + 1) % 3] << 20) | face[(first + 2) % 3];
+        }
+        Arrays.sort(keys);
+        return keys;
+    }
+
+    static void benchmarkCodec(String file, Mesh mesh) throws IOException {
+        byte[] text = readFile(file);
+        ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+        MeshCodec.encode(mesh, MeshCodec.DEFAULT_BITS, encoded);
+        byte[] compressed = encoded.toByteArray();
+
+        // Round trip: exact faces, positions within a quantization step
+        Mesh decoded = MeshCodec.decode(new ByteArrayInputStream(compressed));
+        float[] min = new float[3];
+        float[] max = new float[3];
+        mesh.getBounds(min, max);
+        float maxError = 0;
+        float tolerance = 0;
+        for (int k = 0; k < 3; k++) {
+            tolerance = Math.max(tolerance, (max[k] - min[k]) / ((1 << MeshCodec.DEFAULT_BITS) - 1));
+        }
+        for (int i = 0; i < mesh.coords.length; i++) {
+            maxError = Math.max(maxError, Math.abs(mesh.coords[i] - decoded.coords[i]));
+        }
+        boolean ok = Arrays.equals(mesh.indices, decoded.indices) && maxError <= tolerance;
+
+        int rounds = 200;
+        for (int i = 0; i < WARMUP_ROUNDS * 10; i++) {
+            OffReader.read(new ByteArrayInputStream(text));
+            MeshCodec.decode(new ByteArrayInputStream(compressed));
+        }
+        long start = System.nanoTime();
+        for (int i = 0; i < rounds; i++) {
+            OffReader.read(new ByteArrayInputStream(text));
+        }
+        double offSeconds = (System.nanoTime() - start) / 1e9 / rounds;
+        start = System.nanoTime();
+        for (int i = 0; i < rounds; i++) {
+            MeshCodec.decode(new ByteArrayInputStream(compressed));
+        }
+        double decodeSeconds = (System.nanoTime() - start) / 1e9 / rounds;
+
+        // throughput in MB of mesh data (positions + 32 bit indices) produced
+        double meshMb = (mesh.coords.length + mesh.indices.length) * 4 / 1e6;
+        System.out.printf("  codec: %d -> %d bytes (%.1fx), round trip %s (max error %.2g),"
+                        + " OFF parse %.1f MB/s, decode %.1f MB/s (%.1fx faster)%n",
+                text.length, compressed.length, (double) text.length / compressed.length,
+                ok ? "ok" : "FAILED", maxError, meshMb / offSeconds, meshMb / decodeSeconds,
+                offSeconds / decodeSeconds);
+    }
+
+    // Empty, flat and 32 bit indexed meshes must survive a round trip too
+    static void checkCodecEdgeCases() throws IOException {
+        int big = 70000;
+        float[] line = new float[big * 3];
+        for (int i = 0; i < big; i++) {
+            line[i * 3] = i;
+        }
+        Mesh[] meshes = {
+                new Mesh(new float[0], new int[0]),
+                new Mesh(new float[]{1, 1, 1, 2, 1, 1, 1, 2, 1}, new int[]{0, 1, 2}),
+                new Mesh(line, new int[]{0, big / 2, big - 1, big - 1, 1, 0})
+        };
+        for (Mesh mesh : meshes) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            MeshCodec.encode(mesh, MeshCodec.DEFAULT_BITS, out);
+            Mesh decoded = MeshCodec.decode(new ByteArrayInputStream(out.toByteArray()));
+            if (!Arrays.equals(mesh.indices, decoded.indices) || mesh.coords.length != decoded.coords.length) {
+                throw new IllegalStateException("codec round trip failed for " + mesh.getFaceCount() + " faces");
+            }
+        }
+
+        // truncated and corrupt copies of the line must fail with an IOException
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        MeshCodec.encode(meshes[2], MeshCodec.DEFAULT_BITS, out);
+        byte[] valid = out.toByteArray();
+        int[] lengths = {0, 12, MeshCodec.HEADER_SIZE, MeshCodec.HEADER_SIZE + 10, valid.length / 2, valid.length - 1};
+        for (int length : lengths) {
+            byte[] truncated = new byte[length];
+            System.arraycopy(valid, 0, truncated, 0, length);
+            expectCorrupt(truncated, "truncated to " + length + " bytes");
+        }
+        expectCorrupt(withHeaderInt(valid, 0, 0x12345678), "wrong magic");
+        expectCorrupt(withHeaderInt(valid, 4, -1), "negative vertex count");
+        expectCorrupt(withHeaderInt(valid, 4, Integer.MAX_VALUE), "huge vertex count");
+        expectCorrupt(withHeaderInt(valid, 4, big + 1), "vertex count above the data");
+        expectCorrupt(withHeaderInt(valid, 4, big - 1), "vertex count below the data");
+        expectCorrupt(withHeaderInt(valid, 8, Integer.MAX_VALUE / 3), "huge face count");
+        expectCorrupt(withHeaderInt(valid, 8, 1), "face count below the data");
+        expectCorrupt(withHeaderInt(valid, 12, 0), "0 bits");
+        expectCorrupt(withHeaderInt(valid, 28, Float.floatToIntBits(Float.NaN)), "NaN step");
+        Random random = new Random(7);
+        for (int i = 0; i < 20; i++) {
+            byte[] flipped = valid.clone();
+            int at = MeshCodec.HEADER_SIZE + random.nextInt(valid.length - MeshCodec.HEADER_SIZE);
+            flipped[at] ^= 1 << random.nextInt(8);
+            expectCorrupt(flipped, "bit flipped at " + at);
+        }
+
+        // a small triangle whose index points past its vertices
+        out.reset();
+        MeshCodec.encode(meshes[1], MeshCodec.DEFAULT_BITS, out);
+        expectCorrupt(withHeaderInt(out.toByteArray(), 4, 2), "index past the vertices");
+        System.out.println("codec: truncated and corrupt inputs rejected");
+    }
+
+    private static byte[] withHeaderInt(byte[] data, int offset, int value) {
+        byte[] copy = data.clone();
+        ByteBuffer.wrap(copy).order(ByteOrder.LITTLE_ENDIAN).putInt(offset, value);
+        return copy;
+    }
+
+    private static void expectCorrupt(byte[] data, String what) {
+        try {
+            MeshCodec.decode(new ByteArrayInputStream(data));
+        } catch (IOException e) {
+            return;
+        } catch (RuntimeException e) {
+            throw new IllegalStateException("codec threw " + e + " for " + what, e);
+        } catch (OutOfMemoryError e) {
+            throw new IllegalStateException("codec ran out of memory for " + what, e);
+        }
+        throw new IllegalStateException("codec accepted " + what);
+    }
+
+    static void benchmarkArena(Mesh mesh) {
+        // the four buffers of a Figure, loaded and dropped like a model
+        // switch; a third of the loads are of a mesh half as big
+        int[] sizes = {mesh.coords.length * 4, mesh.getVertexCount() * 16, mesh.indices.length * 2,
+                mesh.coords.length * 4};
+        int loads = 200;
+        BufferArena arena = new BufferArena();
+        BufferArena.Slice[] slices = new BufferArena.Slice[sizes.length];
+        long arenaNanos = 0, directNanos = 0;
+        for (int round = 0; round < loads; round++) {
+            int shift = round % 3 == 2 ? 1 : 0;
+            long start = System.nanoTime();
+            for (int b = 0; b < sizes.length; b++) {
+                slices[b] = arena.allocate(sizes[b] >> shift);
+            }
+            if (round >= WARMUP_ROUNDS) {
+                // the first load reserves the slab
+                arenaNanos += System.nanoTime() - start;
+            }
+            for (int b = 0; b < sizes.length; b++) {
+                arena.release(slices[b]);
+            }
+            start = System.nanoTime();
+            for (int b = 0; b < sizes.length; b++) {
+                ByteBuffer.allocateDirect(sizes[b] >> shift);
+            }
+            if (round >= WARMUP_ROUNDS) {
+                directNanos += System.nanoTime() - start;
+            }
+        }
+        for (int b = 0; b < sizes.length; b++) {
+            slices[b] = arena.allocate(sizes[b]);
+        }
+        System.out.printf("  arena: %d loads, %.1f us vs %.1f us allocateDirect, %d slabs, %d KB live,"
+                        + " %d KB free, %d KB fragmented, %.0f allocations/s%n", loads,
+                arenaNanos / 1e3 / (loads - WARMUP_ROUNDS), directNanos / 1e3 / (loads - WARMUP_ROUNDS), arena.getSlabCount(),
+                arena.getLiveBytes() / 1024, arena.getFreeBytes() / 1024, arena.getFragmentedBytes() / 1024,
+                arena.getAllocationsPerSecond());
+    }
+
+    static void benchmarkSubdivision(Mesh mesh) {
+        AdaptiveSubdivision subdivision = new AdaptiveSubdivision(mesh, WorkerPool.getDefault());
+        // patch by patch at one level, the result must be that of the whole mesh
+        float[] min = new float[3];
+        float[] max = new float[3];
+        mesh.getBounds(min, max);
+        float size = Math.max(max[0] - min[0], Math.max(max[1] - min[1], max[2] - min[2]));
+        StringBuilder line = new StringBuilder("  subdivision: " + subdivision.getPatchCount() + " patches");
+        for (int level = 1; level <= AdaptiveSubdivision.MAX_LEVEL && mesh.getFaceCount() << 2 * level <= 1 << 22;
+                level++) {
+            subdivision.update(level);
+            AdaptiveSubdivision.Patch whole = subdivision.subdivideAll(level);
+            if (subdivision.getTriangleCount() * 3 != whole.faces.length) {
+                throw new IllegalStateException("subdivision lost faces at level " + level);
+            }
+            float[] coords = subdivision.getCoords();
+            float[] normals = subdivision.getNormals();
+            short[] indices = subdivision.getIndices();
+            float error = 0;
+            float normalError = 0;
+            for (int b = 0; b < subdivision.getBatchCount(); b++) {
+                int first = subdivision.getBatchFirstIndex(b);
+                int vertex = subdivision.getBatchFirstVertex(b);
+                for (int i = first; i < first + subdivision.getBatchIndexCount(b); i++) {
+                    int v = vertex + (indices[i] & 0xFFFF);
+                    int w = whole.faces[i];
+                    for (int k = 0; k < 3; k++) {
+                        error = Math.max(error, Math.abs(coords[v * 3 + k] - whole.coords[w * 3 + k]));
+                        normalError = Math.max(normalError, Math.abs(normals[v * 3 + k] - whole.normals[w * 3 + k]));
+                    }
+                }
+            }
+            if (error > size * 1e-4f || normalError > 1e-3f) {
+                throw new IllegalStateException("patches differ from the whole mesh at level " + level + " by "
+                        + error + ", normals by " + normalError);
+            }
+            line.append(String.format(", level %d: %d triangles in %.1f ms", level, subdivision.getTriangleCount(),
+                    subdivision.getLastRefineMicros() / 1e3f));
+        }
+        System.out.println(line);
+
+        // a zoom in and back out, 1000 pixels high; the way back is all in the cache
+        subdivision.invalidate();
+        subdivision.update(0);
+        subdivision.setEdgePixels(AdaptiveSubdivision.DEFAULT_EDGE_PIXELS);
+        float[] mvp = new float[16];
+        float screenScale = 500;
+        line = new StringBuilder("  adaptive zoom (" + WorkerPool.getDefault().getThreadCount() + " threads):");
+        int steps = 8;
+        for (int step = 0; step <= steps * 2; step++) {
+            float zoom = (float) Math.pow(8, (steps - Math.abs(step - steps)) / (float) steps);
+            lookAt(mvp, (min[0] + max[0]) / 2, (min[1] + max[1]) / 2, max[2] + 1.5f * size / zoom);
+            if (subdivision.update(mvp, screenScale)) {
+                line.append(String.format(" x%.1f %d triangles %d new %d cached %.1f ms;", zoom,
+                        subdivision.getTriangleCount(), subdivision.getLastRefinedCount(),
+                        subdivision.getLastReusedCount(), subdivision.getLastRefineMicros() / 1e3f));
+            }
+        }
+        System.out.println(line);
+    }
+
+    static void benchmarkSilhouette(Mesh mesh) {
+        WorkerPool pool = WorkerPool.getDefault();
+        SilhouetteEdges silhouettes = new SilhouetteEdges(mesh, pool);
+        // against one thread only when there is more than one
+        SilhouetteEdges serial = pool.getThreadCount() > 1 ? new SilhouetteEdges(mesh, new WorkerPool(1)) : null;
+        silhouettes.setReuseTolerance(0);
+        if (serial != null) {
+            serial.setReuseTolerance(0);
+        }
+        float[] min = new float[3];
+        float[] max = new float[3];
+        mesh.getBounds(min, max);
+        float size = Math.max(max[0] - min[0], Math.max(max[1] - min[1], max[2] - min[2]));
+        float[] center = {(min[0] + max[0]) / 2, (min[1] + max[1]) / 2, (min[2] + max[2]) / 2};
+        float distance = size * 2;
+
+        // a full turn around the figure, 2 degrees a frame; the scan of the
+        // faces it replaces runs on every NAIVE_STRIDE-th frame, warmed up
+        // the same, and must find the same edges
+        int frames = 180;
+        float[] eye = new float[3];
+        double parallelMicros = 0, serialMicros = 0, naiveMicros = 0;
+        int naiveFrames = 0;
+        long lineTotal = 0;
+        for (int frame = -WARMUP_ROUNDS; frame < frames; frame++) {
+            orbit(center, distance, frame * (float) Math.PI / 90, eye);
+            silhouettes.extract(eye[0], eye[1], eye[2]);
+            if (serial != null) {
+                serial.extract(eye[0], eye[1], eye[2]);
+            }
+            if (frame >= 0) {
+                parallelMicros += silhouettes.getLastExtractMicros();
+                serialMicros += serial != null ? serial.getLastExtractMicros() : 0;
+                lineTotal += silhouettes.getLineCount();
+            }
+            if (frame < 0 || frame % NAIVE_STRIDE == 0) {
+                long start = System.nanoTime();
+                long[] naive = naiveSilhouette(mesh, eye);
+                if (frame >= 0) {
+                    naiveMicros += (System.nanoTime() - start) / 1e3;
+                    naiveFrames++;
+                }
+                checkSilhouette(silhouettes, naive);
+            }
+        }
+
+        // a slow drag, a tenth of a degree a frame, keeping the lines of close views
+        silhouettes.setReuseTolerance(SilhouetteEdges.DEFAULT_REUSE_TOLERANCE);
+        long extracted = silhouettes.getExtractedCount();
+        double dragMicros = 0;
+        for (int frame = 0; frame < frames; frame++) {
+            orbit(center, distance, frame * (float) Math.PI / 1800, eye);
+            silhouettes.extract(eye[0], eye[1], eye[2]);
+            dragMicros += silhouettes.getLastExtractMicros();
+        }
+        String threads = serial != null
+                ? String.format("%.1f us per frame on %d threads, %.1f us on 1", parallelMicros / frames,
+                        pool.getThreadCount(), serialMicros / frames)
+                : String.format("%.1f us per frame", parallelMicros / frames);
+        System.out.printf("  silhouette: %d edges listed in %.1f ms, %d lines, %s, scan of the faces %.1f us;"
+                        + " slow drag %.1f us, %d of %d frames extracted%n",
+                silhouettes.getEdgeCount(), silhouettes.getBuildMs(), lineTotal / frames, threads,
+                naiveMicros / naiveFrames, dragMicros / frames, silhouettes.getExtractedCount() - extracted, frames);
+    }
+
+    private static void checkSilhouette(SilhouetteEdges silhouettes, long[] naive) {
+        long[] found = new long[silhouettes.getLineCount()];
+        int[] lines = silhouettes.getLines();
+        for (int i = 0; i < found.length; i++) {
+            found[i] = edgeKey(lines[i * 2], lines[i * 2 + 1]);
+        }
+        Arrays.sort(found);
+        if (!Arrays.equals(found, naive)) {
+            throw new IllegalStateException("silhouette has " + found.length + " edges, the scan " + naive.length);
+        }
+    }
+
+    private static void orbit(float[] center, float distance, float angle, float[] eye) {
+        eye[0] = center[0] + distance * (float) Math.sin(angle);
+        eye[1] = center[1] + distance * 0.3f;
+        eye[2] = center[2] + distance * (float) Math.cos(angle);
+    }
+
+    private static long edgeKey(int a, int b) {
+        return ((long) Math.min(a, b) << 32) | Math.max(a, b);
+    }
+
+    // Per frame, the faces facing the eye and then every edge with its two faces, sorted edge keys
+    private static long[] naiveSilhouette(Mesh mesh, float[] eye) {
+        int[] indices = mesh.indices;
+        float[] coords = mesh.coords;
+        int faceCount = mesh.getFaceCount();
+        boolean[] front = new boolean[faceCount];
+        for (int f = 0; f < faceCount; f++) {
+            int a = indices[f * 3] * 3, b = indices[f * 3 + 1] * 3, c = indices[f * 3 + 2] * 3;
+            float ux = coords[b] - coords[a], uy = coords[b + 1] - coords[a + 1], uz = coords[b + 2] - coords[a + 2];
+            float vx = coords[c] - coords[a], vy = coords[c + 1] - coords[a + 1], vz = coords[c + 2] - coords[a + 2];
+            float nx = uy * vz - uz * vy, ny = uz * vx - ux * vz, nz = ux * vy - uy * vx;
+            front[f] = nx * (eye[0] - coords[a]) + ny * (eye[1] - coords[a + 1]) + nz * (eye[2] - coords[a + 2]) > 0;
+        }
+        Map<Long, Integer> first = new HashMap<Long, Integer>();
+        Set<Long> silhouette = new HashSet<Long>();
+        for (int f = 0; f < faceCount; f++) {
+            for (int k = 0; k < 3; k++) {
+                Long key = edgeKey(indices[f * 3 + k], indices[f * 3 + (k + 1) % 3]);
+                Integer other = first.remove(key);
+                if (other == null) {
+                    first.put(key, f);
+                } else if (front[other] != front[f]) {
+                    silhouette.add(key);
+                }
+            }
+        }
+        // the edges left with one face are borders, always drawn
+        silhouette.addAll(first.keySet());
+        long[] keys = new long[silhouette.size()];
+        int i = 0;
+        for (Long key : silhouette) {
+            keys[i++] = key;
+        }
+        Arrays.sort(keys);
+        return keys;
+    }
+
+    // Random allocations and releases must never overlap, and releasing
+    // everything must merge the slabs back whole
+    static void checkArena() {
+        BufferArena arena = new BufferArena();
+        Random random = new Random(5);
+        BufferArena.Slice[] slices = new BufferArena.Slice[256];
+        for (int step = 0; step < 20000; step++) {
+            int i = random.nextInt(slices.length);
+            if (slices[i] != null) {
+                ByteBuffer bytes = slices[i].getBytes();
+                for (int k = 0; k < bytes.limit(); k += 61) {
+                    if (bytes.get(k) != (byte) i) {
+                        throw new IllegalStateException("arena slices overlap");
+                    }
+                }
+                arena.release(slices[i]);
+                slices[i] = null;
+            } else {
+                int size = 1 + random.nextInt(random.nextBoolean() ? 4096 : BufferArena.SLAB_SIZE / 4);
+                slices[i] = arena.allocate(size);
+                ByteBuffer bytes = slices[i].getBytes();
+                for (int k = 0; k < bytes.limit(); k += 61) {
+                    bytes.put(k, (byte) i);
+                }
+            }
+        }
+        for (int i = 0; i < slices.length; i++) {
+            arena.release(slices[i]);
+        }
+        if (arena.getLiveBytes() != 0 || arena.getFreeBytes() != (long) arena.getSlabCount() * BufferArena.SLAB_SIZE
+                || arena.getLargestFreeBlock() != BufferArena.SLAB_SIZE) {
+            throw new IllegalStateException("arena did not merge back");
+        }
+    }
+
+    static byte[] readFile(String file) throws IOException {
+        if (MeshGenerator.isSpec(file)) {
+            // the OFF text the generated mesh would have
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            MeshGenerator.fromSpec(file).writeOff(out, WorkerPool.getDefault());
+            return out.toByteArray();
+        }
+        File f = new File(file);
+        byte[] data = new byte[(int) f.length()];
+        DataInputStream in = new DataInputStream(new FileInputStream(f));
+        try {
+            in.readFully(data);
+        } finally {
+            in.close();
+        }
+        return data;
+    }
+}
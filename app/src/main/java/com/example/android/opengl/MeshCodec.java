@@ -0,0 +1,328 @@
+package com.example.android.opengl;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+
+/**
+ * Compressed mesh format for the bundled assets.
+ *
+ * Positions are quantized to a grid over the bounding box and stored as the
+ * difference with the previous vertex. Each face stores its first index as
+ * the difference with the first index of the previous face and the other two
+ * relative to its first one. The differences are zigzag varints, so the
+ * usual small values take a single byte, and the result is deflated, which
+ * does the entropy coding. Normals are not stored, they are recomputed.
+ *
+ * <pre>
+ * int magic ("MSZ1"), int vertexCount, int faceCount, int bits
+ * float min[3], float step[3]
+ * deflate(varint positions[vertexCount * 3], varint faces[faceCount * 3])</pre>
+ *
+ * {@link #decode} does not trust the header: the counts must be within
+ * {@link #MAX_VERTICES} and {@link #MAX_FACES} and the arrays only grow as
+ * the inflated data fills them, so a corrupt count fails when the data ends
+ * instead of allocating it all up front.
+ */
+public class MeshCodec {
+    static final int MAGIC = 0x315A534D;
+    static final int HEADER_SIZE = 40;
+    static final int DEFAULT_BITS = 16;
+    static final int MAX_VERTICES = 1 << 24;
+    static final int MAX_FACES = 1 << 24;
+    // elements allocated before the data shows there are more
+    private static final int INITIAL_ELEMENTS = 3 * 4096;
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private MeshCodec() {
+    }
+
+    /**
+     * Compresses a mesh.
+     *
+     * @param bits - Quantization bits per coordinate, 1 to 24.
+     */
+    public static void encode(Mesh mesh, int bits, OutputStream out) throws IOException {
+        if (bits < 1 || bits > 24) {
+            throw new IllegalArgumentException("bits must be in [1, 24]: " + bits);
+        }
+        float[] min = new float[3];
+        float[] max = new float[3];
+        mesh.getBounds(min, max);
+        float[] step = new float[3];
+        int levels = (1 << bits) - 1;
+        for (int k = 0; k < 3; k++) {
+            if (mesh.getVertexCount() == 0) {
+                min[k] = max[k] = 0;
+            }
+            step[k] = (max[k] - min[k]) / levels;
+        }
+
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(MAGIC);
+        header.putInt(mesh.getVertexCount());
+        header.putInt(mesh.getFaceCount());
+        header.putInt(bits);
+        for (int k = 0; k < 3; k++) {
+            header.putFloat(min[k]);
+        }
+        for (int k = 0; k < 3; k++) {
+            header.putFloat(step[k]);
+        }
+        out.write(header.array());
+
+        Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
+        DeflaterOutputStream deflated = new DeflaterOutputStream(out, deflater, BUFFER_SIZE);
+        ByteArrayOutputStream chunk = new ByteArrayOutputStream(BUFFER_SIZE);
+
+        int[] previous = new int[3];
+        float[] coords = mesh.coords;
+        for (int i = 0; i < coords.length; i += 3) {
+            for (int k = 0; k < 3; k++) {
+                int q = step[k] > 0 ? Math.round((coords[i + k] - min[k]) / step[k]) : 0;
+                q = Math.max(0, Math.min(levels, q));
+                writeVarint(chunk, zigzag(q - previous[k]));
+                previous[k] = q;
+            }
+            flushChunk(chunk, deflated);
+        }
+
+        int previousFirst = 0;
+        int[] indices = mesh.indices;
+        for (int i = 0; i < indices.length; i += 3) {
+            int a = indices[i];
+            writeVarint(chunk, zigzag(a - previousFirst));
+            writeVarint(chunk, zigzag(indices[i + 1] - a));
+            writeVarint(chunk, zigzag(indices[i + 2] - a));
+            previousFirst = a;
+            flushChunk(chunk, deflated);
+        }
+        chunk.writeTo(deflated);
+        deflated.finish();
+        deflater.end();
+    }
+
+    /**
+     * Decompresses a mesh. Besides the mesh arrays only two fixed size
+     * buffers are allocated.
+     *
+     * @param inputStream - Stream positioned at the header, it is not closed.
+     * @throws IOException - If the data is truncated, or does not match its
+     * header or a valid mesh.
+     */
+    public static Mesh decode(InputStream inputStream) throws IOException {
+        DataInputStream in = new DataInputStream(inputStream);
+        byte[] input = new byte[BUFFER_SIZE];
+        in.readFully(input, 0, HEADER_SIZE);
+        ByteBuffer header = ByteBuffer.wrap(input, 0, HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        if (header.getInt() != MAGIC) {
+            throw new IOException("Not a compressed mesh");
+        }
+        int vertexCount = header.getInt();
+        int faceCount = header.getInt();
+        int bits = header.getInt();
+        float minX = header.getFloat(), minY = header.getFloat(), minZ = header.getFloat();
+        float stepX = header.getFloat(), stepY = header.getFloat(), stepZ = header.getFloat();
+        if (vertexCount < 0 || vertexCount > MAX_VERTICES || faceCount < 0 || faceCount > MAX_FACES) {
+            throw new IOException("Corrupt mesh, " + vertexCount + " vertices and " + faceCount + " faces");
+        }
+        if (bits < 1 || bits > 24) {
+            throw new IOException("Corrupt mesh, " + bits + " bits");
+        }
+        if (!isFinite(minX) || !isFinite(minY) || !isFinite(minZ)
+                || !(stepX >= 0) || !(stepY >= 0) || !(stepZ >= 0)
+                || Float.isInfinite(stepX) || Float.isInfinite(stepY) || Float.isInfinite(stepZ)) {
+            throw new IOException("Corrupt mesh, bad bounds");
+        }
+        int levels = (1 << bits) - 1;
+
+        Source source = new Source(in, input);
+        try {
+            int coordCount = vertexCount * 3;
+            float[] coords = new float[Math.min(coordCount, INITIAL_ELEMENTS)];
+            int qx = 0, qy = 0, qz = 0;
+            for (int i = 0; i < coordCount; i += 3) {
+                if (i == coords.length) {
+                    coords = grow(coords, coordCount);
+                }
+                qx += unzigzag(source.readVarint());
+                qy += unzigzag(source.readVarint());
+                qz += unzigzag(source.readVarint());
+                if ((qx | qy | qz) < 0 || qx > levels || qy > levels || qz > levels) {
+                    throw new IOException("Corrupt mesh, vertex " + i / 3 + " out of the grid");
+                }
+                coords[i] = minX + qx * stepX;
+                coords[i + 1] = minY + qy * stepY;
+                coords[i + 2] = minZ + qz * stepZ;
+            }
+
+            int indexCount = faceCount * 3;
+            int[] indices = new int[Math.min(indexCount, INITIAL_ELEMENTS)];
+            int first = 0;
+            for (int i = 0; i < indexCount; i += 3) {
+                if (i == indices.length) {
+                    indices = grow(indices, indexCount);
+                }
+                first += unzigzag(source.readVarint());
+                indices[i] = first;
+                indices[i + 1] = first + unzigzag(source.readVarint());
+                indices[i + 2] = first + unzigzag(source.readVarint());
+                for (int k = i; k < i + 3; k++) {
+                    if (indices[k] < 0 || indices[k] >= vertexCount) {
+                        throw new IOException("Corrupt mesh, index " + indices[k] + " of " + vertexCount
+                                + " vertices");
+                    }
+                }
+            }
+            // the inflated data holds exactly what the header counts
+            source.checkEnd();
+            return new Mesh(coords, indices);
+        } finally {
+            source.end();
+        }
+    }
+
+    private static boolean isFinite(float value) {
+        return !Float.isNaN(value) && !Float.isInfinite(value);
+    }
+
+    // Doubles an array read so far, up to its final size
+    private static float[] grow(float[] array, int size) {
+        float[] grown = new float[(int) Math.min((long) array.length * 2, size)];
+        System.arraycopy(array, 0, grown, 0, array.length);
+        return grown;
+    }
+
+    private static int[] grow(int[] array, int size) {
+        int[] grown = new int[(int) Math.min((long) array.length * 2, size)];
+        System.arraycopy(array, 0, grown, 0, array.length);
+        return grown;
+    }
+
+    private static void flushChunk(ByteArrayOutputStream chunk, OutputStream out) throws IOException {
+        if (chunk.size() >= BUFFER_SIZE - 32) {
+            chunk.writeTo(out);
+            chunk.reset();
+        }
+    }
+
+    private static int zigzag(int value) {
+        return (value << 1) ^ (value >> 31);
+    }
+
+    private static int unzigzag(int value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    private static void writeVarint(ByteArrayOutputStream out, int value) {
+        while ((value & ~0x7F) != 0) {
+            out.write((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    /**
+     * Inflates the compressed stream into a fixed buffer and reads varints
+     * from it.
+     */
+    private static class Source {
+        private final InputStream mIn;
+        private final byte[] mInput;
+        private final byte[] mBuffer = new byte[BUFFER_SIZE];
+        private final Inflater mInflater = new Inflater();
+        private int mPosition;
+        private int mLimit;
+
+        Source(InputStream in, byte[] input) {
+            mIn = in;
+            mInput = input;
+        }
+
+        int readVarint() throws IOException {
+            int value = 0;
+            int shift = 0;
+            while (true) {
+                if (mPosition == mLimit) {
+                    fill();
+                }
+                int b = mBuffer[mPosition++];
+                value |= (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+                shift += 7;
+                if (shift > 28) {
+                    throw new IOException("Corrupt mesh, varint too long");
+                }
+            }
+        }
+
+        private void fill() throws IOException {
+            try {
+                int n;
+                while ((n = mInflater.inflate(mBuffer)) == 0) {
+                    if (mInflater.finished() || mInflater.needsDictionary()) {
+                        throw new IOException("Corrupt mesh, data ends early");
+                    }
+                    if (mInflater.needsInput()) {
+                        int read = mIn.read(mInput);
+                        if (read < 0) {
+                            throw new IOException("Corrupt mesh, data ends early");
+                        }
+                        mInflater.setInput(mInput, 0, read);
+                    }
+                }
+                mPosition = 0;
+                mLimit = n;
+            } catch (DataFormatException e) {
+                throw new IOException("Corrupt mesh: " + e.getMessage());
+            }
+        }
+
+        /**
+         * Fails unless the compressed stream ends here, checking its
+         * checksum on the way.
+         */
+        void checkEnd() throws IOException {
+            if (mPosition < mLimit) {
+                throw new IOException("Corrupt mesh, data after the faces");
+            }
+            try {
+                while (!mInflater.finished()) {
+                    if (mInflater.inflate(mBuffer) > 0) {
+                        throw new IOException("Corrupt mesh, data after the faces");
+                    }
+                    if (mInflater.finished()) {
+                        break;
+                    }
+                    if (mInflater.needsDictionary()) {
+                        throw new IOException("Corrupt mesh, data ends early");
+                    }
+                    if (mInflater.needsInput()) {
+                        int read = mIn.read(mInput);
+                        if (read < 0) {
+                            throw new IOException("Corrupt mesh, data ends early");
+                        }
+                        mInflater.setInput(mInput, 0, read);
+                    }
+                }
+            } catch (DataFormatException e) {
+                throw new IOException("Corrupt mesh: " + e.getMessage());
+            }
+        }
+
+        void end() {
+            mInflater.end();
+        }
+    }
+}
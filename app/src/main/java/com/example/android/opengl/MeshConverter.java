@@ -0,0 +1,260 @@
+package com.example.android.opengl;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Command line tool that converts a directory of OFF, binary PLY and OBJ
+ * files into the binary runtime format ({@link MeshFile}) and writes per
+ * file statistics to stats.csv. It runs on a desktop JVM:
+ *
+ * <pre>
+ * java -cp &lt;classes&gt; com.example.android.opengl.MeshConverter [-z] [-ao] in_dir out_dir [threads] [memory_mb]</pre>
+ *
+ * Files are processed in parallel. Each OFF file is streamed: only the vertex
+ * positions, the normals and the edge list are kept in memory, and a file
+ * only starts once its estimated working set fits in the memory budget.
+ * With -z the output is the compressed asset format ({@link MeshCodec}),
+ * which needs the whole mesh in memory to quantize it. With -ao the ambient
+ * occlusion is baked too and written next to each mesh ({@link AmbientOcclusion}).
+ */
+public class MeshConverter {
+    private static final String OUTPUT_EXTENSION = ".msh";
+    private static final String COMPRESSED_EXTENSION = ".mshz";
+    private static final String OCCLUSION_EXTENSION = ".ao";
+
+    private final File mOutputDir;
+    private final Semaphore mMemory;
+    private final int mBudgetKb;
+    private final PrintWriter mStatsOut;
+    private final AtomicInteger mFailed = new AtomicInteger();
+    private final boolean mCompressed;
+    private final boolean mOcclusion;
+
+    public MeshConverter(File outputDir, int memoryMb, PrintWriter statsOut, boolean compressed,
+                         boolean occlusion) {
+        mOutputDir = outputDir;
+        mCompressed = compressed;
+        mOcclusion = occlusion;
+        mBudgetKb = memoryMb * 1024;
+        mMemory = new Semaphore(mBudgetKb);
+        mStatsOut = statsOut;
+    }
+
+    public static void main(String[] args) throws Exception {
+        boolean compressed = false;
+        boolean occlusion = false;
+        int flags = 0;
+        for (; flags < args.length && args[flags].startsWith("-"); flags++) {
+            if (args[flags].equals("-z")) {
+                compressed = true;
+            } else if (args[flags].equals("-ao")) {
+                occlusion = true;
+            } else {
+                flags = args.length;
+            }
+        }
+        String[] rest = new String[Math.max(0, args.length - flags)];
+        System.arraycopy(args, args.length - rest.length, rest, 0, rest.length);
+        args = rest;
+        if (args.length < 2) {
+            System.err.println("usage: MeshConverter [-z] [-ao] in_dir out_dir [threads] [memory_mb]");
+            System.exit(2);
+        }
+        File inputDir = new File(args[0]);
+        File outputDir = new File(args[1]);
+        int threads = args.length > 2 ? Integer.parseInt(args[2]) : Runtime.getRuntime().availableProcessors();
+        int memoryMb = args.length > 3 ? Integer.parseInt(args[3])
+                : (int) (Runtime.getRuntime().maxMemory() / (2 * 1024 * 1024));
+
+        File[] inputs = inputDir.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return MeshLoader.isSource(name);
+            }
+        });
+        if (inputs == null) {
+            System.err.println("Cannot read " + inputDir);
+            System.exit(2);
+        }
+        Arrays.sort(inputs);
+        if (!outputDir.isDirectory() && !outputDir.mkdirs()) {
+            System.err.println("Cannot create " + outputDir);
+            System.exit(2);
+        }
+
+        PrintWriter statsOut = new PrintWriter(new File(outputDir, "stats.csv"), "UTF-8");
+        statsOut.println(MeshStats.CSV_HEADER);
+        MeshConverter converter = new MeshConverter(outputDir, memoryMb, statsOut, compressed, occlusion);
+        long start = System.currentTimeMillis();
+        int failed = converter.convertAll(inputs, threads);
+        statsOut.close();
+
+        System.out.println("Converted " + (inputs.length - failed) + "/" + inputs.length
+                + " files in " + (System.currentTimeMillis() - start) + " ms");
+        System.exit(failed == 0 ? 0 : 1);
+    }
+
+    /**
+     * Converts the files on a pool of threads. The submission queue is
+     * bounded, so pending work does not grow with the number of inputs.
+     *
+     * @return - The number of files that failed.
+     */
+    public int convertAll(File[] inputs, int threads) throws InterruptedException {
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(threads * 2), new ThreadPoolExecutor.CallerRunsPolicy());
+        for (final File input : inputs) {
+            pool.execute(new Runnable() {
+                @Override
+                public void run() {
+                    convertLogged(input);
+                }
+            });
+        }
+        pool.shutdown();
+        pool.awaitTermination(Long.MAX_VALUE, TimeUnit.SECONDS);
+        return mFailed.get();
+    }
+
+    private void convertLogged(File input) {
+        try {
+            MeshStats stats = convert(input);
+            synchronized (mStatsOut) {
+                mStatsOut.println(stats.toCsv());
+            }
+        } catch (Exception e) {
+            mFailed.incrementAndGet();
+            System.err.println(input + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Converts one source file into the runtime format next to the other
+     * outputs. OFF files are streamed, PLY and OBJ files are read whole.
+     */
+    public MeshStats convert(File input) throws IOException, InterruptedException {
+        long start = System.currentTimeMillis();
+        String name = input.getName();
+        String baseName = name.substring(0, name.length() - 4);
+        File output = new File(mOutputDir, baseName + (mCompressed ? COMPRESSED_EXTENSION : OUTPUT_EXTENSION));
+
+        MeshSource source = MeshLoader.open(input);
+        try {
+            int permits = Math.min(mBudgetKb, estimateKb(source, input));
+            mMemory.acquire(permits);
+            try {
+                MeshStats stats;
+                if (mCompressed || mOcclusion || !(source instanceof OffReader)) {
+                    // only OFF can be streamed face by face
+                    Mesh mesh = source.readMesh();
+                    write(mesh, output, mCompressed);
+                    if (mOcclusion) {
+                        bakeOcclusion(mesh, new File(mOutputDir, baseName + OCCLUSION_EXTENSION));
+                    }
+                    stats = MeshStats.compute(name, mesh);
+                } else {
+                    stats = convert(name, (OffReader) source, output);
+                }
+                stats.millis = System.currentTimeMillis() - start;
+                return stats;
+            } finally {
+                mMemory.release(permits);
+            }
+        } finally {
+            source.close();
+        }
+    }
+
+    private static MeshStats convert(String name, OffReader reader, File output) throws IOException {
+        int numVertex = reader.getVertexCount();
+        int numFaces = reader.getFaceCount();
+        MeshStats stats = new MeshStats(name);
+        stats.reserveFaces(numFaces);
+
+        OutputStream out = new BufferedOutputStream(new FileOutputStream(output), 64 * 1024);
+        try {
+            MeshFile.Writer writer = new MeshFile.Writer(out, numVertex, numFaces);
+
+            float[] coords = new float[numVertex * Mesh.COORDS_PER_VERTEX];
+            for (int i = 0; i < coords.length; i += Mesh.COORDS_PER_VERTEX) {
+                reader.readVertex(coords, i);
+                stats.addVertex(coords[i], coords[i + 1], coords[i + 2]);
+                writer.writeVertex(coords[i], coords[i + 1], coords[i + 2]);
+            }
+
+            float[] normals = new float[coords.length];
+            int[] face = new int[3];
+            for (int i = 0; i < numFaces; i++) {
+                reader.readFace(face, 0);
+                stats.addFace(coords, face[0], face[1], face[2]);
+                writer.writeFace(face[0], face[1], face[2]);
+                Mesh.addFaceNormal(coords, face[0], face[1], face[2], normals);
+            }
+            Mesh.normalize(normals);
+            writer.writeNormals(normals);
+            writer.flush();
+        } finally {
+            out.close();
+        }
+        stats.finish();
+        return stats;
+    }
+
+    private static void write(Mesh mesh, File output, boolean compressed) throws IOException {
+        OutputStream out = new BufferedOutputStream(new FileOutputStream(output), 64 * 1024);
+        try {
+            if (compressed) {
+                MeshCodec.encode(mesh, MeshCodec.DEFAULT_BITS, out);
+            } else {
+                MeshFile.write(mesh, out);
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    private static void bakeOcclusion(Mesh mesh, File output) throws IOException {
+        AmbientOcclusion baker = new AmbientOcclusion(mesh, new Bvh(mesh), WorkerPool.getDefault());
+        float[] occlusion = baker.bake(AmbientOcclusion.DEFAULT_RAYS, AmbientOcclusion.DEFAULT_DISTANCE);
+        OutputStream out = new BufferedOutputStream(new FileOutputStream(output));
+        try {
+            AmbientOcclusion.write(mesh, AmbientOcclusion.DEFAULT_RAYS, occlusion, out);
+        } finally {
+            out.close();
+        }
+        System.out.println(output.getName() + ": baked in " + baker.getBakeTimeMs() + " ms, "
+                + (long) baker.getRaysPerSecond() + " rays/s");
+    }
+
+    // positions + normals (12 bytes each per vertex) and 3 edge keys per face,
+    // the in memory paths keep the indices instead of the normals
+
+    private static int estimateKb(MeshSource source, File input) {
+        if (source instanceof OffReader) {
+            OffReader reader = (OffReader) source;
+            return estimateKb(reader.getVertexCount(), reader.getFaceCount());
+        } else if (source instanceof PlyReader) {
+            PlyReader reader = (PlyReader) source;
+            return estimateKb(reader.getVertexCount(), reader.getFaceCount());
+        }
+        // OBJ has no counts; its text takes about twice the mesh
+        return (int) Math.min(Integer.MAX_VALUE, input.length() / 1024 + 1);
+    }
+
+    private static int estimateKb(int vertexCount, int faceCount) {
+        long bytes = 24L * vertexCount + 36L * faceCount;
+        return (int) Math.min(Integer.MAX_VALUE, bytes / 1024 + 1);
+    }
+}
@@ -0,0 +1,161 @@
+package com.example.android.opengl;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Binary runtime mesh format written by the offline converter. The data is
+ * stored little endian, in the layout the GL buffers use, so loading is a
+ * plain copy instead of text parsing:
+ *
+ * <pre>
+ * int magic ("MSH1"), int vertexCount, int faceCount, int flags
+ * float coords[vertexCount * 3]
+ * short or int indices[faceCount * 3]   (int if FLAG_INT_INDICES)
+ * float normals[vertexCount * 3]</pre>
+ */
+public class MeshFile {
+    static final int MAGIC = 0x3148534D;
+    static final int HEADER_SIZE = 16;
+    static final int FLAG_INT_INDICES = 1;
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private MeshFile() {
+    }
+
+    /**
+     * Returns true if the indices of a mesh with this many vertices do not
+     * fit in 16 bits.
+     */
+    static boolean needsIntIndices(int vertexCount) {
+        return vertexCount > 0xFFFF + 1;
+    }
+
+    public static void write(Mesh mesh, OutputStream out) throws IOException {
+        Writer writer = new Writer(out, mesh.getVertexCount(), mesh.getFaceCount());
+        writer.writeVertices(mesh.coords, 0, mesh.getVertexCount());
+        for (int i = 0; i < mesh.indices.length; i += 3) {
+            writer.writeFace(mesh.indices[i], mesh.indices[i + 1], mesh.indices[i + 2]);
+        }
+        writer.writeNormals(mesh.getNormals());
+        writer.flush();
+    }
+
+    /**
+     * Reads a whole mesh, normals included.
+     *
+     * @param inputStream - Stream positioned at the header, it is not closed.
+     */
+    public static Mesh read(InputStream inputStream) throws IOException {
+        DataInputStream in = new DataInputStream(inputStream);
+        byte[] chunk = new byte[BUFFER_SIZE];
+        in.readFully(chunk, 0, HEADER_SIZE);
+        ByteBuffer header = ByteBuffer.wrap(chunk, 0, HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        if (header.getInt() != MAGIC) {
+            throw new IOException("Not a mesh file");
+        }
+        int vertexCount = header.getInt();
+        int faceCount = header.getInt();
+        boolean intIndices = (header.getInt() & FLAG_INT_INDICES) != 0;
+
+        float[] coords = new float[vertexCount * 3];
+        readFloats(in, chunk, coords);
+        int[] indices = new int[faceCount * 3];
+        int done = 0;
+        int size = intIndices ? 4 : 2;
+        while (done < indices.length) {
+            int n = Math.min(indices.length - done, BUFFER_SIZE / size);
+            in.readFully(chunk, 0, n * size);
+            ByteBuffer bb = ByteBuffer.wrap(chunk, 0, n * size).order(ByteOrder.LITTLE_ENDIAN);
+            for (int i = 0; i < n; i++) {
+                indices[done++] = intIndices ? bb.getInt() : bb.getShort() & 0xFFFF;
+            }
+        }
+        float[] normals = new float[vertexCount * 3];
+        readFloats(in, chunk, normals);
+        return new Mesh(coords, indices, normals);
+    }
+
+    private static void readFloats(DataInputStream in, byte[] chunk, float[] out) throws IOException {
+        int done = 0;
+        while (done < out.length) {
+            int n = Math.min(out.length - done, BUFFER_SIZE / 4);
+            in.readFully(chunk, 0, n * 4);
+            ByteBuffer.wrap(chunk, 0, n * 4).order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer().get(out, done, n);
+            done += n;
+        }
+    }
+
+    /**
+     * Writes a mesh file section by section, so a mesh can be converted while
+     * it is being parsed. Vertices, faces and normals must be written in this
+     * order and in full.
+     */
+    public static class Writer {
+        private final OutputStream mOut;
+        private final ByteBuffer mBuffer = ByteBuffer.allocate(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        private final boolean mIntIndices;
+
+        public Writer(OutputStream out, int vertexCount, int faceCount) throws IOException {
+            mOut = out;
+            mIntIndices = needsIntIndices(vertexCount);
+            mBuffer.putInt(MAGIC);
+            mBuffer.putInt(vertexCount);
+            mBuffer.putInt(faceCount);
+            mBuffer.putInt(mIntIndices ? FLAG_INT_INDICES : 0);
+        }
+
+        public void writeVertex(float x, float y, float z) throws IOException {
+            ensure(12);
+            mBuffer.putFloat(x);
+            mBuffer.putFloat(y);
+            mBuffer.putFloat(z);
+        }
+
+        public void writeVertices(float[] coords, int first, int count) throws IOException {
+            for (int i = first * 3; i < (first + count) * 3; i += 3) {
+                writeVertex(coords[i], coords[i + 1], coords[i + 2]);
+            }
+        }
+
+        public void writeFace(int a, int b, int c) throws IOException {
+            ensure(12);
+            if (mIntIndices) {
+                mBuffer.putInt(a);
+                mBuffer.putInt(b);
+                mBuffer.putInt(c);
+            } else {
+                mBuffer.putShort((short) a);
+                mBuffer.putShort((short) b);
+                mBuffer.putShort((short) c);
+            }
+        }
+
+        public void writeNormals(float[] normals) throws IOException {
+            for (int i = 0; i < normals.length; i += 3) {
+                writeVertex(normals[i], normals[i + 1], normals[i + 2]);
+            }
+        }
+
+        /**
+         * Pushes the buffered bytes to the stream. It does not close it.
+         */
+        public void flush() throws IOException {
+            mOut.write(mBuffer.array(), 0, mBuffer.position());
+            mBuffer.clear();
+            mOut.flush();
+        }
+
+        private void ensure(int bytes) throws IOException {
+            if (mBuffer.remaining() < bytes) {
+                mOut.write(mBuffer.array(), 0, mBuffer.position());
+                mBuffer.clear();
+            }
+        }
+    }
+}
@@ -0,0 +1,596 @@
+package com.example.android.opengl;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Makes synthetic meshes of any size, to stress the loaders and the mesh
+ * processing far beyond the bundled models. It also runs on a desktop JVM:
+ *
+ * <pre>
+ * java -cp &lt;classes&gt; com.example.android.opengl.MeshGenerator (sphere|torus|terrain) triangles
+ *     out.(off|msh) [seed] [instances] [threads]</pre>
+ *
+ * The shapes are grids of vertices: a sphere made of the six faces of a
+ * subdivided cube, a torus, and a terrain whose heights are fractal value
+ * noise. A scene is made of several instances of the shape, spread over a
+ * jittered lattice with a random turn and size each; the triangles are
+ * shared among them. The same shape, size, seed and instances always give
+ * the same bytes, whatever the number of threads.
+ *
+ * Each row of the grid can be made on its own, so the file is written in
+ * chunks of rows made in parallel by a {@link WorkerPool} and then written
+ * in order. The normals are those of the surface, not averaged from the
+ * faces, so a {@link MeshFile} is streamed too: nothing of the size of the
+ * mesh is kept in memory. Meshes that fit in memory can also be built with
+ * {@link #build}, for the benchmarks (see {@link #isSpec}).
+ */
+public class MeshGenerator {
+    public static final int SPHERE = 0;
+    public static final int TORUS = 1;
+    public static final int TERRAIN = 2;
+    private static final String[] SHAPE_NAMES = {"sphere", "torus", "terrain"};
+
+    // vertices made by a task, chunks in flight per thread
+    private static final int CHUNK_VERTICES = 1 << 16;
+    private static final int CHUNKS_PER_THREAD = 2;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    // torus radii, terrain height and octaves of its noise
+    private static final float RING_RADIUS = 1.0f;
+    private static final float TUBE_RADIUS = 0.35f;
+    private static final float TERRAIN_HEIGHT = 0.3f;
+    private static final int OCTAVES = 6;
+    // distance between instances of a scene, a shape fits in a radius of 1.35
+    private static final float SPACING = 3.0f;
+
+    // the six faces of the cube: outward axis and sign, then the axes of the
+    // columns and the rows, with columns x rows pointing outwards
+    private static final int[][] CUBE_FACES = {
+            {0, 1, 1, 2}, {0, -1, 2, 1},
+            {1, 1, 2, 0}, {1, -1, 0, 2},
+            {2, 1, 0, 1}, {2, -1, 1, 0}
+    };
+
+    private final int mShape;
+    private final long mSeed;
+    private final int mInstances;
+    // every instance has mPatches grids of mRows x mColumns vertices
+    private final int mPatches;
+    private final int mRows;
+    private final int mColumns;
+    // the torus closes both ways, its last row and column join the first ones
+    private final boolean mWrap;
+    private final int mVertexCount;
+    private final int mFaceCount;
+    // instance transforms: x, y, z, scale, cos and sin of the turn around y
+    private final float[] mTransforms;
+
+    /**
+     * @param triangles - About how many triangles in all, shared by the instances.
+     * @throws IllegalArgumentException - If the vertices or the indices do not
+     * fit in an int.
+     */
+    public MeshGenerator(int shape, long triangles, long seed, int instances) {
+        if (shape < SPHERE || shape > TERRAIN || instances < 1) {
+            throw new IllegalArgumentException("bad shape " + shape + " or instances " + instances);
+        }
+        mShape = shape;
+        mSeed = seed;
+        mInstances = instances;
+        double perInstance = Math.max(1, triangles / instances);
+        int n;
+        if (shape == SPHERE) {
+            // 6 faces of n x n cells, two triangles each
+            n = (int) Math.max(1, Math.round(Math.sqrt(perInstance / 12)));
+            mPatches = 6;
+            mRows = n + 1;
+            mColumns = n + 1;
+        } else if (shape == TORUS) {
+            // 2n rings of n vertices around the tube: 4 n^2 triangles
+            n = (int) Math.max(3, Math.round(Math.sqrt(perInstance / 4)));
+            mPatches = 1;
+            mRows = n * 2;
+            mColumns = n;
+        } else {
+            n = (int) Math.max(1, Math.round(Math.sqrt(perInstance / 2)));
+            mPatches = 1;
+            mRows = n + 1;
+            mColumns = n + 1;
+        }
+        mWrap = shape == TORUS;
+        long vertices = (long) instances * mPatches * mRows * mColumns;
+        long faces = (long) instances * mPatches * getFaceRows() * getFacesPerRow();
+        if (vertices > Integer.MAX_VALUE || faces * 3 > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException(faces + " triangles are too many for one mesh");
+        }
+        mVertexCount = (int) vertices;
+        mFaceCount = (int) faces;
+        mTransforms = makeTransforms();
+    }
+
+    public int getVertexCount() {
+        return mVertexCount;
+    }
+
+    public int getFaceCount() {
+        return mFaceCount;
+    }
+
+    private int getFaceRows() {
+        return mWrap ? mRows : mRows - 1;
+    }
+
+    private int getFacesPerRow() {
+        return (mWrap ? mColumns : mColumns - 1) * 2;
+    }
+
+    // One per instance, random but fixed by the seed; a single instance stays in place
+    private float[] makeTransforms() {
+        float[] transforms = new float[mInstances * 6];
+        int side = (int) Math.ceil(Math.cbrt(mInstances));
+        for (int i = 0; i < mInstances; i++) {
+            int at = i * 6;
+            if (mInstances == 1) {
+                transforms[at + 3] = 1;
+                transforms[at + 4] = 1;
+                continue;
+            }
+            long h = mix(mSeed + (i + 1) * 0x9E3779B97F4A7C15L);
+            float jitter = SPACING * 0.1f;
+            transforms[at] = (i % side - (side - 1) * 0.5f) * SPACING + unit(h) * jitter;
+            transforms[at + 1] = (i / side % side - (side - 1) * 0.5f) * SPACING + unit(h >>> 16) * jitter;
+            transforms[at + 2] = (i / side / side - (side - 1) * 0.5f) * SPACING + unit(h >>> 32) * jitter;
+            h = mix(h);
+            transforms[at + 3] = 0.6f + 0.4f * (unit(h) * 0.5f + 0.5f);
+            double turn = Math.PI * unit(h >>> 24);
+            transforms[at + 4] = (float) Math.cos(turn);
+            transforms[at + 5] = (float) Math.sin(turn);
+        }
+        return transforms;
+    }
+
+    /**
+     * Computes a vertex.
+     *
+     * @param row - Row of all the grids of all the instances.
+     * @param out - Position, then normal.
+     * @param normal - False if only the position is needed.
+     */
+    void vertex(int row, int column, float[] out, boolean normal) {
+        int grid = row / mRows;
+        int r = row - grid * mRows;
+        int instance = grid / mPatches;
+        int patch = grid - instance * mPatches;
+        if (mShape == SPHERE) {
+            sphereVertex(patch, r, column, out);
+        } else if (mShape == TORUS) {
+            double theta = 2 * Math.PI * r / mRows;
+            double phi = 2 * Math.PI * column / mColumns;
+            float ring = RING_RADIUS + TUBE_RADIUS * (float) Math.cos(phi);
+            out[3] = (float) (Math.cos(phi) * Math.cos(theta));
+            out[4] = (float) Math.sin(phi);
+            out[5] = (float) (Math.cos(phi) * Math.sin(theta));
+            out[0] = ring * (float) Math.cos(theta);
+            out[1] = TUBE_RADIUS * out[4];
+            out[2] = ring * (float) Math.sin(theta);
+        } else {
+            terrainVertex(r, column, out, normal);
+        }
+        float[] t = mTransforms;
+        int at = instance * 6;
+        for (int k = 0; k < (normal ? 6 : 3); k += 3) {
+            float x = out[k];
+            float z = out[k + 2];
+            out[k] = t[at + 4] * x + t[at + 5] * z;
+            out[k + 2] = -t[at + 5] * x + t[at + 4] * z;
+        }
+        out[0] = out[0] * t[at + 3] + t[at];
+        out[1] = out[1] * t[at + 3] + t[at + 1];
+        out[2] = out[2] * t[at + 3] + t[at + 2];
+    }
+
+    // A point of a face of the cube pushed onto the sphere; the tangent spreads the cells evenly
+    private void sphereVertex(int patch, int row, int column, float[] out) {
+        int[] face = CUBE_FACES[patch];
+        double a = Math.tan((2.0 * column / (mColumns - 1) - 1) * Math.PI / 4);
+        double b = Math.tan((2.0 * row / (mRows - 1) - 1) * Math.PI / 4);
+        out[3] = out[4] = out[5] = 0;
+        out[3 + face[0]] = face[1];
+        out[3 + face[2]] = (float) a;
+        out[3 + face[3]] = (float) b;
+        float length = (float) Math.sqrt(1 + a * a + b * b);
+        for (int k = 3; k < 6; k++) {
+            out[k] /= length;
+            out[k - 3] = out[k];
+        }
+    }
+
+    // Rows along x, columns along z, so the faces look up
+    private void terrainVertex(int row, int column, float[] out, boolean normal) {
+        float step = 2.0f / (mRows - 1);
+        float x = row * step - 1;
+        float z = column * step - 1;
+        out[0] = x;
+        out[1] = height(x, z);
+        out[2] = z;
+        if (!normal) {
+            // the noise is most of the cost, four more samples for the normal
+            return;
+        }
+        float dx = height(x + step, z) - height(x - step, z);
+        float dz = height(x, z + step) - height(x, z - step);
+        float length = (float) Math.sqrt(dx * dx + 4 * step * step + dz * dz);
+        out[3] = -dx / length;
+        out[4] = 2 * step / length;
+        out[5] = -dz / length;
+    }
+
+    // Fractal value noise, from a hash of the lattice corners and the seed
+    private float height(float x, float z) {
+        float sum = 0;
+        float amplitude = TERRAIN_HEIGHT;
+        float frequency = 2;
+        for (int o = 0; o < OCTAVES; o++) {
+            // moved to positive coordinates, where a cast is the floor
+            float fx = x * frequency + 256;
+            float fz = z * frequency + 256;
+            int ix = (int) fx;
+            int iz = (int) fz;
+            float sx = smooth(fx - ix);
+            float sz = smooth(fz - iz);
+            float n00 = corner(ix, iz, o);
+            float n10 = corner(ix + 1, iz, o);
+            float n01 = corner(ix, iz + 1, o);
+            float n11 = corner(ix + 1, iz + 1, o);
+            float near = n00 + (n10 - n00) * sx;
+            float far = n01 + (n11 - n01) * sx;
+            sum += (near + (far - near) * sz) * amplitude;
+            amplitude *= 0.5f;
+            frequency *= 2;
+        }
+        return sum;
+    }
+
+    private float corner(int x, int z, int octave) {
+        return unit(mix(mSeed ^ ((x & 0xFFFFFFL) << 40) ^ ((z & 0xFFFFFFL) << 16) ^ octave));
+    }
+
+    private static float smooth(float t) {
+        return t * t * (3 - 2 * t);
+    }
+
+    // splitmix64 finalizer
+    private static long mix(long h) {
+        h = (h ^ (h >>> 30)) * 0xBF58476D1CE4E5B9L;
+        h = (h ^ (h >>> 27)) * 0x94D049BB133111EBL;
+        return h ^ (h >>> 31);
+    }
+
+    // -1 .. 1 from the low 16 bits
+    private static float unit(long h) {
+        return (h & 0xFFFF) / 32767.5f - 1;
+    }
+
+    /**
+     * Computes the faces of a row of faces, counterclockwise from outside.
+     *
+     * @param faceRow - Row of faces of all the grids of all the instances.
+     * @param out - {@link #getFacesPerRow} * 3 indices.
+     */
+    void faceRow(int faceRow, int[] out, int offset) {
+        int rowsPerGrid = getFaceRows();
+        int grid = faceRow / rowsPerGrid;
+        int r = faceRow - grid * rowsPerGrid;
+        int first = grid * mRows * mColumns;
+        int row0 = first + r * mColumns;
+        int row1 = first + (r + 1) % mRows * mColumns;
+        int cells = getFacesPerRow() / 2;
+        for (int c = 0; c < cells; c++) {
+            int c1 = (c + 1) % mColumns;
+            out[offset++] = row0 + c;
+            out[offset++] = row0 + c1;
+            out[offset++] = row1 + c1;
+            out[offset++] = row0 + c;
+            out[offset++] = row1 + c1;
+            out[offset++] = row1 + c;
+        }
+    }
+
+    /**
+     * Builds the whole mesh in memory, the rows in parallel.
+     */
+    public Mesh build(WorkerPool pool) {
+        final float[] coords = new float[mVertexCount * 3];
+        final float[] normals = new float[mVertexCount * 3];
+        final int[] indices = new int[mFaceCount * 3];
+        final float[][] scratch = new float[pool.getThreadCount()][6];
+        int rows = mVertexCount / mColumns;
+        pool.forEach(rows, Math.max(1, CHUNK_VERTICES / mColumns), new WorkerPool.Task() {
+            @Override
+            public void run(int begin, int end, int worker) {
+                float[] v = scratch[worker];
+                for (int row = begin; row < end; row++) {
+                    for (int c = 0; c < mColumns; c++) {
+                        vertex(row, c, v, true);
+                        int at = (row * mColumns + c) * 3;
+                        System.arraycopy(v, 0, coords, at, 3);
+                        System.arraycopy(v, 3, normals, at, 3);
+                    }
+                }
+            }
+        });
+        final int perRow = getFacesPerRow() * 3;
+        pool.forEach(mFaceCount * 3 / perRow, Math.max(1, CHUNK_VERTICES / mColumns), new WorkerPool.Task() {
+            @Override
+            public void run(int begin, int end, int worker) {
+                for (int row = begin; row < end; row++) {
+                    faceRow(row, indices, row * perRow);
+                }
+            }
+        });
+        return new Mesh(coords, indices, normals);
+    }
+
+    // Sections of the files, each a pass over the rows
+    private static final int OFF_VERTICES = 0;
+    private static final int OFF_FACES = 1;
+    private static final int MSH_VERTICES = 2;
+    private static final int MSH_FACES = 3;
+    private static final int MSH_NORMALS = 4;
+
+    /**
+     * Writes the mesh as OFF text, chunks of rows made in parallel.
+     *
+     * @return - The bytes written.
+     */
+    public long writeOff(OutputStream out, WorkerPool pool) throws IOException {
+        Chunk header = new Chunk();
+        header.putAscii("OFF\n" + mVertexCount + " " + mFaceCount + " 0\n");
+        out.write(header.bytes, 0, header.length);
+        long bytes = header.length;
+        bytes += writeSection(OFF_VERTICES, out, pool);
+        bytes += writeSection(OFF_FACES, out, pool);
+        out.flush();
+        return bytes;
+    }
+
+    /**
+     * Writes the mesh in the runtime format ({@link MeshFile}), chunks of
+     * rows made in parallel.
+     *
+     * @return - The bytes written.
+     */
+    public long writeMesh(OutputStream out, WorkerPool pool) throws IOException {
+        Chunk header = new Chunk();
+        header.putInt(MeshFile.MAGIC);
+        header.putInt(mVertexCount);
+        header.putInt(mFaceCount);
+        header.putInt(MeshFile.needsIntIndices(mVertexCount) ? MeshFile.FLAG_INT_INDICES : 0);
+        out.write(header.bytes, 0, header.length);
+        long bytes = header.length;
+        bytes += writeSection(MSH_VERTICES, out, pool);
+        bytes += writeSection(MSH_FACES, out, pool);
+        bytes += writeSection(MSH_NORMALS, out, pool);
+        out.flush();
+        return bytes;
+    }
+
+    private long writeSection(final int section, OutputStream out, WorkerPool pool) throws IOException {
+        boolean faces = section == OFF_FACES || section == MSH_FACES;
+        final int rows = faces ? mFaceCount / getFacesPerRow() : mVertexCount / mColumns;
+        final int rowsPerChunk = Math.max(1, CHUNK_VERTICES / mColumns);
+        int chunks = (rows + rowsPerChunk - 1) / rowsPerChunk;
+        final Chunk[] slots = new Chunk[pool.getThreadCount() * CHUNKS_PER_THREAD];
+        for (int i = 0; i < slots.length; i++) {
+            slots[i] = new Chunk();
+        }
+        long bytes = 0;
+        for (int first = 0; first < chunks; first += slots.length) {
+            final int firstChunk = first;
+            int batch = Math.min(slots.length, chunks - first);
+            pool.forEach(batch, 1, new WorkerPool.Task() {
+                @Override
+                public void run(int begin, int end, int worker) {
+                    for (int i = begin; i < end; i++) {
+                        int row = (firstChunk + i) * rowsPerChunk;
+                        fill(section, row, Math.min(rows, row + rowsPerChunk), slots[i]);
+                    }
+                }
+            });
+            for (int i = 0; i < batch; i++) {
+                out.write(slots[i].bytes, 0, slots[i].length);
+                bytes += slots[i].length;
+            }
+        }
+        return bytes;
+    }
+
+    private void fill(int section, int begin, int end, Chunk chunk) {
+        chunk.length = 0;
+        float[] v = chunk.vertex;
+        if (section == OFF_FACES || section == MSH_FACES) {
+            int perRow = getFacesPerRow() * 3;
+            if (chunk.face.length < perRow) {
+                chunk.face = new int[perRow];
+            }
+            boolean intIndices = MeshFile.needsIntIndices(mVertexCount);
+            for (int row = begin; row < end; row++) {
+                faceRow(row, chunk.face, 0);
+                for (int i = 0; i < perRow; i += 3) {
+                    if (section == OFF_FACES) {
+                        chunk.putAscii("3 ");
+                        chunk.putDecimal(chunk.face[i]);
+                        chunk.put(' ');
+                        chunk.putDecimal(chunk.face[i + 1]);
+                        chunk.put(' ');
+                        chunk.putDecimal(chunk.face[i + 2]);
+                        chunk.put('\n');
+                    } else {
+                        for (int k = 0; k < 3; k++) {
+                            if (intIndices) {
+                                chunk.putInt(chunk.face[i + k]);
+                            } else {
+                                chunk.putShort(chunk.face[i + k]);
+                            }
+                        }
+                    }
+                }
+            }
+            return;
+        }
+        for (int row = begin; row < end; row++) {
+            for (int c = 0; c < mColumns; c++) {
+                vertex(row, c, v, section == MSH_NORMALS);
+                if (section == OFF_VERTICES) {
+                    chunk.putFixed(v[0]);
+                    chunk.put(' ');
+                    chunk.putFixed(v[1]);
+                    chunk.put(' ');
+                    chunk.putFixed(v[2]);
+                    chunk.put('\n');
+                } else {
+                    int at = section == MSH_VERTICES ? 0 : 3;
+                    chunk.putInt(Float.floatToIntBits(v[at]));
+                    chunk.putInt(Float.floatToIntBits(v[at + 1]));
+                    chunk.putInt(Float.floatToIntBits(v[at + 2]));
+                }
+            }
+        }
+    }
+
+    // Bytes of a chunk of rows, little endian or text, grown as needed
+    private static class Chunk {
+        byte[] bytes = new byte[BUFFER_SIZE];
+        int length;
+        final float[] vertex = new float[6];
+        int[] face = new int[0];
+
+        private void ensure(int n) {
+            if (length + n > bytes.length) {
+                byte[] grown = new byte[Math.max(bytes.length * 2, length + n)];
+                System.arraycopy(bytes, 0, grown, 0, length);
+                bytes = grown;
+            }
+        }
+
+        void put(char c) {
+            ensure(1);
+            bytes[length++] = (byte) c;
+        }
+
+        void putAscii(String s) {
+            ensure(s.length());
+            for (int i = 0; i < s.length(); i++) {
+                bytes[length++] = (byte) s.charAt(i);
+            }
+        }
+
+        void putShort(int value) {
+            ensure(2);
+            bytes[length++] = (byte) value;
+            bytes[length++] = (byte) (value >> 8);
+        }
+
+        void putInt(int value) {
+            ensure(4);
+            bytes[length++] = (byte) value;
+            bytes[length++] = (byte) (value >> 8);
+            bytes[length++] = (byte) (value >> 16);
+            bytes[length++] = (byte) (value >> 24);
+        }
+
+        void putDecimal(long value) {
+            ensure(20);
+            if (value < 0) {
+                bytes[length++] = '-';
+                value = -value;
+            }
+            int start = length;
+            do {
+                bytes[length++] = (byte) ('0' + value % 10);
+                value /= 10;
+            } while (value > 0);
+            for (int i = start, j = length - 1; i < j; i++, j--) {
+                byte b = bytes[i];
+                bytes[i] = bytes[j];
+                bytes[j] = b;
+            }
+        }
+
+        // six decimals, much faster than Float.toString
+        void putFixed(float value) {
+            long micros = Math.round((double) value * 1e6);
+            if (micros < 0) {
+                put('-');
+                micros = -micros;
+            }
+            putDecimal(micros / 1000000);
+            put('.');
+            ensure(6);
+            long fraction = micros % 1000000;
+            for (int i = 5; i >= 0; i--) {
+                bytes[length + i] = (byte) ('0' + fraction % 10);
+                fraction /= 10;
+            }
+            length += 6;
+        }
+    }
+
+    /**
+     * Returns true if a name is a generator spec instead of a file:
+     * shape:triangles[:seed[:instances]], e.g. "terrain:1000000:7".
+     */
+    public static boolean isSpec(String name) {
+        return shapeOf(name.substring(0, Math.max(0, name.indexOf(':')))) >= 0;
+    }
+
+    /**
+     * Returns the generator of a spec, see {@link #isSpec}.
+     */
+    public static MeshGenerator fromSpec(String spec) {
+        String[] parts = spec.split(":");
+        return new MeshGenerator(shapeOf(parts[0]), Long.parseLong(parts[1]),
+                parts.length > 2 ? Long.parseLong(parts[2]) : 0, parts.length > 3 ? Integer.parseInt(parts[3]) : 1);
+    }
+
+    private static int shapeOf(String name) {
+        for (int i = 0; i < SHAPE_NAMES.length; i++) {
+            if (SHAPE_NAMES[i].equals(name)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 3 || shapeOf(args[0]) < 0 || !(args[2].endsWith(".off") || args[2].endsWith(".msh"))) {
+            System.err.println("usage: MeshGenerator (sphere|torus|terrain) triangles out.(off|msh) [seed] [instances]"
+                    + " [threads]");
+            System.exit(2);
+        }
+        long seed = args.length > 3 ? Long.parseLong(args[3]) : 0;
+        int instances = args.length > 4 ? Integer.parseInt(args[4]) : 1;
+        WorkerPool pool = args.length > 5 ? new WorkerPool(Integer.parseInt(args[5])) : WorkerPool.getDefault();
+        MeshGenerator generator = new MeshGenerator(shapeOf(args[0]), Long.parseLong(args[1]), seed, instances);
+
+        long start = System.nanoTime();
+        File file = new File(args[2]);
+        OutputStream out = new BufferedOutputStream(new FileOutputStream(file), BUFFER_SIZE);
+        long bytes;
+        try {
+            bytes = args[2].endsWith(".off") ? generator.writeOff(out, pool) : generator.writeMesh(out, pool);
+        } finally {
+            out.close();
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.printf("%s: %d vertices, %d faces, %d instances, %d bytes in %.2f s, %.1f Mtriangles/s,"
+                        + " %.0f MB/s, %d threads%n", args[2], generator.getVertexCount(), generator.getFaceCount(),
+                instances, bytes, seconds, generator.getFaceCount() / seconds / 1e6, bytes / seconds / 1e6,
+                pool.getThreadCount());
+        System.exit(0);
+    }
+}
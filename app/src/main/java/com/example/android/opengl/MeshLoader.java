@@ -0,0 +1,68 @@
+package com.example.android.opengl;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Opens mesh files by their extension: .ply, .obj and .off sources, and the
+ * .msh and .mshz files written by {@link MeshConverter}.
+ */
+public class MeshLoader {
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private MeshLoader() {
+    }
+
+    /**
+     * Returns true if the name has the extension of a source format.
+     */
+    public static boolean isSource(String name) {
+        String lower = name.toLowerCase();
+        return lower.endsWith(".off") || lower.endsWith(".ply") || lower.endsWith(".obj");
+    }
+
+    /**
+     * Opens a source file: binary PLY, OBJ or, for any other name, OFF.
+     */
+    public static MeshSource open(File file) throws IOException {
+        String name = file.getName().toLowerCase();
+        if (name.endsWith(".ply")) {
+            return new PlyReader(file);
+        }
+        if (name.endsWith(".obj")) {
+            // it buffers by itself
+            return new ObjReader(new FileInputStream(file));
+        }
+        InputStream in = new BufferedInputStream(new FileInputStream(file), BUFFER_SIZE);
+        try {
+            return new OffReader(in);
+        } catch (IOException e) {
+            in.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Reads a whole mesh of any of the supported formats.
+     */
+    public static Mesh load(File file) throws IOException {
+        String name = file.getName().toLowerCase();
+        if (name.endsWith(".mshz") || name.endsWith(".msh")) {
+            InputStream in = new BufferedInputStream(new FileInputStream(file), BUFFER_SIZE);
+            try {
+                return name.endsWith(".mshz") ? MeshCodec.decode(in) : MeshFile.read(in);
+            } finally {
+                in.close();
+            }
+        }
+        MeshSource source = open(file);
+        try {
+            return source.readMesh();
+        } finally {
+            source.close();
+        }
+    }
+}
@@ -0,0 +1,18 @@
+package com.example.android.opengl;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * A mesh file opened for reading. Every format fills the same {@link Mesh}
+ * arrays; {@link MeshLoader} picks the reader by the file extension.
+ */
+public interface MeshSource extends Closeable {
+
+    /**
+     * Reads the rest of the file. Polygons are split into triangle fans.
+     *
+     * @throws IOException - If the data is truncated or not valid.
+     */
+    Mesh readMesh() throws IOException;
+}
@@ -0,0 +1,133 @@
+package com.example.android.opengl;
+
+import java.util.Arrays;
+
+/**
+ * Statistics of a mesh: sizes, bounds and topology problems. Vertices and
+ * faces are fed one at a time, so it also works while streaming a file.
+ */
+public class MeshStats {
+    public static final String CSV_HEADER =
+            "file,vertices,faces,min_x,min_y,min_z,max_x,max_y,max_z,degenerate_faces,non_manifold_edges,millis";
+
+    public final String name;
+    public int vertexCount;
+    public int faceCount;
+    public final float[] min = {Float.POSITIVE_INFINITY, Float.POSITIVE_INFINITY, Float.POSITIVE_INFINITY};
+    public final float[] max = {Float.NEGATIVE_INFINITY, Float.NEGATIVE_INFINITY, Float.NEGATIVE_INFINITY};
+    // faces with a repeated vertex or zero area
+    public int degenerateFaces;
+    // edges shared by more than two faces
+    public int nonManifoldEdges;
+    public long millis;
+
+    // one undirected edge key (min << 32 | max) per face side
+    private long[] mEdges = new long[0];
+    private int mEdgeCount;
+
+    public MeshStats(String name) {
+        this.name = name;
+    }
+
+    /**
+     * Collects the statistics of an in-memory mesh.
+     */
+    public static MeshStats compute(String name, Mesh mesh) {
+        long start = System.currentTimeMillis();
+        MeshStats stats = new MeshStats(name);
+        stats.reserveFaces(mesh.getFaceCount());
+        for (int i = 0; i < mesh.coords.length; i += Mesh.COORDS_PER_VERTEX) {
+            stats.addVertex(mesh.coords[i], mesh.coords[i + 1], mesh.coords[i + 2]);
+        }
+        for (int i = 0; i < mesh.indices.length; i += 3) {
+            stats.addFace(mesh.coords, mesh.indices[i], mesh.indices[i + 1], mesh.indices[i + 2]);
+        }
+        stats.finish();
+        stats.millis = System.currentTimeMillis() - start;
+        return stats;
+    }
+
+    /**
+     * Avoids growing the edge list when the face count is known up front.
+     */
+    public void reserveFaces(int faces) {
+        if (mEdges.length < faces * 3) {
+            long[] edges = new long[faces * 3];
+            System.arraycopy(mEdges, 0, edges, 0, mEdgeCount);
+            mEdges = edges;
+        }
+    }
+
+    public void addVertex(float x, float y, float z) {
+        vertexCount++;
+        if (x < min[0]) min[0] = x;
+        if (y < min[1]) min[1] = y;
+        if (z < min[2]) min[2] = z;
+        if (x > max[0]) max[0] = x;
+        if (y > max[1]) max[1] = y;
+        if (z > max[2]) max[2] = z;
+    }
+
+    /**
+     * Adds the face (a, b, c). The coordinates of its vertices must already
+     * be in coords.
+     */
+    public void addFace(float[] coords, int a, int b, int c) {
+        faceCount++;
+        if (a == b || b == c || a == c || isZeroArea(coords, a, b, c)) {
+            degenerateFaces++;
+        }
+        if (mEdgeCount + 3 > mEdges.length) {
+            long[] edges = new long[Math.max(16, mEdges.length * 2)];
+            System.arraycopy(mEdges, 0, edges, 0, mEdgeCount);
+            mEdges = edges;
+        }
+        mEdges[mEdgeCount++] = edgeKey(a, b);
+        mEdges[mEdgeCount++] = edgeKey(b, c);
+        mEdges[mEdgeCount++] = edgeKey(c, a);
+    }
+
+    /**
+     * Counts the non-manifold edges and releases the edge list.
+     */
+    public void finish() {
+        Arrays.sort(mEdges, 0, mEdgeCount);
+        nonManifoldEdges = 0;
+        int i = 0;
+        while (i < mEdgeCount) {
+            int j = i + 1;
+            while (j < mEdgeCount && mEdges[j] == mEdges[i]) {
+                j++;
+            }
+            if (j - i > 2) {
+                nonManifoldEdges++;
+            }
+            i = j;
+        }
+        mEdges = new long[0];
+        mEdgeCount = 0;
+    }
+
+    public String toCsv() {
+        return name + "," + vertexCount + "," + faceCount + ","
+                + min[0] + "," + min[1] + "," + min[2] + ","
+                + max[0] + "," + max[1] + "," + max[2] + ","
+                + degenerateFaces + "," + nonManifoldEdges + "," + millis;
+    }
+
+    static long edgeKey(int a, int b) {
+        return a < b ? ((long) a << 32) | b : ((long) b << 32) | a;
+    }
+
+    private static boolean isZeroArea(float[] coords, int a, int b, int c) {
+        int pa = a * Mesh.COORDS_PER_VERTEX;
+        int pb = b * Mesh.COORDS_PER_VERTEX;
+        int pc = c * Mesh.COORDS_PER_VERTEX;
+        float ux = coords[pb] - coords[pa], uy = coords[pb + 1] - coords[pa + 1], uz = coords[pb + 2] - coords[pa + 2];
+        float vx = coords[pc] - coords[pa], vy = coords[pc + 1] - coords[pa + 1], vz = coords[pc + 2] - coords[pa + 2];
+        float nx = uy * vz - uz * vy;
+        float ny = uz * vx - ux * vz;
+        float nz = ux * vy - uy * vx;
+        return nx == 0 && ny == 0 && nz == 0;
+    }
+}
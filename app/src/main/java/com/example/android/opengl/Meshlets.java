@@ -0,0 +1,376 @@
+package com.example.android.opengl;
+
+/**
+ * Splits a mesh into small clusters of nearby triangles (meshlets) with a
+ * bounding sphere and a normal cone each, so whole clusters facing away from
+ * the camera can be skipped on the CPU before drawing.
+ *
+ * The triangles of a meshlet are contiguous in {@link #indices}, meshlet m
+ * owns faces faceStart[m] .. faceStart[m + 1].
+ */
+public class Meshlets {
+    static final int MAX_VERTICES = 64;
+    static final int MAX_TRIANGLES = 64;
+    // A triangle only joins a meshlet if its normal is within ~37 degrees of
+    // the first triangle, otherwise the cone gets too wide to ever cull.
+    static final float MIN_NORMAL_DOT = 0.8f;
+
+    // triangle list of the mesh, reordered by meshlet
+    final int[] indices;
+    final int[] faceStart;
+    final int count;
+    // center x, y, z and radius per meshlet
+    final float[] spheres;
+    // axis x, y, z and cutoff (sine of the cone half angle) per meshlet, a
+    // cutoff above 1 means the meshlet can not be culled
+    final float[] cones;
+
+    private long mCullNanos;
+    private int mVisibleFaces;
+    private int mVisibleMeshlets;
+
+    private Meshlets(int[] indices, int[] faceStart, int count, float[] spheres, float[] cones) {
+        this.indices = indices;
+        this.faceStart = faceStart;
+        this.count = count;
+        this.spheres = spheres;
+        this.cones = cones;
+    }
+
+    public int getCount() {
+        return count;
+    }
+
+    /**
+     * Returns the time spent in the last {@link #cull} call, in microseconds.
+     */
+    public float getCullingMicros() {
+        return mCullNanos / 1e3f;
+    }
+
+    /**
+     * Returns the fraction of the faces rejected by the last {@link #cull}.
+     */
+    public float getCulledRatio() {
+        int total = faceStart[count];
+        return total == 0 ? 0 : 1.0f - (float) mVisibleFaces / total;
+    }
+
+    /**
+     * Returns the meshlets kept by the last {@link #cull}.
+     */
+    public int getVisibleCount() {
+        return mVisibleMeshlets;
+    }
+
+    /**
+     * Finds the meshlets that may face the camera.
+     *
+     * @param eyeX - Camera position in model space.
+     * @param runs - Receives pairs (first meshlet, end meshlet) of consecutive
+     * visible meshlets. Needs 2 * getCount() entries.
+     * @return - The number of runs written.
+     */
+    public int cull(float eyeX, float eyeY, float eyeZ, int[] runs) {
+        long start = System.nanoTime();
+        int numRuns = 0;
+        int visibleFaces = 0;
+        int visibleMeshlets = 0;
+        boolean open = false;
+        for (int m = 0; m < count; m++) {
+            boolean visible = !isBackfacing(m, eyeX, eyeY, eyeZ);
+            if (visible) {
+                visibleFaces += faceStart[m + 1] - faceStart[m];
+                visibleMeshlets++;
+                if (!open) {
+                    runs[numRuns * 2] = m;
+                    open = true;
+                }
+                runs[numRuns * 2 + 1] = m + 1;
+            } else if (open) {
+                numRuns++;
+                open = false;
+            }
+        }
+        if (open) {
+            numRuns++;
+        }
+        mVisibleFaces = visibleFaces;
+        mVisibleMeshlets = visibleMeshlets;
+        mCullNanos = System.nanoTime() - start;
+        return numRuns;
+    }
+
+    /**
+     * Lays the meshlets out as triangle strips. Every meshlet becomes its own
+     * strip and they are joined with degenerate triangles, so any run of
+     * consecutive meshlets can be drawn with a single GL_TRIANGLE_STRIP call.
+     *
+     * @param vertexCount - Number of vertices of the mesh.
+     * @param drawStart - Receives the first index of each meshlet.
+     * @param drawEnd - Receives the end index of each meshlet.
+     * @return - The strip indices.
+     */
+    public int[] toStrips(int vertexCount, int[] drawStart, int[] drawEnd) {
+        int[][] strips = new int[count][];
+        int total = 0;
+        int[] local = new int[vertexCount];
+        int[] global = new int[MAX_VERTICES * 3];
+        for (int v = 0; v < vertexCount; v++) {
+            local[v] = -1;
+        }
+        for (int m = 0; m < count; m++) {
+            // strip the meshlet with local vertex numbers, so the work does
+            // not depend on the size of the whole mesh
+            int first = faceStart[m] * 3;
+            int end = faceStart[m + 1] * 3;
+            int[] triangles = new int[end - first];
+            int numLocal = 0;
+            for (int i = first; i < end; i++) {
+                int v = indices[i];
+                if (local[v] < 0) {
+                    local[v] = numLocal;
+                    global[numLocal++] = v;
+                }
+                triangles[i - first] = local[v];
+            }
+            int[] strip = Stripifier.stripify(triangles, numLocal);
+            for (int i = 0; i < strip.length; i++) {
+                strip[i] = global[strip[i]];
+            }
+            for (int i = 0; i < numLocal; i++) {
+                local[global[i]] = -1;
+            }
+            strips[m] = strip;
+            total += strip.length + 3;
+        }
+
+        int[] out = new int[total];
+        int length = 0;
+        for (int m = 0; m < count; m++) {
+            length = Stripifier.appendJoined(out, length, strips[m]);
+            drawStart[m] = length - strips[m].length;
+            drawEnd[m] = length;
+        }
+        int[] strip = new int[length];
+        System.arraycopy(out, 0, strip, 0, length);
+        return strip;
+    }
+
+    // All the triangles face away if the view vector lies inside the cone
+    // widened by the angle the sphere covers.
+    private boolean isBackfacing(int m, float eyeX, float eyeY, float eyeZ) {
+        float cutoff = cones[m * 4 + 3];
+        if (cutoff > 1) {
+            return false;
+        }
+        float vx = spheres[m * 4] - eyeX;
+        float vy = spheres[m * 4 + 1] - eyeY;
+        float vz = spheres[m * 4 + 2] - eyeZ;
+        float distance = (float) Math.sqrt(vx * vx + vy * vy + vz * vz);
+        float d = vx * cones[m * 4] + vy * cones[m * 4 + 1] + vz * cones[m * 4 + 2];
+        return d >= cutoff * distance + spheres[m * 4 + 3];
+    }
+
+    /**
+     * Builds the meshlets by growing each one from a seed triangle to its
+     * neighbours, preferring the ones that add no new vertex.
+     */
+    public static Meshlets build(Mesh mesh) {
+        int[] src = mesh.indices;
+        float[] coords = mesh.coords;
+        int numFaces = mesh.getFaceCount();
+        int numVertex = mesh.getVertexCount();
+
+        // vertex to face adjacency
+        int[] vertexFaceStart = new int[numVertex + 1];
+        for (int index : src) {
+            vertexFaceStart[index + 1]++;
+        }
+        for (int v = 0; v < numVertex; v++) {
+            vertexFaceStart[v + 1] += vertexFaceStart[v];
+        }
+        int[] vertexFaces = new int[src.length];
+        int[] fill = new int[numVertex];
+        for (int i = 0; i < src.length; i++) {
+            int v = src[i];
+            vertexFaces[vertexFaceStart[v] + fill[v]++] = i / 3;
+        }
+
+        float[] faceNormals = new float[numFaces * 3];
+        for (int f = 0; f < numFaces; f++) {
+            faceNormal(coords, src, f, faceNormals, f * 3);
+        }
+
+        int[] indices = new int[src.length];
+        int[] faceStart = new int[numFaces + 1];
+        boolean[] used = new boolean[numFaces];
+        // vertices and queued faces of the current meshlet, tagged with its number
+        int[] vertexTag = new int[numVertex];
+        int[] queuedTag = new int[numFaces];
+        int[] candidates = new int[numFaces];
+        int count = 0;
+        int written = 0;
+        int nextSeed = 0;
+
+        while (true) {
+            while (nextSeed < numFaces && used[nextSeed]) {
+                nextSeed++;
+            }
+            if (nextSeed == numFaces) {
+                break;
+            }
+            int tag = count + 1;
+            int seed = nextSeed;
+            int vertices = 0;
+            int triangles = 0;
+            int head = 0;
+            int tail = 0;
+            candidates[tail++] = seed;
+            queuedTag[seed] = tag;
+
+            while (head < tail && triangles < MAX_TRIANGLES) {
+                // take the queued triangle that adds the fewest new vertices
+                int best = -1;
+                int bestNew = 4;
+                for (int i = head; i < tail; i++) {
+                    int f = candidates[i];
+                    if (used[f]) {
+                        continue;
+                    }
+                    int newVertices = 0;
+                    for (int k = 0; k < 3; k++) {
+                        if (vertexTag[src[f * 3 + k]] != tag) {
+                            newVertices++;
+                        }
+                    }
+                    if (newVertices < bestNew) {
+                        bestNew = newVertices;
+                        best = i;
+                        if (newVertices == 0) {
+                            break;
+                        }
+                    }
+                }
+                if (best < 0 || vertices + bestNew > MAX_VERTICES) {
+                    break;
+                }
+                int f = candidates[best];
+                candidates[best] = candidates[head++];
+
+                used[f] = true;
+                triangles++;
+                for (int k = 0; k < 3; k++) {
+                    int v = src[f * 3 + k];
+                    indices[written++] = v;
+                    if (vertexTag[v] != tag) {
+                        vertexTag[v] = tag;
+                        vertices++;
+                    }
+                    // queue the neighbours that keep the cone narrow
+                    for (int i = vertexFaceStart[v]; i < vertexFaceStart[v + 1]; i++) {
+                        int n = vertexFaces[i];
+                        if (!used[n] && queuedTag[n] != tag && dot(faceNormals, n, seed) >= MIN_NORMAL_DOT) {
+                            queuedTag[n] = tag;
+                            candidates[tail++] = n;
+                        }
+                    }
+                }
+            }
+            faceStart[++count] = written / 3;
+        }
+
+        int[] starts = new int[count + 1];
+        System.arraycopy(faceStart, 0, starts, 0, count + 1);
+        float[] spheres = new float[count * 4];
+        float[] cones = new float[count * 4];
+        for (int m = 0; m < count; m++) {
+            computeBounds(coords, indices, starts[m], starts[m + 1], m, spheres, cones);
+        }
+        return new Meshlets(indices, starts, count, spheres, cones);
+    }
+
+    private static void computeBounds(float[] coords, int[] indices, int first, int end, int m,
+                                      float[] spheres, float[] cones) {
+        // sphere around the center of the bounding box
+        float[] min = {Float.POSITIVE_INFINITY, Float.POSITIVE_INFINITY, Float.POSITIVE_INFINITY};
+        float[] max = {Float.NEGATIVE_INFINITY, Float.NEGATIVE_INFINITY, Float.NEGATIVE_INFINITY};
+        for (int i = first * 3; i < end * 3; i++) {
+            for (int k = 0; k < 3; k++) {
+                float c = coords[indices[i] * 3 + k];
+                min[k] = Math.min(min[k], c);
+                max[k] = Math.max(max[k], c);
+            }
+        }
+        float cx = (min[0] + max[0]) * 0.5f;
+        float cy = (min[1] + max[1]) * 0.5f;
+        float cz = (min[2] + max[2]) * 0.5f;
+        float radius = 0;
+        for (int i = first * 3; i < end * 3; i++) {
+            int p = indices[i] * 3;
+            float dx = coords[p] - cx, dy = coords[p + 1] - cy, dz = coords[p + 2] - cz;
+            radius = Math.max(radius, (float) Math.sqrt(dx * dx + dy * dy + dz * dz));
+        }
+        spheres[m * 4] = cx;
+        spheres[m * 4 + 1] = cy;
+        spheres[m * 4 + 2] = cz;
+        spheres[m * 4 + 3] = radius;
+
+        // cone axis is the average normal, its angle the widest deviation
+        float[] normal = new float[3];
+        float ax = 0, ay = 0, az = 0;
+        for (int f = first; f < end; f++) {
+            faceNormal(coords, indices, f, normal, 0);
+            ax += normal[0];
+            ay += normal[1];
+            az += normal[2];
+        }
+        float length = (float) Math.sqrt(ax * ax + ay * ay + az * az);
+        float cutoff = 2;
+        if (length > 0) {
+            ax /= length;
+            ay /= length;
+            az /= length;
+            float minDot = 1;
+            for (int f = first; f < end; f++) {
+                faceNormal(coords, indices, f, normal, 0);
+                if (normal[0] != 0 || normal[1] != 0 || normal[2] != 0) {
+                    minDot = Math.min(minDot, normal[0] * ax + normal[1] * ay + normal[2] * az);
+                }
+            }
+            if (minDot > 0) {
+                cutoff = (float) Math.sqrt(1 - minDot * minDot);
+            }
+        }
+        cones[m * 4] = ax;
+        cones[m * 4 + 1] = ay;
+        cones[m * 4 + 2] = az;
+        cones[m * 4 + 3] = cutoff;
+    }
+
+    // Unit normal of face f, zero for degenerate faces.
+    private static void faceNormal(float[] coords, int[] indices, int f, float[] out, int o) {
+        int pa = indices[f * 3] * 3;
+        int pb = indices[f * 3 + 1] * 3;
+        int pc = indices[f * 3 + 2] * 3;
+        float ux = coords[pb] - coords[pa], uy = coords[pb + 1] - coords[pa + 1], uz = coords[pb + 2] - coords[pa + 2];
+        float vx = coords[pc] - coords[pa], vy = coords[pc + 1] - coords[pa + 1], vz = coords[pc + 2] - coords[pa + 2];
+        float nx = uy * vz - uz * vy;
+        float ny = uz * vx - ux * vz;
+        float nz = ux * vy - uy * vx;
+        float length = (float) Math.sqrt(nx * nx + ny * ny + nz * nz);
+        if (length > 0) {
+            nx /= length;
+            ny /= length;
+            nz /= length;
+        }
+        out[o] = nx;
+        out[o + 1] = ny;
+        out[o + 2] = nz;
+    }
+
+    private static float dot(float[] normals, int a, int b) {
+        return normals[a * 3] * normals[b * 3] + normals[a * 3 + 1] * normals[b * 3 + 1]
+                + normals[a * 3 + 2] * normals[b * 3 + 2];
+    }
+}
@@ -24,6 +24,11 @@ import android.opengl.Matrix;
 import android.os.SystemClock;
 import android.util.Log;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
 /**
  * Provides drawing instructions for a GLSurfaceView object. This class
  * must override the OpenGL ES drawing lifecycle methods:
@@ -39,7 +44,86 @@ public class MyGLRenderer implements GLSurfaceView.Renderer {
     //private Triangle mTriangle;
     //private Cube mCube;
     private Figure mFigure;
-
+    // Out of core mesh drawn instead of the figure, if set
+    private volatile File mSceneDir;
+    private StreamedFigure mStreamed;
+    private static final long STREAM_BUDGET = 64L * 1024 * 1024;
+    // Progressive mesh drawn instead of the figure, if set
+    private volatile File mProgressiveFile;
+    private ProgressiveFigure mProgressive;
+    private static final int ZOOM = 20;
+    // planes of the projection and distance from the camera to the figure
+    private static final float NEAR = 1;
+    private static final float FAR = 25;
+    private static final float CAMERA_DISTANCE = 4;
+    // pinch zoom over ZOOM, from the view
+    private volatile float mZoom = 1;
+    private static final float MAX_ZOOM = 8;
+    // Figure smoothed where its edges look longer than these pixels, 0 never
+    private volatile float mSubdivisionPixels;
+    private volatile SubdividedFigure mSubdivided;
+    // matrix of the nearest copy, the levels follow it; preparation thread only
+    private final float[] mSubdivisionMatrix = new float[16];
+
+    // Copies of the figure in walls behind it, the front ones hide the others
+    private volatile int mInstanceCount = 1;
+    private static final int INSTANCES_PER_ROW = 5;
+    private static final int INSTANCE_ROWS = 3;
+    private final float[] mInstanceOffsets = new float[RenderCommandList.MAX_COMMANDS * 3];
+    private final float[] mInstanceMatrix = new float[16];
+    private final float[] mModelMatrix = new float[16];
+    private final float[] mWorldMatrix = new float[16];
+    // Oclusión: las copias ocultas por las de delante no se dibujan
+    private static final int OCCLUSION_WIDTH = 96;
+    private static final int OCCLUSION_HEIGHT = 96;
+    private static final int OCCLUDER_FACES = 64;
+    private final OcclusionCuller mCuller = new OcclusionCuller(OCCLUSION_WIDTH, OCCLUSION_HEIGHT);
+    private final float[] mFigureMin = new float[3];
+    private final float[] mFigureMax = new float[3];
+    private float[] mOccluderCoords;
+    private int[] mOccluderIndices;
+    private int mOccluderFaces;
+    // Copies drawn by pseudo-instancing, a few draw calls per frame, instead of one each
+    private volatile boolean mInstancing;
+    private InstancedFigure mInstanced;
+    private final float[] mViewProjectionMatrix = new float[16];
+    // Copies smaller than this many pixels are drawn as sprites of an ImpostorAtlas, 0 never
+    private volatile float mImpostorPixels;
+    // alpha of the figure, below 1 its faces are sorted back to front for every copy
+    private volatile float mFigureAlpha = 1.0f;
+    private int mSortedCopies;
+    private int mReusedSorts;
+    private float mSortMicros;
+    private ImpostorFigure mImpostors;
+    private final float[] mImpostorMatrix = new float[16];
+    private static final long IMPOSTOR_BUDGET = 4L * 1024 * 1024;
+    private final ImpostorCache mImpostorCache = new ImpostorCache(IMPOSTOR_BUDGET, new ImpostorCache.Loader() {
+        @Override
+        public ImpostorAtlas load(String model) throws IOException {
+            return mFigure.loadImpostors();
+        }
+    });
+    private int mFigureVertices;
+    private volatile int mLastImpostorCount;
+    private volatile long mSavedVertices;
+    // Baja el detalle, la resolución y las luces cuando los frames no llegan al objetivo
+    private final QualityGovernor mGovernor = new QualityGovernor();
+    // the GPU time is sampled once per window of the governor: that frame drains the GPU before and
+    // after its draws, so it only measures its own work, but it runs serialized and is left out of the window
+    private static final int GPU_SAMPLE_FRAMES = QualityGovernor.WINDOW;
+    private long mGpuTailNanos;
+    private long mMeasuredFrames;
+    private long mSerializedFrames;
+
+    // Object ids of the command lists, also used as program and buffer ids of the draw keys
+    private static final int FIGURE = 0;
+    private static final int FIGURE_LAYOUT = 0;
+    private static final int INSTANCED_FIGURE = 1;
+    private static final int INSTANCED_LAYOUT = 1;
+    private static final int IMPOSTOR = 2;
+    private static final int IMPOSTOR_LAYOUT = 2;
+
+    // Matrices of the preparation thread
     // mMVPMatrix is an abbreviation for "Model View Projection Matrix"
     private final float[] mMVPMatrix = new float[16];
     private final float[] mProjectionMatrix = new float[16];
@@ -47,34 +131,448 @@ public class MyGLRenderer implements GLSurfaceView.Renderer {
     private final float[] mRotationMatrix_x = new float[16];
     private final float[] mRotationMatrix_y = new float[16];
     private final float[] mRotationMatrix = new float[16];
+    private final float[] mCommandMatrix = new float[16];
+    private final float[] mCommandMVMatrix = new float[16];
+    private final float[] mFigureMVPMatrix = new float[16];
+    private final float[] mFigureMVMatrix = new float[16];
+    // copies of the figure drawn in the last frame and their matrices, used for picking
+    private final float[] mDrawnMatrices = new float[RenderCommandList.MAX_COMMANDS * 16];
+    private final int[] mDrawnCopies = new int[RenderCommandList.MAX_COMMANDS];
+    private int mDrawnCount;
+    // Draws the list of the frame; the streamed, progressive and subdivided figures still set up their state per draw
+    private RenderCommandList mExecuting;
+    private boolean mFigureBound;
+    private long mExecutedFrames;
+    private final RenderQueue.Executor mExecutor = new RenderQueue.Executor() {
+        @Override
+        public void setProgram(int program) {
+            // another object: the figure arrays are set again by its next draw
+            if (mFigureBound) {
+                mFigure.unbind();
+                mFigureBound = false;
+            }
+        }
 
+        @Override
+        public void setLayout(int layout) {
+            // each object has a single vertex layout, set up with its program
+        }
 
+        @Override
+        public void setBuffer(int buffer) {
+            // and a single set of buffers
+        }
 
-    private float mXAngle;
-    private float mYAngle;
-
+        @Override
+        public void draw(int command) {
+            drawCommand(mExecuting, command);
+        }
+    };
+
+    private volatile int mWidth;
+    private volatile int mHeight;
+    private final RayHit mLastHit = new RayHit();
+    private final RayHit mCopyHit = new RayHit();
+    private final float[] mPickMatrix = new float[16];
+    // the copy picked by the last tap is outlined, -1 for none, GL thread only
+    private int mSelectedCopy = -1;
+
+    // Input of the frames, written by the UI and GL threads and read by the
+    // preparation thread; every change bumps mInputVersion
+    private volatile float mXAngle;
+    private volatile float mYAngle;
+    private volatile float mRatio;
+    private final AtomicLong mInputVersion = new AtomicLong();
+
+    // Frame N + 1 is prepared while the GL thread draws frame N
+    private final FramePipeline mPipeline;
+    // also told when a streamed node or progressive split arrives
+    private volatile FramePipeline.Listener mFrameListener;
+    // the lights drawn in the last frame
+    private ClusteredLights mLights;
+
+    // Luces puntuales de colores girando alrededor de la figura, más la luz principal
+    private static final int POINT_LIGHTS = 256;
+    // orbit radius, height, phase and angular speed (rad/s) per light
+    private final float[] mLightOrbits = new float[POINT_LIGHTS * 4];
+    private final float[] mLightColors = new float[POINT_LIGHTS * 3];
+    private final float[] mLightCenter = new float[3];
+    private float mLightRange;
+    private float mFigureRadius;
+    private final float[] mClipCenter = new float[4];
+    private final float[] mLightWorld = new float[4];
+    private final float[] mLightEye = new float[4];
+
+    // brush size and depth of a sculpt stroke, relative to the figure size
+    private static final float SCULPT_RADIUS = 0.1f;
+    private static final float SCULPT_DEPTH = 0.1f;
+    private float mSculptRadius;
+
+    public MyGLRenderer() {
+        WorkerPool pool = WorkerPool.getDefault();
+        RenderCommandList[] lists = new RenderCommandList[3];
+        for (int i = 0; i < lists.length; i++) {
+            lists[i] = new RenderCommandList(pool);
+            // each list keeps its lights, so they can be assigned while others are drawn
+            ClusteredLights lights = new ClusteredLights(POINT_LIGHTS + 1, pool);
+            lights.setLightCount(POINT_LIGHTS + 1);
+            lists[i].setLights(lights);
+        }
+        mPipeline = new FramePipeline(new FramePipeline.Builder() {
+            @Override
+            public void build(RenderCommandList list, long frame) {
+                buildFrame(list, frame);
+            }
+
+            @Override
+            public long getInputVersion() {
+                return mInputVersion.get();
+            }
+        }, lists[0], lists[1], lists[2]);
+    }
 
     @Override
     public void onSurfaceCreated(GL10 unused, EGLConfig config) {
 
         // Set the background frame color
-        GLES20.glClearColor(0.0f, 0.0f, 0.0f, 1.0f);
-        GLES20.glClearDepthf(1.0f);
-        GLES20.glEnable(GL10.GL_DEPTH_TEST);
+        Gl.glClearColor(0.0f, 0.0f, 0.0f, 1.0f);
+        Gl.glClearDepthf(1.0f);
+        Gl.glEnable(GL10.GL_DEPTH_TEST);
         //mTriangle = new Triangle();
         //mCube = new Cube();
-        mFigure = new Figure();
+        // the preparation thread reads the figures replaced below, it starts again once they are built
+        mPipeline.stop();
+        if (mFigure != null) {
+            // the context was lost, its buffers go back to the arena
+            mFigure.release();
+            mFigure = null;
+        }
+        if (mProgressive != null) {
+            mProgressive.release();
+            mProgressive = null;
+        }
+        File progressiveFile = mProgressiveFile;
+        if (progressiveFile != null) {
+            try {
+                // only the base is read here, the splits load while it is drawn
+                mProgressive = new ProgressiveFigure(progressiveFile);
+            } catch (IOException e) {
+                Log.e(TAG, "cannot open " + progressiveFile, e);
+            }
+        }
+        File sceneDir = mSceneDir;
+        if (sceneDir != null) {
+            try {
+                // the streamer and its resident nodes outlive the context, only the program is new
+                OctreeStreamer streamer = mStreamed != null ? mStreamed.getStreamer()
+                        : new OctreeStreamer(sceneDir, STREAM_BUDGET);
+                streamer.setListener(new OctreeStreamer.Listener() {
+                    @Override
+                    public void onNodeLoaded(int node) {
+                        requestFrame();
+                    }
+                });
+                mStreamed = new StreamedFigure(streamer);
+            } catch (IOException e) {
+                Log.e(TAG, "cannot open " + sceneDir, e);
+            }
+        }
+        if (mProgressive == null && mStreamed == null) {
+            mFigure = new Figure();
+            if (mFigureAlpha < 1.0f) {
+                mFigure.setTransparency(mFigureAlpha);
+            }
+        }
+        if (mInstanced != null) {
+            mInstanced.release();
+            mInstanced = null;
+        }
+        if (mInstancing && mFigure != null) {
+            mInstanced = new InstancedFigure(mFigure.getMesh(), mFigure.getOcclusion());
+        }
+        if (mSubdivided != null) {
+            mSubdivided.release();
+            mSubdivided = null;
+        }
+        if (mSubdivisionPixels > 0 && mFigure != null) {
+            mSubdivided = new SubdividedFigure(mFigure.getMesh(), WorkerPool.getDefault());
+            mSubdivided.setEdgePixels(mSubdivisionPixels);
+        }
+        if (mImpostors != null) {
+            mImpostors.release();
+            mImpostors = null;
+        }
+        if (mImpostorPixels > 0 && mFigure != null) {
+            // the cached atlases outlive the context, they are uploaded again
+            mImpostors = new ImpostorFigure(mFigure.getModel());
+        }
+        createLights();
+        // the new figures start at full detail, the governor may be below it
+        applyQuality();
+        mPipeline.start();
     }
 
-    @Override
-    public void onDrawFrame(GL10 unused) {
-        float[] scratch = new float[16];
+    private void createLights() {
+        if (mLightRange > 0) {
+            // same figure after losing the context, the preparation thread already reads them
+            return;
+        }
+        float[] min = mFigureMin;
+        float[] max = mFigureMax;
+        ProgressiveMesh occluder = null;
+        if (mStreamed != null) {
+            // the root box of the octree, its meshes stay on disk
+            mStreamed.getStreamer().getBounds(0, min, max);
+        } else if (mProgressive != null) {
+            mProgressive.getMesh().getBaseBounds(min, max);
+            occluder = mProgressive.getMesh();
+        } else {
+            mFigure.getMesh().getBounds(min, max);
+            mFigureVertices = mFigure.getMesh().getVertexCount();
+            if (mInstanceCount > 1) {
+                occluder = ProgressiveMeshBuilder.build(mFigure.getMesh(), OCCLUDER_FACES);
+            }
+        }
+        if (occluder != null) {
+            // the coarse base of the figure is its occluder
+            mOccluderCoords = occluder.coords;
+            mOccluderIndices = occluder.indices;
+            mOccluderFaces = occluder.baseFaceCount;
+        }
+        float size = 0;
+        for (int k = 0; k < 3; k++) {
+            mLightCenter[k] = (min[k] + max[k]) * 0.5f;
+            size = Math.max(size, max[k] - min[k]);
+        }
+        mLightRange = size * 0.2f;
+        mSculptRadius = size * SCULPT_RADIUS;
+        mFigureRadius = size * 0.87f;
+        // overlapping walls of 5 x 3 copies, filled from the center outwards
+        for (int i = 0; i < mInstanceOffsets.length / 3; i++) {
+            int column = i % INSTANCES_PER_ROW;
+            int row = i / INSTANCES_PER_ROW % INSTANCE_ROWS;
+            mInstanceOffsets[i * 3] = (column + 1) / 2 * (column % 2 == 1 ? -1 : 1) * size * 0.5f;
+            mInstanceOffsets[i * 3 + 1] = (row + 1) / 2 * (row % 2 == 1 ? -1 : 1) * size * 0.35f;
+            mInstanceOffsets[i * 3 + 2] = i / (INSTANCES_PER_ROW * INSTANCE_ROWS) * size * 12;
+        }
+        Random random = new Random(7);
+        for (int i = 0; i < POINT_LIGHTS; i++) {
+            mLightOrbits[i * 4] = size * (0.3f + 0.5f * random.nextFloat());
+            mLightOrbits[i * 4 + 1] = size * (random.nextFloat() - 0.5f);
+            mLightOrbits[i * 4 + 2] = (float) (2 * Math.PI * random.nextFloat());
+            mLightOrbits[i * 4 + 3] = 0.2f + random.nextFloat();
+            for (int k = 0; k < 3; k++) {
+                mLightColors[i * 3 + k] = 0.5f * random.nextFloat();
+            }
+        }
+    }
 
-        // Draw background color
-        GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT | GLES20.GL_DEPTH_BUFFER_BIT);
+    // Moves the lights to this frame and assigns them to the clusters
+    private void updateLights(ClusteredLights lights) {
+        // the main light has no range and is already in eye space
+        lights.setLight(0, 1.0f, 0.5f, 0.7f, 0, 1.0f, 1.0f, 1.0f);
+        float seconds = (SystemClock.uptimeMillis() % 3600000L) / 1000.0f;
+        for (int i = 0; i < POINT_LIGHTS; i++) {
+            float angle = mLightOrbits[i * 4 + 2] + mLightOrbits[i * 4 + 3] * seconds;
+            mLightWorld[0] = mLightCenter[0] + mLightOrbits[i * 4] * (float) Math.cos(angle);
+            mLightWorld[1] = mLightCenter[1] + mLightOrbits[i * 4 + 1];
+            mLightWorld[2] = mLightCenter[2] + mLightOrbits[i * 4] * (float) Math.sin(angle);
+            mLightWorld[3] = 1.0f;
+            Matrix.multiplyMV(mLightEye, 0, mViewMatrix, 0, mLightWorld, 0);
+            lights.setLight(i + 1, mLightEye[0], mLightEye[1], mLightEye[2], mLightRange,
+                    mLightColors[i * 3], mLightColors[i * 3 + 1], mLightColors[i * 3 + 2]);
+        }
+        lights.assign();
+    }
+
+    /**
+     * Draws an octree built by {@link OctreeBuilder} instead of the figure,
+     * streaming its nodes from the directory. Call before the surface is
+     * created.
+     */
+    public void setScene(File octreeDir) {
+        mSceneDir = octreeDir;
+    }
+
+    /**
+     * Draws a progressive mesh written by {@link ProgressiveMeshBuilder}
+     * instead of the figure, refined as it loads and as the zoom needs. Call
+     * before the surface is created.
+     */
+    public void setProgressive(File file) {
+        mProgressiveFile = file;
+    }
+
+    public ProgressiveFigure getProgressiveFigure() {
+        return mProgressive;
+    }
+
+    /**
+     * Draws copies of the figure in walls going away from the camera, culling
+     * those hidden by the ones in front. Call before the surface is created.
+     */
+    public void setInstanceCount(int count) {
+        mInstanceCount = Math.max(1, Math.min(count, RenderCommandList.MAX_COMMANDS));
+        mInputVersion.incrementAndGet();
+    }
+
+    /**
+     * Draws the copies of the figure with an {@link InstancedFigure}, in a
+     * few draw calls, instead of one {@link Figure#draw} each. Only for the
+     * figure, not for a progressive mesh or a scene. Call before the surface
+     * is created.
+     */
+    public void setInstancing(boolean instancing) {
+        mInstancing = instancing;
+        mInputVersion.incrementAndGet();
+    }
+
+    public InstancedFigure getInstancedFigure() {
+        return mInstanced;
+    }
+
+    /**
+     * Blends the figure with this alpha, 1 for opaque. Below 1 the copies are
+     * drawn far first and the faces of each are sorted back to front. Only
+     * for the figure drawn whole, not for its instanced, subdivided or
+     * impostor copies. Call before the surface is created.
+     */
+    public void setFigureAlpha(float alpha) {
+        mFigureAlpha = alpha;
+        mInputVersion.incrementAndGet();
+    }
+
+    /**
+     * Draws the copies of the figure that would cover fewer pixels than this
+     * as sprites of its {@link ImpostorAtlas}, 0 never. Only for the figure,
+     * not for a progressive mesh or a scene. Call before the surface is
+     * created.
+     *
+     * @param pixels - Height on screen of the bounding sphere of a copy.
+     */
+    public void setImpostorPixels(float pixels) {
+        mImpostorPixels = pixels;
+        mInputVersion.incrementAndGet();
+    }
+
+    /**
+     * Keeps the frame time under a target by lowering the quality when the
+     * frames miss it and raising it again when they have room, 0 to always
+     * draw at full quality. See {@link QualityGovernor}.
+     */
+    public void setFrameTargetMs(float milliseconds) {
+        mGovernor.setTargetMs(milliseconds);
+        mInputVersion.incrementAndGet();
+    }
+
+    public QualityGovernor getQualityGovernor() {
+        return mGovernor;
+    }
+
+    /**
+     * Smooths the figure by {@link AdaptiveSubdivision} where its edges
+     * would look longer than this many pixels, 0 never. Only for the
+     * figure, not for a progressive mesh or a scene. Call before the
+     * surface is created.
+     */
+    public void setSubdivisionPixels(float pixels) {
+        mSubdivisionPixels = pixels;
+        mInputVersion.incrementAndGet();
+    }
+
+    public SubdividedFigure getSubdividedFigure() {
+        return mSubdivided;
+    }
+
+    /**
+     * Multiplies the zoom by a pinch factor, within 1 and {@link #MAX_ZOOM}.
+     */
+    public void scaleZoom(float factor) {
+        mZoom = Math.max(1, Math.min(mZoom * factor, MAX_ZOOM));
+        mInputVersion.incrementAndGet();
+    }
+
+    public float getZoom() {
+        return mZoom;
+    }
+
+    // Pixels per unit at distance 1, as the projection of buildFrame
+    private float getScreenScale() {
+        return mHeight * 0.5f * ZOOM * mZoom;
+    }
+
+    public ImpostorFigure getImpostorFigure() {
+        return mImpostors;
+    }
+
+    public ImpostorCache getImpostorCache() {
+        return mImpostorCache;
+    }
+
+    /**
+     * Returns the copies drawn as impostors in the last prepared frame.
+     */
+    public int getLastImpostorCount() {
+        return mLastImpostorCount;
+    }
+
+    /**
+     * Returns the vertices not sent since the start because the copies were
+     * drawn as impostors, four vertices each instead of the whole mesh.
+     */
+    public long getSavedVertices() {
+        return mSavedVertices;
+    }
+
+    /**
+     * Returns the occlusion culler, only read on the preparation thread or
+     * between frames.
+     */
+    public OcclusionCuller getOcclusionCuller() {
+        return mCuller;
+    }
+
+    public StreamedFigure getStreamedFigure() {
+        return mStreamed;
+    }
+
+    /**
+     * Returns the lights of the last drawn frame.
+     */
+    public ClusteredLights getLights() {
+        return mLights;
+    }
+
+    public FramePipeline getPipeline() {
+        return mPipeline;
+    }
+
+    /**
+     * Fills the command list of a frame. Runs on the preparation thread, so
+     * it only reads the input fields and the data fixed at creation.
+     */
+    private void buildFrame(RenderCommandList list, long frame) {
+        float ratio = mRatio;
+        if (ratio == 0) {
+            // no surface yet
+            return;
+        }
+        // this projection matrix is applied to object coordinates
+        float zoom = ZOOM * mZoom;
+        Matrix.frustumM(mProjectionMatrix, 0, -ratio/zoom, ratio/zoom, -1f/zoom, 1f/zoom, NEAR, FAR);
+        // the figure stays around 4 units from the camera, its copies go back to the deepest wall;
+        // they are lit in this eye space, so the clusters cover the whole scene
+        int instances = mInstanceCount;
+        float minDepth = Math.max(CAMERA_DISTANCE - mFigureRadius, NEAR);
+        float maxDepth = Math.min(CAMERA_DISTANCE + mInstanceOffsets[(instances - 1) * 3 + 2] + mFigureRadius, FAR);
+        ClusteredLights lights = list.getLights();
+        lights.setFrustum(-ratio/zoom, ratio/zoom, -1f/zoom, 1f/zoom, NEAR, minDepth, maxDepth);
 
         // Set the camera position (View matrix)
-        Matrix.setLookAtM(mViewMatrix, 0, 0, 0, -4, 0f, 0f, 0f, 0f, 1.0f, 0.0f);
+        Matrix.setLookAtM(mViewMatrix, 0, 0, 0, -CAMERA_DISTANCE, 0f, 0f, 0f, 0f, 1.0f, 0.0f);
+        if (mGovernor.usesPointLights()) {
+            updateLights(lights);
+        }
 
         // Calculate the projection and view transformation
         Matrix.multiplyMM(mMVPMatrix, 0, mProjectionMatrix, 0, mViewMatrix, 0);
@@ -94,29 +592,345 @@ public class MyGLRenderer implements GLSurfaceView.Renderer {
         Matrix.multiplyMM(mRotationMatrix, 0, mRotationMatrix_y, 0, mRotationMatrix_x, 0);
 
 
+        boolean cull = instances > 1 && mOccluderCoords != null;
+        if (cull) {
+            // the figures in the frustum draw their coarse base as occluders
+            mCuller.beginFrame();
+            for (int i = 0; i < instances; i++) {
+                if (instanceMatrix(i, zoom, ratio, mInstanceMatrix)) {
+                    mCuller.addOccluder(mInstanceMatrix, mOccluderCoords, mOccluderIndices, mOccluderFaces,
+                            mFigureMin, mFigureMax);
+                }
+            }
+            mCuller.render();
+        }
+        boolean instanced = mInstancing && mProgressiveFile == null && mSceneDir == null;
+        // below this w a copy is taller than the impostor threshold
+        float pixels = mImpostorPixels;
+        // the atlas is loaded, or baked, here and not on the GL thread; without one the copies are drawn whole
+        ImpostorAtlas atlas = pixels > 0 && mFigure != null && mProgressiveFile == null && mSceneDir == null
+                ? loadImpostorAtlas() : null;
+        list.setImpostorAtlas(atlas);
+        float impostorW = atlas != null
+                ? mFigureRadius * 2 * mHeight * 0.5f * zoom / pixels : Float.POSITIVE_INFINITY;
+        int impostors = 0;
+        float nearestW = Float.POSITIVE_INFINITY;
+        boolean transparent = mFigureAlpha < 1.0f && mProgressiveFile == null && mSceneDir == null;
+        for (int i = 0; i < instances; i++) {
+            if (!instanceMatrix(i, zoom, ratio, mCommandMatrix)
+                    || (cull && mCuller.isOccluded(mCommandMatrix, mFigureMin, mFigureMax))) {
+                continue;
+            }
+            if (mClipCenter[3] > impostorW) {
+                list.add(IMPOSTOR, RenderQueue.key(RenderQueue.PASS_OPAQUE, IMPOSTOR, IMPOSTOR_LAYOUT, IMPOSTOR,
+                        mClipCenter[3]), mCommandMatrix);
+                impostors++;
+            } else if (instanced) {
+                list.addInstance(mWorldMatrix);
+            } else {
+                // each copy is lit where it is
+                Matrix.multiplyMM(mCommandMVMatrix, 0, mViewMatrix, 0, mWorldMatrix, 0);
+                // blended copies go after the opaque draws, the farthest first
+                list.add(FIGURE, RenderQueue.key(transparent ? RenderQueue.PASS_TRANSPARENT : RenderQueue.PASS_OPAQUE,
+                        FIGURE, FIGURE_LAYOUT, FIGURE, mClipCenter[3]), mCommandMatrix, mCommandMVMatrix, i);
+                if (mClipCenter[3] < nearestW) {
+                    nearestW = mClipCenter[3];
+                    System.arraycopy(mCommandMatrix, 0, mSubdivisionMatrix, 0, 16);
+                }
+            }
+        }
+        SubdividedFigure subdivided = mSubdivided;
+        if (subdivided != null && nearestW != Float.POSITIVE_INFINITY
+                && subdivided.update(mSubdivisionMatrix, getScreenScale())) {
+            // the GL thread copies the new output with the next draw, the others draw the same mesh
+            requestFrame();
+        }
+        if (list.getInstanceCount() > 0) {
+            // one command for all the copies, with the shared view projection
+            list.add(INSTANCED_FIGURE, RenderQueue.key(RenderQueue.PASS_OPAQUE, INSTANCED_FIGURE,
+                    INSTANCED_LAYOUT, INSTANCED_FIGURE, 0), mMVPMatrix, mViewMatrix, -1);
+        }
+        mLastImpostorCount = impostors;
+        mSavedVertices += (long) impostors * (mFigureVertices - 4);
+        if (impostors > 0 && frame % 120 == 0) {
+            Log.d(TAG, "impostors: " + impostors + " copies, " + impostors * (mFigureVertices - 4)
+                    + " vertices saved, " + mImpostorCache.getCount() + " atlases in " + mImpostorCache.getBytes()
+                    + " bytes");
+        }
+        if (cull && frame % 120 == 0) {
+            Log.d(TAG, "occlusion: " + mCuller.getCulledCount() + " of " + mCuller.getTestedCount()
+                    + " culled, " + mCuller.getOccluderCount() + " occluders, " + mCuller.getTriangleCount()
+                    + " triangles in " + mCuller.getRenderMicros() + " us, tests " + mCuller.getTestMicros()
+                    + " us");
+        }
+    }
+
+    // Asks the cache for the atlas of the figure, null if it cannot be loaded
+    private ImpostorAtlas loadImpostorAtlas() {
+        try {
+            return mImpostorCache.get(mFigure.getModel());
+        } catch (IOException e) {
+            Log.e(TAG, "cannot load the impostors of " + mFigure.getModel(), e);
+            return null;
+        }
+    }
+
+    /**
+     * Computes the final matrix of a copy of the figure, leaving its center
+     * in clip coordinates in mClipCenter.
+     *
+     * @return - False if its bounding sphere is out of the clip volume.
+     */
+    private boolean instanceMatrix(int instance, float zoom, float ratio, float[] out) {
+        Matrix.setIdentityM(mModelMatrix, 0);
+        Matrix.translateM(mModelMatrix, 0, mInstanceOffsets[instance * 3], mInstanceOffsets[instance * 3 + 1],
+                mInstanceOffsets[instance * 3 + 2]);
+        Matrix.multiplyMM(mWorldMatrix, 0, mModelMatrix, 0, mRotationMatrix, 0);
         // Combine the rotation matrix with the projection and camera view
         // Note that the mMVPMatrix factor *must be first* in order
         // for the matrix multiplication product to be correct.
-        Matrix.multiplyMM(scratch, 0, mMVPMatrix, 0, mRotationMatrix, 0);
+        Matrix.multiplyMM(out, 0, mMVPMatrix, 0, mWorldMatrix, 0);
+
+        // Skip the figure if its bounding sphere is out of the clip volume
+        mLightWorld[0] = mLightCenter[0];
+        mLightWorld[1] = mLightCenter[1];
+        mLightWorld[2] = mLightCenter[2];
+        mLightWorld[3] = 1.0f;
+        Matrix.multiplyMV(mClipCenter, 0, out, 0, mLightWorld, 0);
+        float w = mClipCenter[3];
+        // the radius in clip units, a loose bound for this projection: x is scaled by zoom / ratio, y by zoom
+        float r = mFigureRadius * zoom / Math.min(1, ratio);
+        return !(w + mFigureRadius < 1 || Math.abs(mClipCenter[0]) > w + r || Math.abs(mClipCenter[1]) > w + r);
+    }
+
+    @Override
+    public void onDrawFrame(GL10 unused) {
+        boolean sample = mGovernor.isEnabled() && (mMeasuredFrames + 1) % GPU_SAMPLE_FRAMES == 0;
+        if (sample) {
+            // the frames still queued would count as the work of this one
+            Gl.glFinish();
+        }
+        long frameStart = System.nanoTime();
+        // Draw background color
+        Gl.glClear(GLES20.GL_COLOR_BUFFER_BIT | GLES20.GL_DEPTH_BUFFER_BIT);
+
+        // The list of this frame was prepared while the last one was drawn
+        RenderCommandList list = mPipeline.acquire();
+        mLights = list.getLights();
+        if (mImpostors != null) {
+            mImpostors.begin(list.getImpostorAtlas());
+        }
+        if (mSubdivided != null) {
+            mSubdivided.setLights(mGovernor.usesPointLights() ? mLights : null);
+        }
+        boolean refining = false;
+        if (mProgressive != null) {
+            // the copies share the buffers: one level for the frame, the one the nearest copy wants
+            int wanted = 0;
+            for (int i = 0; i < list.getCount(); i++) {
+                if (list.getObject(i) == FIGURE) {
+                    list.getMatrix(i, mFigureMVPMatrix);
+                    wanted = Math.max(wanted, mProgressive.getWantedLevel(mFigureMVPMatrix, getScreenScale()));
+                }
+            }
+            refining = mProgressive.refine(wanted);
+        }
+        mDrawnCount = 0;
+        mSortedCopies = mReusedSorts = 0;
+        mSortMicros = 0;
+        if (mFigure != null) {
+            // the progressive and streamed figures have no base figure
+            mFigure.setLights(mGovernor.usesPointLights() ? mLights : null);
+        }
+        if (mInstanced != null) {
+            mInstanced.setLights(mGovernor.usesPointLights() ? mLights : null);
+        }
+        // the list sorted its keys, its queue only calls setProgram when the object changes
+        mExecuting = list;
+        list.execute(mExecutor);
+        if (mFigureBound) {
+            mFigure.unbind();
+            mFigureBound = false;
+        }
+        mExecuting = null;
+        // a list is drawn again while no newer one is ready, so count the frames drawn
+        if (++mExecutedFrames % 120 == 0) {
+            RenderQueue queue = list.getQueue();
+            Log.d(TAG, "queue: " + queue.getCount() + " draws sorted in " + queue.getSortMicros() + " us, "
+                    + queue.getProgramSwitches() + " program changes, " + WorkerPool.getDefault().getInlineLoopCount()
+                    + " loops run alone on a busy pool");
+            if (mSortedCopies + mReusedSorts > 0) {
+                Log.d(TAG, "depth sort: " + mSortMicros + " us this frame, " + mSortedCopies + " copies sorted, "
+                        + mReusedSorts + " reused");
+            }
+        }
+        if (mImpostors != null) {
+            // all the sprites in one draw call
+            mImpostors.end();
+        }
+        mPipeline.executed(list);
+        if (mGovernor.isEnabled()) {
+            measureFrame(frameStart, sample);
+        }
+        if (refining) {
+            requestFrame();
+        }
+    }
 
-        // Draw triangle
-        //mTriangle.draw(scratch);
-        mFigure.draw(scratch);
+    // Draws one command of the list being executed
+    private void drawCommand(RenderCommandList list, int command) {
+        int object = list.getCommandObject(command);
+        if (object == FIGURE) {
+            list.getCommandMatrix(command, mFigureMVPMatrix);
+            list.getCommandModelView(command, mFigureMVMatrix);
+            int copy = list.getCommandCopy(command);
+            System.arraycopy(mFigureMVPMatrix, 0, mDrawnMatrices, mDrawnCount * 16, 16);
+            mDrawnCopies[mDrawnCount++] = copy;
+            // Draw triangle
+            //mTriangle.draw(mFigureMVPMatrix);
+            if (mStreamed != null) {
+                mStreamed.draw(mFigureMVPMatrix, getScreenScale());
+            } else if (mProgressive != null) {
+                mProgressive.draw(mFigureMVPMatrix);
+            } else if (mSubdivided == null || !mSubdivided.draw(mFigureMVPMatrix, mFigureMVMatrix)) {
+                // the base mesh, also until the preparation thread has subdivided it
+                if (!mFigureBound) {
+                    // once for all the copies that follow
+                    mFigure.bind();
+                    mFigureBound = true;
+                }
+                boolean selected = copy == mSelectedCopy;
+                if (selected) {
+                    // the faces go a little deeper, so the lines on their edges pass the depth test
+                    Gl.glEnable(GLES20.GL_POLYGON_OFFSET_FILL);
+                    Gl.glPolygonOffset(1.0f, 1.0f);
+                }
+                mFigure.drawBound(mFigureMVPMatrix, mFigureMVMatrix);
+                if (mFigure.isTransparent()) {
+                    DepthSorter sorter = mFigure.getDepthSorter();
+                    mSortMicros += sorter.getLastSortMicros();
+                    if (sorter.wasLastSortSkipped()) {
+                        mReusedSorts++;
+                    } else {
+                        mSortedCopies++;
+                    }
+                }
+                if (selected) {
+                    Gl.glDisable(GLES20.GL_POLYGON_OFFSET_FILL);
+                    mFigure.unbind();
+                    mFigureBound = false;
+                    // its own program, the next copy binds the figure again
+                    mFigure.drawOutline(mFigureMVPMatrix);
+                }
+            }
+        } else if (object == INSTANCED_FIGURE && mInstanced != null) {
+            list.getCommandMatrix(command, mViewProjectionMatrix);
+            list.getCommandModelView(command, mFigureMVMatrix);
+            mInstanced.draw(mViewProjectionMatrix, mFigureMVMatrix, list.getInstances(), list.getInstanceCount());
+        } else if (object == IMPOSTOR && mImpostors != null) {
+            list.getCommandMatrix(command, mImpostorMatrix);
+            mImpostors.add(mImpostorMatrix);
+        }
+    }
+
+    // Gives the cost of the frame to the governor: the time of the GL thread plus the GPU tail
+    private void measureFrame(long start, boolean sample) {
+        long end = System.nanoTime();
+        mMeasuredFrames++;
+        if (sample) {
+            // what the GPU still had to do when the GL thread was done
+            Gl.glFinish();
+            mGpuTailNanos = System.nanoTime() - end;
+            if (++mSerializedFrames % 4 == 0) {
+                Log.d(TAG, "gpu sample: " + (end - start) / 1000 + " us on the GL thread, " + mGpuTailNanos / 1000
+                        + " us more on the GPU, serialized, " + mSerializedFrames + " of " + mMeasuredFrames
+                        + " frames left out of the governor");
+            }
+            return;
+        }
+        // the others add the last GPU sample to their own time, without waiting for the GPU
+        if (mGovernor.addFrame(end - start + mGpuTailNanos)) {
+            applyQuality();
+        }
+    }
+
+    // Applies the level of the governor to the figures, the surface size is up to the view
+    private void applyQuality() {
+        float detail = mGovernor.getDetail();
+        if (mFigure != null) {
+            mFigure.setDetail(detail);
+        }
+        if (mProgressive != null) {
+            mProgressive.setPixelsPerFace(ProgressiveFigure.PIXELS_PER_FACE / detail);
+        }
+        Log.d(TAG, "quality " + mGovernor.getLevel() + ": detail " + detail + ", render scale "
+                + mGovernor.getRenderScale() + ", point lights " + mGovernor.usesPointLights() + ", p90 "
+                + mGovernor.getLastP90Micros() + " us for " + mGovernor.getTargetMs() + " ms");
     }
 
     @Override
     public void onSurfaceChanged(GL10 unused, int width, int height) {
         // Adjust the viewport based on geometry changes,
         // such as screen rotation
-        GLES20.glViewport(0, 0, width, height);
+        Gl.glViewport(0, 0, width, height);
+        mWidth = width;
+        mHeight = height;
 
-        float ratio = (float) width / height;
+        // the projection is set by the preparation thread, in buildFrame()
+        mRatio = (float) width / height;
+        mInputVersion.incrementAndGet();
+    }
 
-        // this projection matrix is applied to object coordinates
-        // in the onDrawFrame() method
-        int zoom = 20;
-        Matrix.frustumM(mProjectionMatrix, 0, -ratio/zoom, ratio/zoom, -1f/zoom, 1f/zoom, 1, 25);
+    /**
+     * Finds the triangle of the figure under a touch, using the matrices of
+     * the last drawn frame, and selects the nearest copy it hits: that copy
+     * is outlined from then on. Must run on the GL thread (queueEvent).
+     *
+     * @param x - Touch x in view pixels.
+     * @param y - Touch y in view pixels.
+     * @return - The hit, check {@link RayHit#isHit()}. The object is reused
+     * by the next call.
+     */
+    public RayHit pick(float x, float y) {
+        if (mFigure == null) {
+            mLastHit.reset(Float.POSITIVE_INFINITY);
+            return mLastHit;
+        }
+        Picker picker = mFigure.getPicker();
+        mLastHit.reset(Float.POSITIVE_INFINITY);
+        mSelectedCopy = -1;
+        for (int d = 0; d < mDrawnCount; d++) {
+            System.arraycopy(mDrawnMatrices, d * 16, mPickMatrix, 0, 16);
+            // the copies are not scaled, their distances compare
+            if (picker.pick(x, y, mWidth, mHeight, mPickMatrix, mCopyHit) && mCopyHit.t < mLastHit.t) {
+                mLastHit.face = mCopyHit.face;
+                mLastHit.u = mCopyHit.u;
+                mLastHit.v = mCopyHit.v;
+                mLastHit.t = mCopyHit.t;
+                mSelectedCopy = mDrawnCopies[d];
+            }
+        }
+        if (mLastHit.isHit()) {
+            Log.d(TAG, "pick " + mLastHit + " on copy " + mSelectedCopy + " in " + picker.getLastQueryMicros()
+                    + " us");
+        }
+        return mLastHit;
+    }
 
+    /**
+     * Pushes the figure surface out under a touch. Must run on the GL thread
+     * (queueEvent), and the view must render again afterwards.
+     */
+    public void sculpt(float x, float y) {
+        RayHit hit = pick(x, y);
+        if (hit.isHit()) {
+            int moved = mFigure.sculpt(hit, mSculptRadius, mSculptRadius * SCULPT_DEPTH);
+            if (mSubdivided != null) {
+                mSubdivided.invalidate(mFigure.getLastSculptVertices(), moved);
+            }
+            Log.d(TAG, "sculpt " + moved + " vertices, " + mFigure.getLastEditBytes() + " bytes in "
+                    + mFigure.getLastEditMicros() + " us");
+        }
     }
 
     /**
@@ -133,11 +947,11 @@ public class MyGLRenderer implements GLSurfaceView.Renderer {
 
         // create a vertex shader type (GLES20.GL_VERTEX_SHADER)
         // or a fragment shader type (GLES20.GL_FRAGMENT_SHADER)
-        int shader = GLES20.glCreateShader(type);
+        int shader = Gl.glCreateShader(type);
 
         // add the source code to the shader and compile it
-        GLES20.glShaderSource(shader, shaderCode);
-        GLES20.glCompileShader(shader);
+        Gl.glShaderSource(shader, shaderCode);
+        Gl.glCompileShader(shader);
 
         return shader;
     }
@@ -156,7 +970,7 @@ public class MyGLRenderer implements GLSurfaceView.Renderer {
     */
     public static void checkGlError(String glOperation) {
         int error;
-        while ((error = GLES20.glGetError()) != GLES20.GL_NO_ERROR) {
+        while ((error = Gl.glGetError()) != GLES20.GL_NO_ERROR) {
             Log.e(TAG, glOperation + ": glError " + error);
             throw new RuntimeException(glOperation + ": glError " + error);
         }
@@ -180,9 +994,29 @@ public class MyGLRenderer implements GLSurfaceView.Renderer {
      */
     public void setXAngle(float angle) {
         mXAngle = angle;
+        mInputVersion.incrementAndGet();
     }
     public void setYAngle(float angle) {
         mYAngle = angle;
+        mInputVersion.incrementAndGet();
+    }
+
+    /**
+     * Sets who is told when the view should render again: a frame prepared
+     * from new input is ready, or more of a streamed or progressive mesh
+     * arrived. Called from the preparation, loading or GL threads.
+     */
+    public void setFrameListener(FramePipeline.Listener listener) {
+        mFrameListener = listener;
+        mPipeline.setListener(listener);
+    }
+
+    // Asks the view for one more frame, as a prepared frame would
+    private void requestFrame() {
+        FramePipeline.Listener listener = mFrameListener;
+        if (listener != null) {
+            listener.onFrameReady();
+        }
     }
 
 }
\ No newline at end of file
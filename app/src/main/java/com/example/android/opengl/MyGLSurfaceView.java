@@ -28,8 +28,8 @@ import android.view.View;
  * interacting with drawn objects.
  */
 public class MyGLSurfaceView extends GLSurfaceView  {
+    private static final String TAG = "MyGLSurfaceView";
     private final MyGLRenderer mRenderer;
-    private int rotate_threshold = 30;
     private ScaleGestureDetector mScaleDetector;
 
 
@@ -46,13 +46,37 @@ public class MyGLSurfaceView extends GLSurfaceView  {
 
         // Render the view only when there is a change in the drawing data
         setRenderMode(GLSurfaceView.RENDERMODE_WHEN_DIRTY);
+        // A frame prepared from newer input than the drawn one needs one more render
+        mRenderer.setFrameListener(new FramePipeline.Listener() {
+            @Override
+            public void onFrameReady() {
+                requestRender();
+            }
+        });
+        // The governor draws fewer pixels when frames are slow, the compositor scales them up
+        mRenderer.getQualityGovernor().setListener(new QualityGovernor.Listener() {
+            @Override
+            public void onQualityChanged(QualityGovernor governor, int from, int to) {
+                final float scale = governor.getRenderScale();
+                post(new Runnable() {
+                    @Override
+                    public void run() {
+                        setRenderScale(scale);
+                    }
+                });
+            }
+        });
         mScaleDetector = new ScaleGestureDetector(context, new ScaleListener());
+        mInput = new GestureInput(mRenderer);
 
     }
 
-    private final float TOUCH_SCALE_FACTOR = 180.0f / 320;
-    private float mPreviousX;
-    private float mPreviousY;
+    private final GestureInput mInput;
+    // size of the surface against the view, changed on the UI thread
+    private float mRenderScale = 1;
+    // events of the recording in progress, created with the first one
+    private boolean mRecording;
+    private InputTrace mTrace;
 
    @Override
     public boolean onTouchEvent(MotionEvent e) {
@@ -60,65 +84,90 @@ public class MyGLSurfaceView extends GLSurfaceView  {
         // and other input controls. In this case, you are only
         // interested in events where the touch position changed.
        mScaleDetector.onTouchEvent(e);
-        if (!mScaleDetector.isInProgress()) {
-            float x = e.getX();
-            float y = e.getY();
-
-            float x_pos = mRenderer.getXAngle() % 360;
-            if (x_pos < 0)
-                x_pos = 360 + x_pos;
-            float y_pos = mRenderer.getYAngle() % 360;
-            if (y_pos < 0)
-                y_pos = 360 + y_pos;
-
-            switch (e.getAction()) {
-                case MotionEvent.ACTION_MOVE:
-
-                    float dx = x - mPreviousX;
-                    float dy = y - mPreviousY;
-                    //dx = dx * -1;
-                    dy = dy * -1;
-
-                    // Establecemos un threshold en funcion de la posicion del cubo en el eje x
-                    // Si se supera, hacemos que gire en función de si estamos tocando el cubo en
-                    // la parte izquierda o derecha de la pantalla
-                    if (x_pos > rotate_threshold && x_pos < 360 - rotate_threshold) {
-                        if (x_pos < 180 - rotate_threshold) {
-                            if (x < getWidth() / 2)
-                                dy = dy * -1;
-                        } else if (x_pos < 180 + rotate_threshold) {
-                            dy = dy * -1;
+        int action = mScaleDetector.isInProgress() ? InputTrace.SCALE : e.getAction();
+        if (mRecording) {
+            if (mTrace == null) {
+                mTrace = new InputTrace(getWidth(), getHeight());
+            }
+            mTrace.add(e.getEventTime(), action, e.getX(), e.getY());
+        }
+
+        int result = mInput.onTouch(action, e.getX(), e.getY(), e.getEventTime(), getWidth());
+        switch (result) {
+            case GestureInput.ROTATE:
+                requestRender();
+                break;
+
+            case GestureInput.PICK:
+            case GestureInput.SCULPT:
+                // in surface pixels, smaller than the view ones at a lower render scale
+                final float pickX = mInput.getTapX() * mRenderScale;
+                final float pickY = mInput.getTapY() * mRenderScale;
+                final boolean sculpt = result == GestureInput.SCULPT;
+                // Picking reads the renderer matrices, so it runs on the GL thread
+                queueEvent(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (sculpt) {
+                            mRenderer.sculpt(pickX, pickY);
                         } else {
-                            if (x > getWidth() / 2)
-                                dy = dy * -1;
+                            mRenderer.pick(pickX, pickY);
                         }
                     }
-
-                    //Establecemos el nuevo angulo de giro en el eje X y en el eje Y
-                    mRenderer.setYAngle(
-                            mRenderer.getYAngle() +
-                                    //((dx + dy) * TOUCH_SCALE_FACTOR));  // = 180.0f / 320
-                                    ((dy) * TOUCH_SCALE_FACTOR));
-
-                    mRenderer.setXAngle(
-                            mRenderer.getXAngle() +
-                                    //((dx + dy) * TOUCH_SCALE_FACTOR));  // = 180.0f / 320
-                                    ((dx) * TOUCH_SCALE_FACTOR));
-                    requestRender();
-            }
-
-            mPreviousX = x;
-            mPreviousY = y;
+                });
+                // a pick changes the selection outline, a sculpt the surface
+                requestRender();
+                break;
         }
         return true;
     }
 
+    // Resizes the surface, onSurfaceChanged sets the viewport and projection for it
+    private void setRenderScale(float scale) {
+        if (scale == mRenderScale || getWidth() == 0) {
+            return;
+        }
+        mRenderScale = scale;
+        if (scale >= 1) {
+            getHolder().setSizeFromLayout();
+        } else {
+            getHolder().setFixedSize(Math.round(getWidth() * scale), Math.round(getHeight() * scale));
+        }
+        Log.d(TAG, "render scale " + scale);
+    }
+
+    public MyGLRenderer getRenderer() {
+        return mRenderer;
+    }
+
+    /**
+     * Starts recording the touch events, to replay them later with
+     * {@link TraceReplayer}.
+     */
+    public void startRecording() {
+        mRecording = true;
+        mTrace = null;
+    }
+
+    /**
+     * Ends the recording.
+     *
+     * @return - The recorded events, or null if there were none.
+     */
+    public InputTrace stopRecording() {
+        InputTrace trace = mTrace;
+        mRecording = false;
+        mTrace = null;
+        return trace;
+    }
+
 
     private class ScaleListener
             extends ScaleGestureDetector.SimpleOnScaleGestureListener {
         @Override
         public boolean onScale(ScaleGestureDetector detector) {
-            detector.getScaleFactor();
+            mRenderer.scaleZoom(detector.getScaleFactor());
+            requestRender();
             return true;
         }
     }
@@ -0,0 +1,349 @@
+package com.example.android.opengl;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+/**
+ * Reads Wavefront OBJ meshes: the v, vn and f lines, other lines are
+ * skipped. The stream is parsed as bytes, line by line, and never held
+ * whole in memory.
+ *
+ * OBJ indexes positions and normals separately, GL needs one index per
+ * vertex: every distinct position / normal pair met in the faces becomes a
+ * vertex, numbered in order of appearance. Texture coordinates are
+ * ignored, so corners that only differ in them share a vertex.
+ */
+public class ObjReader implements MeshSource {
+    private static final double[] POWERS_OF_TEN = new double[23];
+
+    static {
+        POWERS_OF_TEN[0] = 1;
+        for (int i = 1; i < POWERS_OF_TEN.length; i++) {
+            POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10;
+        }
+    }
+
+    private final InputStream mIn;
+    private final byte[] mBuffer = new byte[64 * 1024];
+    private int mBufferPosition, mBufferLimit;
+    // current line and the parse position in it
+    private byte[] mLine = new byte[256];
+    private int mLineLength, mAt;
+    private int mLineNumber;
+
+    // positions and normals as listed in the file
+    private float[] mPositions = new float[3 * 1024];
+    private int mPositionCount;
+    private float[] mNormals = new float[3 * 1024];
+    private int mNormalCount;
+
+    // merged vertices, their keys (position << 32 | normal + 1) in an open hash table
+    private float[] mCoords = new float[3 * 1024];
+    private float[] mVertexNormals = new float[3 * 1024];
+    private int mVertexCount;
+    private boolean mMissingNormals;
+    private long[] mKeys = new long[4096];
+    private int[] mVertices = new int[4096];
+    private int[] mIndices = new int[3 * 2048];
+    private int mIndexCount;
+
+    /**
+     * @param inputStream - Stream with the OBJ data, closed by {@link #close}.
+     */
+    public ObjReader(InputStream inputStream) {
+        mIn = inputStream;
+        Arrays.fill(mKeys, -1L);
+    }
+
+    @Override
+    public Mesh readMesh() throws IOException {
+        while (nextLine()) {
+            skipSpaces();
+            if (mAt + 1 >= mLineLength) {
+                continue;
+            }
+            byte c0 = mLine[mAt];
+            byte c1 = mLine[mAt + 1];
+            if (c0 == 'v' && c1 <= ' ') {
+                mAt++;
+                mPositions = ensure(mPositions, mPositionCount * 3 + 3);
+                readFloats(mPositions, mPositionCount++ * 3);
+            } else if (c0 == 'v' && c1 == 'n') {
+                mAt += 2;
+                mNormals = ensure(mNormals, mNormalCount * 3 + 3);
+                readFloats(mNormals, mNormalCount++ * 3);
+            } else if (c0 == 'f' && c1 <= ' ') {
+                mAt++;
+                readFace();
+            }
+            // vt, groups, materials and comments are skipped
+        }
+
+        float[] coords = new float[mVertexCount * 3];
+        System.arraycopy(mCoords, 0, coords, 0, coords.length);
+        int[] indices = new int[mIndexCount];
+        System.arraycopy(mIndices, 0, indices, 0, mIndexCount);
+        Mesh mesh = new Mesh(coords, indices);
+        if (mNormalCount > 0) {
+            float[] normals = new float[coords.length];
+            System.arraycopy(mVertexNormals, 0, normals, 0, normals.length);
+            if (mMissingNormals) {
+                // the corners without a normal take the average of their faces
+                float[] computed = mesh.computeVertexNormals();
+                for (int i = 0; i < normals.length; i += 3) {
+                    if (normals[i] == 0 && normals[i + 1] == 0 && normals[i + 2] == 0) {
+                        System.arraycopy(computed, i, normals, i, 3);
+                    }
+                }
+            }
+            mesh.normals = normals;
+        }
+        return mesh;
+    }
+
+    private void readFace() throws IOException {
+        int first = -1, last = -1;
+        int corners = 0;
+        while (true) {
+            skipSpaces();
+            if (mAt >= mLineLength) {
+                break;
+            }
+            int position = resolve(parseInt(), mPositionCount);
+            int normal = -1;
+            if (mAt < mLineLength && mLine[mAt] == '/') {
+                mAt++;
+                if (mAt < mLineLength && mLine[mAt] != '/') {
+                    // texture coordinate
+                    parseInt();
+                }
+                if (mAt < mLineLength && mLine[mAt] == '/') {
+                    mAt++;
+                    normal = resolve(parseInt(), mNormalCount);
+                }
+            }
+            int vertex = vertex(position, normal);
+            if (corners == 0) {
+                first = vertex;
+            } else if (corners >= 2) {
+                mIndices = ensure(mIndices, mIndexCount + 3);
+                mIndices[mIndexCount++] = first;
+                mIndices[mIndexCount++] = last;
+                mIndices[mIndexCount++] = vertex;
+            }
+            last = vertex;
+            corners++;
+        }
+        if (corners < 3) {
+            throw new IOException("Line " + mLineNumber + ": face with " + corners + " vertices");
+        }
+    }
+
+    // Turns a 1 based or negative, relative, OBJ index into a 0 based one
+    private int resolve(int index, int count) throws IOException {
+        int resolved = index < 0 ? count + index : index - 1;
+        if (resolved < 0 || resolved >= count) {
+            throw new IOException("Line " + mLineNumber + ": index " + index + " of " + count);
+        }
+        return resolved;
+    }
+
+    // Returns the vertex of a position / normal pair, adding it the first time
+    private int vertex(int position, int normal) {
+        long key = ((long) position << 32) | (normal + 1);
+        int mask = mKeys.length - 1;
+        int slot = (int) ((key * 0x9E3779B97F4A7C15L) >>> 32) & mask;
+        while (mKeys[slot] != -1L) {
+            if (mKeys[slot] == key) {
+                return mVertices[slot];
+            }
+            slot = (slot + 1) & mask;
+        }
+        int vertex = mVertexCount++;
+        mKeys[slot] = key;
+        mVertices[slot] = vertex;
+        mCoords = ensure(mCoords, mVertexCount * 3);
+        mVertexNormals = ensure(mVertexNormals, mVertexCount * 3);
+        System.arraycopy(mPositions, position * 3, mCoords, vertex * 3, 3);
+        if (normal >= 0) {
+            System.arraycopy(mNormals, normal * 3, mVertexNormals, vertex * 3, 3);
+        } else {
+            mMissingNormals = true;
+        }
+        if (mVertexCount * 2 > mKeys.length) {
+            rehash();
+        }
+        return vertex;
+    }
+
+    private void rehash() {
+        long[] keys = mKeys;
+        int[] vertices = mVertices;
+        mKeys = new long[keys.length * 2];
+        mVertices = new int[keys.length * 2];
+        Arrays.fill(mKeys, -1L);
+        int mask = mKeys.length - 1;
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i] != -1L) {
+                int slot = (int) ((keys[i] * 0x9E3779B97F4A7C15L) >>> 32) & mask;
+                while (mKeys[slot] != -1L) {
+                    slot = (slot + 1) & mask;
+                }
+                mKeys[slot] = keys[i];
+                mVertices[slot] = vertices[i];
+            }
+        }
+    }
+
+    private void readFloats(float[] out, int offset) throws IOException {
+        for (int k = 0; k < 3; k++) {
+            skipSpaces();
+            out[offset + k] = parseFloat();
+        }
+    }
+
+    private int parseInt() throws IOException {
+        boolean negative = mAt < mLineLength && mLine[mAt] == '-';
+        if (negative) {
+            mAt++;
+        }
+        int start = mAt;
+        int value = 0;
+        while (mAt < mLineLength && mLine[mAt] >= '0' && mLine[mAt] <= '9') {
+            value = value * 10 + (mLine[mAt++] - '0');
+        }
+        if (mAt == start) {
+            throw new IOException("Line " + mLineNumber + ": number expected");
+        }
+        return negative ? -value : value;
+    }
+
+    // Parses plain decimals in place, anything longer or odd goes to Float.parseFloat
+    private float parseFloat() throws IOException {
+        int start = mAt;
+        boolean negative = false;
+        if (mAt < mLineLength && (mLine[mAt] == '-' || mLine[mAt] == '+')) {
+            negative = mLine[mAt++] == '-';
+        }
+        long mantissa = 0;
+        int digits = 0;
+        int scale = 0;
+        boolean point = false;
+        for (; mAt < mLineLength; mAt++) {
+            byte c = mLine[mAt];
+            if (c >= '0' && c <= '9') {
+                mantissa = mantissa * 10 + (c - '0');
+                digits++;
+                if (point) {
+                    scale--;
+                }
+            } else if (c == '.' && !point) {
+                point = true;
+            } else {
+                break;
+            }
+        }
+        if (mAt < mLineLength && (mLine[mAt] == 'e' || mLine[mAt] == 'E')) {
+            mAt++;
+            scale += parseExponent();
+        }
+        if (digits == 0 || digits > 18 || (mAt < mLineLength && mLine[mAt] > ' ')
+                || -scale >= POWERS_OF_TEN.length || scale >= POWERS_OF_TEN.length) {
+            while (mAt < mLineLength && mLine[mAt] > ' ') {
+                mAt++;
+            }
+            try {
+                return Float.parseFloat(new String(mLine, start, mAt - start, "US-ASCII"));
+            } catch (NumberFormatException e) {
+                throw new IOException("Line " + mLineNumber + ": " + e.getMessage());
+            }
+        }
+        double value = scale < 0 ? mantissa / POWERS_OF_TEN[-scale] : mantissa * POWERS_OF_TEN[scale];
+        return (float) (negative ? -value : value);
+    }
+
+    private int parseExponent() throws IOException {
+        if (mAt < mLineLength && mLine[mAt] == '+') {
+            mAt++;
+        }
+        return parseInt();
+    }
+
+    private void skipSpaces() {
+        // tabs and a \r left on the last line too
+        while (mAt < mLineLength && mLine[mAt] <= ' ') {
+            mAt++;
+        }
+    }
+
+    // Loads the next line, without its end, into mLine; false at the end
+    private boolean nextLine() throws IOException {
+        mLineLength = 0;
+        mAt = 0;
+        while (true) {
+            if (mBufferPosition == mBufferLimit) {
+                mBufferLimit = mIn.read(mBuffer, 0, mBuffer.length);
+                mBufferPosition = 0;
+                if (mBufferLimit <= 0) {
+                    mBufferLimit = 0;
+                    mLineNumber++;
+                    return mLineLength > 0;
+                }
+            }
+            int end = mBufferPosition;
+            while (end < mBufferLimit && mBuffer[end] != '\n') {
+                end++;
+            }
+            int length = end - mBufferPosition;
+            if (mLineLength + length > mLine.length) {
+                byte[] bigger = new byte[Math.max(mLine.length * 2, mLineLength + length)];
+                System.arraycopy(mLine, 0, bigger, 0, mLineLength);
+                mLine = bigger;
+            }
+            System.arraycopy(mBuffer, mBufferPosition, mLine, mLineLength, length);
+            mLineLength += length;
+            mBufferPosition = end;
+            if (end < mBufferLimit) {
+                mBufferPosition++;
+                if (mLineLength > 0 && mLine[mLineLength - 1] == '\r') {
+                    mLineLength--;
+                }
+                mLineNumber++;
+                return true;
+            }
+        }
+    }
+
+    private static float[] ensure(float[] array, int size) {
+        if (size <= array.length) {
+            return array;
+        }
+        float[] bigger = new float[Math.max(array.length * 2, size)];
+        System.arraycopy(array, 0, bigger, 0, array.length);
+        return bigger;
+    }
+
+    private static int[] ensure(int[] array, int size) {
+        if (size <= array.length) {
+            return array;
+        }
+        int[] bigger = new int[Math.max(array.length * 2, size)];
+        System.arraycopy(array, 0, bigger, 0, array.length);
+        return bigger;
+    }
+
+    @Override
+    public void close() throws IOException {
+        mIn.close();
+    }
+
+    /**
+     * Parses a whole OBJ stream.
+     *
+     * @param inputStream - Stream with the OBJ data, it is not closed.
+     */
+    public static Mesh read(InputStream inputStream) throws IOException {
+        return new ObjReader(inputStream).readMesh();
+    }
+}
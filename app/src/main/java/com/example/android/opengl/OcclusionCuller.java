@@ -0,0 +1,429 @@
+package com.example.android.opengl;
+
+import java.util.Arrays;
+
+/**
+ * Occlusion culling against a small depth buffer drawn on the CPU.
+ *
+ * Each frame, the objects offer simplified occluders with
+ * {@link #addOccluder}; {@link #render} keeps the {@link #setMaxOccluders
+ * largest} on screen, rasterizes them into the depth buffer and builds a
+ * pyramid of the nearest and farthest depth of each 2x2 block.
+ * {@link #isOccluded} then projects the bounding box of an object and
+ * starts at the level where the box covers at most 4x4 texels. A texel
+ * hides the box if the nearest depth of the box is behind its farthest
+ * depth, shows it if it is in front of its nearest depth, and otherwise
+ * its finer texels under the box decide.
+ *
+ * Rows are filled with plain loops over float arrays, one span per row from
+ * the edge equations, so the inner loop has no branches and the JIT can
+ * vectorize it. Depths are window z in [0, 1]. Pixels are covered by their
+ * centers, so the occluders should lie within the objects they stand for;
+ * triangles crossing the near plane are skipped, which only culls less.
+ */
+public class OcclusionCuller {
+    static final int DEFAULT_MAX_OCCLUDERS = 8;
+    // texels of the test level along each side of the box
+    private static final int TEST_TEXELS = 4;
+
+    private final int mWidth;
+    private final int mHeight;
+    // levels of the pyramid: the nearest and the farthest depth per texel
+    private final float[][] mMinDepth;
+    private final float[][] mMaxDepth;
+    private final int[] mLevelWidth;
+    private final int[] mLevelHeight;
+
+    private int mMaxOccluders = DEFAULT_MAX_OCCLUDERS;
+    private float mMinOccluderArea;
+
+    // occluders offered this frame
+    private int mCandidateCount;
+    private float[] mCandidateMatrices = new float[16 * DEFAULT_MAX_OCCLUDERS];
+    private float[][] mCandidateCoords = new float[DEFAULT_MAX_OCCLUDERS][];
+    private int[][] mCandidateIndices = new int[DEFAULT_MAX_OCCLUDERS][];
+    private int[] mCandidateFaces = new int[DEFAULT_MAX_OCCLUDERS];
+    private float[] mCandidateArea = new float[DEFAULT_MAX_OCCLUDERS];
+    private final float[] mTmpMatrix = new float[16];
+
+    // transformed vertices of the occluder being drawn
+    private float[] mScreen = new float[3 * 256];
+    private boolean[] mVisible = new boolean[256];
+    private final float[] mRect = new float[5];
+
+    private int mOccluders;
+    private int mTriangles;
+    private int mTested;
+    private int mCulled;
+    private long mRenderNanos;
+    private long mTestNanos;
+
+    /**
+     * @param width - Depth buffer width in pixels.
+     * @param height - Depth buffer height in pixels.
+     */
+    public OcclusionCuller(int width, int height) {
+        mWidth = width;
+        mHeight = height;
+        int levels = 1;
+        for (int w = width, h = height; w > 1 || h > 1; w = (w + 1) / 2, h = (h + 1) / 2) {
+            levels++;
+        }
+        mMinDepth = new float[levels][];
+        mMaxDepth = new float[levels][];
+        mLevelWidth = new int[levels];
+        mLevelHeight = new int[levels];
+        for (int l = 0, w = width, h = height; l < levels; l++, w = (w + 1) / 2, h = (h + 1) / 2) {
+            mLevelWidth[l] = w;
+            mLevelHeight[l] = h;
+            mMaxDepth[l] = new float[w * h];
+            // level 0 has a single depth, both arrays are the same
+            mMinDepth[l] = l == 0 ? mMaxDepth[0] : new float[w * h];
+        }
+    }
+
+    /**
+     * Sets how many occluders are drawn per frame, the ones covering most of
+     * the screen first.
+     */
+    public void setMaxOccluders(int count) {
+        mMaxOccluders = count;
+    }
+
+    /**
+     * Sets the smallest screen area of an occluder, in depth buffer pixels.
+     */
+    public void setMinOccluderArea(float pixels) {
+        mMinOccluderArea = pixels;
+    }
+
+    public int getWidth() {
+        return mWidth;
+    }
+
+    public int getHeight() {
+        return mHeight;
+    }
+
+    /**
+     * Clears the occluders and the counters of the last frame.
+     */
+    public void beginFrame() {
+        mCandidateCount = 0;
+        mOccluders = mTriangles = mTested = mCulled = 0;
+        mTestNanos = 0;
+    }
+
+    /**
+     * Offers an occluder for this frame. The arrays are kept until
+     * {@link #render}.
+     *
+     * @param mvpMatrix - Matrix of the occluder, copied.
+     * @param coords - Vertex positions.
+     * @param indices - Triangles, the first faceCount are drawn.
+     * @param min - Bounding box of the occluder, used to choose among them.
+     */
+    public void addOccluder(float[] mvpMatrix, float[] coords, int[] indices, int faceCount, float[] min,
+            float[] max) {
+        if (!projectBox(mvpMatrix, min, max, mRect)) {
+            // too close to draw, or off screen
+            return;
+        }
+        // the area on screen
+        float area = (Math.min(mRect[2], mWidth) - Math.max(mRect[0], 0))
+                * (Math.min(mRect[3], mHeight) - Math.max(mRect[1], 0));
+        if (area < mMinOccluderArea) {
+            return;
+        }
+        int i = mCandidateCount++;
+        if (i == mCandidateFaces.length) {
+            int size = i * 2;
+            float[] matrices = new float[16 * size];
+            System.arraycopy(mCandidateMatrices, 0, matrices, 0, 16 * i);
+            mCandidateMatrices = matrices;
+            float[][] coordList = new float[size][];
+            int[][] indexList = new int[size][];
+            int[] faces = new int[size];
+            float[] areas = new float[size];
+            System.arraycopy(mCandidateCoords, 0, coordList, 0, i);
+            System.arraycopy(mCandidateIndices, 0, indexList, 0, i);
+            System.arraycopy(mCandidateFaces, 0, faces, 0, i);
+            System.arraycopy(mCandidateArea, 0, areas, 0, i);
+            mCandidateCoords = coordList;
+            mCandidateIndices = indexList;
+            mCandidateFaces = faces;
+            mCandidateArea = areas;
+        }
+        System.arraycopy(mvpMatrix, 0, mCandidateMatrices, i * 16, 16);
+        mCandidateCoords[i] = coords;
+        mCandidateIndices[i] = indices;
+        mCandidateFaces[i] = faceCount;
+        mCandidateArea[i] = area;
+    }
+
+    /**
+     * Draws the chosen occluders and builds the depth pyramid.
+     */
+    public void render() {
+        long start = System.nanoTime();
+        Arrays.fill(mMaxDepth[0], 1.0f);
+        // largest first, a selection as there are few
+        int chosen = Math.min(mMaxOccluders, mCandidateCount);
+        for (int i = 0; i < chosen; i++) {
+            int best = -1;
+            for (int c = 0; c < mCandidateCount; c++) {
+                if (mCandidateArea[c] >= 0 && (best < 0 || mCandidateArea[c] > mCandidateArea[best])) {
+                    best = c;
+                }
+            }
+            mCandidateArea[best] = -1;
+            System.arraycopy(mCandidateMatrices, best * 16, mTmpMatrix, 0, 16);
+            drawOccluder(mTmpMatrix, mCandidateCoords[best], mCandidateIndices[best], mCandidateFaces[best]);
+            mOccluders++;
+        }
+        for (int i = 0; i < mCandidateCount; i++) {
+            mCandidateCoords[i] = null;
+            mCandidateIndices[i] = null;
+        }
+        buildPyramid();
+        mRenderNanos = System.nanoTime() - start;
+    }
+
+    private void drawOccluder(float[] m, float[] coords, int[] indices, int faceCount) {
+        int vertexCount = coords.length / 3;
+        if (mVisible.length < vertexCount) {
+            mVisible = new boolean[vertexCount];
+            mScreen = new float[vertexCount * 3];
+        }
+        // only the vertices used by the drawn faces
+        for (int i = 0; i < faceCount * 3; i++) {
+            int v = indices[i];
+            float x = coords[v * 3], y = coords[v * 3 + 1], z = coords[v * 3 + 2];
+            float cw = m[3] * x + m[7] * y + m[11] * z + m[15];
+            float cz = m[2] * x + m[6] * y + m[10] * z + m[14];
+            // in front of the near plane
+            mVisible[v] = cz > -cw && cw > 0;
+            if (mVisible[v]) {
+                float inv = 1 / cw;
+                mScreen[v * 3] = ((m[0] * x + m[4] * y + m[8] * z + m[12]) * inv * 0.5f + 0.5f) * mWidth;
+                mScreen[v * 3 + 1] = ((m[1] * x + m[5] * y + m[9] * z + m[13]) * inv * 0.5f + 0.5f) * mHeight;
+                mScreen[v * 3 + 2] = cz * inv * 0.5f + 0.5f;
+            }
+        }
+        for (int f = 0; f < faceCount; f++) {
+            int a = indices[f * 3], b = indices[f * 3 + 1], c = indices[f * 3 + 2];
+            if (mVisible[a] && mVisible[b] && mVisible[c]) {
+                drawTriangle(a * 3, b * 3, c * 3);
+            }
+        }
+    }
+
+    // Fills the pixels whose centers are inside, keeping the nearest depth
+    private void drawTriangle(int a, int b, int c) {
+        float[] s = mScreen;
+        float x0 = s[a], y0 = s[a + 1], z0 = s[a + 2];
+        float x1 = s[b], y1 = s[b + 1], z1 = s[b + 2];
+        float x2 = s[c], y2 = s[c + 1], z2 = s[c + 2];
+        float area = (x1 - x0) * (y2 - y0) - (x2 - x0) * (y1 - y0);
+        if (area == 0) {
+            return;
+        }
+        // both windings, so a mirrored model still occludes
+        float sign = area > 0 ? 1 : -1;
+        int minY = Math.max(0, (int) Math.ceil(Math.min(y0, Math.min(y1, y2)) - 0.5f));
+        int maxY = Math.min(mHeight - 1, (int) Math.floor(Math.max(y0, Math.max(y1, y2)) - 0.5f));
+        int minX = Math.max(0, (int) Math.ceil(Math.min(x0, Math.min(x1, x2)) - 0.5f));
+        int maxX = Math.min(mWidth - 1, (int) Math.floor(Math.max(x0, Math.max(x1, x2)) - 0.5f));
+        if (minY > maxY || minX > maxX) {
+            return;
+        }
+        mTriangles++;
+        // edge i is inside where ea * x + eb * y + ec >= 0
+        float ea0 = (y1 - y2) * sign, eb0 = (x2 - x1) * sign, ec0 = (x1 * y2 - x2 * y1) * sign;
+        float ea1 = (y2 - y0) * sign, eb1 = (x0 - x2) * sign, ec1 = (x2 * y0 - x0 * y2) * sign;
+        float ea2 = (y0 - y1) * sign, eb2 = (x1 - x0) * sign, ec2 = (x0 * y1 - x1 * y0) * sign;
+        // depth plane z = zx * x + zy * y + zc
+        float invArea = 1 / area;
+        float zx = ((z1 - z0) * (y2 - y0) - (z2 - z0) * (y1 - y0)) * invArea;
+        float zy = ((x1 - x0) * (z2 - z0) - (x2 - x0) * (z1 - z0)) * invArea;
+        float zc = z0 - zx * x0 - zy * y0;
+        float[] depth = mMaxDepth[0];
+        for (int y = minY; y <= maxY; y++) {
+            float py = y + 0.5f;
+            float left = minX, right = maxX;
+            left = Math.max(left, spanStart(ea0, eb0 * py + ec0, right));
+            left = Math.max(left, spanStart(ea1, eb1 * py + ec1, right));
+            left = Math.max(left, spanStart(ea2, eb2 * py + ec2, right));
+            right = Math.min(right, spanEnd(ea0, eb0 * py + ec0, left));
+            right = Math.min(right, spanEnd(ea1, eb1 * py + ec1, left));
+            right = Math.min(right, spanEnd(ea2, eb2 * py + ec2, left));
+            int start = (int) left, end = (int) right;
+            if (start > end) {
+                continue;
+            }
+            int row = y * mWidth;
+            float z = zx * (start + 0.5f) + zy * py + zc;
+            for (int x = start; x <= end; x++) {
+                depth[row + x] = Math.min(depth[row + x], z);
+                z += zx;
+            }
+        }
+    }
+
+    // First pixel whose center passes an edge with slope a and offset k, or past the row
+    private static float spanStart(float a, float k, float none) {
+        if (a > 0) {
+            return (float) Math.ceil(-k / a - 0.5f);
+        }
+        return a == 0 && k < 0 ? none + 1 : Float.NEGATIVE_INFINITY;
+    }
+
+    // Last pixel whose center passes the edge, or before the row
+    private static float spanEnd(float a, float k, float none) {
+        if (a < 0) {
+            return (float) Math.floor(-k / a - 0.5f);
+        }
+        return a == 0 && k < 0 ? none - 1 : Float.POSITIVE_INFINITY;
+    }
+
+    private void buildPyramid() {
+        for (int l = 1; l < mMinDepth.length; l++) {
+            int w = mLevelWidth[l], h = mLevelHeight[l];
+            int fineW = mLevelWidth[l - 1], fineH = mLevelHeight[l - 1];
+            float[] fineMin = mMinDepth[l - 1], fineMax = mMaxDepth[l - 1];
+            float[] min = mMinDepth[l], max = mMaxDepth[l];
+            for (int y = 0; y < h; y++) {
+                int y0 = y * 2 * fineW;
+                // odd sizes repeat the last row and column
+                int y1 = Math.min(y * 2 + 1, fineH - 1) * fineW;
+                for (int x = 0; x < w; x++) {
+                    int x0 = x * 2;
+                    int x1 = Math.min(x0 + 1, fineW - 1);
+                    min[y * w + x] = Math.min(Math.min(fineMin[y0 + x0], fineMin[y0 + x1]),
+                            Math.min(fineMin[y1 + x0], fineMin[y1 + x1]));
+                    max[y * w + x] = Math.max(Math.max(fineMax[y0 + x0], fineMax[y0 + x1]),
+                            Math.max(fineMax[y1 + x0], fineMax[y1 + x1]));
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns true if the box is hidden by the occluders drawn by
+     * {@link #render}. Boxes off screen or crossing the near plane are not
+     * hidden, frustum culling is left to the caller.
+     */
+    public boolean isOccluded(float[] mvpMatrix, float[] min, float[] max) {
+        long start = System.nanoTime();
+        mTested++;
+        boolean occluded = projectBox(mvpMatrix, min, max, mRect) && testRect(mRect);
+        if (occluded) {
+            mCulled++;
+        }
+        mTestNanos += System.nanoTime() - start;
+        return occluded;
+    }
+
+    private boolean testRect(float[] rect) {
+        int x0 = Math.max(0, (int) Math.floor(rect[0]));
+        int y0 = Math.max(0, (int) Math.floor(rect[1]));
+        int x1 = Math.min(mWidth - 1, (int) Math.floor(rect[2]));
+        int y1 = Math.min(mHeight - 1, (int) Math.floor(rect[3]));
+        if (x0 > x1 || y0 > y1) {
+            return false;
+        }
+        float nearest = rect[4];
+        int level = 0;
+        while (level < mMinDepth.length - 1
+                && ((x1 >> level) - (x0 >> level) >= TEST_TEXELS || (y1 >> level) - (y0 >> level) >= TEST_TEXELS)) {
+            level++;
+        }
+        return hidden(level, x0, y0, x1, y1, nearest);
+    }
+
+    // True if every texel of the level under the rectangle hides the depth
+    private boolean hidden(int level, int x0, int y0, int x1, int y1, float nearest) {
+        int w = mLevelWidth[level];
+        float[] minDepth = mMinDepth[level], maxDepth = mMaxDepth[level];
+        for (int y = y0 >> level; y <= y1 >> level; y++) {
+            for (int x = x0 >> level; x <= x1 >> level; x++) {
+                if (nearest > maxDepth[y * w + x]) {
+                    continue;
+                }
+                if (level == 0 || nearest <= minDepth[y * w + x]) {
+                    return false;
+                }
+                // partly in front, the four finer texels under the rectangle decide
+                int fine = level - 1;
+                if (!hidden(fine, Math.max(x0, x << level), Math.max(y0, y << level),
+                        Math.min(x1, ((x + 1) << level) - 1), Math.min(y1, ((y + 1) << level) - 1), nearest)) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    // Screen rectangle and nearest depth of a box: x0, y0, x1, y1, z. False if it crosses the near plane
+    private boolean projectBox(float[] m, float[] min, float[] max, float[] rect) {
+        rect[0] = rect[1] = rect[4] = Float.POSITIVE_INFINITY;
+        rect[2] = rect[3] = Float.NEGATIVE_INFINITY;
+        for (int corner = 0; corner < 8; corner++) {
+            float x = (corner & 1) == 0 ? min[0] : max[0];
+            float y = (corner & 2) == 0 ? min[1] : max[1];
+            float z = (corner & 4) == 0 ? min[2] : max[2];
+            float cw = m[3] * x + m[7] * y + m[11] * z + m[15];
+            float cz = m[2] * x + m[6] * y + m[10] * z + m[14];
+            if (cz <= -cw || cw <= 0) {
+                return false;
+            }
+            float inv = 1 / cw;
+            float sx = ((m[0] * x + m[4] * y + m[8] * z + m[12]) * inv * 0.5f + 0.5f) * mWidth;
+            float sy = ((m[1] * x + m[5] * y + m[9] * z + m[13]) * inv * 0.5f + 0.5f) * mHeight;
+            rect[0] = Math.min(rect[0], sx);
+            rect[1] = Math.min(rect[1], sy);
+            rect[2] = Math.max(rect[2], sx);
+            rect[3] = Math.max(rect[3], sy);
+            rect[4] = Math.min(rect[4], cz * inv * 0.5f + 0.5f);
+        }
+        return rect[2] >= 0 && rect[3] >= 0 && rect[0] < mWidth && rect[1] < mHeight;
+    }
+
+    /**
+     * Returns the nearest depth of the occluders at a depth buffer pixel, 1
+     * where there are none.
+     */
+    public float getDepth(int x, int y) {
+        return mMaxDepth[0][y * mWidth + x];
+    }
+
+    public int getOccluderCount() {
+        return mOccluders;
+    }
+
+    public int getTriangleCount() {
+        return mTriangles;
+    }
+
+    public int getTestedCount() {
+        return mTested;
+    }
+
+    public int getCulledCount() {
+        return mCulled;
+    }
+
+    /**
+     * Returns the time of the last {@link #render}: occluders and pyramid.
+     */
+    public float getRenderMicros() {
+        return mRenderNanos / 1e3f;
+    }
+
+    /**
+     * Returns the time of the tests since {@link #beginFrame}.
+     */
+    public float getTestMicros() {
+        return mTestNanos / 1e3f;
+    }
+}
@@ -0,0 +1,324 @@
+package com.example.android.opengl;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Command line tool that cuts a mesh too big for the device into an octree
+ * of node files for {@link OctreeStreamer}. It runs on a desktop JVM:
+ *
+ * <pre>
+ * java -cp &lt;classes&gt; com.example.android.opengl.OctreeBuilder in.(off|ply|obj|msh|mshz) out_dir [max_faces]</pre>
+ *
+ * Faces go to the octant of their centroid. A node with more than max_faces
+ * faces is split, and keeps a coarse copy of all its faces made by vertex
+ * clustering on a {@link #GRID}^3 grid over its box, so the streamer can
+ * draw it from far away or while its children load. Leaves keep the faces
+ * at full resolution. Every node is written as a {@link MeshFile} with 16
+ * bit indices, node&lt;id&gt;.msh, and the tree to {@link #INDEX_FILE}:
+ *
+ * <pre>
+ * int magic ("OCT1"), int nodeCount
+ * per node: float min[3], float max[3], float error, int vertexCount,
+ *           int faceCount, int fileBytes, int children[8] (-1 if none)</pre>
+ *
+ * The error of a node is the size of its clustering cell, the distance its
+ * vertices may have moved, and 0 for leaves.
+ */
+public class OctreeBuilder {
+    static final int INDEX_MAGIC = 0x3154434F;
+    static final String INDEX_FILE = "octree.idx";
+    static final int NODE_RECORD_SIZE = 4 * 18;
+    static final int DEFAULT_MAX_FACES = 16384;
+    // clustering cells per axis of a split node, fits 16 bit indices
+    static final int GRID = 32;
+    private static final int MAX_DEPTH = 10;
+
+    private final float[] mCoords;
+    private final int[] mIndices;
+    private final float[] mNormals;
+    private final int mMaxFaces;
+    private final File mOutputDir;
+
+    private final ArrayList<float[]> mBounds = new ArrayList<float[]>();
+    private final ArrayList<int[]> mRecords = new ArrayList<int[]>();
+    private final ArrayList<Float> mErrors = new ArrayList<Float>();
+
+    // vertex and cell maps of the node being written, tagged to avoid clearing
+    private final int[] mVertexMap;
+    private final int[] mVertexTag;
+    private final int[] mCellMap = new int[GRID * GRID * GRID];
+    private final int[] mCellTag = new int[GRID * GRID * GRID];
+    private int mStamp;
+
+    public OctreeBuilder(Mesh mesh, int maxFaces, File outputDir) {
+        mCoords = mesh.coords;
+        mIndices = mesh.indices;
+        mNormals = mesh.getNormals();
+        mMaxFaces = Math.max(1, Math.min(maxFaces, 0xFFFF / 3));
+        mOutputDir = outputDir;
+        mVertexMap = new int[mesh.getVertexCount()];
+        mVertexTag = new int[mesh.getVertexCount()];
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.err.println("usage: OctreeBuilder in.(off|ply|obj|msh|mshz) out_dir [max_faces]");
+            System.exit(2);
+        }
+        File outputDir = new File(args[1]);
+        if (!outputDir.isDirectory() && !outputDir.mkdirs()) {
+            System.err.println("Cannot create " + outputDir);
+            System.exit(2);
+        }
+        int maxFaces = args.length > 2 ? Integer.parseInt(args[2]) : DEFAULT_MAX_FACES;
+        long start = System.currentTimeMillis();
+        Mesh mesh = MeshLoader.load(new File(args[0]));
+        OctreeBuilder builder = new OctreeBuilder(mesh, maxFaces, outputDir);
+        int nodes = builder.build();
+        System.out.println(args[0] + ": " + mesh.getFaceCount() + " faces in " + nodes + " nodes, "
+                + (System.currentTimeMillis() - start) + " ms");
+    }
+
+    /**
+     * Writes the node files and the index.
+     *
+     * @return - The number of nodes.
+     */
+    public int build() throws IOException {
+        // a cube around the mesh, so the octants stay cubes
+        float[] box = new float[6];
+        float size = 0;
+        for (int k = 0; k < 3; k++) {
+            box[k] = Float.MAX_VALUE;
+            box[k + 3] = -Float.MAX_VALUE;
+        }
+        for (int i = 0; i < mCoords.length; i++) {
+            box[i % 3] = Math.min(box[i % 3], mCoords[i]);
+            box[i % 3 + 3] = Math.max(box[i % 3 + 3], mCoords[i]);
+        }
+        for (int k = 0; k < 3; k++) {
+            size = Math.max(size, box[k + 3] - box[k]);
+        }
+        for (int k = 0; k < 3; k++) {
+            box[k + 3] = box[k] + size;
+        }
+        int[] faces = new int[mIndices.length / 3];
+        for (int f = 0; f < faces.length; f++) {
+            faces[f] = f;
+        }
+        addNode(faces, box, 0);
+        writeIndex();
+        return mRecords.size();
+    }
+
+    // Writes a node and its subtree, returns its id
+    private int addNode(int[] faces, float[] box, int depth) throws IOException {
+        int id = mRecords.size();
+        int[] record = new int[11];
+        for (int c = 0; c < 8; c++) {
+            record[3 + c] = -1;
+        }
+        mRecords.add(record);
+        mBounds.add(new float[6]);
+        mErrors.add(0f);
+
+        boolean leaf = faces.length <= mMaxFaces || depth == MAX_DEPTH;
+        float cell = (box[3] - box[0]) / GRID;
+        Mesh node = leaf ? extract(faces) : cluster(faces, box, cell);
+        mErrors.set(id, leaf ? 0 : cell * (float) Math.sqrt(3));
+        writeNode(id, node, record);
+
+        if (!leaf) {
+            // faces by the octant of their centroid
+            float half = (box[3] - box[0]) * 0.5f;
+            int[] octants = new int[faces.length];
+            int[] counts = new int[8];
+            for (int i = 0; i < faces.length; i++) {
+                int octant = 0;
+                for (int k = 0; k < 3; k++) {
+                    float centroid = (mCoords[mIndices[faces[i] * 3] * 3 + k]
+                            + mCoords[mIndices[faces[i] * 3 + 1] * 3 + k]
+                            + mCoords[mIndices[faces[i] * 3 + 2] * 3 + k]) / 3;
+                    if (centroid >= box[k] + half) {
+                        octant |= 1 << k;
+                    }
+                }
+                octants[i] = octant;
+                counts[octant]++;
+            }
+            for (int c = 0; c < 8; c++) {
+                if (counts[c] == 0) {
+                    continue;
+                }
+                int[] childFaces = new int[counts[c]];
+                int n = 0;
+                for (int i = 0; i < faces.length; i++) {
+                    if (octants[i] == c) {
+                        childFaces[n++] = faces[i];
+                    }
+                }
+                float[] childBox = new float[6];
+                for (int k = 0; k < 3; k++) {
+                    childBox[k] = box[k] + ((c >> k) & 1) * half;
+                    childBox[k + 3] = childBox[k] + half;
+                }
+                record[3 + c] = addNode(childFaces, childBox, depth + 1);
+            }
+        }
+        return id;
+    }
+
+    private int nextStamp() {
+        if (++mStamp == 0) {
+            Arrays.fill(mVertexTag, 0);
+            Arrays.fill(mCellTag, 0);
+            mStamp = 1;
+        }
+        return mStamp;
+    }
+
+    // The faces at full resolution, with their own vertex numbering
+    private Mesh extract(int[] faces) {
+        int stamp = nextStamp();
+        int vertexCount = 0;
+        for (int f : faces) {
+            for (int k = 0; k < 3; k++) {
+                int v = mIndices[f * 3 + k];
+                if (mVertexTag[v] != stamp) {
+                    mVertexTag[v] = stamp;
+                    mVertexMap[v] = vertexCount++;
+                }
+            }
+        }
+        float[] coords = new float[vertexCount * 3];
+        float[] normals = new float[vertexCount * 3];
+        int[] indices = new int[faces.length * 3];
+        for (int i = 0; i < faces.length; i++) {
+            for (int k = 0; k < 3; k++) {
+                int v = mIndices[faces[i] * 3 + k];
+                int local = mVertexMap[v];
+                indices[i * 3 + k] = local;
+                System.arraycopy(mCoords, v * 3, coords, local * 3, 3);
+                System.arraycopy(mNormals, v * 3, normals, local * 3, 3);
+            }
+        }
+        return new Mesh(coords, indices, normals);
+    }
+
+    // The faces with the vertices of every grid cell merged at their mean
+    private Mesh cluster(int[] faces, float[] box, float cell) {
+        int stamp = nextStamp();
+        int cellCount = 0;
+        int[] corners = new int[faces.length * 3];
+        for (int i = 0; i < faces.length; i++) {
+            for (int k = 0; k < 3; k++) {
+                int v = mIndices[faces[i] * 3 + k];
+                int c = 0;
+                for (int axis = 2; axis >= 0; axis--) {
+                    int g = (int) ((mCoords[v * 3 + axis] - box[axis]) / cell);
+                    c = c * GRID + Math.max(0, Math.min(GRID - 1, g));
+                }
+                if (mCellTag[c] != stamp) {
+                    mCellTag[c] = stamp;
+                    mCellMap[c] = cellCount++;
+                }
+                corners[i * 3 + k] = c;
+            }
+        }
+
+        // mean position and normal of the distinct vertices of each cell
+        float[] coords = new float[cellCount * 3];
+        float[] normals = new float[cellCount * 3];
+        int[] members = new int[cellCount];
+        int vertexStamp = nextStamp();
+        for (int i = 0; i < corners.length; i++) {
+            int v = mIndices[faces[i / 3] * 3 + i % 3];
+            if (mVertexTag[v] == vertexStamp) {
+                continue;
+            }
+            mVertexTag[v] = vertexStamp;
+            // the cell tags were bumped by nextStamp, the map is still valid
+            int local = mCellMap[corners[i]];
+            members[local]++;
+            for (int k = 0; k < 3; k++) {
+                coords[local * 3 + k] += mCoords[v * 3 + k];
+                normals[local * 3 + k] += mNormals[v * 3 + k];
+            }
+        }
+        for (int local = 0; local < cellCount; local++) {
+            for (int k = 0; k < 3; k++) {
+                coords[local * 3 + k] /= members[local];
+            }
+        }
+        Mesh.normalize(normals);
+
+        // faces with two corners in the same cell collapse
+        int[] indices = new int[faces.length * 3];
+        int count = 0;
+        for (int i = 0; i < faces.length; i++) {
+            int a = mCellMap[corners[i * 3]];
+            int b = mCellMap[corners[i * 3 + 1]];
+            int c = mCellMap[corners[i * 3 + 2]];
+            if (a != b && b != c && a != c) {
+                indices[count++] = a;
+                indices[count++] = b;
+                indices[count++] = c;
+            }
+        }
+        int[] kept = new int[count];
+        System.arraycopy(indices, 0, kept, 0, count);
+        return new Mesh(coords, kept, normals);
+    }
+
+    private void writeNode(int id, Mesh node, int[] record) throws IOException {
+        float[] min = new float[3];
+        float[] max = new float[3];
+        node.getBounds(min, max);
+        System.arraycopy(min, 0, mBounds.get(id), 0, 3);
+        System.arraycopy(max, 0, mBounds.get(id), 3, 3);
+        File file = nodeFile(mOutputDir, id);
+        OutputStream out = new BufferedOutputStream(new FileOutputStream(file), 64 * 1024);
+        try {
+            MeshFile.write(node, out);
+        } finally {
+            out.close();
+        }
+        record[0] = node.getVertexCount();
+        record[1] = node.getFaceCount();
+        record[2] = (int) file.length();
+    }
+
+    static File nodeFile(File dir, int id) {
+        return new File(dir, "node" + id + ".msh");
+    }
+
+    private void writeIndex() throws IOException {
+        int count = mRecords.size();
+        ByteBuffer buffer = ByteBuffer.allocate(8 + count * NODE_RECORD_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putInt(INDEX_MAGIC);
+        buffer.putInt(count);
+        for (int i = 0; i < count; i++) {
+            for (float value : mBounds.get(i)) {
+                buffer.putFloat(value);
+            }
+            buffer.putFloat(mErrors.get(i));
+            for (int value : mRecords.get(i)) {
+                buffer.putInt(value);
+            }
+        }
+        OutputStream out = new FileOutputStream(new File(mOutputDir, INDEX_FILE));
+        try {
+            out.write(buffer.array());
+        } finally {
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,587 @@
+package com.example.android.opengl;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Pages the nodes of an octree written by {@link OctreeBuilder} in and out
+ * of memory as the view changes, keeping the resident nodes under a fixed
+ * budget.
+ *
+ * Every frame {@link #update} walks the tree from the root: nodes out of the
+ * frustum are skipped, and a node is split into its children when its error
+ * projected on the screen is above the tolerance, its children are resident
+ * and they fit in the budget next to the node, which is kept to fall back
+ * on. Missing children are queued, and the parent is drawn until they
+ * arrive. The queue is rebuilt every frame and
+ * ordered by projected error, so the most visible detail loads first and
+ * requests the view left behind are dropped.
+ *
+ * A loader thread maps the node files, which the GL calls read in place as
+ * direct buffers. Resident nodes not drawn in the frame are released, least
+ * recently drawn first, while the resident bytes are above the budget; the
+ * mapping itself goes away once the buffers are collected.
+ */
+public class OctreeStreamer {
+
+    /**
+     * Told from the loader thread when a node is ready to be taken, so a
+     * view that only renders on demand can draw it.
+     */
+    public interface Listener {
+        void onNodeLoaded(int node);
+    }
+
+    private static final int ABSENT = 0;
+    private static final int QUEUED = 1;
+    private static final int LOADING = 2;
+    private static final int RESIDENT = 3;
+    // loaded, waiting for the GL thread to take it
+    private static final int LOADED = 4;
+    private static final int FAILED = 5;
+
+    private final File mDir;
+    private final int mNodeCount;
+    private final float[] mBounds;
+    private final float[] mError;
+    private final int[] mVertexCount;
+    private final int[] mFaceCount;
+    private final int[] mFileBytes;
+    private final int[] mChildren;
+
+    // guarded by mQueueLock, shared with the loader thread
+    private final Object mQueueLock = new Object();
+    private final int[] mState;
+    private final int[] mHeap;
+    private final float[] mPriority;
+    private int mHeapSize;
+    private final int[] mLoaded;
+    private int mLoadedCount;
+    private final long[] mRequestNanos;
+    private boolean mRunning;
+
+    // written by the loader before the node is LOADED
+    private final FloatBuffer[] mCoords;
+    private final FloatBuffer[] mNormals;
+    private final ShortBuffer[] mIndices;
+    private final long[] mFetchNanos;
+
+    // GL thread only
+    private final long[] mLastUsed;
+    private long mFrame;
+    private long mResidentBytes;
+    private final long mBudgetBytes;
+    // bytes of the nodes the walk of this frame keeps: the drawn ones and their ancestors
+    private long mUsedBytes;
+    private float mTolerance = 2.0f;
+    private final int[] mVisible;
+    private int mVisibleCount;
+    private float[] mMvp;
+    private float mScreenScale;
+    private long mFetchTotalNanos;
+    private int mFetchCount;
+    private long mLastFetchNanos;
+    private int mEvictions;
+    private volatile int mFailures;
+
+    private Thread mLoader;
+    private volatile Listener mListener;
+
+    /**
+     * Reads the index of an octree.
+     *
+     * @param dir - Directory written by {@link OctreeBuilder}.
+     * @param budgetBytes - Most bytes of node files to keep resident.
+     */
+    public OctreeStreamer(File dir, long budgetBytes) throws IOException {
+        mDir = dir;
+        mBudgetBytes = budgetBytes;
+        DataInputStream in = new DataInputStream(new FileInputStream(new File(dir, OctreeBuilder.INDEX_FILE)));
+        byte[] data;
+        try {
+            byte[] header = new byte[8];
+            in.readFully(header);
+            ByteBuffer buffer = ByteBuffer.wrap(header).order(ByteOrder.LITTLE_ENDIAN);
+            if (buffer.getInt() != OctreeBuilder.INDEX_MAGIC) {
+                throw new IOException("Not an octree index");
+            }
+            mNodeCount = buffer.getInt();
+            data = new byte[mNodeCount * OctreeBuilder.NODE_RECORD_SIZE];
+            in.readFully(data);
+        } finally {
+            in.close();
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(data).order(ByteOrder.LITTLE_ENDIAN);
+        mBounds = new float[mNodeCount * 6];
+        mError = new float[mNodeCount];
+        mVertexCount = new int[mNodeCount];
+        mFaceCount = new int[mNodeCount];
+        mFileBytes = new int[mNodeCount];
+        mChildren = new int[mNodeCount * 8];
+        for (int n = 0; n < mNodeCount; n++) {
+            for (int k = 0; k < 6; k++) {
+                mBounds[n * 6 + k] = buffer.getFloat();
+            }
+            mError[n] = buffer.getFloat();
+            mVertexCount[n] = buffer.getInt();
+            mFaceCount[n] = buffer.getInt();
+            mFileBytes[n] = buffer.getInt();
+            for (int c = 0; c < 8; c++) {
+                mChildren[n * 8 + c] = buffer.getInt();
+            }
+        }
+
+        mState = new int[mNodeCount];
+        mHeap = new int[mNodeCount];
+        mPriority = new float[mNodeCount];
+        mLoaded = new int[mNodeCount];
+        mRequestNanos = new long[mNodeCount];
+        mCoords = new FloatBuffer[mNodeCount];
+        mNormals = new FloatBuffer[mNodeCount];
+        mIndices = new ShortBuffer[mNodeCount];
+        mFetchNanos = new long[mNodeCount];
+        mLastUsed = new long[mNodeCount];
+        mVisible = new int[mNodeCount];
+    }
+
+    /**
+     * Sets the largest error allowed on the screen, in pixels.
+     */
+    public void setTolerance(float pixels) {
+        mTolerance = pixels;
+    }
+
+    public void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    public synchronized void start() {
+        if (mLoader != null) {
+            return;
+        }
+        synchronized (mQueueLock) {
+            mRunning = true;
+        }
+        mLoader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                loadLoop();
+            }
+        }, "OctreeStreamer");
+        mLoader.setDaemon(true);
+        mLoader.start();
+    }
+
+    public synchronized void stop() {
+        synchronized (mQueueLock) {
+            mRunning = false;
+            mQueueLock.notifyAll();
+        }
+        mLoader = null;
+    }
+
+    /**
+     * Chooses the nodes to draw for a view and queues the missing ones. GL
+     * thread.
+     *
+     * @param mvpMatrix - Matrix of the octree coordinates to clip space.
+     * @param screenScale - Pixels per unit at distance 1: half the viewport
+     * height times the projection's y scale.
+     * @return - The number of nodes to draw, see {@link #getVisibleNode}.
+     */
+    public int update(float[] mvpMatrix, float screenScale) {
+        mMvp = mvpMatrix;
+        mScreenScale = screenScale;
+        mFrame++;
+        mVisibleCount = 0;
+        synchronized (mQueueLock) {
+            takeLoaded();
+            // the queue is rebuilt from this view
+            for (int i = 0; i < mHeapSize; i++) {
+                mState[mHeap[i]] = ABSENT;
+            }
+            mHeapSize = 0;
+            if (mNodeCount > 0) {
+                mUsedBytes = mFileBytes[0];
+                visit(0);
+            }
+            if (mHeapSize > 0) {
+                mQueueLock.notifyAll();
+            }
+        }
+        evict();
+        return mVisibleCount;
+    }
+
+    // Called with mQueueLock held
+    private void visit(int node) {
+        float depth = nearestDepth(node);
+        if (depth == Float.NEGATIVE_INFINITY) {
+            return;
+        }
+        mLastUsed[node] = mFrame;
+        if (mState[node] != RESIDENT) {
+            request(node, Float.MAX_VALUE);
+            return;
+        }
+        // error on the screen, infinite for a node around the eye
+        float projected = depth > 0 ? mError[node] * mScreenScale / depth : Float.MAX_VALUE;
+        boolean split = projected > mTolerance && mError[node] > 0;
+        if (split) {
+            long childBytes = 0;
+            boolean ready = true;
+            for (int c = 0; c < 8; c++) {
+                int child = mChildren[node * 8 + c];
+                if (child >= 0) {
+                    childBytes += mFileBytes[child];
+                }
+            }
+            // the node stays resident under its children, to fall back on
+            split = mUsedBytes + childBytes <= mBudgetBytes;
+            if (split) {
+                for (int c = 0; c < 8; c++) {
+                    int child = mChildren[node * 8 + c];
+                    if (child >= 0 && mState[child] != RESIDENT && nearestDepth(child) != Float.NEGATIVE_INFINITY) {
+                        mLastUsed[child] = mFrame;
+                        request(child, projected);
+                        ready = false;
+                    }
+                }
+            }
+            split &= ready;
+            if (split) {
+                mUsedBytes += childBytes;
+                for (int c = 0; c < 8; c++) {
+                    int child = mChildren[node * 8 + c];
+                    if (child >= 0) {
+                        visit(child);
+                    }
+                }
+                return;
+            }
+        }
+        mVisible[mVisibleCount++] = node;
+    }
+
+    /**
+     * Returns the depth of the nearest point of a node box in clip w, 0 if
+     * the box reaches behind the eye, or negative infinity if the box is out
+     * of the frustum.
+     */
+    private float nearestDepth(int node) {
+        int outside = 0x3F;
+        float nearest = Float.MAX_VALUE;
+        float[] m = mMvp;
+        for (int i = 0; i < 8; i++) {
+            float x = mBounds[node * 6 + ((i & 1) != 0 ? 3 : 0)];
+            float y = mBounds[node * 6 + 1 + ((i & 2) != 0 ? 3 : 0)];
+            float z = mBounds[node * 6 + 2 + ((i & 4) != 0 ? 3 : 0)];
+            // column major, as android.opengl.Matrix
+            float cx = m[0] * x + m[4] * y + m[8] * z + m[12];
+            float cy = m[1] * x + m[5] * y + m[9] * z + m[13];
+            float cz = m[2] * x + m[6] * y + m[10] * z + m[14];
+            float w = m[3] * x + m[7] * y + m[11] * z + m[15];
+            int planes = 0;
+            if (cx < -w) planes |= 1;
+            if (cx > w) planes |= 2;
+            if (cy < -w) planes |= 4;
+            if (cy > w) planes |= 8;
+            if (cz < -w) planes |= 16;
+            if (cz > w) planes |= 32;
+            outside &= planes;
+            nearest = Math.min(nearest, w);
+        }
+        if (outside != 0) {
+            return Float.NEGATIVE_INFINITY;
+        }
+        return Math.max(0, nearest);
+    }
+
+    // Adds a node to the load queue, with mQueueLock held
+    private void request(int node, float priority) {
+        if (mState[node] != ABSENT) {
+            return;
+        }
+        mState[node] = QUEUED;
+        mRequestNanos[node] = System.nanoTime();
+        mPriority[node] = priority;
+        // sift up in the max heap
+        int i = mHeapSize++;
+        while (i > 0) {
+            int parent = (i - 1) / 2;
+            if (mPriority[mHeap[parent]] >= priority) {
+                break;
+            }
+            mHeap[i] = mHeap[parent];
+            i = parent;
+        }
+        mHeap[i] = node;
+    }
+
+    // Removes the first node of the load queue, with mQueueLock held
+    private int poll() {
+        int top = mHeap[0];
+        int last = mHeap[--mHeapSize];
+        int i = 0;
+        while (true) {
+            int child = i * 2 + 1;
+            if (child >= mHeapSize) {
+                break;
+            }
+            if (child + 1 < mHeapSize && mPriority[mHeap[child + 1]] > mPriority[mHeap[child]]) {
+                child++;
+            }
+            if (mPriority[mHeap[child]] <= mPriority[last]) {
+                break;
+            }
+            mHeap[i] = mHeap[child];
+            i = child;
+        }
+        mHeap[i] = last;
+        return top;
+    }
+
+    // Makes the nodes of the loader resident, with mQueueLock held
+    private void takeLoaded() {
+        for (int i = 0; i < mLoadedCount; i++) {
+            int node = mLoaded[i];
+            mState[node] = RESIDENT;
+            mResidentBytes += mFileBytes[node];
+            mLastFetchNanos = mFetchNanos[node];
+            mFetchTotalNanos += mLastFetchNanos;
+            mFetchCount++;
+        }
+        mLoadedCount = 0;
+    }
+
+    private void evict() {
+        while (mResidentBytes > mBudgetBytes) {
+            int oldest = -1;
+            for (int n = 0; n < mNodeCount; n++) {
+                if (mState[n] == RESIDENT && mLastUsed[n] != mFrame
+                        && (oldest < 0 || mLastUsed[n] < mLastUsed[oldest])) {
+                    oldest = n;
+                }
+            }
+            if (oldest < 0) {
+                // everything resident is in use
+                return;
+            }
+            synchronized (mQueueLock) {
+                mState[oldest] = ABSENT;
+            }
+            mCoords[oldest] = null;
+            mNormals[oldest] = null;
+            mIndices[oldest] = null;
+            mResidentBytes -= mFileBytes[oldest];
+            mEvictions++;
+        }
+    }
+
+    private void loadLoop() {
+        while (true) {
+            int node;
+            synchronized (mQueueLock) {
+                while (mRunning && mHeapSize == 0) {
+                    try {
+                        mQueueLock.wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                if (!mRunning) {
+                    return;
+                }
+                node = poll();
+                mState[node] = LOADING;
+            }
+            boolean ok = map(node);
+            synchronized (mQueueLock) {
+                if (ok) {
+                    mState[node] = LOADED;
+                    mFetchNanos[node] = System.nanoTime() - mRequestNanos[node];
+                    mLoaded[mLoadedCount++] = node;
+                } else {
+                    mState[node] = FAILED;
+                    mFailures++;
+                }
+            }
+            Listener listener = mListener;
+            if (ok && listener != null) {
+                listener.onNodeLoaded(node);
+            }
+        }
+    }
+
+    // Maps a node file into direct buffers, on the loader thread
+    private boolean map(int node) {
+        File file = OctreeBuilder.nodeFile(mDir, node);
+        try {
+            RandomAccessFile raf = new RandomAccessFile(file, "r");
+            try {
+                FileChannel channel = raf.getChannel();
+                MappedByteBuffer data = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                data.order(ByteOrder.LITTLE_ENDIAN);
+                if (data.getInt(0) != MeshFile.MAGIC || (data.getInt(12) & MeshFile.FLAG_INT_INDICES) != 0) {
+                    throw new IOException("not a 16 bit mesh file");
+                }
+                int vertexCount = data.getInt(4);
+                int indexCount = data.getInt(8) * 3;
+                int coordsAt = MeshFile.HEADER_SIZE;
+                int indicesAt = coordsAt + vertexCount * 12;
+                int normalsAt = indicesAt + indexCount * 2;
+                mCoords[node] = slice(data, coordsAt, vertexCount * 12).asFloatBuffer();
+                mIndices[node] = slice(data, indicesAt, indexCount * 2).asShortBuffer();
+                mNormals[node] = slice(data, normalsAt, vertexCount * 12).asFloatBuffer();
+            } finally {
+                // the mapping stays valid after closing
+                raf.close();
+            }
+            return true;
+        } catch (IOException e) {
+            // the node is never drawn, its parent stays instead
+            return false;
+        }
+    }
+
+    private static ByteBuffer slice(ByteBuffer data, int offset, int length) {
+        ByteBuffer copy = data.duplicate();
+        copy.position(offset);
+        copy.limit(offset + length);
+        return copy.slice().order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    public int getNodeCount() {
+        return mNodeCount;
+    }
+
+    /**
+     * Returns the box of a node, the root is 0.
+     */
+    public void getBounds(int node, float[] min, float[] max) {
+        for (int k = 0; k < 3; k++) {
+            min[k] = mBounds[node * 6 + k];
+            max[k] = mBounds[node * 6 + 3 + k];
+        }
+    }
+
+    /**
+     * Returns the i-th node chosen by the last {@link #update}.
+     */
+    public int getVisibleNode(int i) {
+        return mVisible[i];
+    }
+
+    public int getVisibleCount() {
+        return mVisibleCount;
+    }
+
+    /**
+     * Returns the vertex positions of a resident node, 3 floats per vertex.
+     */
+    public FloatBuffer getCoords(int node) {
+        return mCoords[node];
+    }
+
+    public FloatBuffer getNormals(int node) {
+        return mNormals[node];
+    }
+
+    public ShortBuffer getIndices(int node) {
+        return mIndices[node];
+    }
+
+    public int getVertexCount(int node) {
+        return mVertexCount[node];
+    }
+
+    public int getFaceCount(int node) {
+        return mFaceCount[node];
+    }
+
+    /**
+     * Returns the bytes of node files resident.
+     */
+    public long getResidentBytes() {
+        return mResidentBytes;
+    }
+
+    public long getBudgetBytes() {
+        return mBudgetBytes;
+    }
+
+    /**
+     * Returns the nodes waiting to be loaded after the last update.
+     */
+    public int getQueueDepth() {
+        synchronized (mQueueLock) {
+            return mHeapSize;
+        }
+    }
+
+    /**
+     * Returns the time from request to mapped of the last node made
+     * resident, in microseconds.
+     */
+    public float getLastFetchMicros() {
+        return mLastFetchNanos / 1e3f;
+    }
+
+    public float getAverageFetchMicros() {
+        return mFetchCount > 0 ? mFetchTotalNanos / 1e3f / mFetchCount : 0;
+    }
+
+    public int getFetchCount() {
+        return mFetchCount;
+    }
+
+    /**
+     * Returns the node files that could not be mapped.
+     */
+    public int getFailedCount() {
+        return mFailures;
+    }
+
+    public int getEvictionCount() {
+        return mEvictions;
+    }
+
+    /**
+     * Returns the faces drawn by the last update.
+     */
+    public int getVisibleFaces() {
+        int faces = 0;
+        for (int i = 0; i < mVisibleCount; i++) {
+            faces += mFaceCount[mVisible[i]];
+        }
+        return faces;
+    }
+
+    /**
+     * Waits until the load queue is empty. For tools and benchmarks; the GL
+     * thread never waits for the loader.
+     */
+    public void waitForLoads() {
+        while (true) {
+            synchronized (mQueueLock) {
+                boolean busy = mHeapSize > 0;
+                for (int n = 0; n < mNodeCount && !busy; n++) {
+                    busy = mState[n] == LOADING;
+                }
+                if (!busy) {
+                    return;
+                }
+            }
+            Thread.yield();
+        }
+    }
+}
@@ -0,0 +1,161 @@
+package com.example.android.opengl;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.StringTokenizer;
+
+/**
+ * Reads triangle meshes stored in the ASCII OFF format.
+ *
+ * The file can be read at once with {@link #read(InputStream)} or element by
+ * element, so big files can be converted without keeping them in memory.
+ * Element by element only triangles are supported; {@link #readMesh} splits
+ * polygons into fans.
+ */
+public class OffReader implements MeshSource {
+    private final BufferedReader mReader;
+    private final int mNumVertex;
+    private final int mNumFaces;
+    private int mFacesRead;
+
+    /**
+     * Opens an OFF stream and parses its header.
+     *
+     * @param inputStream - Stream with the OFF data, it is not closed.
+     * @throws IOException - If the stream is not a valid OFF file.
+     */
+    public OffReader(InputStream inputStream) throws IOException {
+        mReader = new BufferedReader(new InputStreamReader(inputStream));
+
+        String line = nextLine();
+        if (!line.equals("OFF")) {
+            throw new IOException("Missing OFF header");
+        }
+        StringTokenizer token = new StringTokenizer(nextLine());
+        mNumVertex = Integer.parseInt(token.nextToken());
+        mNumFaces = Integer.parseInt(token.nextToken());
+    }
+
+    public int getVertexCount() {
+        return mNumVertex;
+    }
+
+    public int getFaceCount() {
+        return mNumFaces;
+    }
+
+    /**
+     * Reads the next vertex. All the vertices come before the first face.
+     *
+     * @param out - Receives x, y, z.
+     * @param offset - Position of x in out.
+     */
+    public void readVertex(float[] out, int offset) throws IOException {
+        StringTokenizer token = new StringTokenizer(nextLine());
+        for (int k = 0; k < Mesh.COORDS_PER_VERTEX; k++) {
+            out[offset + k] = Float.parseFloat(token.nextToken());
+        }
+    }
+
+    /**
+     * Reads the next face. Only triangles are supported.
+     *
+     * @param out - Receives the three vertex indices.
+     * @param offset - Position of the first index in out.
+     */
+    public void readFace(int[] out, int offset) throws IOException {
+        StringTokenizer token = new StringTokenizer(nextLine());
+        if (Integer.parseInt(token.nextToken()) != 3) {
+            throw new IOException("Face " + mFacesRead + " is not a triangle");
+        }
+        for (int j = 0; j < 3; j++) {
+            int index = Integer.parseInt(token.nextToken());
+            if (index < 0 || index >= mNumVertex) {
+                throw new IOException("Face " + mFacesRead + " references vertex " + index);
+            }
+            out[offset + j] = index;
+        }
+        mFacesRead++;
+    }
+
+    /**
+     * Parses a whole OFF stream.
+     *
+     * @param inputStream - Stream with the OFF data, it is not closed.
+     * @return - The parsed mesh.
+     * @throws IOException - If the stream is not a valid OFF file.
+     */
+    public static Mesh read(InputStream inputStream) throws IOException {
+        return new OffReader(inputStream).readMesh();
+    }
+
+    /**
+     * Reads all the vertices and faces that follow the header.
+     */
+    @Override
+    public Mesh readMesh() throws IOException {
+        float[] coords = new float[mNumVertex * Mesh.COORDS_PER_VERTEX];
+        for (int i = 0; i < coords.length; i += Mesh.COORDS_PER_VERTEX) {
+            readVertex(coords, i);
+        }
+        int[] indices = new int[mNumFaces * 3];
+        int count = 0;
+        for (; mFacesRead < mNumFaces; mFacesRead++) {
+            StringTokenizer token = new StringTokenizer(nextLine());
+            int corners = Integer.parseInt(token.nextToken());
+            if (corners < 3) {
+                throw new IOException("Face " + mFacesRead + " has " + corners + " vertices");
+            }
+            if (count + (corners - 2) * 3 > indices.length) {
+                int[] bigger = new int[Math.max(indices.length * 2, count + (corners - 2) * 3)];
+                System.arraycopy(indices, 0, bigger, 0, count);
+                indices = bigger;
+            }
+            int first = parseIndex(token);
+            int last = parseIndex(token);
+            for (int j = 2; j < corners; j++) {
+                int index = parseIndex(token);
+                indices[count++] = first;
+                indices[count++] = last;
+                indices[count++] = index;
+                last = index;
+            }
+        }
+        if (count < indices.length) {
+            int[] exact = new int[count];
+            System.arraycopy(indices, 0, exact, 0, count);
+            indices = exact;
+        }
+        return new Mesh(coords, indices);
+    }
+
+    private int parseIndex(StringTokenizer token) throws IOException {
+        int index = Integer.parseInt(token.nextToken());
+        if (index < 0 || index >= mNumVertex) {
+            throw new IOException("Face " + mFacesRead + " references vertex " + index);
+        }
+        return index;
+    }
+
+    /**
+     * Closes the stream given to the constructor.
+     */
+    @Override
+    public void close() throws IOException {
+        mReader.close();
+    }
+
+    // Skips empty lines and comments, fails on a truncated file.
+    private String nextLine() throws IOException {
+        String line;
+        while ((line = mReader.readLine()) != null) {
+            String trimmed = line.trim();
+            if (trimmed.length() > 0 && trimmed.charAt(0) != '#') {
+                return trimmed;
+            }
+        }
+        throw new IOException("Unexpected end of OFF file");
+    }
+}
@@ -16,12 +16,37 @@
 package com.example.android.opengl;
 
 import android.app.Activity;
-import android.opengl.GLSurfaceView;
 import android.os.Bundle;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
 
 public class OpenGLES20Activity extends Activity {
+    private static final String TAG = "OpenGLES20Activity";
+    // Intent extra: record the touches into TRACE_FILE, to replay them with TraceReplayer
+    public static final String EXTRA_RECORD = "record";
+    public static final String TRACE_FILE = "input.trace";
+    // Intent extra: directory of an octree (OctreeBuilder) to stream instead of the figure
+    public static final String EXTRA_OCTREE = "octree";
+    // Intent extra: progressive mesh (ProgressiveMeshBuilder) to draw instead of the figure
+    public static final String EXTRA_PROGRESSIVE = "progressive";
+    // Intent extra: copies of the figure to draw, hidden ones are culled
+    public static final String EXTRA_INSTANCES = "instances";
+    // Intent extra: draw the copies by pseudo-instancing, a few draw calls in all
+    public static final String EXTRA_INSTANCING = "instancing";
+    // Intent extra: copies shorter than these pixels are drawn as impostors, 0 never
+    public static final String EXTRA_IMPOSTORS = "impostors";
+    // Intent extra: frame time to keep in ms, lowering the quality when it is missed, 0 never
+    public static final String EXTRA_FRAME_TARGET = "frame_target";
+    // Intent extra: subdivide the figure where its edges look longer than these pixels, 0 never
+    public static final String EXTRA_SUBDIVIDE = "subdivide";
+    // Intent extra: alpha of the figure, below 1 it is blended with its faces sorted back to front
+    public static final String EXTRA_ALPHA = "alpha";
 
-    private GLSurfaceView mGLView;
+    private MyGLSurfaceView mGLView;
 
 
 
@@ -32,6 +57,20 @@ public class OpenGLES20Activity extends Activity {
         // Create a GLSurfaceView instance and set it
         // as the ContentView for this Activity
         mGLView = new MyGLSurfaceView(this);
+        String octree = getIntent().getStringExtra(EXTRA_OCTREE);
+        if (octree != null) {
+            mGLView.getRenderer().setScene(new File(octree));
+        }
+        String progressive = getIntent().getStringExtra(EXTRA_PROGRESSIVE);
+        if (progressive != null) {
+            mGLView.getRenderer().setProgressive(new File(progressive));
+        }
+        mGLView.getRenderer().setInstanceCount(getIntent().getIntExtra(EXTRA_INSTANCES, 1));
+        mGLView.getRenderer().setInstancing(getIntent().getBooleanExtra(EXTRA_INSTANCING, false));
+        mGLView.getRenderer().setImpostorPixels(getIntent().getIntExtra(EXTRA_IMPOSTORS, 0));
+        mGLView.getRenderer().setFrameTargetMs(getIntent().getIntExtra(EXTRA_FRAME_TARGET, 0));
+        mGLView.getRenderer().setSubdivisionPixels(getIntent().getIntExtra(EXTRA_SUBDIVIDE, 0));
+        mGLView.getRenderer().setFigureAlpha(getIntent().getFloatExtra(EXTRA_ALPHA, 1.0f));
         setContentView(mGLView);
     }
 
@@ -43,6 +82,27 @@ public class OpenGLES20Activity extends Activity {
         // you should consider de-allocating objects that
         // consume significant memory here.
         mGLView.onPause();
+        if (getIntent().getBooleanExtra(EXTRA_RECORD, false)) {
+            saveTrace(mGLView.stopRecording());
+        }
+    }
+
+    private void saveTrace(InputTrace trace) {
+        if (trace == null) {
+            return;
+        }
+        File file = new File(getFilesDir(), TRACE_FILE);
+        try {
+            OutputStream out = new FileOutputStream(file);
+            try {
+                trace.write(out);
+            } finally {
+                out.close();
+            }
+            Log.d(TAG, "recorded " + trace.getEventCount() + " events in " + file);
+        } catch (IOException e) {
+            Log.e(TAG, "cannot write " + file, e);
+        }
     }
 
     @Override
@@ -52,5 +112,9 @@ public class OpenGLES20Activity extends Activity {
         // If you de-allocated graphic objects for onPause()
         // this is a good place to re-allocate them.
         mGLView.onResume();
+        // a new trace each time the activity comes back, it replaces the file
+        if (getIntent().getBooleanExtra(EXTRA_RECORD, false)) {
+            mGLView.startRecording();
+        }
     }
 }
\ No newline at end of file
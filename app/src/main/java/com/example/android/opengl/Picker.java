@@ -0,0 +1,91 @@
+package com.example.android.opengl;
+
+import android.opengl.Matrix;
+
+/**
+ * Turns a touch on the screen into a ray in model space and finds the
+ * triangle of a mesh under it using a {@link Bvh}.
+ */
+public class Picker {
+    private final Bvh mBvh;
+
+    private final float[] mInvMVPMatrix = new float[16];
+    private final float[] mWindowPoint = new float[4];
+    private final float[] mNear = new float[4];
+    private final float[] mFar = new float[4];
+    private final float[] mOrigin = new float[3];
+    private final float[] mDir = new float[3];
+
+    private long mLastQueryNanos;
+
+    public Picker(Bvh bvh) {
+        mBvh = bvh;
+    }
+
+    public Bvh getBvh() {
+        return mBvh;
+    }
+
+    /**
+     * Returns how long the last call to {@link #pick} took, in microseconds.
+     */
+    public float getLastQueryMicros() {
+        return mLastQueryNanos / 1e3f;
+    }
+
+    /**
+     * Finds the triangle under a touch.
+     *
+     * @param x - Touch x in view pixels.
+     * @param y - Touch y in view pixels, growing downwards.
+     * @param width - View width in pixels.
+     * @param height - View height in pixels.
+     * @param mvpMatrix - The Model View Projection matrix the mesh was drawn with.
+     * @param hit - Receives the hit triangle, barycentric coordinates and the
+     * distance from the near plane in model units.
+     * @return - True if the ray hits the mesh.
+     */
+    public boolean pick(float x, float y, int width, int height, float[] mvpMatrix, RayHit hit) {
+        long start = System.nanoTime();
+        hit.reset(Float.POSITIVE_INFINITY);
+        if (width <= 0 || height <= 0 || !Matrix.invertM(mInvMVPMatrix, 0, mvpMatrix, 0)) {
+            return false;
+        }
+
+        // Unproject the touch on the near and far planes
+        float ndcX = 2.0f * x / width - 1.0f;
+        float ndcY = 1.0f - 2.0f * y / height;
+        unproject(ndcX, ndcY, -1.0f, mNear);
+        unproject(ndcX, ndcY, 1.0f, mFar);
+
+        float length = 0;
+        for (int k = 0; k < 3; k++) {
+            mOrigin[k] = mNear[k];
+            mDir[k] = mFar[k] - mNear[k];
+            length += mDir[k] * mDir[k];
+        }
+        length = (float) Math.sqrt(length);
+        if (length == 0) {
+            return false;
+        }
+        for (int k = 0; k < 3; k++) {
+            mDir[k] /= length;
+        }
+
+        hit.reset(length);
+        boolean found = mBvh.intersect(mOrigin, mDir, hit);
+        mLastQueryNanos = System.nanoTime() - start;
+        return found;
+    }
+
+    private void unproject(float ndcX, float ndcY, float ndcZ, float[] out) {
+        mWindowPoint[0] = ndcX;
+        mWindowPoint[1] = ndcY;
+        mWindowPoint[2] = ndcZ;
+        mWindowPoint[3] = 1.0f;
+        Matrix.multiplyMV(out, 0, mInvMVPMatrix, 0, mWindowPoint, 0);
+        out[0] /= out[3];
+        out[1] /= out[3];
+        out[2] /= out[3];
+    }
+}
@@ -0,0 +1,377 @@
+package com.example.android.opengl;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.StringTokenizer;
+
+/**
+ * Reads binary PLY files, little or big endian, as written by the scanning
+ * tools. The file is memory mapped and the elements are read in place from
+ * the mapping, without copying them through a stream first.
+ *
+ * The vertex element needs the float or double properties x, y and z, and
+ * may have nx, ny and nz; the face element needs a list property
+ * vertex_indices (or vertex_index). Other properties and elements are
+ * skipped. A vertex of three little endian floats is copied in bulk.
+ */
+public class PlyReader implements MeshSource {
+    // property types, by size in bytes
+    private static final String[] TYPE_NAMES = {
+            "char", "uchar", "short", "ushort", "int", "uint", "float", "double",
+            "int8", "uint8", "int16", "uint16", "int32", "uint32", "float32", "float64"
+    };
+    private static final int[] TYPE_SIZES = {1, 1, 2, 2, 4, 4, 4, 8};
+    private static final int CHAR = 0, UCHAR = 1, SHORT = 2, USHORT = 3, INT = 4, UINT = 5, FLOAT = 6,
+            DOUBLE = 7;
+
+    private static class Element {
+        final String name;
+        final int count;
+        final ArrayList<String> names = new ArrayList<String>();
+        // type of each property; for lists also the type of the count
+        final ArrayList<int[]> types = new ArrayList<int[]>();
+
+        Element(String name, int count) {
+            this.name = name;
+            this.count = count;
+        }
+
+        int indexOf(String property) {
+            return names.indexOf(property);
+        }
+
+        boolean isList(int property) {
+            return types.get(property).length == 2;
+        }
+
+        // Bytes of a record, or -1 if it has lists
+        int stride() {
+            int stride = 0;
+            for (int[] type : types) {
+                if (type.length == 2) {
+                    return -1;
+                }
+                stride += TYPE_SIZES[type[0]];
+            }
+            return stride;
+        }
+
+        // Offset of a property in a record without lists
+        int offsetOf(int property) {
+            int offset = 0;
+            for (int p = 0; p < property; p++) {
+                offset += TYPE_SIZES[types.get(p)[0]];
+            }
+            return offset;
+        }
+    }
+
+    private final ByteBuffer mData;
+    private final ArrayList<Element> mElements = new ArrayList<Element>();
+    private final int mNumVertex;
+    private final int mNumFaces;
+
+    /**
+     * Maps a PLY file and parses its header.
+     *
+     * @throws IOException - If the file is not a binary PLY file.
+     */
+    public PlyReader(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException(file + " is too big to map");
+            }
+            mData = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } finally {
+            // the mapping stays valid after closing
+            raf.close();
+        }
+
+        if (!nextLine().equals("ply")) {
+            throw new IOException("Missing PLY header");
+        }
+        Element element = null;
+        String line;
+        while (!(line = nextLine()).equals("end_header")) {
+            StringTokenizer token = new StringTokenizer(line);
+            String keyword = token.nextToken();
+            if (keyword.equals("format")) {
+                String format = token.nextToken();
+                if (format.equals("binary_little_endian")) {
+                    mData.order(ByteOrder.LITTLE_ENDIAN);
+                } else if (format.equals("binary_big_endian")) {
+                    mData.order(ByteOrder.BIG_ENDIAN);
+                } else {
+                    throw new IOException("Unsupported PLY format " + format);
+                }
+            } else if (keyword.equals("element")) {
+                element = new Element(token.nextToken(), Integer.parseInt(token.nextToken()));
+                mElements.add(element);
+            } else if (keyword.equals("property")) {
+                if (element == null) {
+                    throw new IOException("Property before any element");
+                }
+                String type = token.nextToken();
+                if (type.equals("list")) {
+                    int countType = type(token.nextToken());
+                    element.types.add(new int[]{type(token.nextToken()), countType});
+                } else {
+                    element.types.add(new int[]{type(type)});
+                }
+                element.names.add(token.nextToken());
+            }
+            // comment and obj_info lines are skipped
+        }
+        Element vertex = find("vertex");
+        Element face = find("face");
+        if (vertex == null || face == null) {
+            throw new IOException("Missing vertex or face element");
+        }
+        mNumVertex = vertex.count;
+        mNumFaces = face.count;
+    }
+
+    public int getVertexCount() {
+        return mNumVertex;
+    }
+
+    /**
+     * Returns the faces in the header, polygons counted once.
+     */
+    public int getFaceCount() {
+        return mNumFaces;
+    }
+
+    @Override
+    public Mesh readMesh() throws IOException {
+        float[] coords = null;
+        float[] normals = null;
+        int[] indices = null;
+        try {
+            for (Element element : mElements) {
+                if (element.name.equals("vertex")) {
+                    coords = new float[element.count * Mesh.COORDS_PER_VERTEX];
+                    if (element.indexOf("nx") >= 0) {
+                        normals = new float[element.count * 3];
+                    }
+                    readVertices(element, coords, normals);
+                } else if (element.name.equals("face")) {
+                    indices = readFaces(element);
+                } else {
+                    skip(element);
+                }
+            }
+        } catch (IndexOutOfBoundsException e) {
+            throw new IOException("Truncated PLY file");
+        }
+        return new Mesh(coords, indices, normals);
+    }
+
+    private void readVertices(Element element, float[] coords, float[] normals) throws IOException {
+        int stride = element.stride();
+        int[] coordsAt = offsets(element, "x", "y", "z");
+        int[] normalsAt = normals != null ? offsets(element, "nx", "ny", "nz") : null;
+        if (stride < 0 || coordsAt == null) {
+            throw new IOException("Vertices need fixed x, y, z properties");
+        }
+        int start = mData.position();
+        if (stride == 12 && coordsAt[0] == 0 && coordsAt[3] == FLOAT && mData.order() == ByteOrder.LITTLE_ENDIAN) {
+            // x, y, z and nothing else: one bulk copy from the mapping
+            FloatBuffer floats = mData.slice().order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer();
+            floats.get(coords);
+        } else {
+            int at = start;
+            for (int i = 0; i < coords.length; i += 3) {
+                for (int k = 0; k < 3; k++) {
+                    coords[i + k] = getFloat(at + coordsAt[k], coordsAt[3]);
+                }
+                if (normalsAt != null) {
+                    for (int k = 0; k < 3; k++) {
+                        normals[i + k] = getFloat(at + normalsAt[k], normalsAt[3]);
+                    }
+                }
+                at += stride;
+            }
+        }
+        mData.position(start + element.count * stride);
+    }
+
+    private int[] readFaces(Element element) throws IOException {
+        int list = element.indexOf("vertex_indices");
+        if (list < 0) {
+            list = element.indexOf("vertex_index");
+        }
+        if (list < 0 || !element.isList(list)) {
+            throw new IOException("Faces need a vertex_indices list");
+        }
+        int indexType = element.types.get(list)[0];
+        int countType = element.types.get(list)[1];
+        int indexSize = TYPE_SIZES[indexType];
+        int[] indices = new int[element.count * 3];
+        int count = 0;
+        int at = mData.position();
+        for (int f = 0; f < element.count; f++) {
+            for (int p = 0; p < list; p++) {
+                at = skipProperty(element, p, at);
+            }
+            int corners = getInt(at, countType);
+            at += TYPE_SIZES[countType];
+            if (corners < 3) {
+                throw new IOException("Face " + f + " has " + corners + " vertices");
+            }
+            if (count + (corners - 2) * 3 > indices.length) {
+                int[] bigger = new int[Math.max(indices.length * 2, count + (corners - 2) * 3)];
+                System.arraycopy(indices, 0, bigger, 0, count);
+                indices = bigger;
+            }
+            int first = checkIndex(getInt(at, indexType), f);
+            int last = checkIndex(getInt(at + indexSize, indexType), f);
+            for (int j = 2; j < corners; j++) {
+                int index = checkIndex(getInt(at + j * indexSize, indexType), f);
+                indices[count++] = first;
+                indices[count++] = last;
+                indices[count++] = index;
+                last = index;
+            }
+            at += corners * indexSize;
+            for (int p = list + 1; p < element.types.size(); p++) {
+                at = skipProperty(element, p, at);
+            }
+        }
+        mData.position(at);
+        if (count < indices.length) {
+            int[] exact = new int[count];
+            System.arraycopy(indices, 0, exact, 0, count);
+            indices = exact;
+        }
+        return indices;
+    }
+
+    private int checkIndex(int index, int face) throws IOException {
+        if (index < 0 || index >= mNumVertex) {
+            throw new IOException("Face " + face + " references vertex " + index);
+        }
+        return index;
+    }
+
+    private void skip(Element element) {
+        int stride = element.stride();
+        if (stride >= 0) {
+            mData.position(mData.position() + element.count * stride);
+            return;
+        }
+        int at = mData.position();
+        for (int i = 0; i < element.count; i++) {
+            for (int p = 0; p < element.types.size(); p++) {
+                at = skipProperty(element, p, at);
+            }
+        }
+        mData.position(at);
+    }
+
+    // Returns the position after the property of a record at this position
+    private int skipProperty(Element element, int property, int at) {
+        int[] type = element.types.get(property);
+        if (type.length == 1) {
+            return at + TYPE_SIZES[type[0]];
+        }
+        return at + TYPE_SIZES[type[1]] + getInt(at, type[1]) * TYPE_SIZES[type[0]];
+    }
+
+    // Offsets of three properties of the same float type, then the type
+    private static int[] offsets(Element element, String a, String b, String c) throws IOException {
+        int[] properties = {element.indexOf(a), element.indexOf(b), element.indexOf(c)};
+        int[] offsets = new int[4];
+        for (int k = 0; k < 3; k++) {
+            if (properties[k] < 0 || element.isList(properties[k])) {
+                return null;
+            }
+            offsets[k] = element.offsetOf(properties[k]);
+        }
+        offsets[3] = element.types.get(properties[0])[0];
+        if ((offsets[3] != FLOAT && offsets[3] != DOUBLE) || element.types.get(properties[1])[0] != offsets[3]
+                || element.types.get(properties[2])[0] != offsets[3]) {
+            throw new IOException("Property " + a + " must be float or double");
+        }
+        return offsets;
+    }
+
+    private float getFloat(int at, int type) {
+        return type == FLOAT ? mData.getFloat(at) : (float) mData.getDouble(at);
+    }
+
+    private int getInt(int at, int type) {
+        switch (type) {
+            case CHAR:
+                return mData.get(at);
+            case UCHAR:
+                return mData.get(at) & 0xFF;
+            case SHORT:
+                return mData.getShort(at);
+            case USHORT:
+                return mData.getShort(at) & 0xFFFF;
+            case FLOAT:
+                return (int) mData.getFloat(at);
+            case DOUBLE:
+                return (int) mData.getDouble(at);
+            default:
+                // int and uint, indices past 2^31 do not fit a Mesh anyway
+                return mData.getInt(at);
+        }
+    }
+
+    private static int type(String name) throws IOException {
+        for (int i = 0; i < TYPE_NAMES.length; i++) {
+            if (TYPE_NAMES[i].equals(name)) {
+                return i % TYPE_SIZES.length;
+            }
+        }
+        throw new IOException("Unknown PLY type " + name);
+    }
+
+    private Element find(String name) {
+        for (Element element : mElements) {
+            if (element.name.equals(name)) {
+                return element;
+            }
+        }
+        return null;
+    }
+
+    // Reads a header line, the header is ASCII
+    private String nextLine() throws IOException {
+        StringBuilder line = new StringBuilder();
+        while (true) {
+            if (!mData.hasRemaining()) {
+                throw new IOException("Unexpected end of PLY header");
+            }
+            char c = (char) (mData.get() & 0xFF);
+            if (c == '\n') {
+                return line.toString().trim();
+            }
+            line.append(c);
+        }
+    }
+
+    /**
+     * Nothing to close: the file is closed once mapped.
+     */
+    @Override
+    public void close() {
+    }
+
+    /**
+     * Maps and reads a whole binary PLY file.
+     */
+    public static Mesh read(File file) throws IOException {
+        return new PlyReader(file).readMesh();
+    }
+}
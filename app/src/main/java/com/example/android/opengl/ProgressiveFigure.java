@@ -0,0 +1,263 @@
+package com.example.android.opengl;
+
+import android.opengl.GLES20;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.FloatBuffer;
+import java.nio.ShortBuffer;
+
+/**
+ * Draws a {@link ProgressiveMesh} in place of a {@link Figure}, with one
+ * directional light. The base is read before the constructor returns and
+ * drawn from the first frame; a loading thread reads the splits meanwhile.
+ *
+ * Each frame moves the buffers at most {@link #SPLITS_PER_FRAME} splits
+ * towards the level of the current zoom, writing the vertices and indices
+ * in place: the buffers are sized for the full mesh, so refining only
+ * writes the new vertex, appends its faces and patches the moved corners.
+ * All the copies of a frame share the buffers, so {@link #refine} runs
+ * once per frame, for the level the nearest copy wants, and every
+ * {@link #draw} of the frame uses that level.
+ */
+public class ProgressiveFigure {
+    private static final String TAG = "ProgressiveFigure";
+    // splits read by the loading thread between two publications
+    private static final int LOAD_BATCH = 256;
+    private static final int SPLITS_PER_FRAME = 1024;
+    // screen area per face wanted, in pixels
+    static final float PIXELS_PER_FACE = 8.0f;
+
+    private final String vertexShaderCode =
+            "uniform mat4 uMVPMatrix;      \n"
+            + "uniform vec3 uLightDir;       \n"		// Direction to the light, in model space.
+            + "attribute vec4 vPosition;     \n"
+            + "attribute vec3 aNormal;       \n"
+            + "varying vec4 vColor;          \n"
+            + "void main()                    \n"
+            + "{                              \n"
+            + "   float diffuse = max(dot(normalize(aNormal), uLightDir), 0.1);     \n"
+            + "   vColor = vec4(vec3(diffuse), 1.0);                                 \n"
+            + "   gl_Position = uMVPMatrix * vPosition;                              \n"
+            + "}                                                                     \n";
+
+    private final String fragmentShaderCode =
+            "precision mediump float;" +
+                    "varying vec4 vColor;" +
+                    "void main() {" +
+                    "  gl_FragColor = vColor;" +
+                    "}";
+
+    private static final float[] LIGHT_DIR = {0.8f, 0.4f, 0.45f};
+
+    private final ProgressiveMesh mMesh;
+    private final BufferArena mArena = BufferArena.getDefault();
+    private BufferArena.Slice mVertexSlice, mNormalSlice, mIndexSlice;
+    private final FloatBuffer mVertexBuffer;
+    private final FloatBuffer mNormalBuffer;
+    private final ShortBuffer mIndexBuffer;
+    private final int mProgram;
+    private final Thread mLoader;
+    private volatile boolean mStopped;
+
+    // splits applied to the buffers
+    private int mLevel;
+    private float mPixelsPerFace = PIXELS_PER_FACE;
+    private final float[] mCenter = new float[3];
+    private float mRadius;
+
+    private final long mStartNanos;
+    private long mFirstFrameNanos;
+    private volatile long mLoadedNanos;
+    private long mFullDetailNanos;
+    private long mFrames;
+
+    public ProgressiveFigure(File file) throws IOException {
+        mStartNanos = System.nanoTime();
+        final InputStream in = new BufferedInputStream(new FileInputStream(file), 64 * 1024);
+        try {
+            mMesh = ProgressiveMesh.readBase(in);
+        } catch (IOException e) {
+            in.close();
+            throw e;
+        }
+        if (mMesh.vertexCount > 0xFFFF + 1) {
+            in.close();
+            throw new IOException(file + " needs 32 bit indices");
+        }
+        mVertexSlice = mArena.allocate(mMesh.vertexCount * 12);
+        mNormalSlice = mArena.allocate(mMesh.vertexCount * 12);
+        mIndexSlice = mArena.allocate(mMesh.faceCount * 6);
+        mVertexBuffer = mVertexSlice.asFloatBuffer();
+        mNormalBuffer = mNormalSlice.asFloatBuffer();
+        mIndexBuffer = mIndexSlice.asShortBuffer();
+        mMesh.writeBase(mVertexBuffer, mNormalBuffer, mIndexBuffer);
+
+        float[] min = new float[3];
+        float[] max = new float[3];
+        mMesh.getBaseBounds(min, max);
+        float size = 0;
+        for (int k = 0; k < 3; k++) {
+            mCenter[k] = (min[k] + max[k]) * 0.5f;
+            size = Math.max(size, max[k] - min[k]);
+        }
+        mRadius = size * 0.87f;
+
+        mLoader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                load(in);
+            }
+        }, TAG);
+        mLoader.setDaemon(true);
+        mLoader.start();
+
+        int vertexShader = MyGLRenderer.loadShader(GLES20.GL_VERTEX_SHADER, vertexShaderCode);
+        int fragmentShader = MyGLRenderer.loadShader(GLES20.GL_FRAGMENT_SHADER, fragmentShaderCode);
+        mProgram = Gl.glCreateProgram();
+        Gl.glAttachShader(mProgram, vertexShader);
+        Gl.glAttachShader(mProgram, fragmentShader);
+        Gl.glLinkProgram(mProgram);
+    }
+
+    private void load(InputStream in) {
+        try {
+            while (!mStopped && !mMesh.isLoaded()) {
+                mMesh.readSplits(in, LOAD_BATCH);
+            }
+            mLoadedNanos = System.nanoTime() - mStartNanos;
+        } catch (IOException e) {
+            // the splits read so far stay usable
+            Log.e(TAG, "cannot read the splits after " + mMesh.getLoadedSplits(), e);
+        } finally {
+            try {
+                in.close();
+            } catch (IOException e) {
+                Log.e(TAG, "cannot close", e);
+            }
+        }
+    }
+
+    public ProgressiveMesh getMesh() {
+        return mMesh;
+    }
+
+    /**
+     * Sets the screen area wanted per face, in pixels; the level drawn is
+     * the smallest with that many faces over the projected figure.
+     */
+    public void setPixelsPerFace(float pixels) {
+        mPixelsPerFace = pixels;
+    }
+
+    /**
+     * Returns the level wanted for the figure seen with this matrix.
+     *
+     * @param screenScale - Pixels per unit at distance 1.
+     */
+    public int getWantedLevel(float[] mvpMatrix, float screenScale) {
+        // distance of the center, the w of its clip coordinates
+        float w = mvpMatrix[3] * mCenter[0] + mvpMatrix[7] * mCenter[1] + mvpMatrix[11] * mCenter[2]
+                + mvpMatrix[15];
+        if (w <= mRadius) {
+            return mMesh.splitCount;
+        }
+        float pixels = mRadius * screenScale / w;
+        float faces = (float) Math.PI * pixels * pixels / mPixelsPerFace;
+        return mMesh.getLevel((int) Math.min(faces, mMesh.faceCount));
+    }
+
+    /**
+     * Refines or coarsens towards a level, by at most
+     * {@link #SPLITS_PER_FRAME} splits. Once per frame, before the draws.
+     *
+     * @param wanted - The largest level any copy of the frame wants, see
+     * {@link #getWantedLevel}.
+     * @return - True until the level is the wanted one and the splits are
+     * all loaded: a view that renders on demand must draw again.
+     */
+    public boolean refine(int wanted) {
+        wanted = Math.min(wanted, mMesh.getLoadedSplits());
+        int steps = SPLITS_PER_FRAME;
+        while (mLevel < wanted && steps-- > 0) {
+            mMesh.split(mLevel++, mVertexBuffer, mNormalBuffer, mIndexBuffer);
+        }
+        while (mLevel > wanted && steps-- > 0) {
+            mMesh.collapse(--mLevel, mIndexBuffer);
+        }
+        if (mFullDetailNanos == 0 && mLevel == mMesh.splitCount) {
+            mFullDetailNanos = System.nanoTime() - mStartNanos;
+            Log.d(TAG, "full detail after " + getFullDetailMs() + " ms, splits loaded after "
+                    + mLoadedNanos / 1e6f + " ms");
+        }
+        if (++mFrames % 60 == 0) {
+            Log.d(TAG, "level " + mLevel + " of " + mMesh.getLoadedSplits() + " loaded, "
+                    + mMesh.getFaceCount(mLevel) + " faces");
+        }
+        return mLevel != wanted || mLoader.isAlive();
+    }
+
+    /**
+     * Draws a copy at the level of the last {@link #refine}.
+     */
+    public void draw(float[] mvpMatrix) {
+        Gl.glUseProgram(mProgram);
+        int positionHandle = Gl.glGetAttribLocation(mProgram, "vPosition");
+        int normalHandle = Gl.glGetAttribLocation(mProgram, "aNormal");
+        Gl.glEnableVertexAttribArray(positionHandle);
+        Gl.glEnableVertexAttribArray(normalHandle);
+        Gl.glUniformMatrix4fv(Gl.glGetUniformLocation(mProgram, "uMVPMatrix"), 1, false, mvpMatrix, 0);
+        Gl.glUniform3fv(Gl.glGetUniformLocation(mProgram, "uLightDir"), 1, LIGHT_DIR, 0);
+        Gl.glVertexAttribPointer(positionHandle, 3, GLES20.GL_FLOAT, false, 12, mVertexBuffer);
+        Gl.glVertexAttribPointer(normalHandle, 3, GLES20.GL_FLOAT, false, 12, mNormalBuffer);
+        Gl.glDrawElements(GLES20.GL_TRIANGLES, mMesh.getFaceCount(mLevel) * 3, GLES20.GL_UNSIGNED_SHORT,
+                mIndexBuffer);
+        Gl.glDisableVertexAttribArray(positionHandle);
+        Gl.glDisableVertexAttribArray(normalHandle);
+
+        if (mFirstFrameNanos == 0) {
+            mFirstFrameNanos = System.nanoTime() - mStartNanos;
+            Log.d(TAG, "first frame after " + getFirstFrameMs() + " ms, " + mMesh.baseFaceCount + " of "
+                    + mMesh.faceCount + " faces");
+        }
+    }
+
+    public int getLevel() {
+        return mLevel;
+    }
+
+    /**
+     * Returns the time from the constructor to the first frame drawn.
+     */
+    public float getFirstFrameMs() {
+        return mFirstFrameNanos / 1e6f;
+    }
+
+    /**
+     * Returns the time from the constructor to the first frame at full
+     * resolution, 0 until then.
+     */
+    public float getFullDetailMs() {
+        return mFullDetailNanos / 1e6f;
+    }
+
+    /**
+     * Stops loading and returns the buffers to the {@link BufferArena}.
+     */
+    public void release() {
+        mStopped = true;
+        try {
+            mLoader.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        mArena.release(mVertexSlice);
+        mArena.release(mNormalSlice);
+        mArena.release(mIndexSlice);
+        mVertexSlice = mNormalSlice = mIndexSlice = null;
+    }
+}
@@ -0,0 +1,357 @@
+package com.example.android.opengl;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.ShortBuffer;
+
+/**
+ * Progressive mesh: a coarse base mesh and an ordered list of vertex splits
+ * that refine it back to the full mesh, built by
+ * {@link ProgressiveMeshBuilder}. Vertices and faces are numbered in the
+ * order they appear, the base first and then those added by each split, so
+ * level n uses the first {@code baseVertexCount + n} vertices and the first
+ * {@link #getFaceCount(int)} faces. A split adds one vertex, appends the
+ * faces around it and moves some corners of older faces from its parent to
+ * it; {@link #collapse} moves them back.
+ *
+ * The file is read in order, so the base can be drawn while the splits are
+ * still loading. Little endian:
+ *
+ * <pre>
+ * int magic ("PMS1"), int vertexCount, int faceCount, int baseVertexCount,
+ * int baseFaceCount, int splitCount, int cornerCount
+ * float coords[baseVertexCount * 3], float normals[baseVertexCount * 3]
+ * int indices[baseFaceCount * 3]
+ * per split: int parent, float coord[3], float normal[3], int faceCount,
+ *            int cornerCount, int indices[faceCount * 3], int corners[cornerCount]</pre>
+ *
+ * A corner is face * 3 + k.
+ */
+public class ProgressiveMesh {
+    static final int MAGIC = 0x31534D50;
+    static final int HEADER_SIZE = 4 * 7;
+    static final int SPLIT_HEADER_SIZE = 4 * 9;
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    public final int vertexCount;
+    public final int faceCount;
+    public final int baseVertexCount;
+    public final int baseFaceCount;
+    public final int splitCount;
+
+    // full resolution vertices and the faces as each split adds them
+    final float[] coords;
+    final float[] normals;
+    final int[] indices;
+    // vertex split by each split, and the first face and corner of each split
+    final int[] splitParent;
+    final int[] splitFaceStart;
+    final int[] splitCornerStart;
+    final int[] corners;
+
+    // splits read so far, written by the loading thread
+    private volatile int mLoadedSplits;
+    private byte[] mChunk;
+    // vertex of the source mesh of each vertex, only after a build
+    int[] sourceVertices;
+
+    ProgressiveMesh(int vertexCount, int faceCount, int baseVertexCount, int baseFaceCount, int splitCount,
+            int cornerCount) {
+        this.vertexCount = vertexCount;
+        this.faceCount = faceCount;
+        this.baseVertexCount = baseVertexCount;
+        this.baseFaceCount = baseFaceCount;
+        this.splitCount = splitCount;
+        coords = new float[vertexCount * 3];
+        normals = new float[vertexCount * 3];
+        indices = new int[faceCount * 3];
+        splitParent = new int[splitCount];
+        splitFaceStart = new int[splitCount + 1];
+        splitCornerStart = new int[splitCount + 1];
+        corners = new int[cornerCount];
+        splitFaceStart[0] = baseFaceCount;
+    }
+
+    /**
+     * Returns the number of faces after the first splits.
+     */
+    public int getFaceCount(int level) {
+        return splitFaceStart[level];
+    }
+
+    public int getVertexCount(int level) {
+        return baseVertexCount + level;
+    }
+
+    /**
+     * Returns the smallest level with at least the given faces.
+     */
+    public int getLevel(int faces) {
+        int low = 0, high = splitCount;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (splitFaceStart[mid] < faces) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Returns how many splits can be applied, all of them once loaded.
+     */
+    public int getLoadedSplits() {
+        return mLoadedSplits;
+    }
+
+    public boolean isLoaded() {
+        return mLoadedSplits == splitCount;
+    }
+
+    void setLoaded() {
+        mLoadedSplits = splitCount;
+    }
+
+    /**
+     * Writes the base level into buffers able to hold the full mesh.
+     */
+    public void writeBase(FloatBuffer vertices, FloatBuffer vertexNormals, ShortBuffer drawIndices) {
+        vertices.position(0);
+        vertices.put(coords, 0, baseVertexCount * 3);
+        vertices.position(0);
+        vertexNormals.position(0);
+        vertexNormals.put(normals, 0, baseVertexCount * 3);
+        vertexNormals.position(0);
+        for (int i = 0; i < baseFaceCount * 3; i++) {
+            drawIndices.put(i, (short) indices[i]);
+        }
+    }
+
+    /**
+     * Applies split n to buffers at level n, leaving them at level n + 1.
+     */
+    public void split(int n, FloatBuffer vertices, FloatBuffer vertexNormals, ShortBuffer drawIndices) {
+        int vertex = baseVertexCount + n;
+        for (int k = vertex * 3; k < vertex * 3 + 3; k++) {
+            vertices.put(k, coords[k]);
+            vertexNormals.put(k, normals[k]);
+        }
+        for (int i = splitFaceStart[n] * 3; i < splitFaceStart[n + 1] * 3; i++) {
+            drawIndices.put(i, (short) indices[i]);
+        }
+        for (int c = splitCornerStart[n]; c < splitCornerStart[n + 1]; c++) {
+            drawIndices.put(corners[c], (short) vertex);
+        }
+    }
+
+    /**
+     * Undoes split n on buffers at level n + 1, leaving them at level n. Its
+     * faces are left past the face count of level n.
+     */
+    public void collapse(int n, ShortBuffer drawIndices) {
+        short parent = (short) splitParent[n];
+        for (int c = splitCornerStart[n]; c < splitCornerStart[n + 1]; c++) {
+            drawIndices.put(corners[c], parent);
+        }
+    }
+
+    /**
+     * Writes the faces of a level as indices of the vertices of the mesh it
+     * was built from, so a level can be drawn with the buffers of that mesh.
+     * Only after {@link ProgressiveMeshBuilder#build}, which keeps the
+     * vertices where they were.
+     *
+     * @return - The number of indices written, 3 * {@link #getFaceCount(int)}.
+     */
+    public int writeSourceIndices(int level, ShortBuffer drawIndices) {
+        int count = getFaceCount(level) * 3;
+        int[] faces = new int[count];
+        System.arraycopy(indices, 0, faces, 0, baseFaceCount * 3);
+        for (int n = 0; n < level; n++) {
+            int start = splitFaceStart[n] * 3;
+            System.arraycopy(indices, start, faces, start, splitFaceStart[n + 1] * 3 - start);
+            for (int c = splitCornerStart[n]; c < splitCornerStart[n + 1]; c++) {
+                faces[corners[c]] = baseVertexCount + n;
+            }
+        }
+        for (int i = 0; i < count; i++) {
+            drawIndices.put(i, (short) sourceVertices[faces[i]]);
+        }
+        return count;
+    }
+
+    /**
+     * Reads the header and the base level. The splits follow with
+     * {@link #readSplits}.
+     *
+     * @param inputStream - Stream positioned at the header, it is not closed.
+     */
+    public static ProgressiveMesh readBase(InputStream inputStream) throws IOException {
+        DataInputStream in = new DataInputStream(inputStream);
+        byte[] chunk = new byte[BUFFER_SIZE];
+        in.readFully(chunk, 0, HEADER_SIZE);
+        ByteBuffer header = ByteBuffer.wrap(chunk, 0, HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        if (header.getInt() != MAGIC) {
+            throw new IOException("Not a progressive mesh");
+        }
+        int vertexCount = header.getInt();
+        int faceCount = header.getInt();
+        int baseVertexCount = header.getInt();
+        int baseFaceCount = header.getInt();
+        int splitCount = header.getInt();
+        int cornerCount = header.getInt();
+        if (baseVertexCount + splitCount != vertexCount || baseFaceCount > faceCount || cornerCount < 0) {
+            throw new IOException("Corrupt progressive mesh");
+        }
+        ProgressiveMesh mesh = new ProgressiveMesh(vertexCount, faceCount, baseVertexCount, baseFaceCount,
+                splitCount, cornerCount);
+        mesh.mChunk = chunk;
+        readFloats(in, chunk, mesh.coords, baseVertexCount * 3);
+        readFloats(in, chunk, mesh.normals, baseVertexCount * 3);
+        int done = 0;
+        while (done < baseFaceCount * 3) {
+            int n = Math.min(baseFaceCount * 3 - done, BUFFER_SIZE / 4);
+            in.readFully(chunk, 0, n * 4);
+            ByteBuffer.wrap(chunk, 0, n * 4).order(ByteOrder.LITTLE_ENDIAN).asIntBuffer().get(mesh.indices, done, n);
+            done += n;
+        }
+        return mesh;
+    }
+
+    /**
+     * Reads the next splits, making them available to
+     * {@link #getLoadedSplits} when done. Call from one thread.
+     *
+     * @return - The number of splits read.
+     */
+    public int readSplits(InputStream inputStream, int max) throws IOException {
+        DataInputStream in = new DataInputStream(inputStream);
+        byte[] chunk = mChunk;
+        int first = mLoadedSplits;
+        int last = Math.min(splitCount, first + max);
+        for (int n = first; n < last; n++) {
+            in.readFully(chunk, 0, SPLIT_HEADER_SIZE);
+            ByteBuffer bb = ByteBuffer.wrap(chunk, 0, SPLIT_HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            int vertex = baseVertexCount + n;
+            splitParent[n] = bb.getInt();
+            for (int k = 0; k < 3; k++) {
+                coords[vertex * 3 + k] = bb.getFloat();
+            }
+            for (int k = 0; k < 3; k++) {
+                normals[vertex * 3 + k] = bb.getFloat();
+            }
+            int faces = bb.getInt();
+            int cornerCount = bb.getInt();
+            int faceEnd = splitFaceStart[n] + faces;
+            int cornerEnd = splitCornerStart[n] + cornerCount;
+            int bytes = (faces * 3 + cornerCount) * 4;
+            if (splitParent[n] < 0 || splitParent[n] >= vertex || faces < 0 || cornerCount < 0
+                    || faceEnd > faceCount || cornerEnd > corners.length || bytes > chunk.length) {
+                throw new IOException("Corrupt progressive mesh at split " + n);
+            }
+            in.readFully(chunk, 0, bytes);
+            bb = ByteBuffer.wrap(chunk, 0, bytes).order(ByteOrder.LITTLE_ENDIAN);
+            for (int i = splitFaceStart[n] * 3; i < faceEnd * 3; i++) {
+                indices[i] = bb.getInt();
+            }
+            for (int c = splitCornerStart[n]; c < cornerEnd; c++) {
+                corners[c] = bb.getInt();
+            }
+            splitFaceStart[n + 1] = faceEnd;
+            splitCornerStart[n + 1] = cornerEnd;
+        }
+        mLoadedSplits = last;
+        return last - first;
+    }
+
+    /**
+     * Reads a whole progressive mesh.
+     */
+    public static ProgressiveMesh read(InputStream in) throws IOException {
+        ProgressiveMesh mesh = readBase(in);
+        mesh.readSplits(in, mesh.splitCount);
+        return mesh;
+    }
+
+    public void write(OutputStream out) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putInt(MAGIC);
+        buffer.putInt(vertexCount);
+        buffer.putInt(faceCount);
+        buffer.putInt(baseVertexCount);
+        buffer.putInt(baseFaceCount);
+        buffer.putInt(splitCount);
+        buffer.putInt(corners.length);
+        for (int i = 0; i < baseVertexCount * 3; i++) {
+            buffer = ensure(out, buffer, 4).putFloat(coords[i]);
+        }
+        for (int i = 0; i < baseVertexCount * 3; i++) {
+            buffer = ensure(out, buffer, 4).putFloat(normals[i]);
+        }
+        for (int i = 0; i < baseFaceCount * 3; i++) {
+            buffer = ensure(out, buffer, 4).putInt(indices[i]);
+        }
+        for (int n = 0; n < splitCount; n++) {
+            int vertex = baseVertexCount + n;
+            ensure(out, buffer, SPLIT_HEADER_SIZE);
+            buffer.putInt(splitParent[n]);
+            for (int k = 0; k < 3; k++) {
+                buffer.putFloat(coords[vertex * 3 + k]);
+            }
+            for (int k = 0; k < 3; k++) {
+                buffer.putFloat(normals[vertex * 3 + k]);
+            }
+            buffer.putInt(splitFaceStart[n + 1] - splitFaceStart[n]);
+            buffer.putInt(splitCornerStart[n + 1] - splitCornerStart[n]);
+            for (int i = splitFaceStart[n] * 3; i < splitFaceStart[n + 1] * 3; i++) {
+                ensure(out, buffer, 4).putInt(indices[i]);
+            }
+            for (int c = splitCornerStart[n]; c < splitCornerStart[n + 1]; c++) {
+                ensure(out, buffer, 4).putInt(corners[c]);
+            }
+        }
+        out.write(buffer.array(), 0, buffer.position());
+        out.flush();
+    }
+
+    private static ByteBuffer ensure(OutputStream out, ByteBuffer buffer, int bytes) throws IOException {
+        if (buffer.remaining() < bytes) {
+            out.write(buffer.array(), 0, buffer.position());
+            buffer.clear();
+        }
+        return buffer;
+    }
+
+    private static void readFloats(DataInputStream in, byte[] chunk, float[] out, int count) throws IOException {
+        int done = 0;
+        while (done < count) {
+            int n = Math.min(count - done, BUFFER_SIZE / 4);
+            in.readFully(chunk, 0, n * 4);
+            ByteBuffer.wrap(chunk, 0, n * 4).order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer().get(out, done, n);
+            done += n;
+        }
+    }
+
+    /**
+     * Returns the bounds of the base level, inside those of the full mesh as
+     * the base keeps a subset of its vertices.
+     */
+    public void getBaseBounds(float[] min, float[] max) {
+        for (int k = 0; k < 3; k++) {
+            min[k] = Float.MAX_VALUE;
+            max[k] = -Float.MAX_VALUE;
+        }
+        for (int i = 0; i < baseVertexCount * 3; i++) {
+            min[i % 3] = Math.min(min[i % 3], coords[i]);
+            max[i % 3] = Math.max(max[i % 3], coords[i]);
+        }
+    }
+}
@@ -0,0 +1,468 @@
+package com.example.android.opengl;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Simplifies a mesh into a {@link ProgressiveMesh}. It also runs on a
+ * desktop JVM, to convert models offline:
+ *
+ * <pre>
+ * java -cp &lt;classes&gt; com.example.android.opengl.ProgressiveMeshBuilder in.(off|ply|obj|msh|mshz) out.pm [base_faces]</pre>
+ *
+ * Edges are collapsed in order of quadric error (Garland and Heckbert)
+ * until the base has base_faces faces. Collapses are half edge: the removed
+ * vertex moves onto a kept one, so every level uses vertices of the source
+ * mesh and a split never moves a vertex. A collapse is skipped if it would
+ * flip a face or pinch the surface (the link condition). The splits are the
+ * collapses in reverse order.
+ */
+public class ProgressiveMeshBuilder {
+    static final int DEFAULT_BASE_FACES = 256;
+
+    private final float[] mCoords;
+    private final int[] mFaces;
+    private final boolean[] mFaceAlive;
+    private int mAliveFaces;
+    private final boolean[] mVertexAlive;
+    // faces around each vertex, dead ones are dropped when the list is rebuilt
+    private final int[][] mVertexFaces;
+    private final int[] mVertexFaceCount;
+    private final double[] mQuadrics;
+    private final int[] mVersion;
+
+    // candidate collapses, a binary heap on cost
+    private double[] mHeapCost = new double[64];
+    private int[] mHeapFrom = new int[64];
+    private int[] mHeapTo = new int[64];
+    private int[] mHeapVersion = new int[64];
+    private int mHeapSize;
+
+    private final int[] mTag;
+    private final int[] mSeen;
+    private int mStamp;
+
+    // the collapses in order: removed vertex, kept vertex, removed faces with
+    // their vertices at that time, and the corners moved to the kept vertex
+    private final IntList mChild = new IntList();
+    private final IntList mParent = new IntList();
+    private final IntList mRemovedStart = new IntList();
+    private final IntList mRemovedFaces = new IntList();
+    private final IntList mRemovedVertices = new IntList();
+    private final IntList mCornerStart = new IntList();
+    private final IntList mCorners = new IntList();
+
+    private final float[] mEdge1 = new float[3];
+    private final float[] mEdge2 = new float[3];
+    private final float[] mBefore = new float[3];
+    private final float[] mAfter = new float[3];
+
+    private ProgressiveMeshBuilder(Mesh mesh) {
+        int vertexCount = mesh.getVertexCount();
+        int faceCount = mesh.getFaceCount();
+        mCoords = mesh.coords;
+        mFaces = mesh.indices.clone();
+        mFaceAlive = new boolean[faceCount];
+        mAliveFaces = faceCount;
+        mVertexAlive = new boolean[vertexCount];
+        mVertexFaces = new int[vertexCount][];
+        mVertexFaceCount = new int[vertexCount];
+        mQuadrics = new double[vertexCount * 10];
+        mVersion = new int[vertexCount];
+        mTag = new int[vertexCount];
+        mSeen = new int[vertexCount];
+        for (int v = 0; v < vertexCount; v++) {
+            mVertexAlive[v] = true;
+            mVertexFaces[v] = new int[8];
+        }
+        for (int f = 0; f < faceCount; f++) {
+            mFaceAlive[f] = true;
+            for (int k = 0; k < 3; k++) {
+                addFace(mFaces[f * 3 + k], f);
+            }
+            addPlaneQuadric(f);
+        }
+    }
+
+    /**
+     * Builds the progressive mesh of a mesh with 16 bit indices.
+     *
+     * @param baseFaces - Faces of the base, it may keep more if no edge can
+     * be collapsed.
+     */
+    public static ProgressiveMesh build(Mesh mesh, int baseFaces) {
+        if (mesh.getVertexCount() > 0xFFFF + 1) {
+            throw new IllegalArgumentException("progressive meshes use 16 bit indices");
+        }
+        ProgressiveMeshBuilder builder = new ProgressiveMeshBuilder(mesh);
+        builder.simplify(baseFaces);
+        return builder.toProgressiveMesh(mesh.getNormals());
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.err.println("usage: ProgressiveMeshBuilder in.(off|ply|obj|msh|mshz) out.pm [base_faces]");
+            System.exit(2);
+        }
+        int baseFaces = args.length > 2 ? Integer.parseInt(args[2]) : DEFAULT_BASE_FACES;
+        long start = System.currentTimeMillis();
+        Mesh mesh = MeshLoader.load(new File(args[0]));
+        ProgressiveMesh progressive = build(mesh, baseFaces);
+        OutputStream out = new BufferedOutputStream(new FileOutputStream(args[1]), 64 * 1024);
+        try {
+            progressive.write(out);
+        } finally {
+            out.close();
+        }
+        System.out.println(args[0] + ": " + progressive.baseFaceCount + " base faces, " + progressive.splitCount
+                + " splits to " + progressive.faceCount + " faces, " + (System.currentTimeMillis() - start)
+                + " ms");
+    }
+
+    private void simplify(int baseFaces) {
+        for (int v = 0; v < mVertexAlive.length; v++) {
+            pushEdges(v);
+        }
+        while (mAliveFaces > baseFaces && mHeapSize > 0) {
+            int from = mHeapFrom[0];
+            int to = mHeapTo[0];
+            int version = mHeapVersion[0];
+            pop();
+            if (mVertexAlive[from] && mVertexAlive[to] && version == mVersion[from] + mVersion[to]
+                    && canCollapse(from, to)) {
+                collapse(from, to);
+            }
+        }
+    }
+
+    // Pushes the collapses of a vertex onto its neighbours and theirs onto it
+    private void pushEdges(int v) {
+        int stamp = ++mStamp;
+        for (int i = 0; i < mVertexFaceCount[v]; i++) {
+            int f = mVertexFaces[v][i];
+            if (!mFaceAlive[f]) {
+                continue;
+            }
+            for (int k = 0; k < 3; k++) {
+                int w = mFaces[f * 3 + k];
+                if (w != v && mTag[w] != stamp) {
+                    mTag[w] = stamp;
+                    push(v, w);
+                    push(w, v);
+                }
+            }
+        }
+    }
+
+    private void push(int from, int to) {
+        if (mHeapSize == mHeapCost.length) {
+            int size = mHeapSize * 2;
+            double[] cost = new double[size];
+            int[] fromList = new int[size];
+            int[] toList = new int[size];
+            int[] version = new int[size];
+            System.arraycopy(mHeapCost, 0, cost, 0, mHeapSize);
+            System.arraycopy(mHeapFrom, 0, fromList, 0, mHeapSize);
+            System.arraycopy(mHeapTo, 0, toList, 0, mHeapSize);
+            System.arraycopy(mHeapVersion, 0, version, 0, mHeapSize);
+            mHeapCost = cost;
+            mHeapFrom = fromList;
+            mHeapTo = toList;
+            mHeapVersion = version;
+        }
+        // the merged quadric at the kept vertex
+        double cost = evaluate(from, to) + evaluate(to, to);
+        int i = mHeapSize++;
+        while (i > 0 && mHeapCost[(i - 1) / 2] > cost) {
+            move((i - 1) / 2, i);
+            i = (i - 1) / 2;
+        }
+        mHeapCost[i] = cost;
+        mHeapFrom[i] = from;
+        mHeapTo[i] = to;
+        mHeapVersion[i] = mVersion[from] + mVersion[to];
+    }
+
+    private void pop() {
+        int last = --mHeapSize;
+        double cost = mHeapCost[last];
+        int i = 0;
+        while (true) {
+            int child = i * 2 + 1;
+            if (child >= last) {
+                break;
+            }
+            if (child + 1 < last && mHeapCost[child + 1] < mHeapCost[child]) {
+                child++;
+            }
+            if (mHeapCost[child] >= cost) {
+                break;
+            }
+            move(child, i);
+            i = child;
+        }
+        move(last, i);
+    }
+
+    private void move(int from, int to) {
+        mHeapCost[to] = mHeapCost[from];
+        mHeapFrom[to] = mHeapFrom[from];
+        mHeapTo[to] = mHeapTo[from];
+        mHeapVersion[to] = mHeapVersion[from];
+    }
+
+    private boolean canCollapse(int from, int to) {
+        // faces with both vertices, and the neighbours of the kept vertex
+        int stamp = ++mStamp;
+        int shared = 0;
+        for (int i = 0; i < mVertexFaceCount[to]; i++) {
+            int f = mVertexFaces[to][i];
+            if (!mFaceAlive[f]) {
+                continue;
+            }
+            boolean hasFrom = false;
+            for (int k = 0; k < 3; k++) {
+                int w = mFaces[f * 3 + k];
+                mTag[w] = stamp;
+                hasFrom |= w == from;
+            }
+            if (hasFrom) {
+                shared++;
+            }
+        }
+        if (shared == 0) {
+            return false;
+        }
+        // link condition: the common neighbours are the third vertices of the shared faces
+        int common = 0;
+        for (int i = 0; i < mVertexFaceCount[from]; i++) {
+            int f = mVertexFaces[from][i];
+            if (!mFaceAlive[f]) {
+                continue;
+            }
+            boolean hasTo = false;
+            for (int k = 0; k < 3; k++) {
+                int w = mFaces[f * 3 + k];
+                hasTo |= w == to;
+                if (w != from && w != to && mTag[w] == stamp && mSeen[w] != stamp) {
+                    mSeen[w] = stamp;
+                    common++;
+                }
+            }
+            if (!hasTo && flips(f, from, to)) {
+                return false;
+            }
+        }
+        return common == shared;
+    }
+
+    // True if moving a corner of the face from one vertex to the other flips or flattens it
+    private boolean flips(int f, int from, int to) {
+        int a = mFaces[f * 3], b = mFaces[f * 3 + 1], c = mFaces[f * 3 + 2];
+        normal(a, b, c, mBefore);
+        normal(a == from ? to : a, b == from ? to : b, c == from ? to : c, mAfter);
+        float before = mBefore[0] * mBefore[0] + mBefore[1] * mBefore[1] + mBefore[2] * mBefore[2];
+        float after = mAfter[0] * mAfter[0] + mAfter[1] * mAfter[1] + mAfter[2] * mAfter[2];
+        float dot = mBefore[0] * mAfter[0] + mBefore[1] * mAfter[1] + mBefore[2] * mAfter[2];
+        return after == 0 || dot <= 0.2f * (float) Math.sqrt(before * after);
+    }
+
+    private void normal(int a, int b, int c, float[] out) {
+        for (int k = 0; k < 3; k++) {
+            mEdge1[k] = mCoords[b * 3 + k] - mCoords[a * 3 + k];
+            mEdge2[k] = mCoords[c * 3 + k] - mCoords[a * 3 + k];
+        }
+        out[0] = mEdge1[1] * mEdge2[2] - mEdge1[2] * mEdge2[1];
+        out[1] = mEdge1[2] * mEdge2[0] - mEdge1[0] * mEdge2[2];
+        out[2] = mEdge1[0] * mEdge2[1] - mEdge1[1] * mEdge2[0];
+    }
+
+    private void collapse(int from, int to) {
+        mChild.add(from);
+        mParent.add(to);
+        mRemovedStart.add(mRemovedFaces.size());
+        mCornerStart.add(mCorners.size());
+        for (int i = 0; i < mVertexFaceCount[from]; i++) {
+            int f = mVertexFaces[from][i];
+            if (!mFaceAlive[f]) {
+                continue;
+            }
+            int a = mFaces[f * 3], b = mFaces[f * 3 + 1], c = mFaces[f * 3 + 2];
+            if (a == to || b == to || c == to) {
+                mFaceAlive[f] = false;
+                mAliveFaces--;
+                mRemovedFaces.add(f);
+                mRemovedVertices.add(a);
+                mRemovedVertices.add(b);
+                mRemovedVertices.add(c);
+            } else {
+                for (int k = 0; k < 3; k++) {
+                    if (mFaces[f * 3 + k] == from) {
+                        mFaces[f * 3 + k] = to;
+                        mCorners.add(f * 3 + k);
+                    }
+                }
+                addFace(to, f);
+            }
+        }
+        mVertexAlive[from] = false;
+        for (int q = 0; q < 10; q++) {
+            mQuadrics[to * 10 + q] += mQuadrics[from * 10 + q];
+        }
+        mVersion[to]++;
+        compactFaces(to);
+        pushEdges(to);
+    }
+
+    private void addFace(int v, int f) {
+        if (mVertexFaceCount[v] == mVertexFaces[v].length) {
+            int[] faces = new int[mVertexFaceCount[v] * 2];
+            System.arraycopy(mVertexFaces[v], 0, faces, 0, mVertexFaceCount[v]);
+            mVertexFaces[v] = faces;
+        }
+        mVertexFaces[v][mVertexFaceCount[v]++] = f;
+    }
+
+    private void compactFaces(int v) {
+        int kept = 0;
+        int[] faces = mVertexFaces[v];
+        for (int i = 0; i < mVertexFaceCount[v]; i++) {
+            if (mFaceAlive[faces[i]]) {
+                faces[kept++] = faces[i];
+            }
+        }
+        mVertexFaceCount[v] = kept;
+    }
+
+    // Adds the squared distance to the plane of a face, weighted by its area, to its vertices
+    private void addPlaneQuadric(int f) {
+        int a = mFaces[f * 3];
+        normal(a, mFaces[f * 3 + 1], mFaces[f * 3 + 2], mBefore);
+        double length = Math.sqrt(mBefore[0] * mBefore[0] + mBefore[1] * mBefore[1] + mBefore[2] * mBefore[2]);
+        if (length == 0) {
+            return;
+        }
+        double nx = mBefore[0] / length, ny = mBefore[1] / length, nz = mBefore[2] / length;
+        double d = -(nx * mCoords[a * 3] + ny * mCoords[a * 3 + 1] + nz * mCoords[a * 3 + 2]);
+        double area = length * 0.5;
+        for (int k = 0; k < 3; k++) {
+            int q = mFaces[f * 3 + k] * 10;
+            mQuadrics[q] += area * nx * nx;
+            mQuadrics[q + 1] += area * nx * ny;
+            mQuadrics[q + 2] += area * nx * nz;
+            mQuadrics[q + 3] += area * nx * d;
+            mQuadrics[q + 4] += area * ny * ny;
+            mQuadrics[q + 5] += area * ny * nz;
+            mQuadrics[q + 6] += area * ny * d;
+            mQuadrics[q + 7] += area * nz * nz;
+            mQuadrics[q + 8] += area * nz * d;
+            mQuadrics[q + 9] += area * d * d;
+        }
+    }
+
+    // Error of the quadric of vertex v at the position of vertex p
+    private double evaluate(int v, int p) {
+        double x = mCoords[p * 3], y = mCoords[p * 3 + 1], z = mCoords[p * 3 + 2];
+        int q = v * 10;
+        return mQuadrics[q] * x * x + 2 * mQuadrics[q + 1] * x * y + 2 * mQuadrics[q + 2] * x * z
+                + 2 * mQuadrics[q + 3] * x + mQuadrics[q + 4] * y * y + 2 * mQuadrics[q + 5] * y * z
+                + 2 * mQuadrics[q + 6] * y + mQuadrics[q + 7] * z * z + 2 * mQuadrics[q + 8] * z
+                + mQuadrics[q + 9];
+    }
+
+    // Numbers the base first, then the vertex and faces of each split
+    private ProgressiveMesh toProgressiveMesh(float[] sourceNormals) {
+        int collapses = mChild.size();
+        int baseVertices = 0;
+        int[] vertexId = new int[mVertexAlive.length];
+        for (int v = 0; v < mVertexAlive.length; v++) {
+            if (mVertexAlive[v]) {
+                vertexId[v] = baseVertices++;
+            }
+        }
+        int[] faceId = new int[mFaceAlive.length];
+        int faces = 0;
+        for (int f = 0; f < mFaceAlive.length; f++) {
+            if (mFaceAlive[f]) {
+                faceId[f] = faces++;
+            }
+        }
+        int baseFaces = faces;
+        for (int n = 0; n < collapses; n++) {
+            int j = collapses - 1 - n;
+            vertexId[mChild.get(j)] = baseVertices + n;
+            for (int r = mRemovedStart.get(j); r < end(mRemovedStart, j, mRemovedFaces); r++) {
+                faceId[mRemovedFaces.get(r)] = faces++;
+            }
+        }
+
+        ProgressiveMesh mesh = new ProgressiveMesh(mVertexAlive.length, mFaceAlive.length, baseVertices,
+                baseFaces, collapses, mCorners.size());
+        mesh.sourceVertices = new int[mVertexAlive.length];
+        for (int v = 0; v < mVertexAlive.length; v++) {
+            int id = vertexId[v];
+            mesh.sourceVertices[id] = v;
+            System.arraycopy(mCoords, v * 3, mesh.coords, id * 3, 3);
+            System.arraycopy(sourceNormals, v * 3, mesh.normals, id * 3, 3);
+        }
+        for (int f = 0; f < mFaceAlive.length; f++) {
+            if (mFaceAlive[f]) {
+                for (int k = 0; k < 3; k++) {
+                    mesh.indices[faceId[f] * 3 + k] = vertexId[mFaces[f * 3 + k]];
+                }
+            }
+        }
+        int corner = 0;
+        for (int n = 0; n < collapses; n++) {
+            int j = collapses - 1 - n;
+            mesh.splitParent[n] = vertexId[mParent.get(j)];
+            int removedEnd = end(mRemovedStart, j, mRemovedFaces);
+            for (int r = mRemovedStart.get(j); r < removedEnd; r++) {
+                int id = faceId[mRemovedFaces.get(r)];
+                for (int k = 0; k < 3; k++) {
+                    mesh.indices[id * 3 + k] = vertexId[mRemovedVertices.get(r * 3 + k)];
+                }
+            }
+            mesh.splitFaceStart[n + 1] = mesh.splitFaceStart[n] + removedEnd - mRemovedStart.get(j);
+            for (int c = mCornerStart.get(j); c < end(mCornerStart, j, mCorners); c++) {
+                int source = mCorners.get(c);
+                mesh.corners[corner++] = faceId[source / 3] * 3 + source % 3;
+            }
+            mesh.splitCornerStart[n + 1] = corner;
+        }
+        mesh.setLoaded();
+        return mesh;
+    }
+
+    private static int end(IntList starts, int j, IntList items) {
+        return j + 1 < starts.size() ? starts.get(j + 1) : items.size();
+    }
+
+    /**
+     * Growable int array.
+     */
+    static class IntList {
+        private int[] mData = new int[64];
+        private int mSize;
+
+        void add(int value) {
+            if (mSize == mData.length) {
+                int[] data = new int[mSize * 2];
+                System.arraycopy(mData, 0, data, 0, mSize);
+                mData = data;
+            }
+            mData[mSize++] = value;
+        }
+
+        int get(int i) {
+            return mData[i];
+        }
+
+        int size() {
+            return mSize;
+        }
+    }
+}
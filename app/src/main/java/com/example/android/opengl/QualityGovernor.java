@@ -0,0 +1,207 @@
+package com.example.android.opengl;
+
+import java.io.PrintStream;
+import java.util.Arrays;
+
+/**
+ * Picks the quality of the frames from their measured cost, so a slow
+ * device keeps its frame rate and a fast one keeps its detail.
+ *
+ * The quality is a level of a fixed ladder, 0 the best. Each level sets the
+ * fraction of the faces of the figure, the scale of the surface against the
+ * view (the compositor upscales it) and whether the point lights are drawn
+ * or only the main light. The frame costs go into a window of
+ * {@link #WINDOW} frames. When its 90th percentile misses the target the
+ * quality steps down; when even the percentile is well under the target,
+ * below {@link #UP_HEADROOM} of it, for {@link #UP_WINDOWS} windows in a
+ * row, it steps back up. After a change the window starts over, so the
+ * next decision only sees frames of the new level.
+ *
+ * Every change is kept, up to {@link #MAX_DECISIONS}, with the times that
+ * caused it, to tune the target of each device class.
+ */
+public class QualityGovernor {
+
+    /**
+     * Told of every change of level, on the thread that reports the frames.
+     */
+    public interface Listener {
+        void onQualityChanged(QualityGovernor governor, int from, int to);
+    }
+
+    public static final int WINDOW = 30;
+    // a step up needs this much headroom for this many windows
+    public static final float UP_HEADROOM = 0.7f;
+    public static final int UP_WINDOWS = 3;
+    public static final int MAX_DECISIONS = 256;
+
+    // Escalera de calidad: detalle de la malla, escala de la superficie y luces puntuales
+    private static final float[] DETAIL = {1.0f, 0.5f, 0.5f, 0.5f, 0.25f};
+    private static final float[] RENDER_SCALE = {1.0f, 1.0f, 0.75f, 0.75f, 0.5f};
+    private static final boolean[] POINT_LIGHTS = {true, true, true, false, false};
+
+    private volatile long mTargetNanos;
+    private volatile int mLevel;
+    private Listener mListener;
+
+    private final long[] mWindow = new long[WINDOW];
+    private final long[] mSorted = new long[WINDOW];
+    private int mSamples;
+    private int mCalmWindows;
+    private long mFrames;
+
+    // decisions: frame, level before and after, percentile and mean of the window (us)
+    private final long[] mDecisionFrame = new long[MAX_DECISIONS];
+    private final int[] mDecisionFrom = new int[MAX_DECISIONS];
+    private final int[] mDecisionTo = new int[MAX_DECISIONS];
+    private final float[] mDecisionP90 = new float[MAX_DECISIONS];
+    private final float[] mDecisionMean = new float[MAX_DECISIONS];
+    private int mDecisions;
+    private float mLastP90Micros;
+
+    /**
+     * Sets the frame time to keep, 0 to stop governing. A new target starts
+     * from the best level.
+     */
+    public synchronized void setTargetMs(float milliseconds) {
+        mTargetNanos = (long) (milliseconds * 1e6f);
+        mLevel = 0;
+        mSamples = 0;
+        mCalmWindows = 0;
+    }
+
+    public float getTargetMs() {
+        return mTargetNanos / 1e6f;
+    }
+
+    public boolean isEnabled() {
+        return mTargetNanos > 0;
+    }
+
+    public synchronized void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Adds the cost of a frame to the window and decides when it is full.
+     * The cost is the work of the frame itself, not the time between
+     * frames: that follows the touches and the vsync, not the rendering.
+     *
+     * @param nanos - Time of the GL thread in the frame, plus the time the
+     * GPU needed after a recent frame drawn alone. Leave out that frame,
+     * which waited for the GPU.
+     * @return - True if the level changed.
+     */
+    public synchronized boolean addFrame(long nanos) {
+        long target = mTargetNanos;
+        if (target <= 0) {
+            return false;
+        }
+        mFrames++;
+        mWindow[mSamples++] = nanos;
+        if (mSamples < WINDOW) {
+            return false;
+        }
+        mSamples = 0;
+        System.arraycopy(mWindow, 0, mSorted, 0, WINDOW);
+        Arrays.sort(mSorted);
+        long p90 = mSorted[WINDOW * 9 / 10];
+        mLastP90Micros = p90 / 1e3f;
+        int level = mLevel;
+        int next = level;
+        if (p90 > target) {
+            mCalmWindows = 0;
+            next = Math.min(level + 1, DETAIL.length - 1);
+        } else if (p90 < target * UP_HEADROOM) {
+            // only after several calm windows, or a level that just fits would flip back and forth
+            if (++mCalmWindows >= UP_WINDOWS) {
+                mCalmWindows = 0;
+                next = Math.max(level - 1, 0);
+            }
+        } else {
+            mCalmWindows = 0;
+        }
+        if (next == level) {
+            return false;
+        }
+        long sum = 0;
+        for (int i = 0; i < WINDOW; i++) {
+            sum += mWindow[i];
+        }
+        if (mDecisions < MAX_DECISIONS) {
+            mDecisionFrame[mDecisions] = mFrames;
+            mDecisionFrom[mDecisions] = level;
+            mDecisionTo[mDecisions] = next;
+            mDecisionP90[mDecisions] = p90 / 1e3f;
+            mDecisionMean[mDecisions] = sum / WINDOW / 1e3f;
+            mDecisions++;
+        }
+        mLevel = next;
+        if (mListener != null) {
+            mListener.onQualityChanged(this, level, next);
+        }
+        return true;
+    }
+
+    /**
+     * Returns the current level, 0 the best.
+     */
+    public int getLevel() {
+        return mLevel;
+    }
+
+    public static int getLevelCount() {
+        return DETAIL.length;
+    }
+
+    /**
+     * Returns the fraction of the faces of the figure to draw.
+     */
+    public float getDetail() {
+        return DETAIL[mLevel];
+    }
+
+    /**
+     * Returns the size of the surface against the view, 1 at full resolution.
+     */
+    public float getRenderScale() {
+        return RENDER_SCALE[mLevel];
+    }
+
+    /**
+     * Returns false if only the main light should be drawn.
+     */
+    public boolean usesPointLights() {
+        return POINT_LIGHTS[mLevel];
+    }
+
+    /**
+     * Returns the 90th percentile of the last full window, in microseconds.
+     */
+    public synchronized float getLastP90Micros() {
+        return mLastP90Micros;
+    }
+
+    public synchronized long getFrameCount() {
+        return mFrames;
+    }
+
+    public synchronized int getDecisionCount() {
+        return mDecisions;
+    }
+
+    /**
+     * Prints the decisions so far, one line each: frame, level before and
+     * after, 90th percentile and mean of the window (us), target (us) and
+     * the quality of the new level.
+     */
+    public synchronized void writeDecisions(PrintStream out) {
+        out.println("frame,from,to,p90_us,mean_us,target_us,detail,render_scale,point_lights");
+        for (int i = 0; i < mDecisions; i++) {
+            int to = mDecisionTo[i];
+            out.println(mDecisionFrame[i] + "," + mDecisionFrom[i] + "," + to + "," + mDecisionP90[i] + ","
+                    + mDecisionMean[i] + "," + mTargetNanos / 1000 + "," + DETAIL[to] + "," + RENDER_SCALE[to]
+                    + "," + POINT_LIGHTS[to]);
+        }
+    }
+}
@@ -0,0 +1,195 @@
+package com.example.android.opengl;
+
+/**
+ * Parallel LSD radix sort of unsigned 32 or 64 bit keys carrying an int
+ * value.
+ *
+ * Each of the four (eight for long keys) 8 bit passes builds one histogram per chunk of the input
+ * in parallel, turns them into scatter offsets and scatters every chunk in
+ * parallel, which keeps the sort stable. Passes where all keys share the
+ * same digit are skipped. Scratch memory is kept between calls, so sorting
+ * the same amount of data every frame does not allocate.
+ */
+public class RadixSort {
+    private static final int BUCKETS = 256;
+    // below this many items per chunk the threads cost more than they save
+    private static final int MIN_CHUNK = 4096;
+
+    private final WorkerPool mPool;
+    private final int mMaxChunks;
+    private final int[] mHistograms;
+
+    private int[] mKeysTmp = new int[0];
+    private int[] mValuesTmp = new int[0];
+    private long[] mLongKeysTmp = new long[0];
+
+    // state of the running pass, read by the tasks
+    private int[] mSrcKeys;
+    private int[] mSrcValues;
+    private int[] mDstKeys;
+    // set instead of the int keys when sorting long keys
+    private long[] mSrcLongKeys;
+    private long[] mDstLongKeys;
+    private int[] mDstValues;
+    private int mCount;
+    private int mChunkSize;
+    private int mShift;
+
+    private final WorkerPool.Task mHistogramTask = new WorkerPool.Task() {
+        @Override
+        public void run(int begin, int end, int worker) {
+            for (int chunk = begin; chunk < end; chunk++) {
+                int[] histograms = mHistograms;
+                int base = chunk * BUCKETS;
+                for (int b = 0; b < BUCKETS; b++) {
+                    histograms[base + b] = 0;
+                }
+                int shift = mShift;
+                int last = Math.min(mCount, (chunk + 1) * mChunkSize);
+                if (mSrcLongKeys != null) {
+                    long[] keys = mSrcLongKeys;
+                    for (int i = chunk * mChunkSize; i < last; i++) {
+                        histograms[base + (int) ((keys[i] >>> shift) & 0xFF)]++;
+                    }
+                } else {
+                    int[] keys = mSrcKeys;
+                    for (int i = chunk * mChunkSize; i < last; i++) {
+                        histograms[base + ((keys[i] >>> shift) & 0xFF)]++;
+                    }
+                }
+            }
+        }
+    };
+
+    private final WorkerPool.Task mScatterTask = new WorkerPool.Task() {
+        @Override
+        public void run(int begin, int end, int worker) {
+            for (int chunk = begin; chunk < end; chunk++) {
+                int[] offsets = mHistograms;
+                int base = chunk * BUCKETS;
+                int[] srcValues = mSrcValues;
+                int[] dstValues = mDstValues;
+                int shift = mShift;
+                int last = Math.min(mCount, (chunk + 1) * mChunkSize);
+                if (mSrcLongKeys != null) {
+                    long[] srcKeys = mSrcLongKeys;
+                    long[] dstKeys = mDstLongKeys;
+                    for (int i = chunk * mChunkSize; i < last; i++) {
+                        long key = srcKeys[i];
+                        int to = offsets[base + (int) ((key >>> shift) & 0xFF)]++;
+                        dstKeys[to] = key;
+                        dstValues[to] = srcValues[i];
+                    }
+                } else {
+                    int[] srcKeys = mSrcKeys;
+                    int[] dstKeys = mDstKeys;
+                    for (int i = chunk * mChunkSize; i < last; i++) {
+                        int key = srcKeys[i];
+                        int to = offsets[base + ((key >>> shift) & 0xFF)]++;
+                        dstKeys[to] = key;
+                        dstValues[to] = srcValues[i];
+                    }
+                }
+            }
+        }
+    };
+
+    public RadixSort(WorkerPool pool) {
+        mPool = pool;
+        mMaxChunks = pool.getThreadCount() * 4;
+        mHistograms = new int[mMaxChunks * BUCKETS];
+    }
+
+    /**
+     * Sorts the first count keys in ascending unsigned order, moving the
+     * values along. Runs on the calling thread plus the pool.
+     */
+    public void sort(int[] keys, int[] values, int count) {
+        if (mKeysTmp.length < count) {
+            mKeysTmp = new int[count];
+        }
+        mSrcKeys = keys;
+        mDstKeys = mKeysTmp;
+        sortValues(values, count, 4);
+        if (mSrcKeys != keys) {
+            System.arraycopy(mSrcKeys, 0, keys, 0, count);
+        }
+        mSrcKeys = mDstKeys = null;
+    }
+
+    /**
+     * Sorts the first count long keys in ascending unsigned order, moving
+     * the values along. Runs on the calling thread plus the pool.
+     */
+    public void sort(long[] keys, int[] values, int count) {
+        if (mLongKeysTmp.length < count) {
+            mLongKeysTmp = new long[count];
+        }
+        mSrcLongKeys = keys;
+        mDstLongKeys = mLongKeysTmp;
+        sortValues(values, count, 8);
+        if (mSrcLongKeys != keys) {
+            System.arraycopy(mSrcLongKeys, 0, keys, 0, count);
+        }
+        mSrcLongKeys = mDstLongKeys = null;
+    }
+
+    // Runs the passes on the keys set by the caller, swapping them with the values
+    private void sortValues(int[] values, int count, int passes) {
+        if (mValuesTmp.length < count) {
+            mValuesTmp = new int[count];
+        }
+        int chunks = Math.max(1, Math.min(mMaxChunks, count / MIN_CHUNK));
+        mCount = count;
+        mChunkSize = (count + chunks - 1) / chunks;
+        mSrcValues = values;
+        mDstValues = mValuesTmp;
+
+        for (int pass = 0; pass < passes; pass++) {
+            mShift = pass * 8;
+            mPool.forEach(chunks, 1, mHistogramTask);
+            if (toOffsets(chunks)) {
+                continue;
+            }
+            mPool.forEach(chunks, 1, mScatterTask);
+
+            int[] t = mSrcKeys;
+            mSrcKeys = mDstKeys;
+            mDstKeys = t;
+            long[] l = mSrcLongKeys;
+            mSrcLongKeys = mDstLongKeys;
+            mDstLongKeys = l;
+            t = mSrcValues;
+            mSrcValues = mDstValues;
+            mDstValues = t;
+        }
+
+        if (mSrcValues != values) {
+            System.arraycopy(mSrcValues, 0, values, 0, count);
+        }
+        mSrcValues = mDstValues = null;
+    }
+
+    /**
+     * Turns the chunk histograms into the first destination of every
+     * (chunk, digit): all smaller digits first, then earlier chunks.
+     *
+     * @return - True if every key has the same digit and the pass can be skipped.
+     */
+    private boolean toOffsets(int chunks) {
+        int sum = 0;
+        for (int b = 0; b < BUCKETS; b++) {
+            int bucketTotal = 0;
+            for (int c = 0; c < chunks; c++) {
+                int n = mHistograms[c * BUCKETS + b];
+                mHistograms[c * BUCKETS + b] = sum;
+                sum += n;
+                bucketTotal += n;
+            }
+            if (bucketTotal == mCount) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
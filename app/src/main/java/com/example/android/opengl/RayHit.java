@@ -0,0 +1,31 @@
+package com.example.android.opengl;
+
+/**
+ * Result of a ray query against a {@link Bvh}. Instances are meant to be
+ * reused between queries.
+ */
+public class RayHit {
+    // index of the hit triangle in the mesh index list (indices[face * 3])
+    public int face = -1;
+    // barycentric coordinates of the hit point, the weight of the first
+    // vertex of the triangle is 1 - u - v
+    public float u;
+    public float v;
+    // distance along the ray, in units of the ray direction length
+    public float t = Float.POSITIVE_INFINITY;
+
+    public void reset(float tMax) {
+        face = -1;
+        u = v = 0;
+        t = tMax;
+    }
+
+    public boolean isHit() {
+        return face >= 0;
+    }
+
+    @Override
+    public String toString() {
+        return "face " + face + " bary (" + (1 - u - v) + ", " + u + ", " + v + ") t " + t;
+    }
+}
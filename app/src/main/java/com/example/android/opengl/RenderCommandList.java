@@ -0,0 +1,232 @@
+package com.example.android.opengl;
+
+/**
+ * The draws of one frame, prepared away from the GL thread.
+ *
+ * A list holds, for every visible object, its id, a sort key and its final
+ * MVP matrix, in preallocated arrays. It is filled by the preparation
+ * thread, handed over through a {@link TripleBuffer} and only read by the
+ * GL thread afterwards, so nobody writes a list that is being drawn. The
+ * keys go in a {@link RenderQueue}, which orders the draws and runs them
+ * with {@link #execute}.
+ */
+public class RenderCommandList {
+    static final int MAX_COMMANDS = 1024;
+
+    private final int[] mObjects = new int[MAX_COMMANDS];
+    private final float[] mMatrices = new float[MAX_COMMANDS * 16];
+    // model-view matrix of each draw that is lit
+    private final float[] mModelViews = new float[MAX_COMMANDS * 16];
+    // copy of the object each draw is for, -1 if it has a single one
+    private final int[] mCopies = new int[MAX_COMMANDS];
+    // commands in key order
+    private final RenderQueue mQueue;
+    private int mCount;
+    // transforms of the copies drawn by an InstancedFigure
+    private final float[] mInstances = new float[MAX_COMMANDS * InstancedFigure.FLOATS_PER_INSTANCE];
+    private int mInstanceCount;
+
+    // lights of the frame, owned by this list
+    private ClusteredLights mLights;
+    // atlas of the impostor draws, null if there are none
+    private ImpostorAtlas mImpostorAtlas;
+
+    private long mFrame = -1;
+    private long mInputVersion;
+    private long mBuildStartNanos;
+    private long mBuildEndNanos;
+
+    /**
+     * @param pool - Sorts the keys of the list.
+     */
+    public RenderCommandList(WorkerPool pool) {
+        mQueue = new RenderQueue(MAX_COMMANDS, pool);
+    }
+
+    /**
+     * Starts filling the list for a new frame.
+     */
+    public void reset(long frame, long inputVersion) {
+        mFrame = frame;
+        mInputVersion = inputVersion;
+        mCount = 0;
+        mQueue.clear();
+        mInstanceCount = 0;
+        mBuildStartNanos = System.nanoTime();
+    }
+
+    /**
+     * Adds the draw of an object.
+     *
+     * @param key - Draws run in increasing key order.
+     * @param mvpMatrix - Final matrix of the object, copied.
+     * @return - False if the list is full.
+     */
+    public boolean add(int object, long key, float[] mvpMatrix) {
+        return add(object, key, mvpMatrix, null, -1);
+    }
+
+    /**
+     * Adds the draw of one of the copies of an object.
+     *
+     * @param mvMatrix - Model-view matrix the copy is lit with, copied; null
+     * if it is not lit.
+     * @param copy - Which copy, told back by {@link #getCopy}.
+     * @return - False if the list is full.
+     */
+    public boolean add(int object, long key, float[] mvpMatrix, float[] mvMatrix, int copy) {
+        if (mCount == MAX_COMMANDS) {
+            return false;
+        }
+        mObjects[mCount] = object;
+        mCopies[mCount] = copy;
+        System.arraycopy(mvpMatrix, 0, mMatrices, mCount * 16, 16);
+        if (mvMatrix != null) {
+            System.arraycopy(mvMatrix, 0, mModelViews, mCount * 16, 16);
+        }
+        mQueue.add(key, mCount);
+        mCount++;
+        return true;
+    }
+
+    /**
+     * Adds a copy to the instanced draw of the frame.
+     *
+     * @param modelMatrix - Model matrix of the copy, packed with
+     * {@link InstancedFigure#pack}.
+     * @return - False if the list is full.
+     */
+    public boolean addInstance(float[] modelMatrix) {
+        if (mInstanceCount == MAX_COMMANDS) {
+            return false;
+        }
+        InstancedFigure.pack(modelMatrix, mInstances, mInstanceCount++);
+        return true;
+    }
+
+    /**
+     * Returns the transforms of the copies, {@link #getInstanceCount} of them.
+     */
+    public float[] getInstances() {
+        return mInstances;
+    }
+
+    public int getInstanceCount() {
+        return mInstanceCount;
+    }
+
+    /**
+     * Sorts the draws by key and ends the list.
+     */
+    public void finish() {
+        mQueue.sort();
+        mBuildEndNanos = System.nanoTime();
+    }
+
+    public int getCount() {
+        return mCount;
+    }
+
+    /**
+     * Returns the object of the i-th draw in key order.
+     */
+    public int getObject(int i) {
+        return mObjects[mQueue.getItem(i)];
+    }
+
+    public long getKey(int i) {
+        return mQueue.getKey(i);
+    }
+
+    /**
+     * Returns the copy of the i-th draw in key order, -1 if the object has
+     * a single one.
+     */
+    public int getCopy(int i) {
+        return mCopies[mQueue.getItem(i)];
+    }
+
+    /**
+     * Copies the matrix of the i-th draw in key order.
+     */
+    public void getMatrix(int i, float[] out) {
+        System.arraycopy(mMatrices, mQueue.getItem(i) * 16, out, 0, 16);
+    }
+
+    /**
+     * Runs the draws in key order, changing a state only when it differs
+     * from the previous draw. {@link RenderQueue.Executor#draw} gets the
+     * command, read back with the getCommand methods.
+     */
+    public void execute(RenderQueue.Executor executor) {
+        mQueue.execute(executor);
+    }
+
+    /**
+     * Returns the queue of the list, for its sort time and state changes.
+     */
+    public RenderQueue getQueue() {
+        return mQueue;
+    }
+
+    public int getCommandObject(int command) {
+        return mObjects[command];
+    }
+
+    public int getCommandCopy(int command) {
+        return mCopies[command];
+    }
+
+    /**
+     * Copies the matrix of a command, as passed to {@link RenderQueue.Executor#draw}.
+     */
+    public void getCommandMatrix(int command, float[] out) {
+        System.arraycopy(mMatrices, command * 16, out, 0, 16);
+    }
+
+    /**
+     * Copies the model-view matrix of a command added with one.
+     */
+    public void getCommandModelView(int command, float[] out) {
+        System.arraycopy(mModelViews, command * 16, out, 0, 16);
+    }
+
+    public ClusteredLights getLights() {
+        return mLights;
+    }
+
+    public void setLights(ClusteredLights lights) {
+        mLights = lights;
+    }
+
+    public ImpostorAtlas getImpostorAtlas() {
+        return mImpostorAtlas;
+    }
+
+    public void setImpostorAtlas(ImpostorAtlas atlas) {
+        mImpostorAtlas = atlas;
+    }
+
+    /**
+     * Returns the frame number, -1 if the list was never filled.
+     */
+    public long getFrame() {
+        return mFrame;
+    }
+
+    /**
+     * Returns the version of the input (angles, screen size) the list was
+     * built from.
+     */
+    public long getInputVersion() {
+        return mInputVersion;
+    }
+
+    public long getBuildStartNanos() {
+        return mBuildStartNanos;
+    }
+
+    public long getBuildEndNanos() {
+        return mBuildEndNanos;
+    }
+}
@@ -0,0 +1,218 @@
+package com.example.android.opengl;
+
+/**
+ * Draws of a frame ordered by a 64 bit key, so that draws sharing a program,
+ * vertex layout and buffer run together.
+ *
+ * Key fields, from the highest bits:
+ * <ul>
+ *   <li>opaque passes: pass (3), program (8), layout (5), buffer (16),
+ *   depth (32), near first;</li>
+ *   <li>{@link #PASS_TRANSPARENT}: pass (3), depth (32) far first, program
+ *   (8), layout (5), buffer (16), as blending needs the depth order.</li>
+ * </ul>
+ * The queue is sorted with a {@link RadixSort} on the keys, and
+ * {@link #execute} only changes a state when its field changes from one
+ * draw to the next. Nothing is allocated once the queue has seen its
+ * largest frame.
+ */
+public class RenderQueue {
+    public static final int PASS_OPAQUE = 0;
+    public static final int PASS_TRANSPARENT = 1;
+    public static final int PASS_OVERLAY = 2;
+
+    public static final int MAX_PROGRAMS = 1 << 8;
+    public static final int MAX_LAYOUTS = 1 << 5;
+    public static final int MAX_BUFFERS = 1 << 16;
+
+    /**
+     * Receives the state changes and draws of {@link #execute}.
+     */
+    public interface Executor {
+        void setProgram(int program);
+
+        void setLayout(int layout);
+
+        void setBuffer(int buffer);
+
+        void draw(int item);
+    }
+
+    private final RadixSort mSorter;
+    private long[] mKeys;
+    private int[] mItems;
+    private int mCount;
+
+    private int mProgramSwitches;
+    private int mLayoutSwitches;
+    private int mBufferSwitches;
+    private long mSortNanos;
+
+    public RenderQueue(int capacity, WorkerPool pool) {
+        mSorter = new RadixSort(pool);
+        mKeys = new long[capacity];
+        mItems = new int[capacity];
+    }
+
+    /**
+     * Builds the key of a draw.
+     *
+     * @param pass - One of the PASS constants, drawn in increasing order.
+     * @param program - Shader program id, below {@link #MAX_PROGRAMS}.
+     * @param layout - Vertex layout id, below {@link #MAX_LAYOUTS}.
+     * @param buffer - Vertex and index buffer id, below {@link #MAX_BUFFERS}.
+     * @param depth - Distance to the camera, 0 or more.
+     */
+    public static long key(int pass, int program, int layout, int buffer, float depth) {
+        // the bits of a positive float sort as the float
+        long depthBits = Float.floatToIntBits(Math.max(depth, 0)) & 0xFFFFFFFFL;
+        long state = ((long) (program & 0xFF) << 21) | ((layout & 0x1F) << 16) | (buffer & 0xFFFF);
+        if (pass == PASS_TRANSPARENT) {
+            return ((long) pass << 61) | ((~depthBits & 0xFFFFFFFFL) << 29) | state;
+        }
+        return ((long) pass << 61) | (state << 32) | depthBits;
+    }
+
+    public static int getPass(long key) {
+        return (int) (key >>> 61);
+    }
+
+    public static int getProgram(long key) {
+        return (int) (stateBits(key) >>> 21) & 0xFF;
+    }
+
+    public static int getLayout(long key) {
+        return (int) (stateBits(key) >>> 16) & 0x1F;
+    }
+
+    public static int getBuffer(long key) {
+        return (int) stateBits(key) & 0xFFFF;
+    }
+
+    // program, layout and buffer in the low 29 bits
+    private static long stateBits(long key) {
+        return getPass(key) == PASS_TRANSPARENT ? key & 0x1FFFFFFFL : (key >>> 32) & 0x1FFFFFFFL;
+    }
+
+    public void clear() {
+        mCount = 0;
+    }
+
+    /**
+     * Queues a draw, growing the queue if needed.
+     *
+     * @param item - Passed back to {@link Executor#draw}.
+     */
+    public void add(long key, int item) {
+        if (mCount == mKeys.length) {
+            long[] keys = new long[mCount * 2];
+            int[] items = new int[mCount * 2];
+            System.arraycopy(mKeys, 0, keys, 0, mCount);
+            System.arraycopy(mItems, 0, items, 0, mCount);
+            mKeys = keys;
+            mItems = items;
+        }
+        mKeys[mCount] = key;
+        mItems[mCount] = item;
+        mCount++;
+    }
+
+    public int getCount() {
+        return mCount;
+    }
+
+    public long getKey(int i) {
+        return mKeys[i];
+    }
+
+    public int getItem(int i) {
+        return mItems[i];
+    }
+
+    /**
+     * Sorts the draws by key, keeping the order of equal keys.
+     */
+    public void sort() {
+        long start = System.nanoTime();
+        mSorter.sort(mKeys, mItems, mCount);
+        mSortNanos = System.nanoTime() - start;
+    }
+
+    /**
+     * Runs the draws in queue order, setting the program, layout and buffer
+     * only when they differ from the previous draw.
+     */
+    public void execute(Executor executor) {
+        int program = -1, layout = -1, buffer = -1;
+        mProgramSwitches = mLayoutSwitches = mBufferSwitches = 0;
+        for (int i = 0; i < mCount; i++) {
+            long key = mKeys[i];
+            int p = getProgram(key);
+            int l = getLayout(key);
+            int b = getBuffer(key);
+            if (p != program) {
+                executor.setProgram(p);
+                program = p;
+                mProgramSwitches++;
+            }
+            if (l != layout) {
+                executor.setLayout(l);
+                layout = l;
+                mLayoutSwitches++;
+            }
+            if (b != buffer) {
+                executor.setBuffer(b);
+                buffer = b;
+                mBufferSwitches++;
+            }
+            executor.draw(mItems[i]);
+        }
+    }
+
+    /**
+     * Counts the state changes {@link #execute} would make in the current
+     * order.
+     */
+    public int countSwitches() {
+        int switches = 0;
+        long last = -1;
+        for (int i = 0; i < mCount; i++) {
+            long key = mKeys[i];
+            if (i == 0 || getProgram(key) != getProgram(last)) {
+                switches++;
+            }
+            if (i == 0 || getLayout(key) != getLayout(last)) {
+                switches++;
+            }
+            if (i == 0 || getBuffer(key) != getBuffer(last)) {
+                switches++;
+            }
+            last = key;
+        }
+        return switches;
+    }
+
+    /**
+     * Returns the program, layout and buffer changes of the last
+     * {@link #execute}.
+     */
+    public int getStateSwitches() {
+        return mProgramSwitches + mLayoutSwitches + mBufferSwitches;
+    }
+
+    public int getProgramSwitches() {
+        return mProgramSwitches;
+    }
+
+    public int getLayoutSwitches() {
+        return mLayoutSwitches;
+    }
+
+    public int getBufferSwitches() {
+        return mBufferSwitches;
+    }
+
+    public float getSortMicros() {
+        return mSortNanos / 1e3f;
+    }
+}
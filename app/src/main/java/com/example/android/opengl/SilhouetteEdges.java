@@ -0,0 +1,262 @@
+package com.example.android.opengl;
+
+import java.nio.ShortBuffer;
+
+/**
+ * Finds the silhouette edges of a mesh for a view, to outline it.
+ *
+ * The edges are listed once, when built: the two vertices of each edge and
+ * the planes of its two faces, normal and offset, next to each other, so a
+ * frame reads one run of memory instead of walking the faces and their
+ * vertices. An edge is on the silhouette when one of its faces looks at the
+ * eye and the other does not. Edges with a single face, the borders of the
+ * mesh, go at the end of the list and are always drawn.
+ *
+ * {@link #extract} splits the edges in chunks of {@link #CHUNK} that a
+ * {@link WorkerPool} classifies in parallel, each writing its lines at the
+ * start of its own part of the output; the parts are then moved together.
+ * While the eye moves less than {@link #setReuseTolerance} of its distance
+ * from the last extraction, the last lines are kept, as a small turn only
+ * moves the silhouette by a fraction of a pixel.
+ */
+public class SilhouetteEdges {
+    static final int CHUNK = 4096;
+    // eye movement kept as the same view, against its distance to the center
+    public static final float DEFAULT_REUSE_TOLERANCE = 0.005f;
+
+    private final float[] mCoords;
+    private final int[] mIndices;
+    private final int mEdgeCount;
+    // the edges with two faces come first
+    private final int mInteriorCount;
+    // two vertices per edge
+    private final int[] mVertices;
+    // two faces per edge, -1 for the second on a border
+    private final int[] mFaces;
+    // planes of the two faces, normal and offset, 8 floats per edge
+    private final float[] mPlanes;
+    // edge of each half-edge, 3 * face + corner
+    private final int[] mHalfEdgeEdge;
+    private final WorkerPool mPool;
+    private final float[] mCenter = new float[3];
+    private final long mBuildNanos;
+
+    // output: 2 vertex indices per silhouette edge, in chunk parts while extracting
+    private final int[] mLines;
+    private final int[] mChunkLines;
+    private int mLineCount;
+    private float mEyeX, mEyeY, mEyeZ;
+    private float mReuseTolerance = DEFAULT_REUSE_TOLERANCE;
+    private boolean mValid;
+
+    private long mLastExtractNanos;
+    private long mExtracted;
+    private long mReused;
+
+    public SilhouetteEdges(Mesh mesh, WorkerPool pool) {
+        long start = System.nanoTime();
+        mCoords = mesh.coords;
+        mIndices = mesh.indices;
+        mPool = pool;
+        HalfEdgeMesh halfEdges = new HalfEdgeMesh(mesh);
+        int halfEdgeCount = halfEdges.getHalfEdgeCount();
+        int interior = 0;
+        int borders = 0;
+        for (int h = 0; h < halfEdgeCount; h++) {
+            int twin = halfEdges.twin(h);
+            if (twin < 0) {
+                borders++;
+            } else if (h < twin) {
+                interior++;
+            }
+        }
+        int edges = interior + borders;
+        mEdgeCount = edges;
+        mInteriorCount = interior;
+        mVertices = new int[edges * 2];
+        mFaces = new int[edges * 2];
+        mPlanes = new float[edges * 8];
+        mHalfEdgeEdge = new int[halfEdgeCount];
+        int nextInterior = 0;
+        int nextBorder = interior;
+        for (int h = 0; h < halfEdgeCount; h++) {
+            int twin = halfEdges.twin(h);
+            if (twin >= 0 && h > twin) {
+                continue;
+            }
+            int e = twin < 0 ? nextBorder++ : nextInterior++;
+            mVertices[e * 2] = halfEdges.from(h);
+            mVertices[e * 2 + 1] = halfEdges.vertex(h);
+            mFaces[e * 2] = halfEdges.face(h);
+            mFaces[e * 2 + 1] = twin < 0 ? -1 : halfEdges.face(twin);
+            mHalfEdgeEdge[h] = e;
+            if (twin >= 0) {
+                mHalfEdgeEdge[twin] = e;
+            }
+        }
+        int faceCount = mesh.getFaceCount();
+        float[] facePlanes = new float[faceCount * 4];
+        for (int f = 0; f < faceCount; f++) {
+            facePlane(f, facePlanes, f * 4);
+        }
+        for (int e = 0; e < interior; e++) {
+            System.arraycopy(facePlanes, mFaces[e * 2] * 4, mPlanes, e * 8, 4);
+            System.arraycopy(facePlanes, mFaces[e * 2 + 1] * 4, mPlanes, e * 8 + 4, 4);
+        }
+
+        float[] min = new float[3];
+        float[] max = new float[3];
+        mesh.getBounds(min, max);
+        for (int k = 0; k < 3; k++) {
+            mCenter[k] = (min[k] + max[k]) * 0.5f;
+        }
+        mLines = new int[edges * 2];
+        mChunkLines = new int[(edges + CHUNK - 1) / CHUNK];
+        mBuildNanos = System.nanoTime() - start;
+    }
+
+    // Plane of a face, n . p = d, not normalized: only its side matters
+    private void facePlane(int f, float[] out, int o) {
+        int a = mIndices[f * 3] * 3;
+        int b = mIndices[f * 3 + 1] * 3;
+        int c = mIndices[f * 3 + 2] * 3;
+        float ux = mCoords[b] - mCoords[a], uy = mCoords[b + 1] - mCoords[a + 1], uz = mCoords[b + 2] - mCoords[a + 2];
+        float vx = mCoords[c] - mCoords[a], vy = mCoords[c + 1] - mCoords[a + 1], vz = mCoords[c + 2] - mCoords[a + 2];
+        out[o] = uy * vz - uz * vy;
+        out[o + 1] = uz * vx - ux * vz;
+        out[o + 2] = ux * vy - uy * vx;
+        out[o + 3] = out[o] * mCoords[a] + out[o + 1] * mCoords[a + 1] + out[o + 2] * mCoords[a + 2];
+    }
+
+    /**
+     * Updates the planes of some faces whose vertices moved. The next
+     * {@link #extract} classifies again.
+     */
+    public void refit(int[] faces, int count) {
+        for (int i = 0; i < count; i++) {
+            int f = faces[i];
+            for (int k = 0; k < 3; k++) {
+                int e = mHalfEdgeEdge[f * 3 + k];
+                if (e < mInteriorCount) {
+                    facePlane(f, mPlanes, mFaces[e * 2] == f ? e * 8 : e * 8 + 4);
+                }
+            }
+        }
+        mValid = false;
+    }
+
+    /**
+     * Sets how far the eye may move, against its distance to the center of
+     * the mesh, and still keep the last lines; 0 to always extract.
+     */
+    public void setReuseTolerance(float tolerance) {
+        mReuseTolerance = tolerance;
+    }
+
+    /**
+     * Finds the silhouette seen from an eye in model space, or keeps the
+     * last one if the eye is close to where it was.
+     *
+     * @return - True if the lines changed.
+     */
+    public boolean extract(final float eyeX, final float eyeY, final float eyeZ) {
+        long start = System.nanoTime();
+        float dx = eyeX - mEyeX, dy = eyeY - mEyeY, dz = eyeZ - mEyeZ;
+        float cx = mEyeX - mCenter[0], cy = mEyeY - mCenter[1], cz = mEyeZ - mCenter[2];
+        float tolerance = mReuseTolerance;
+        if (mValid && dx * dx + dy * dy + dz * dz <= tolerance * tolerance * (cx * cx + cy * cy + cz * cz)) {
+            mReused++;
+            mLastExtractNanos = System.nanoTime() - start;
+            return false;
+        }
+        mPool.forEach(mChunkLines.length, 1, new WorkerPool.Task() {
+            @Override
+            public void run(int begin, int end, int worker) {
+                for (int c = begin; c < end; c++) {
+                    mChunkLines[c] = classify(c * CHUNK, Math.min((c + 1) * CHUNK, mEdgeCount), eyeX, eyeY, eyeZ);
+                }
+            }
+        });
+        // the parts only move down, over lines already moved
+        int count = 0;
+        for (int c = 0; c < mChunkLines.length; c++) {
+            System.arraycopy(mLines, c * CHUNK * 2, mLines, count * 2, mChunkLines[c] * 2);
+            count += mChunkLines[c];
+        }
+        mLineCount = count;
+        mEyeX = eyeX;
+        mEyeY = eyeY;
+        mEyeZ = eyeZ;
+        mValid = true;
+        mExtracted++;
+        mLastExtractNanos = System.nanoTime() - start;
+        return true;
+    }
+
+    // Writes the silhouette edges of a range at the start of its part, returns how many
+    private int classify(int begin, int end, float eyeX, float eyeY, float eyeZ) {
+        float[] planes = mPlanes;
+        int out = begin * 2;
+        int interiorEnd = Math.min(end, mInteriorCount);
+        for (int e = begin; e < interiorEnd; e++) {
+            int p = e * 8;
+            boolean front0 = planes[p] * eyeX + planes[p + 1] * eyeY + planes[p + 2] * eyeZ > planes[p + 3];
+            boolean front1 = planes[p + 4] * eyeX + planes[p + 5] * eyeY + planes[p + 6] * eyeZ > planes[p + 7];
+            if (front0 != front1) {
+                mLines[out++] = mVertices[e * 2];
+                mLines[out++] = mVertices[e * 2 + 1];
+            }
+        }
+        for (int e = Math.max(begin, mInteriorCount); e < end; e++) {
+            mLines[out++] = mVertices[e * 2];
+            mLines[out++] = mVertices[e * 2 + 1];
+        }
+        return (out - begin * 2) / 2;
+    }
+
+    /**
+     * Writes the lines as 16 bit indices, from the start of the buffer.
+     */
+    public void writeIndices(ShortBuffer out) {
+        out.position(0);
+        for (int i = 0; i < mLineCount * 2; i++) {
+            out.put((short) mLines[i]);
+        }
+        out.position(0);
+    }
+
+    public int getEdgeCount() {
+        return mEdgeCount;
+    }
+
+    /**
+     * Returns the vertex indices of the silhouette edges, two each, as many
+     * as {@link #getLineCount}.
+     */
+    public int[] getLines() {
+        return mLines;
+    }
+
+    public int getLineCount() {
+        return mLineCount;
+    }
+
+    public float getBuildMs() {
+        return mBuildNanos / 1e6f;
+    }
+
+    /**
+     * Returns the time of the last {@link #extract}, kept lines included.
+     */
+    public float getLastExtractMicros() {
+        return mLastExtractNanos / 1e3f;
+    }
+
+    public long getExtractedCount() {
+        return mExtracted;
+    }
+
+    public long getReusedCount() {
+        return mReused;
+    }
+}
@@ -0,0 +1,93 @@
+package com.example.android.opengl;
+
+import android.opengl.GLES20;
+import android.util.Log;
+
+/**
+ * Draws a mesh streamed by an {@link OctreeStreamer} in place of a
+ * {@link Figure}, with one directional light.
+ *
+ * Each frame draws the nodes chosen for the view straight from their
+ * mapped files, so only the resident nodes are ever in memory.
+ */
+public class StreamedFigure {
+    private static final String TAG = "StreamedFigure";
+    // projected error allowed, in pixels
+    private static final float TOLERANCE = 2.0f;
+
+    private final String vertexShaderCode =
+            "uniform mat4 uMVPMatrix;      \n"
+            + "uniform vec3 uLightDir;       \n"		// Direction to the light, in model space.
+            + "attribute vec4 vPosition;     \n"
+            + "attribute vec3 aNormal;       \n"
+            + "varying vec4 vColor;          \n"
+            + "void main()                    \n"
+            + "{                              \n"
+            + "   float diffuse = max(dot(normalize(aNormal), uLightDir), 0.1);     \n"
+            + "   vColor = vec4(vec3(diffuse), 1.0);                                 \n"
+            + "   gl_Position = uMVPMatrix * vPosition;                              \n"
+            + "}                                                                     \n";
+
+    private final String fragmentShaderCode =
+            "precision mediump float;" +
+                    "varying vec4 vColor;" +
+                    "void main() {" +
+                    "  gl_FragColor = vColor;" +
+                    "}";
+
+    private static final float[] LIGHT_DIR = {0.8f, 0.4f, 0.45f};
+
+    private final OctreeStreamer mStreamer;
+    private final int mProgram;
+    private long mFrames;
+
+    public StreamedFigure(OctreeStreamer streamer) {
+        mStreamer = streamer;
+        mStreamer.setTolerance(TOLERANCE);
+        mStreamer.start();
+
+        int vertexShader = MyGLRenderer.loadShader(GLES20.GL_VERTEX_SHADER, vertexShaderCode);
+        int fragmentShader = MyGLRenderer.loadShader(GLES20.GL_FRAGMENT_SHADER, fragmentShaderCode);
+        mProgram = Gl.glCreateProgram();
+        Gl.glAttachShader(mProgram, vertexShader);
+        Gl.glAttachShader(mProgram, fragmentShader);
+        Gl.glLinkProgram(mProgram);
+    }
+
+    public OctreeStreamer getStreamer() {
+        return mStreamer;
+    }
+
+    /**
+     * Chooses the nodes for this view and draws the resident ones.
+     *
+     * @param screenScale - See {@link OctreeStreamer#update}.
+     */
+    public void draw(float[] mvpMatrix, float screenScale) {
+        int count = mStreamer.update(mvpMatrix, screenScale);
+
+        Gl.glUseProgram(mProgram);
+        int positionHandle = Gl.glGetAttribLocation(mProgram, "vPosition");
+        int normalHandle = Gl.glGetAttribLocation(mProgram, "aNormal");
+        Gl.glEnableVertexAttribArray(positionHandle);
+        Gl.glEnableVertexAttribArray(normalHandle);
+        Gl.glUniformMatrix4fv(Gl.glGetUniformLocation(mProgram, "uMVPMatrix"), 1, false, mvpMatrix, 0);
+        Gl.glUniform3fv(Gl.glGetUniformLocation(mProgram, "uLightDir"), 1, LIGHT_DIR, 0);
+        for (int i = 0; i < count; i++) {
+            int node = mStreamer.getVisibleNode(i);
+            Gl.glVertexAttribPointer(positionHandle, 3, GLES20.GL_FLOAT, false, 12, mStreamer.getCoords(node));
+            Gl.glVertexAttribPointer(normalHandle, 3, GLES20.GL_FLOAT, false, 12, mStreamer.getNormals(node));
+            Gl.glDrawElements(GLES20.GL_TRIANGLES, mStreamer.getFaceCount(node) * 3, GLES20.GL_UNSIGNED_SHORT,
+                    mStreamer.getIndices(node));
+        }
+        Gl.glDisableVertexAttribArray(positionHandle);
+        Gl.glDisableVertexAttribArray(normalHandle);
+
+        if (++mFrames % 60 == 0) {
+            Log.d(TAG, count + " nodes, " + mStreamer.getVisibleFaces() + " faces, "
+                    + mStreamer.getResidentBytes() / 1024 + " of " + mStreamer.getBudgetBytes() / 1024
+                    + " KB resident, " + mStreamer.getQueueDepth() + " queued, fetch "
+                    + mStreamer.getAverageFetchMicros() + " us");
+        }
+    }
+}
@@ -0,0 +1,249 @@
+package com.example.android.opengl;
+
+/**
+ * Converts indexed triangle lists into a single triangle strip.
+ *
+ * ES 2.0 has no primitive restart, so separate strips are joined with
+ * degenerate (zero area) triangles by repeating the last vertex of a strip
+ * and the first vertex of the next one. Strips are grown greedily across
+ * shared edges, always following the winding GL expects for the next strip
+ * position, so the face orientation of the input is kept. A new strip starts
+ * next to where the previous one ended, which keeps the vertices recently
+ * sent to the GPU in the post-transform cache.
+ */
+public class Stripifier {
+    private final int[] mIndices;
+    private final int mFaceCount;
+
+    // vertex to face adjacency: faces of vertex v are
+    // mVertexFaces[mVertexFaceStart[v] .. mVertexFaceStart[v + 1]]
+    private final int[] mVertexFaceStart;
+    private final int[] mVertexFaces;
+
+    private final boolean[] mUsed;
+    // faces visited while measuring a candidate strip, tagged by mStamp
+    private final int[] mTrial;
+    private int mStamp;
+
+    private int[] mOut;
+    private int mOutLength;
+
+    private Stripifier(int[] indices, int vertexCount) {
+        mIndices = indices;
+        mFaceCount = indices.length / 3;
+        mVertexFaceStart = new int[vertexCount + 1];
+        for (int index : indices) {
+            mVertexFaceStart[index + 1]++;
+        }
+        for (int v = 0; v < vertexCount; v++) {
+            mVertexFaceStart[v + 1] += mVertexFaceStart[v];
+        }
+        mVertexFaces = new int[indices.length];
+        int[] fill = new int[vertexCount];
+        for (int i = 0; i < indices.length; i++) {
+            int v = indices[i];
+            mVertexFaces[mVertexFaceStart[v] + fill[v]++] = i / 3;
+        }
+        mUsed = new boolean[mFaceCount];
+        mTrial = new int[mFaceCount];
+        mOut = new int[Math.max(16, indices.length)];
+    }
+
+    /**
+     * Builds the strip for a triangle list.
+     *
+     * @param indices - Three vertex indices per triangle.
+     * @param vertexCount - Number of vertices referenced by the indices.
+     * @return - The strip indices, to be drawn with GL_TRIANGLE_STRIP.
+     */
+    public static int[] stripify(int[] indices, int vertexCount) {
+        return new Stripifier(indices, vertexCount).run();
+    }
+
+    /**
+     * Appends a strip to out, joined to what is already there with
+     * degenerate triangles. The strip is placed on an even position, so its
+     * winding is right both when drawn as part of out and when a draw call
+     * starts on it.
+     *
+     * @param out - Destination, needs room for strip.length + 3 more indices.
+     * @param length - Indices already in out.
+     * @return - The new length of out.
+     */
+    static int appendJoined(int[] out, int length, int[] strip) {
+        if (length > 0) {
+            out[length] = out[length - 1];
+            length++;
+            out[length++] = strip[0];
+            if (length % 2 == 1) {
+                out[length++] = strip[0];
+            }
+        }
+        System.arraycopy(strip, 0, out, length, strip.length);
+        return length + strip.length;
+    }
+
+    /**
+     * Counts the non degenerate triangles of a strip.
+     */
+    public static int countTriangles(int[] strip) {
+        int count = 0;
+        for (int i = 2; i < strip.length; i++) {
+            int a = strip[i - 2], b = strip[i - 1], c = strip[i];
+            if (a != b && b != c && a != c) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private int[] run() {
+        int nextUnused = 0;
+        while (true) {
+            int start = mOutLength > 0 ? findStartNear() : -1;
+            if (start < 0) {
+                while (nextUnused < mFaceCount && mUsed[nextUnused]) {
+                    nextUnused++;
+                }
+                if (nextUnused == mFaceCount) {
+                    break;
+                }
+                start = nextUnused;
+            }
+
+            // Start with the edge that gives the longest strip
+            int bestRotation = 0;
+            int bestLength = -1;
+            for (int rotation = 0; rotation < 3; rotation++) {
+                int length = walk(start, rotation, false);
+                if (length > bestLength) {
+                    bestLength = length;
+                    bestRotation = rotation;
+                }
+            }
+            walk(start, bestRotation, true);
+        }
+
+        int[] strip = new int[mOutLength];
+        System.arraycopy(mOut, 0, strip, 0, mOutLength);
+        return strip;
+    }
+
+    /**
+     * Grows a strip from a face. When emit is false the faces are only
+     * tagged for this trial and nothing is written.
+     *
+     * @return - The number of faces added after the first one.
+     */
+    private int walk(int start, int rotation, boolean emit) {
+        int a = mIndices[start * 3 + rotation];
+        int p = mIndices[start * 3 + (rotation + 1) % 3];
+        int q = mIndices[start * 3 + (rotation + 2) % 3];
+        mStamp++;
+        mTrial[start] = mStamp;
+        if (emit) {
+            mUsed[start] = true;
+            if (mOutLength > 0) {
+                // degenerate triangles joining with the previous strip, the
+                // new strip must start on an even position to keep its winding
+                append(mOut[mOutLength - 1]);
+                append(a);
+                if (mOutLength % 2 == 1) {
+                    append(a);
+                }
+            }
+            append(a);
+            append(p);
+            append(q);
+        }
+
+        int length = 0;
+        // position of the next triangle in the strip, odd ones are reversed
+        int position = 1;
+        while (true) {
+            int face = position % 2 == 0 ? findFace(p, q) : findFace(q, p);
+            if (face < 0) {
+                break;
+            }
+            int x = thirdVertex(face, p, q);
+            mTrial[face] = mStamp;
+            if (emit) {
+                mUsed[face] = true;
+                append(x);
+            }
+            length++;
+            p = q;
+            q = x;
+            position++;
+        }
+        return length;
+    }
+
+    // Finds an available face with the directed edge s -> e.
+    private int findFace(int s, int e) {
+        for (int i = mVertexFaceStart[s]; i < mVertexFaceStart[s + 1]; i++) {
+            int f = mVertexFaces[i];
+            if (mUsed[f] || mTrial[f] == mStamp) {
+                continue;
+            }
+            for (int k = 0; k < 3; k++) {
+                if (mIndices[f * 3 + k] == s && mIndices[f * 3 + (k + 1) % 3] == e) {
+                    return f;
+                }
+            }
+        }
+        return -1;
+    }
+
+    private int thirdVertex(int face, int p, int q) {
+        for (int k = 0; k < 3; k++) {
+            int v = mIndices[face * 3 + k];
+            if (v != p && v != q) {
+                return v;
+            }
+        }
+        return q;
+    }
+
+    /**
+     * Looks for the next start among the unused faces around the last
+     * vertices emitted, which are still in the vertex cache. Faces with fewer
+     * free neighbours go first so they do not end up as lone strips.
+     */
+    private int findStartNear() {
+        int best = -1;
+        int bestNeighbours = Integer.MAX_VALUE;
+        mStamp++;
+        for (int j = Math.max(0, mOutLength - 3); j < mOutLength; j++) {
+            int v = mOut[j];
+            for (int i = mVertexFaceStart[v]; i < mVertexFaceStart[v + 1]; i++) {
+                int f = mVertexFaces[i];
+                if (mUsed[f]) {
+                    continue;
+                }
+                int neighbours = 0;
+                for (int k = 0; k < 3; k++) {
+                    int a = mIndices[f * 3 + k];
+                    int b = mIndices[f * 3 + (k + 1) % 3];
+                    if (findFace(b, a) >= 0) {
+                        neighbours++;
+                    }
+                }
+                if (neighbours < bestNeighbours) {
+                    bestNeighbours = neighbours;
+                    best = f;
+                }
+            }
+        }
+        return best;
+    }
+
+    private void append(int index) {
+        if (mOutLength == mOut.length) {
+            int[] out = new int[mOut.length * 2];
+            System.arraycopy(mOut, 0, out, 0, mOutLength);
+            mOut = out;
+        }
+        mOut[mOutLength++] = index;
+    }
+}
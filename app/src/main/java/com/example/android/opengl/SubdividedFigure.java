@@ -0,0 +1,286 @@
+package com.example.android.opengl;
+
+import android.opengl.GLES20;
+import android.util.Log;
+
+import java.nio.FloatBuffer;
+import java.nio.ShortBuffer;
+
+/**
+ * Draws a mesh smoothed by an {@link AdaptiveSubdivision}, in place of a
+ * {@link Figure}, lit by the same {@link FigureLighting}. The lights are
+ * gathered once for the sphere of the whole mesh, and the new vertices have
+ * no ambient occlusion, so the surface is drawn without it.
+ *
+ * {@link #update} picks the levels for the view once per frame on the
+ * preparation thread, so subdividing never holds up a draw. {@link #draw}
+ * copies what the updates rewrote since the last one into the buffers,
+ * holding the lock of the subdivision; the buffers grow in the
+ * {@link BufferArena} as the zoom adds triangles.
+ */
+public class SubdividedFigure {
+    private static final String TAG = "SubdividedFigure";
+
+    private final String vertexShaderCode =
+            "uniform mat4 uMVPMatrix;      \n"
+            + FigureLighting.SHADER_CODE
+            + "attribute vec4 vPosition;     \n"
+            + "attribute vec3 aNormal;       \n"
+            + "varying vec4 vColor;          \n"
+            + "void main()                    \n"
+            + "{                              \n"
+            + "   vColor = vec4(lightAt(vPosition, aNormal), 1.0);                   \n"
+            + "   gl_Position = uMVPMatrix * vPosition;                              \n"
+            + "}                                                                     \n";
+
+    private final String fragmentShaderCode =
+            "precision mediump float;" +
+                    "varying vec4 vColor;" +
+                    "void main() {" +
+                    "  gl_FragColor = vColor;" +
+                    "}";
+
+
+    private final AdaptiveSubdivision mSubdivision;
+    private final BufferArena mArena = BufferArena.getDefault();
+    private BufferArena.Slice mVertexSlice, mNormalSlice, mIndexSlice;
+    private FloatBuffer mVertexBuffer;
+    private FloatBuffer mNormalBuffer;
+    private ShortBuffer mIndexBuffer;
+    private final int mProgram;
+    private final FigureLighting mLighting;
+    private ClusteredLights mLights;
+    // bounding sphere of the mesh, the lights are gathered around it
+    private final float[] mSphere = new float[4];
+    private long mFrames;
+
+    // batches of the output in the buffers, GL thread only
+    private int[] mBatchVertex = new int[2];
+    private int[] mBatchIndex = new int[2];
+    private int mBatchCount;
+    private final int[] mDirtyRanges;
+
+    // edits from the GL thread, applied by the next update
+    private final Object mEditLock = new Object();
+    private int[] mMovedVertices = new int[64];
+    private int mMovedCount;
+    private boolean mInvalid;
+
+    public SubdividedFigure(Mesh mesh, WorkerPool pool) {
+        mSubdivision = new AdaptiveSubdivision(mesh, pool);
+        mDirtyRanges = new int[(mSubdivision.getPatchCount() + 1) * 2];
+
+        int vertexShader = MyGLRenderer.loadShader(GLES20.GL_VERTEX_SHADER, vertexShaderCode);
+        int fragmentShader = MyGLRenderer.loadShader(GLES20.GL_FRAGMENT_SHADER, fragmentShaderCode);
+        mProgram = Gl.glCreateProgram();
+        Gl.glAttachShader(mProgram, vertexShader);
+        Gl.glAttachShader(mProgram, fragmentShader);
+        Gl.glLinkProgram(mProgram);
+        mLighting = new FigureLighting(mProgram);
+        float[] min = new float[3];
+        float[] max = new float[3];
+        mesh.getBounds(min, max);
+        for (int k = 0; k < 3; k++) {
+            mSphere[k] = (min[k] + max[k]) * 0.5f;
+            mSphere[3] += (max[k] - min[k]) * (max[k] - min[k]) * 0.25f;
+        }
+        mSphere[3] = (float) Math.sqrt(mSphere[3]);
+    }
+
+    public AdaptiveSubdivision getSubdivision() {
+        return mSubdivision;
+    }
+
+    /**
+     * Lights the surface with the lights of the clusters around it, or with
+     * the default light if null. GL thread.
+     */
+    public void setLights(ClusteredLights lights) {
+        mLights = lights;
+    }
+
+    /**
+     * Sets how long an edge may look on screen before it is subdivided.
+     */
+    public void setEdgePixels(float pixels) {
+        mSubdivision.setEdgePixels(pixels);
+    }
+
+    /**
+     * Subdivides again from the mesh, after it was edited. Any thread, the
+     * next {@link #update} does it.
+     */
+    public void invalidate() {
+        synchronized (mEditLock) {
+            mInvalid = true;
+        }
+    }
+
+    /**
+     * Subdivides again around some moved vertices of the mesh. Any thread,
+     * the next {@link #update} does it.
+     */
+    public void invalidate(int[] vertices, int count) {
+        synchronized (mEditLock) {
+            if (mMovedCount + count > mMovedVertices.length) {
+                int[] grown = new int[Math.max(mMovedVertices.length * 2, mMovedCount + count)];
+                System.arraycopy(mMovedVertices, 0, grown, 0, mMovedCount);
+                mMovedVertices = grown;
+            }
+            System.arraycopy(vertices, 0, mMovedVertices, mMovedCount, count);
+            mMovedCount += count;
+        }
+    }
+
+    /**
+     * Applies the edits and picks the levels for this view, subdividing the
+     * patches that need it. Once per frame, on the preparation thread.
+     *
+     * @param screenScale - Pixels per unit at distance 1.
+     * @return - True if the output changed, the view must draw it.
+     */
+    public boolean update(float[] mvpMatrix, float screenScale) {
+        synchronized (mEditLock) {
+            if (mInvalid) {
+                mSubdivision.invalidate();
+            } else if (mMovedCount > 0) {
+                mSubdivision.invalidate(mMovedVertices, mMovedCount);
+            }
+            mInvalid = false;
+            mMovedCount = 0;
+        }
+        boolean changed = mSubdivision.update(mvpMatrix, screenScale);
+        if (changed) {
+            Log.d(TAG, mSubdivision.getTriangleCount() + " triangles, " + mSubdivision.getLastRefinedCount()
+                    + " patches subdivided in " + mSubdivision.getLastRefineMicros() + " us, "
+                    + mSubdivision.getLastReusedCount() + " cached");
+        }
+        if (++mFrames % 120 == 0) {
+            Log.d(TAG, "update " + mSubdivision.getLastUpdateMicros() + " us, " + mSubdivision.getTriangleCount()
+                    + " triangles in " + mSubdivision.getBatchCount() + " batches, "
+                    + mSubdivision.getCachedFaceCount() + " faces cached");
+        }
+        return changed;
+    }
+
+    // Copies the output rewritten since the last upload, GL thread
+    private void upload() {
+        synchronized (mSubdivision) {
+            if (mSubdivision.getBatchCount() == 0) {
+                return;
+            }
+            uploadLocked();
+            mSubdivision.clearDirty();
+        }
+    }
+
+    private void uploadLocked() {
+        int vertices = mSubdivision.getVertexCount();
+        int indices = mSubdivision.getTriangleCount() * 3;
+        int ranges;
+        int firstIndex = mSubdivision.getDirtyIndexStart();
+        if (mVertexBuffer == null || mVertexBuffer.capacity() < vertices * 3) {
+            releaseVertices();
+            // room to grow, the levels change a few patches at a time
+            mVertexSlice = mArena.allocate(vertices * 3 / 2 * 12);
+            mNormalSlice = mArena.allocate(vertices * 3 / 2 * 12);
+            mVertexBuffer = mVertexSlice.asFloatBuffer();
+            mNormalBuffer = mNormalSlice.asFloatBuffer();
+            // new buffers, all of it
+            mDirtyRanges[0] = 0;
+            mDirtyRanges[1] = vertices;
+            ranges = 1;
+        } else {
+            ranges = mSubdivision.getDirtyVertexRanges(mDirtyRanges);
+        }
+        if (mIndexBuffer == null || mIndexBuffer.capacity() < indices) {
+            if (mIndexSlice != null) {
+                mArena.release(mIndexSlice);
+            }
+            mIndexSlice = mArena.allocate(indices * 3 / 2 * 2);
+            mIndexBuffer = mIndexSlice.asShortBuffer();
+            firstIndex = 0;
+        }
+        float[] coords = mSubdivision.getCoords();
+        float[] normals = mSubdivision.getNormals();
+        for (int r = 0; r < ranges; r++) {
+            int start = mDirtyRanges[r * 2] * 3;
+            int length = mDirtyRanges[r * 2 + 1] * 3 - start;
+            mVertexBuffer.position(start);
+            mVertexBuffer.put(coords, start, length);
+            mNormalBuffer.position(start);
+            mNormalBuffer.put(normals, start, length);
+        }
+        mIndexBuffer.position(firstIndex);
+        mIndexBuffer.put(mSubdivision.getIndices(), firstIndex, indices - firstIndex);
+
+        mBatchCount = mSubdivision.getBatchCount();
+        if (mBatchVertex.length < mBatchCount + 1) {
+            mBatchVertex = new int[mBatchCount * 2];
+            mBatchIndex = new int[mBatchCount * 2];
+        }
+        for (int b = 0; b <= mBatchCount; b++) {
+            mBatchVertex[b] = mSubdivision.getBatchFirstVertex(b);
+            mBatchIndex[b] = mSubdivision.getBatchFirstIndex(b);
+        }
+    }
+
+    /**
+     * Draws the output of the updates so far.
+     *
+     * @param mvMatrix - Model-view matrix of the copy, to light it.
+     * @return - False if there is none yet, the caller draws the base mesh.
+     */
+    public boolean draw(float[] mvpMatrix, float[] mvMatrix) {
+        upload();
+        if (mBatchCount == 0) {
+            return false;
+        }
+        Gl.glUseProgram(mProgram);
+        int positionHandle = Gl.glGetAttribLocation(mProgram, "vPosition");
+        int normalHandle = Gl.glGetAttribLocation(mProgram, "aNormal");
+        Gl.glEnableVertexAttribArray(positionHandle);
+        Gl.glEnableVertexAttribArray(normalHandle);
+        Gl.glUniformMatrix4fv(Gl.glGetUniformLocation(mProgram, "uMVPMatrix"), 1, false, mvpMatrix, 0);
+        mLighting.begin(mvMatrix);
+        mLighting.bind(mLights, mSphere, 0);
+        // each batch has its own 16 bit indices, from its first vertex
+        for (int b = 0; b < mBatchCount; b++) {
+            mVertexBuffer.position(mBatchVertex[b] * 3);
+            mNormalBuffer.position(mBatchVertex[b] * 3);
+            mIndexBuffer.position(mBatchIndex[b]);
+            Gl.glVertexAttribPointer(positionHandle, 3, GLES20.GL_FLOAT, false, 12, mVertexBuffer);
+            Gl.glVertexAttribPointer(normalHandle, 3, GLES20.GL_FLOAT, false, 12, mNormalBuffer);
+            Gl.glDrawElements(GLES20.GL_TRIANGLES, mBatchIndex[b + 1] - mBatchIndex[b], GLES20.GL_UNSIGNED_SHORT,
+                    mIndexBuffer);
+        }
+        mVertexBuffer.position(0);
+        mNormalBuffer.position(0);
+        mIndexBuffer.position(0);
+        Gl.glDisableVertexAttribArray(positionHandle);
+        Gl.glDisableVertexAttribArray(normalHandle);
+        return true;
+    }
+
+    private void releaseVertices() {
+        if (mVertexSlice != null) {
+            mArena.release(mVertexSlice);
+            mArena.release(mNormalSlice);
+            mVertexSlice = mNormalSlice = null;
+        }
+    }
+
+    /**
+     * Returns the buffers to the {@link BufferArena}.
+     */
+    public void release() {
+        releaseVertices();
+        if (mIndexSlice != null) {
+            mArena.release(mIndexSlice);
+            mIndexSlice = null;
+        }
+        mVertexBuffer = mNormalBuffer = null;
+        mIndexBuffer = null;
+        mBatchCount = 0;
+    }
+}
@@ -0,0 +1,314 @@
+package com.example.android.opengl;
+
+import java.io.BufferedInputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.lang.reflect.Method;
+
+/**
+ * Replays an {@link InputTrace} through the renderer without a view or a
+ * GL context, and reports the cost of every frame.
+ *
+ * The events go through the same {@link GestureInput} as the touches of the
+ * view, and a frame is drawn whenever the view would render one: after a
+ * rotation or a sculpt stroke, and again when the preparation thread
+ * publishes a list built from newer input. GL calls go to a
+ * {@link CountingGl}, so a frame costs only its CPU work. The replayer
+ * waits for the preparation thread after each frame, so the same trace
+ * gives the same frames on every run and builds can be compared.
+ *
+ * With a frame interval the events are grouped into frames of that length
+ * and the replay runs in real time; with none, each event that needs a
+ * render gets its own frame and the replay runs as fast as it can.
+ *
+ * For every frame it prints: frame, trace time (ms), GL thread time (us),
+ * build time on the preparation thread (us), GL calls, draw calls, indices,
+ * uniform floats and bytes allocated on the GL thread (-1 if unknown).
+ */
+public class TraceReplayer {
+    private final MyGLRenderer mRenderer;
+    private final CountingGl mGl;
+    private final GestureInput mInput;
+    private int mFrameInterval;
+
+    private volatile boolean mFrameReady;
+    private int mFrames;
+    private long mTotalNanos;
+    private long mMaxNanos;
+    private long mAllocatedBytes;
+    private int mDrawCalls;
+
+    // allocation counter of the running VM, found by reflection
+    private Method mAllocatedBytesMethod;
+    private Object mThreadBean;
+    private Object[] mThreadId;
+    private boolean mDalvikCounter;
+
+    /**
+     * Creates the replayer, a renderer and its counting GL. Installs the
+     * stand-in with {@link Gl#setStandIn} for the whole process.
+     */
+    public TraceReplayer() {
+        mGl = new CountingGl();
+        Gl.setStandIn(mGl);
+        mRenderer = new MyGLRenderer();
+        mInput = new GestureInput(mRenderer);
+        mRenderer.setFrameListener(new FramePipeline.Listener() {
+            @Override
+            public void onFrameReady() {
+                mFrameReady = true;
+            }
+        });
+        findAllocationCounter();
+    }
+
+    /**
+     * Sets the frame length in milliseconds, 0 to replay unthrottled.
+     */
+    public void setFrameInterval(int milliseconds) {
+        mFrameInterval = milliseconds;
+    }
+
+    public MyGLRenderer getRenderer() {
+        return mRenderer;
+    }
+
+    /**
+     * Replays a trace from a new surface of the trace size.
+     *
+     * @param out - Receives a line per frame, or null.
+     * @return - The number of frames drawn.
+     */
+    public int replay(InputTrace trace, PrintStream out) {
+        mFrames = 0;
+        mTotalNanos = 0;
+        mMaxNanos = 0;
+        mAllocatedBytes = 0;
+        mDrawCalls = 0;
+        mRenderer.onSurfaceCreated(null, null);
+        mRenderer.onSurfaceChanged(null, trace.getWidth(), trace.getHeight());
+        if (out != null) {
+            out.println("frame,time_ms,cpu_us,build_us,gl_calls,draws,indices,uniform_floats,alloc_bytes");
+        }
+
+        long start = System.currentTimeMillis();
+        int event = 0;
+        int count = trace.getEventCount();
+        // the surface change needs a frame, as in the view
+        boolean dirty = true;
+        int time = 0;
+        while (event < count || dirty) {
+            int frameEnd = mFrameInterval > 0 ? time + mFrameInterval : Integer.MAX_VALUE;
+            int tapAction = GestureInput.NONE;
+            float tapX = 0, tapY = 0;
+            while (event < count && trace.getTime(event) < frameEnd) {
+                int result = mInput.onTouch(trace.getAction(event), trace.getX(event), trace.getY(event),
+                        trace.getTime(event), trace.getWidth());
+                time = Math.max(time, trace.getTime(event));
+                event++;
+                if (result == GestureInput.PICK || result == GestureInput.SCULPT) {
+                    tapAction = result;
+                    tapX = mInput.getTapX();
+                    tapY = mInput.getTapY();
+                }
+                if (result != GestureInput.NONE) {
+                    dirty |= result != GestureInput.PICK;
+                    if (mFrameInterval == 0) {
+                        break;
+                    }
+                }
+            }
+            if (mFrameInterval > 0) {
+                time = frameEnd;
+            }
+
+            if (dirty || tapAction != GestureInput.NONE) {
+                dirty = drawFrame(tapAction, tapX, tapY, time, dirty, out);
+            }
+            if (mFrameInterval > 0) {
+                long wait = start + time - System.currentTimeMillis();
+                if (wait > 0) {
+                    try {
+                        Thread.sleep(wait);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        break;
+                    }
+                }
+            }
+        }
+        return mFrames;
+    }
+
+    // Runs what the GL thread would for one frame, returns if another is needed
+    private boolean drawFrame(int tapAction, float tapX, float tapY, int time, boolean render, PrintStream out) {
+        mGl.reset();
+        long allocated = allocatedBytes();
+        long begin = System.nanoTime();
+        // queued events run on the GL thread before the frame
+        if (tapAction == GestureInput.PICK) {
+            mRenderer.pick(tapX, tapY);
+        } else if (tapAction == GestureInput.SCULPT) {
+            mRenderer.sculpt(tapX, tapY);
+        }
+        if (render) {
+            mFrameReady = false;
+            mRenderer.onDrawFrame(null);
+        }
+        long nanos = System.nanoTime() - begin;
+        if (allocated >= 0) {
+            allocated = allocatedBytes() - allocated;
+            mAllocatedBytes += allocated;
+        }
+        mTotalNanos += nanos;
+        mMaxNanos = Math.max(mMaxNanos, nanos);
+        mDrawCalls += mGl.getDrawCalls();
+        FramePipeline pipeline = mRenderer.getPipeline();
+        if (out != null) {
+            out.println(mFrames + "," + time + "," + nanos / 1000 + "," + (long) pipeline.getBuildMicros() + ","
+                    + mGl.getCalls() + "," + mGl.getDrawCalls() + "," + mGl.getIndices() + ","
+                    + mGl.getUniformFloats() + "," + allocated);
+        }
+        mFrames++;
+        if (!render) {
+            return false;
+        }
+        pipeline.waitIdle();
+        return mFrameReady;
+    }
+
+    private void findAllocationCounter() {
+        try {
+            // a desktop VM
+            Class<?> factory = Class.forName("java.lang.management.ManagementFactory");
+            mThreadBean = factory.getMethod("getThreadMXBean").invoke(null);
+            Class<?> bean = Class.forName("com.sun.management.ThreadMXBean");
+            mAllocatedBytesMethod = bean.getMethod("getThreadAllocatedBytes", long.class);
+            mThreadId = new Object[] {Thread.currentThread().getId()};
+            return;
+        } catch (Exception e) {
+            mAllocatedBytesMethod = null;
+        }
+        try {
+            // Dalvik counts the allocations of a thread once asked to
+            android.os.Debug.startAllocCounting();
+            mDalvikCounter = true;
+        } catch (RuntimeException e) {
+            mDalvikCounter = false;
+        }
+    }
+
+    // Bytes allocated by this thread so far, or -1 if the VM cannot tell
+    private long allocatedBytes() {
+        if (mAllocatedBytesMethod != null) {
+            try {
+                return (Long) mAllocatedBytesMethod.invoke(mThreadBean, mThreadId);
+            } catch (Exception e) {
+                mAllocatedBytesMethod = null;
+            }
+        }
+        if (mDalvikCounter) {
+            return android.os.Debug.getThreadAllocSize();
+        }
+        return -1;
+    }
+
+    public int getFrameCount() {
+        return mFrames;
+    }
+
+    /**
+     * Returns the GL thread time of all frames of the last replay, in
+     * milliseconds.
+     */
+    public float getTotalMs() {
+        return mTotalNanos / 1e6f;
+    }
+
+    public float getMaxFrameMicros() {
+        return mMaxNanos / 1e3f;
+    }
+
+    /**
+     * Returns the bytes allocated by the GL thread during the frames of the
+     * last replay, or -1 if unknown.
+     */
+    public long getAllocatedBytes() {
+        return mAllocatedBytesMethod != null || mDalvikCounter ? mAllocatedBytes : -1;
+    }
+
+    public int getDrawCalls() {
+        return mDrawCalls;
+    }
+
+    /**
+     * Replays a trace file, or a made up drag when no file is given, and
+     * prints the frames. The figure can be drawn as many copies, one draw
+     * each or by pseudo-instancing, to compare both, and the small ones as
+     * impostors. With a frame target the quality governor runs and its
+     * decisions are printed at the end. With subdivision pixels the figure is
+     * smoothed by an {@link AdaptiveSubdivision}.
+     *
+     * Usage: TraceReplayer [trace] [frame interval ms] [copies [instanced|naive [impostor pixels
+     * [frame target ms [subdivision pixels]]]]]
+     */
+    public static void main(String[] args) throws IOException {
+        InputTrace trace;
+        if (args.length > 0 && !args[0].equals("-")) {
+            InputStream in = new BufferedInputStream(new FileInputStream(args[0]));
+            try {
+                trace = InputTrace.read(in);
+            } finally {
+                in.close();
+            }
+        } else {
+            trace = InputTrace.createDrag(1080, 1920, 2000, 16);
+        }
+        TraceReplayer replayer = new TraceReplayer();
+        if (args.length > 1) {
+            replayer.setFrameInterval(Integer.parseInt(args[1]));
+        }
+        if (args.length > 2) {
+            replayer.getRenderer().setInstanceCount(Integer.parseInt(args[2]));
+            replayer.getRenderer().setInstancing(args.length > 3 && args[3].equals("instanced"));
+        }
+        if (args.length > 4) {
+            replayer.getRenderer().setImpostorPixels(Float.parseFloat(args[4]));
+        }
+        if (args.length > 5) {
+            replayer.getRenderer().setFrameTargetMs(Float.parseFloat(args[5]));
+        }
+        if (args.length > 6) {
+            replayer.getRenderer().setSubdivisionPixels(Float.parseFloat(args[6]));
+        }
+        replayer.replay(trace, System.out);
+        System.out.println(trace.getEventCount() + " events, " + replayer.getFrameCount() + " frames in "
+                + replayer.getTotalMs() + " ms, max " + replayer.getMaxFrameMicros() + " us, "
+                + replayer.getDrawCalls() + " draw calls, " + replayer.getAllocatedBytes() + " bytes allocated");
+        if (replayer.getFrameCount() > 0) {
+            System.out.println((float) replayer.getDrawCalls() / replayer.getFrameCount() + " draw calls and "
+                    + replayer.getTotalMs() * 1000 / replayer.getFrameCount() + " us per frame");
+            long saved = replayer.getRenderer().getSavedVertices();
+            if (saved > 0) {
+                System.out.println(replayer.getRenderer().getLastImpostorCount() + " impostors in the last frame, "
+                        + saved / replayer.getFrameCount() + " vertices saved per frame");
+            }
+        }
+        SubdividedFigure subdivided = replayer.getRenderer().getSubdividedFigure();
+        if (subdivided != null) {
+            AdaptiveSubdivision subdivision = subdivided.getSubdivision();
+            System.out.println("subdivision: " + subdivision.getTriangleCount() + " triangles, "
+                    + subdivision.getCachedFaceCount() + " faces cached, last update "
+                    + subdivision.getLastUpdateMicros() + " us");
+        }
+        QualityGovernor governor = replayer.getRenderer().getQualityGovernor();
+        if (governor.isEnabled()) {
+            System.out.println("quality level " + governor.getLevel() + " after " + governor.getDecisionCount()
+                    + " changes, p90 " + governor.getLastP90Micros() + " us");
+            governor.writeDecisions(System.out);
+        }
+        replayer.getRenderer().getPipeline().stop();
+    }
+}
@@ -0,0 +1,67 @@
+package com.example.android.opengl;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Lock-free hand over of the latest item from one producer thread to one
+ * consumer thread.
+ *
+ * The producer writes the back item and publishes it by swapping it with
+ * the middle one; the consumer takes the middle item, if it is newer, by
+ * swapping it with its front one. Neither side ever waits for the other,
+ * and an item is only touched by one side at a time. A published item the
+ * consumer never took is reused by the producer.
+ */
+public class TripleBuffer<T> {
+    private static final int INDEX_MASK = 3;
+    // set in mMiddle when it holds an item the consumer has not taken
+    private static final int FRESH = 4;
+
+    private final Object[] mItems;
+    private final AtomicInteger mMiddle = new AtomicInteger(1);
+    // owned by the producer
+    private int mBack = 0;
+    // owned by the consumer
+    private int mFront = 2;
+
+    public TripleBuffer(T first, T second, T third) {
+        mItems = new Object[] {first, second, third};
+    }
+
+    /**
+     * Returns the item the producer may write. Producer thread only.
+     */
+    @SuppressWarnings("unchecked")
+    public T getBack() {
+        return (T) mItems[mBack];
+    }
+
+    /**
+     * Makes the back item available to the consumer. Producer thread only.
+     */
+    public void publish() {
+        mBack = mMiddle.getAndSet(mBack | FRESH) & INDEX_MASK;
+    }
+
+    /**
+     * Forgets a published item the consumer has not taken, so it is never
+     * taken. Only while neither thread uses the buffer.
+     */
+    public void discard() {
+        mMiddle.set(mMiddle.get() & INDEX_MASK);
+    }
+
+    /**
+     * Takes the newest published item, or keeps the current one if nothing
+     * new was published. Consumer thread only.
+     *
+     * @return - The item to read until the next call.
+     */
+    @SuppressWarnings("unchecked")
+    public T acquire() {
+        if ((mMiddle.get() & FRESH) != 0) {
+            mFront = mMiddle.getAndSet(mFront) & INDEX_MASK;
+        }
+        return (T) mItems[mFront];
+    }
+}
@@ -0,0 +1,191 @@
+package com.example.android.opengl;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Small fixed set of threads to split CPU loops across cores.
+ *
+ * {@link #forEach} hands out ranges of the loop dynamically and the calling
+ * thread takes part in the work. The pool keeps its threads parked between
+ * calls and a call allocates nothing, so it can be used every frame. The
+ * threads run one loop at a time: a call made while they are busy, from
+ * another thread (the GL and the preparation threads share the pool) or
+ * from a task, runs its loop on the calling thread alone instead of waiting.
+ */
+public class WorkerPool {
+    /**
+     * Body of a parallel loop.
+     */
+    public interface Task {
+        /**
+         * Processes the items begin .. end.
+         *
+         * @param worker - Index of the running thread in [0, getThreadCount()),
+         * to pick per thread scratch data. The caller is worker 0.
+         */
+        void run(int begin, int end, int worker);
+    }
+
+    private static WorkerPool sDefault;
+
+    private final Thread[] mThreads;
+    private final Object mLock = new Object();
+    private final AtomicInteger mNext = new AtomicInteger();
+    // set while the threads run a loop
+    private final AtomicBoolean mBusy = new AtomicBoolean();
+    private final AtomicInteger mInlineLoops = new AtomicInteger();
+
+    // current loop, guarded by mLock
+    private Task mTask;
+    private int mCount;
+    private int mGrain;
+    private int mGeneration;
+    private int mActive;
+    private volatile Throwable mFailure;
+
+    /**
+     * Returns a pool with one thread per core, shared by the whole app.
+     */
+    public static synchronized WorkerPool getDefault() {
+        if (sDefault == null) {
+            sDefault = new WorkerPool(Runtime.getRuntime().availableProcessors());
+        }
+        return sDefault;
+    }
+
+    /**
+     * @param threads - Total threads working on a loop, the caller included.
+     */
+    public WorkerPool(int threads) {
+        mThreads = new Thread[Math.max(0, threads - 1)];
+        for (int i = 0; i < mThreads.length; i++) {
+            final int worker = i + 1;
+            mThreads[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    workerLoop(worker);
+                }
+            }, "WorkerPool-" + worker);
+            mThreads[i].setDaemon(true);
+            mThreads[i].start();
+        }
+    }
+
+    public int getThreadCount() {
+        return mThreads.length + 1;
+    }
+
+    /**
+     * Runs task over the items 0 .. count and returns when all are done.
+     *
+     * @param grain - Items handed to a thread at a time. Loops no bigger than
+     * one grain, or started while the threads are busy, run on the calling
+     * thread only.
+     */
+    public void forEach(int count, int grain, Task task) {
+        if (count <= 0) {
+            return;
+        }
+        grain = Math.max(1, grain);
+        if (mThreads.length == 0 || count <= grain) {
+            task.run(0, count, 0);
+            return;
+        }
+        if (!mBusy.compareAndSet(false, true)) {
+            mInlineLoops.incrementAndGet();
+            task.run(0, count, 0);
+            return;
+        }
+        try {
+            runLoop(count, grain, task);
+        } finally {
+            mBusy.set(false);
+        }
+    }
+
+    /**
+     * Returns how many loops ran on their calling thread alone because the
+     * threads were busy with another one.
+     */
+    public int getInlineLoopCount() {
+        return mInlineLoops.get();
+    }
+
+    private void runLoop(int count, int grain, Task task) {
+        synchronized (mLock) {
+            mTask = task;
+            mCount = count;
+            mGrain = grain;
+            mNext.set(0);
+            mActive = mThreads.length;
+            mFailure = null;
+            mGeneration++;
+            mLock.notifyAll();
+        }
+        try {
+            work(task, count, grain, 0);
+        } finally {
+            boolean interrupted = false;
+            synchronized (mLock) {
+                while (mActive > 0) {
+                    try {
+                        mLock.wait();
+                    } catch (InterruptedException e) {
+                        interrupted = true;
+                    }
+                }
+                mTask = null;
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        Throwable failure = mFailure;
+        if (failure != null) {
+            throw new RuntimeException("Parallel task failed", failure);
+        }
+    }
+
+    private void work(Task task, int count, int grain, int worker) {
+        int begin;
+        while ((begin = mNext.getAndAdd(grain)) < count) {
+            task.run(begin, Math.min(count, begin + grain), worker);
+        }
+    }
+
+    private void workerLoop(int worker) {
+        int seen = 0;
+        while (true) {
+            Task task;
+            int count;
+            int grain;
+            synchronized (mLock) {
+                while (mGeneration == seen) {
+                    try {
+                        mLock.wait();
+                    } catch (InterruptedException e) {
+                        // daemon thread, keep serving
+                    }
+                }
+                seen = mGeneration;
+                task = mTask;
+                count = mCount;
+                grain = mGrain;
+            }
+            try {
+                work(task, count, grain, worker);
+            } catch (Throwable t) {
+                mFailure = t;
+                // let the other threads finish quickly
+                mNext.set(count);
+            } finally {
+                synchronized (mLock) {
+                    if (--mActive == 0) {
+                        mLock.notifyAll();
+                    }
+                }
+            }
+        }
+    }
+}